@@ -21,6 +21,9 @@ create or replace package index_common as
   procedure remove_scores (
      rmi_hostname varchar2, job_no number);
 
+  procedure cancel_job (
+     rmi_hostname varchar2, job_no number);
+
   function boolean_to_integer (val boolean) return integer;
 
   function integer_to_boolean (val integer) return boolean;
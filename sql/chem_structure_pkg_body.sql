@@ -1702,14 +1702,19 @@ begin
 end;
 
 /*
-    closes the index.  Nothing to do.
+    closes the index.  If the cursor is closed before all hits have been
+    fetched the search is cancelled, so that it does not continue to run on
+    the RMI server.
 */
 MEMBER FUNCTION ODCIINDEXCLOSE(
         SELF IN OUT nocopy structure_ind_obj,
         env SYS.ODCIEnv)
 RETURN NUMBER  is
 begin
-        if similarity_ancillary = 1 then
+        if finished = 0 then
+            dbms_output.put_line('cancelling unfinished search job');
+            index_common.cancel_job(rmi_hostname, job_no);
+        elsif similarity_ancillary = 1 then
             dbms_output.put_line('cleaning similarity scores from java cache');
             index_common.remove_scores(rmi_hostname, job_no);
         end if;
@@ -3024,6 +3029,16 @@ as language java name
 'com.cairn.rmi.oracle.Wrappers.removeScoresMap(
       java.lang.String, int)';
 
+/*
+   Cancels a running search job and removes any cache of scores from Java
+*/
+  procedure cancel_job (
+    rmi_hostname varchar2,
+    job_no number)
+as language java name
+'com.cairn.rmi.oracle.Wrappers.cancelJob(
+      java.lang.String, int)';
+
 /*
    Determines if a row is a hit in a given search job by checking the Java cache.
 */
@@ -3,12 +3,12 @@ package com.cairn.common;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 import lombok.Value;
-import org.RDKit.SparseIntVectu32;
 import org.apache.commons.codec.binary.Base64;
 
 import javax.annotation.Nullable;
 import java.io.Serializable;
 import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -22,7 +22,7 @@ public class FingerprintedSmiles implements Serializable {
     @NonNull
     private final BitSet fingerprint;
     @Nullable
-    private final List<SparseIntVectu32> deMorganFingerprints;
+    private final List<MorganFingerprint> deMorganFingerprints;
 
 
     public String getStringFingerprint() {
@@ -34,7 +34,8 @@ public class FingerprintedSmiles implements Serializable {
         List<Map<Long, Integer>> serializedMorganFingerprints = null;
         if (deMorganFingerprints != null) {
             serializedMorganFingerprints = deMorganFingerprints.stream()
-                    .map(RDKitOps::fingerprintToMap).collect(Collectors.toList());
+                    .map(fp -> fp == null ? new HashMap<Long, Integer>() : fp.toMap())
+                    .collect(Collectors.toList());
         }
         return new FingerprintedSmiles.SerializedFingerprintedSmiles(smiles, fingerprint, serializedMorganFingerprints);
     }
@@ -47,11 +48,11 @@ public class FingerprintedSmiles implements Serializable {
         private final List<Map<Long, Integer>> serializedMorganFingerprints;
 
         public Object readResolve() {
-            List<SparseIntVectu32> deMorganFingerprints = null;
+            List<MorganFingerprint> deMorganFingerprints = null;
             if (serializedMorganFingerprints != null) {
                 deMorganFingerprints = serializedMorganFingerprints
                         .stream()
-                        .map(RDKitOps::mapToFingerprint)
+                        .map(MorganFingerprint::fromMap)
                         .collect(Collectors.toList());
             }
             return new FingerprintedSmiles(smiles , fingerprint, deMorganFingerprints);
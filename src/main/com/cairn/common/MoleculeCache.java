@@ -1,51 +1,208 @@
 package com.cairn.common;
 
 import org.RDKit.ROMol;
-import org.apache.commons.collections4.map.LRUMap;
 import org.apache.log4j.Logger;
 
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Uses the commons collection LRU map to cache molecules.
- * To check out a molecule use getMolecule. Once you are done use finished to
- * release the lock on that structure.
+ * A striped LRU cache of molecules.
+ * <p>
+ * Smiles are hashed to one of a number of stripes, each with its own lock and
+ * LRU map, so concurrent searches rarely contend. Molecules are weighted by an
+ * estimate of their native memory and each stripe evicts its least recently
+ * used molecules once it exceeds its share of the cache capacity.
+ * <p>
+ * Cached molecules are reference counted: the cache holds one reference and
+ * each thread using the molecule holds another. A molecule is deleted when its
+ * last reference is released, either on eviction or when the last thread using
+ * an evicted molecule finishes with it.
+ * <p>
+ * Once a stripe is full a new molecule is only admitted if it has been
+ * requested more often than the molecule it would evict, in the style of
+ * TinyLFU. Request frequencies are estimated by a count-min sketch for each
+ * stripe that is periodically halved, so a scan of molecules that are each
+ * used once does not flush the frequently used molecules from the cache.
  *
  * @author Gareth Jones
  */
 public class MoleculeCache {
     // set true to cache molecules
     private static boolean useMoleculeCache = false;
-    // set true to allow concurrent searches on target molecules
-    // both settings work for RDKit molecules
-    private static final boolean ALLOW_CONCURRENT_TARGET_ACCESS = true;
+
+    // approximate native memory used by a molecule, its atoms and its bonds
+    private static final int MOLECULE_BYTES = 1024;
+    private static final int ATOM_BYTES = 320;
+    private static final int BOND_BYTES = 160;
+    // approximate native memory of a typical molecule, used to convert a
+    // cache size in molecules to a capacity
+    private static final long TYPICAL_MOLECULE_BYTES = MOLECULE_BYTES + 25 * ATOM_BYTES
+            + 27 * BOND_BYTES;
 
     static private volatile MoleculeCache moleculeCache;
     private static final Logger logger = Logger.getLogger(MoleculeCache.class.getName());
 
-    private final Map<String, ROMol> molecules;
+    private final Stripe[] stripes;
+    private final int stripeMask;
+    private final long stripeCapacity;
+
+    private final AtomicInteger nHits = new AtomicInteger(0), nMisses = new AtomicInteger(0),
+            nPuts = new AtomicInteger(0), nRejections = new AtomicInteger(0),
+            nRemovals = new AtomicInteger(0);
+    private final AtomicLong weight = new AtomicLong(0);
+
+    /**
+     * A cached molecule
+     */
+    private static final class Entry {
+        private final ROMol mol;
+        private final long weight;
+        // the initial reference is held by the cache once the entry is added
+        // to a stripe, otherwise by the thread that created it
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private Entry(ROMol mol, long weight) {
+            this.mol = mol;
+            this.weight = weight;
+        }
+
+        /**
+         * Adds a reference. Only called under the stripe lock on an entry that
+         * is still in the stripe, so the count is never zero.
+         */
+        private void acquire() {
+            references.incrementAndGet();
+        }
+
+        /**
+         * Removes a reference, deleting the molecule when no references
+         * remain.
+         */
+        private void release() {
+            if (references.decrementAndGet() == 0)
+                mol.delete();
+        }
+    }
+
+    /**
+     * A count-min sketch of request frequencies, with four bit counters packed
+     * into longs. The counters are halved once the number of increments
+     * reaches a sample size, so the frequencies favour recent requests. Not
+     * thread safe.
+     */
+    private static final class FrequencySketch {
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+                0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private static final long RESET_MASK = 0x7777777777777777L;
+        private static final int MAX_COUNT = 15;
+
+        private final long[] table;
+        private final int tableMask;
+        private final int sampleSize;
+        private int size;
+
+        /**
+         * @param maxEntries expected maximum number of cached entries
+         */
+        private FrequencySketch(int maxEntries) {
+            var tableSize = Integer.highestOneBit(Math.max(64, maxEntries) - 1) << 1;
+            table = new long[tableSize];
+            tableMask = tableSize - 1;
+            sampleSize = 10 * tableSize;
+        }
 
-    private final AtomicInteger nHits=new AtomicInteger(0), nPuts=new AtomicInteger(0), nRemovals=new AtomicInteger(0);
-    private final Map<String, ReentrantLock> structureLockMap = new HashMap<>();
+        private static long counterHash(int hash, int depth) {
+            var h = (hash + SEEDS[depth]) * SEEDS[depth];
+            return h + (h >>> 32);
+        }
+
+        /**
+         * @param hash
+         * @return the estimated number of requests for a key
+         */
+        private int frequency(int hash) {
+            var frequency = MAX_COUNT;
+            for (var depth = 0; depth < SEEDS.length; depth++) {
+                var h = counterHash(hash, depth);
+                var shift = ((int) (h >>> 40) & 15) << 2;
+                var count = (int) (table[(int) h & tableMask] >>> shift) & MAX_COUNT;
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        /**
+         * Records a request for a key
+         *
+         * @param hash
+         */
+        private void increment(int hash) {
+            var added = false;
+            for (var depth = 0; depth < SEEDS.length; depth++) {
+                var h = counterHash(hash, depth);
+                var shift = ((int) (h >>> 40) & 15) << 2;
+                var index = (int) h & tableMask;
+                if (((table[index] >>> shift) & MAX_COUNT) < MAX_COUNT) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++size >= sampleSize) {
+                for (var i = 0; i < table.length; i++)
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                size /= 2;
+            }
+        }
+    }
 
-    private final Map<String, Integer> moleculeUseCount = new HashMap<>();
+    /**
+     * A lock, LRU map and frequency sketch for a subset of the molecules
+     */
+    private static final class Stripe {
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final FrequencySketch sketch;
+        private long weight;
 
+        private Stripe(int maxEntries) {
+            sketch = new FrequencySketch(maxEntries);
+        }
+    }
 
-    @SuppressWarnings("unchecked")
-    private MoleculeCache(int cacheSize) {
-        // note commons collections are untyped
-        logger.debug("creating cache");
-        info();
-        MoleculeLRUMap lrumap = new MoleculeLRUMap(cacheSize);
-        molecules = Collections.synchronizedMap(lrumap);
+    private MoleculeCache(long capacity) {
+        var nStripes = Integer.highestOneBit(Math.max(16,
+                Runtime.getRuntime().availableProcessors() * 4) - 1) << 1;
+        stripes = new Stripe[nStripes];
+        stripeMask = nStripes - 1;
+        stripeCapacity = Math.max(1L, capacity / nStripes);
+        var stripeEntries = (int) Math.min(1 << 24, stripeCapacity / TYPICAL_MOLECULE_BYTES);
+        for (var i = 0; i < nStripes; i++)
+            stripes[i] = new Stripe(stripeEntries);
+        logger.debug("creating cache of " + capacity / (1024 * 1024) + " MB in " + nStripes
+                + " stripes");
     }
 
+    /**
+     * Creates the cache
+     *
+     * @param cacheSize the number of molecules of typical size that the cache
+     *                  can hold
+     */
     public static void createMoleculeCache(int cacheSize) {
-        moleculeCache = new MoleculeCache(cacheSize);
+        moleculeCache = new MoleculeCache(cacheSize * TYPICAL_MOLECULE_BYTES);
+    }
+
+    /**
+     * Creates the cache
+     *
+     * @param cacheSizeMb the estimated native memory the cached molecules may
+     *                    use
+     */
+    public static void createMoleculeCacheMb(int cacheSizeMb) {
+        moleculeCache = new MoleculeCache(((long) cacheSizeMb) * 1024L * 1024L);
     }
 
     /**
@@ -59,37 +216,102 @@ public class MoleculeCache {
         void useMolecule(ROMol mol) ;
     }
 
+    private Stripe stripe(String smiles) {
+        var hash = smiles.hashCode();
+        hash ^= (hash >>> 16);
+        return stripes[hash & stripeMask];
+    }
+
     /**
-     * Creates a molecule for a smiles and adds it to the cache.
+     * @param mol
+     * @return the approximate native memory used by a molecule
+     */
+    private static long estimateWeight(ROMol mol) {
+        return MOLECULE_BYTES + mol.getNumAtoms() * ATOM_BYTES + mol.getNumBonds() * BOND_BYTES;
+    }
+
+    /**
+     * Gets a molecule from the cache, or creates a molecule for a smiles and
+     * adds it to the cache. The caller holds a reference to the entry and
+     * should release it.
      *
      * @param smiles
-     * @return
+     * @return the entry or null if the smiles cannot be parsed
      */
-    private ROMol getMolecule(String smiles, boolean trusted) {
+    private Entry acquireEntry(String smiles, boolean trusted) {
         logger.debug("Request for smiles " + smiles);
 
-        if (molecules.containsKey(smiles)) {
-            var mol = molecules.get(smiles);
-            if (mol != null) {
+        var stripe = stripe(smiles);
+        var hash = smiles.hashCode();
+        synchronized (stripe) {
+            stripe.sketch.increment(hash);
+            var entry = stripe.entries.get(smiles);
+            if (entry != null) {
+                entry.acquire();
                 nHits.incrementAndGet();
                 logger.debug("Hit cache");
-                return mol;
-            } else {
-                // the molecule in the cache is null. This means that another
-                // thread is in the process of removing the molecule from the
-                // LRU cache
-                logger.debug("Null molecule in LRU cache!");
+                return entry;
             }
         }
-        logger.debug("Parsing smiles");
+        nMisses.incrementAndGet();
 
+        // parse outside the lock, so other molecules in the stripe are not
+        // blocked
+        logger.debug("Parsing smiles");
         var mol = RDKitOps.smilesToMol(smiles, trusted).orElse(null);
+        if (mol == null)
+            return null;
+        var newEntry = new Entry(mol, estimateWeight(mol));
+
+        synchronized (stripe) {
+            var entry = stripe.entries.get(smiles);
+            if (entry != null) {
+                // another thread added the molecule
+                entry.acquire();
+                newEntry.release();
+                return entry;
+            }
+            if (!admit(stripe, hash, newEntry.weight)) {
+                // the caller holds the only reference
+                nRejections.incrementAndGet();
+                return newEntry;
+            }
+            newEntry.acquire();
+            stripe.entries.put(smiles, newEntry);
+            stripe.weight += newEntry.weight;
+            weight.addAndGet(newEntry.weight);
+            nPuts.incrementAndGet();
+            logger.debug("put compound into cache");
+
+            Iterator<Map.Entry<String, Entry>> iter = stripe.entries.entrySet().iterator();
+            while (stripe.weight > stripeCapacity && iter.hasNext()) {
+                var evicted = iter.next().getValue();
+                iter.remove();
+                stripe.weight -= evicted.weight;
+                weight.addAndGet(-evicted.weight);
+                nRemovals.incrementAndGet();
+                // deleted now, or when the last thread using it releases it
+                evicted.release();
+            }
+        }
+        return newEntry;
+    }
 
-        molecules.put(smiles, mol);
-        logger.debug("put compound into cache");
-        nPuts.incrementAndGet();
-
-        return mol;
+    /**
+     * Decides whether to add a molecule to a stripe. If the stripe is full the
+     * molecule must have been requested more often than the least recently
+     * used molecule, which it would evict. Called under the stripe lock.
+     *
+     * @param stripe
+     * @param hash      smiles hash code
+     * @param newWeight weight of the new molecule
+     * @return true if the molecule should be added
+     */
+    private boolean admit(Stripe stripe, int hash, long newWeight) {
+        if (stripe.weight + newWeight <= stripeCapacity || stripe.entries.isEmpty())
+            return true;
+        var victim = stripe.entries.keySet().iterator().next();
+        return stripe.sketch.frequency(hash) > stripe.sketch.frequency(victim.hashCode());
     }
 
     public void useMolecule(UseCacheMolecule useCacheMolecule, String smiles) {
@@ -98,193 +320,34 @@ public class MoleculeCache {
 
     /**
      * Gets a molecule from the cache if present, otherwise generates and puts
-     * into the cache (if addToCache is set).
+     * into the cache. The molecule may be used by other threads at the same
+     * time and must not be modified.
      *
      * @param useCacheMolecule
      * @param smiles
      */
     public void useMolecule(UseCacheMolecule useCacheMolecule, String smiles, boolean trusted) {
-
-        // make sure no other threads can check out this structure
-        ReentrantLock lock = null;
-        if (!ALLOW_CONCURRENT_TARGET_ACCESS) {
-            synchronized (structureLockMap) {
-                if (!structureLockMap.containsKey(smiles))
-                    structureLockMap.put(smiles, new ReentrantLock());
-                lock = structureLockMap.get(smiles);
-            }
-            if (logger.isDebugEnabled())
-                logger.debug("Attempting to acquire lock for smiles " + smiles
-                        + " current hold count " + lock.getHoldCount());
-            // don't acquire the lock in the synchronized block- deadlock
-            lock.lock();
-        } else {
-            synchronized (moleculeUseCount) {
-                if (!moleculeUseCount.containsKey(smiles))
-                    moleculeUseCount.put(smiles, 1);
-                else {
-                    moleculeUseCount.put(smiles, moleculeUseCount.get(smiles) + 1);
-                    logger.warn("Multiple use!");
-                }
-            }
-        }
+        var entry = acquireEntry(smiles, trusted);
+        if (entry == null)
+            return;
         try {
-            if (logger.isDebugEnabled())
-                logger.debug("Acquired lock for smiles " + smiles + " "
-                        + lock.getHoldCount() + " holds left");
-
-            var mol = getMolecule(smiles, trusted);
-            if (mol != null) {
-                useCacheMolecule.useMolecule(mol);
-            }
-
-            if (!ALLOW_CONCURRENT_TARGET_ACCESS) {
-                returnMol(mol, smiles);
-            } else {
-                synchronized (moleculeUseCount) {
-                    int cnt = moleculeUseCount.get(smiles);
-                    if (cnt == 1) {
-                        moleculeUseCount.remove(smiles);
-                        returnMol(mol, smiles);
-                    } else {
-                        moleculeUseCount.put(smiles, cnt - 1);
-                    }
-                }
-            }
-
+            useCacheMolecule.useMolecule(entry.mol);
         } finally {
-            // free lock and delete lock object if nobody else is holding
-            if (!ALLOW_CONCURRENT_TARGET_ACCESS) {
-                synchronized (structureLockMap) {
-                    lock.unlock();
-                    if (logger.isDebugEnabled())
-                        logger.debug("Removed lock for smiles " + smiles + " "
-                                + lock.getHoldCount() + " holds left");
-                    // make sure the map removal is done in the synchronized
-                    // block
-                    if (!lock.hasQueuedThreads()) {
-                        structureLockMap.remove(smiles);
-                    }
-                }
-            }
+            entry.release();
         }
-
-    }
-
-    /**
-     * Returns a molecule to the cache after use.
-     *
-     * @param mol
-     * @param smiles
-     */
-    private void returnMol(ROMol mol, String smiles) {
     }
 
     /**
      * Logs information about the cache
      */
     public void info() {
-        logger.info("Cache Usage hits " + nHits.get() + " puts " + nPuts.get() + " removals "
-                + nRemovals.get());
-        // printMemoryUsage();
-    }
-
-    /**
-     * Subclass LRUmap so that we can reuse the molecule and avoid object churn.
-     */
-    class MoleculeLRUMap extends LRUMap {
-
-        private static final long serialVersionUID = 1000L;
-
-        MoleculeLRUMap(int size) {
-            super(size);
-        }
-
-        /*
-         * Clean up the molecule by freeing/deleting it.
-         *
-         * (non-Javadoc)
-         *
-         * @see
-         * org.apache.commons.collections.map.LRUMap#removeLRU(org.apache.commons
-         * .collections.map.AbstractLinkedMap.LinkEntry)
-         */
-        @Override
-        protected boolean removeLRU(LinkEntry entry) {
-            logger.debug("removing molecule");
-
-            // make sure two threads don't end up deleting the same entry
-            final var mol = (ROMol) entry.getValue();
-            final String smiles = (String) entry.getKey();
-
-            boolean molInUse;
-            if (!ALLOW_CONCURRENT_TARGET_ACCESS) {
-                synchronized (structureLockMap) {
-                    // determine if this entry is still being used by another
-                    // thread.
-                    molInUse = structureLockMap.containsKey(smiles);
-                    // set the entry to null here in case another thread picks
-                    // it up
-                    // before the entry is properly removed
-                    entry.setValue(null);
-                }
-            } else {
-                synchronized (moleculeUseCount) {
-                    molInUse = moleculeUseCount.containsKey(smiles);
-                    entry.setValue(null);
-                }
-            }
-            if (molInUse) {
-                // the molecule is in use in another thread- create a reaper to
-                // delete it which will wait until the molecule is not in use.
-                String threadName = "cacheDeleteMol" + CommonUtils.getUniqLabel();
-                Thread t = new Thread(threadName) {
-                    @Override
-                    public void run() {
-                        try {
-                            int pass = 1;
-                            while (true) {
-                                // sleep for a while
-                                Thread.sleep(100L);
-                                // Check if the molecule is in use. Strictly
-                                // speaking this test does not guarantee that
-                                // this molecule is in use (the entry could have
-                                // been deleted then recreated), but if this
-                                // tests false then it is safe to remove the
-                                // molecule.
-                                boolean molInUse;
-                                if (!ALLOW_CONCURRENT_TARGET_ACCESS) {
-                                    synchronized (structureLockMap) {
-                                        molInUse = structureLockMap.containsKey(smiles);
-                                    }
-                                } else {
-                                    synchronized (moleculeUseCount) {
-                                        molInUse = moleculeUseCount.containsKey(smiles);
-                                    }
-                                }
-                                if (!molInUse) {
-                                    mol.delete();
-                                    logger.debug("Deleted in use cache molecule, pass "
-                                            + pass);
-                                    return;
-                                }
-                                pass++;
-                            }
-                        } catch (InterruptedException e) {
-                            logger.error("Molecule delete thread interrupted!", e);
-                            Thread.currentThread().interrupt();
-                        }
-                    }
-                };
-                t.start();
-                logger.warn("Unable to delete in use cache molecule-reaper thread started");
-            } else
-                mol.delete();
-
-            nRemovals.incrementAndGet();
-            return true;
-        }
-
+        var hits = nHits.get();
+        var requests = hits + nMisses.get();
+        var hitRate = requests == 0 ? 0.0 : ((double) hits) / requests;
+        logger.info("Cache Usage hits " + hits + " misses " + nMisses.get() + " hit rate "
+                + String.format("%.3f", hitRate) + " admitted " + nPuts.get() + " rejected "
+                + nRejections.get() + " removals " + nRemovals.get() + " size "
+                + weight.get() / (1024 * 1024) + " MB");
     }
 
     /**
@@ -0,0 +1,219 @@
+package com.cairn.common;
+
+import org.RDKit.SparseIntVectu32;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A Morgan (ECFP/FCFP) count fingerprint held as sorted primitive arrays.
+ * <p>
+ * Keys are the unsigned 32 bit feature ids of an RDKit SparseIntVectu32,
+ * stored in ints and sorted in unsigned order. The static kernels compute the
+ * same count based Tanimoto, Dice and Tversky similarities as the RDKit
+ * SparseIntVect functions without crossing into native code or allocating.
+ *
+ * @author Gareth Jones
+ */
+public class MorganFingerprint {
+    // length of the RDKit Morgan fingerprint vector
+    private static final long FINGERPRINT_LENGTH = ((long) Integer.MAX_VALUE) * 2L + 1L;
+
+    private final int[] keys;
+    private final int[] counts;
+
+    /**
+     * Count similarity methods, as implemented for SparseIntVect in RDKit.
+     */
+    public enum SimilarityMethod {
+        TANIMOTO, DICE, TVERSKY;
+
+        public static SimilarityMethod fromString(String method) {
+            return valueOf(method.toUpperCase());
+        }
+
+        /**
+         * @param querySum  sum of the query counts
+         * @param targetSum sum of the target counts
+         * @param andSum    sum of the minimum counts of the common features
+         * @param alpha     Tversky query weight
+         * @param beta      Tversky target weight
+         * @return the similarity
+         */
+        public double similarity(double querySum, double targetSum, double andSum, double alpha,
+                                 double beta) {
+            double numerator;
+            double denominator;
+            switch (this) {
+                case TANIMOTO:
+                    numerator = andSum;
+                    denominator = querySum + targetSum - andSum;
+                    break;
+                case DICE:
+                    numerator = 2.0 * andSum;
+                    denominator = querySum + targetSum;
+                    break;
+                case TVERSKY:
+                    numerator = andSum;
+                    denominator = alpha * querySum + beta * targetSum + (1.0 - alpha - beta) * andSum;
+                    break;
+                default:
+                    throw new IllegalArgumentException();
+            }
+            if (Math.abs(denominator) < 1e-6)
+                return 0.0;
+            return numerator / denominator;
+        }
+    }
+
+    public MorganFingerprint(int[] keys, int[] counts) {
+        if (keys.length != counts.length)
+            throw new IllegalArgumentException("Morgan fingerprint keys and counts differ in length");
+        this.keys = keys;
+        this.counts = counts;
+    }
+
+    /**
+     * Copies an RDKit fingerprint. The non zero elements of the RDKit vector
+     * are already sorted by key.
+     *
+     * @param fp
+     * @return
+     */
+    public static MorganFingerprint fromSparseIntVect(SparseIntVectu32 fp) {
+        var elements = fp.getNonzero();
+        var size = (int) elements.size();
+        var keys = new int[size];
+        var counts = new int[size];
+        for (var i = 0; i < size; i++) {
+            var element = elements.get(i);
+            keys[i] = (int) element.getFirst();
+            counts[i] = element.getSecond();
+        }
+        elements.delete();
+        return new MorganFingerprint(keys, counts);
+    }
+
+    /**
+     * Creates a fingerprint from the map representation used in serialized
+     * indexes.
+     *
+     * @param map
+     * @return
+     */
+    public static MorganFingerprint fromMap(Map<Long, Integer> map) {
+        var keys = map.keySet().stream().mapToLong(Long::longValue).sorted().toArray();
+        var intKeys = new int[keys.length];
+        var counts = new int[keys.length];
+        for (var i = 0; i < keys.length; i++) {
+            intKeys[i] = (int) keys[i];
+            counts[i] = map.get(keys[i]);
+        }
+        return new MorganFingerprint(intKeys, counts);
+    }
+
+    /**
+     * @return the map representation used in serialized indexes.
+     */
+    public Map<Long, Integer> toMap() {
+        var map = new HashMap<Long, Integer>();
+        for (var i = 0; i < keys.length; i++)
+            map.put(Integer.toUnsignedLong(keys[i]), counts[i]);
+        return map;
+    }
+
+    /**
+     * @return a new RDKit fingerprint. The caller should delete it.
+     */
+    public SparseIntVectu32 toSparseIntVect() {
+        var fp = new SparseIntVectu32(FINGERPRINT_LENGTH);
+        for (var i = 0; i < keys.length; i++)
+            fp.setVal(Integer.toUnsignedLong(keys[i]), counts[i]);
+        return fp;
+    }
+
+    public int[] getKeys() {
+        return keys;
+    }
+
+    public int[] getCounts() {
+        return counts;
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    /**
+     * @return the sum of the absolute counts
+     */
+    public int totalCount() {
+        return totalCount(counts, 0, counts.length);
+    }
+
+    public static int totalCount(int[] counts, int start, int end) {
+        var total = 0;
+        for (var i = start; i < end; i++)
+            total += Math.abs(counts[i]);
+        return total;
+    }
+
+    /**
+     * Merges the query with a target fingerprint held in a range of pooled
+     * arrays.
+     *
+     * @param queryKeys
+     * @param queryCounts
+     * @param keys
+     * @param counts
+     * @param start       first target element
+     * @param end         end of the target elements
+     * @return the sum of the minimum counts of common features in the upper
+     * 32 bits and the sum of the target counts in the lower 32 bits
+     */
+    public static long andSumAndTotal(int[] queryKeys, int[] queryCounts, int[] keys, int[] counts,
+                                      int start, int end) {
+        var i = 0;
+        var j = start;
+        var andSum = 0L;
+        var total = 0L;
+        var nQuery = queryKeys.length;
+        while (i < nQuery && j < end) {
+            var cmp = Integer.compareUnsigned(queryKeys[i], keys[j]);
+            if (cmp < 0) {
+                i++;
+            } else if (cmp > 0) {
+                total += Math.abs(counts[j]);
+                j++;
+            } else {
+                var targetCount = Math.abs(counts[j]);
+                andSum += Math.min(Math.abs(queryCounts[i]), targetCount);
+                total += targetCount;
+                i++;
+                j++;
+            }
+        }
+        while (j < end)
+            total += Math.abs(counts[j++]);
+        return andSumAndTotal(andSum, total);
+    }
+
+    /**
+     * Packs the results of a fingerprint merge into a long.
+     *
+     * @param andSum
+     * @param total
+     * @return
+     */
+    public static long andSumAndTotal(long andSum, long total) {
+        return (andSum << 32) | (total & 0xffffffffL);
+    }
+
+    public static int andSum(long andSumAndTotal) {
+        return (int) (andSumAndTotal >>> 32);
+    }
+
+    public static int total(long andSumAndTotal) {
+        return (int) andSumAndTotal;
+    }
+}
@@ -1,6 +1,5 @@
 package com.cairn.common;
 
-import com.google.common.collect.Streams;
 import org.RDKit.*;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.math3.util.FastMath;
@@ -192,17 +191,50 @@ public class RDKitOps {
         var isize = (int) size;
         var pickle = new ArrayList<Integer>(isize);
         for (var i = 0; i < isize; i++)
-            pickle.add(i);
+            pickle.add(cPickle.get(i));
+        cPickle.delete();
         return pickle;
     }
 
     public static ROMol molFromBinary(List<Integer> binary) {
         var cPickle = new Int_Vect(binary.size());
-        Streams.mapWithIndex(binary.stream(), (v, i) -> {
-            cPickle.set((int) i, v);
-            return v;
-        });
+        for (var i = 0; i < binary.size(); i++)
+            cPickle.set(i, binary.get(i));
+        var mol = ROMol.MolFromBinary(cPickle);
+        cPickle.delete();
+        return mol;
+    }
+
+    /**
+     * Creates a compact binary pickle of a molecule. Each element of the RDKit
+     * pickle vector holds a single byte.
+     *
+     * @param mol
+     * @return
+     */
+    public static byte[] molToPickle(ROMol mol) {
+        var cPickle = mol.ToBinary();
+        var size = (int) cPickle.size();
+        var pickle = new byte[size];
+        for (var i = 0; i < size; i++)
+            pickle[i] = (byte) cPickle.get(i);
+        cPickle.delete();
+        return pickle;
+    }
+
+    /**
+     * Rebuilds a molecule from a binary pickle. This is much faster than
+     * parsing and sanitizing smiles. The caller should delete the molecule.
+     *
+     * @param pickle
+     * @return
+     */
+    public static ROMol molFromPickle(byte[] pickle) {
+        var cPickle = new Int_Vect(pickle.length);
+        for (var i = 0; i < pickle.length; i++)
+            cPickle.set(i, pickle[i]);
         var mol = ROMol.MolFromBinary(cPickle);
+        cPickle.delete();
         return mol;
     }
 
@@ -5,11 +5,11 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.mutable.MutableBoolean;
 import org.apache.log4j.Logger;
 
+import java.util.Arrays;
 import java.util.BitSet;
-import java.util.Optional;
+import java.util.Comparator;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.IntStream;
 
 /**
  * A class to facilitate substructure search using RDKit
@@ -38,9 +38,10 @@ public class SubstructureMatcher {
     private final SubSearchQueryType queryType;
     private final String queryString;
 
+    private final SubstructureQueryCache.CompiledQuery compiledQuery;
     private final ROMol queryMol;
     private final BitSet queryFingerprint;
-    private final int[] queryOnBits;
+    private int[] queryOnBits;
 
     private final SubstructMatchParameters matchParameters;
 
@@ -48,8 +49,7 @@ public class SubstructureMatcher {
     private final AtomicInteger screenOut = new AtomicInteger(0);
     private final AtomicInteger nProcessed = new AtomicInteger(0);
     private final AtomicBoolean failingOnTrustedSmiles = new AtomicBoolean(false);
-
-    private final ThreadLocal<ROMol> threadQuery;
+    private boolean freed = false;
 
 
     private static final Logger logger = Logger.getLogger(SubstructureMatcher.class);
@@ -63,7 +63,9 @@ public class SubstructureMatcher {
     }
 
     /**
-     * Creates the query objects from MDL or smarts pattern
+     * Creates the query objects from MDL or smarts pattern, or gets them from
+     * the query cache if it is in use. Call free when the matcher is no longer
+     * required.
      *
      * @param queryType
      * @param queryString
@@ -80,36 +82,17 @@ public class SubstructureMatcher {
         this.queryType = queryType;
         this.queryString = queryString;
 
-
-        Optional<ROMol> queryMolOpt;
-        switch (queryType) {
-            case MDL:
-                queryString = queryString.replace('|', '\n');
-                queryMolOpt = RDKitOps.sdfToMol(queryString);
-                break;
-            case SMARTS:
-                queryMolOpt = RDKitOps.smartsToMol(queryString);
-                break;
-            default:
-                throw new IllegalArgumentException();
-        }
-
-        if (queryMolOpt.isEmpty())
-            throw new IllegalArgumentException("Unable to parse query " + queryString);
-
-        var queryMol = queryMolOpt.get();
-        logger.debug(RDKitOps.molInfo(queryMol));
-        this.queryMol = queryMol;
-
-        matchParameters = new SubstructMatchParameters();
-        matchParameters.setRecursionPossible(recursionPossible);
-        matchParameters.setUseQueryQueryMatches(queryQueryMatches);
-        matchParameters.setUseChirality(useChirality);
-
-        var fingerprint = RDKitOps.patternFingerPrintMol(queryMol, fingerprintSize);
-        this.queryFingerprint = RDKitOps.explictBitVectToBitSet(fingerprint);
-        this.queryOnBits = IntStream.range(0, fingerprintSize).filter(queryFingerprint::get).toArray();
-        this.threadQuery = ThreadLocal.withInitial(() -> new ROMol(queryMol));
+        if (SubstructureQueryCache.isUseSubstructureQueryCache())
+            compiledQuery = SubstructureQueryCache.getInstance().acquire(queryType, queryString,
+                    useChirality, recursionPossible, queryQueryMatches, fingerprintSize);
+        else
+            compiledQuery = SubstructureQueryCache.CompiledQuery.compile(queryType, queryString,
+                    useChirality, recursionPossible, queryQueryMatches, fingerprintSize);
+
+        this.queryMol = compiledQuery.queryMol;
+        this.matchParameters = compiledQuery.matchParameters;
+        this.queryFingerprint = compiledQuery.queryFingerprint;
+        this.queryOnBits = compiledQuery.queryOnBits;
     }
 
     /**
@@ -129,8 +112,6 @@ public class SubstructureMatcher {
         }
         screenOut.incrementAndGet();
 
-        // uncomment this line if the query molecule should not be shared between threads
-        //var match = mol.hasSubstructMatch(threadQuery.get(), matchParameters);
         var match = mol.hasSubstructMatch(queryMol, matchParameters);
 
         if (match)
@@ -138,6 +119,19 @@ public class SubstructureMatcher {
         return match;
     }
 
+    /**
+     * Orders the query bits checked against target fingerprints so that the
+     * bits set in the fewest targets are checked first.
+     *
+     * @param bitCounts number of targets with each fingerprint bit set
+     */
+    public void orderScreenBits(int[] bitCounts) {
+        queryOnBits = Arrays.stream(queryOnBits).boxed()
+                .sorted(Comparator.comparingInt((Integer bit) -> bitCounts[bit])
+                        .thenComparingInt(bit -> bit))
+                .mapToInt(Integer::intValue).toArray();
+    }
+
     private boolean matchTargetFingerprint(BitSet targetFingerprint) {
         for (var on : queryOnBits) {
             if (!targetFingerprint.get(on))
@@ -212,6 +206,31 @@ public class SubstructureMatcher {
         return isHit;
     }
 
+    /**
+     * Match a molecule rebuilt from a binary pickle against the query. This
+     * avoids parsing the target smiles.
+     *
+     * @param pickle       binary molecule pickle
+     * @param targetSmiles used if the match fails on the pickled molecule
+     * @return
+     */
+    public boolean matchPickle(byte[] pickle, String targetSmiles) {
+        if (failingOnTrustedSmiles.get())
+            return matchMol(targetSmiles, false);
+        var mol = RDKitOps.molFromPickle(pickle);
+        try {
+            return matchStructure(mol, null);
+        } catch (GenericRDKitException ex) {
+            // pickles are built from trusted smiles, so redo this and later
+            // searches on fully sanitized molecules
+            logger.warn("GenericRDKitException matching target " + targetSmiles + " to query " + RDKFuncs.MolToSmarts(queryMol));
+            failingOnTrustedSmiles.set(true);
+            return matchMol(targetSmiles, false);
+        } finally {
+            mol.delete();
+        }
+    }
+
     private boolean matchMol(String targetSmiles, boolean trusted) {
         var molOpt = RDKitOps.smilesToMol(targetSmiles, trusted);
         return molOpt.map(mol -> {
@@ -222,9 +241,14 @@ public class SubstructureMatcher {
     }
 
     /**
-     * Free search memory
+     * Free search memory. The query is deleted once it is no longer cached or
+     * used by any other matcher.
      */
     public synchronized void free() {
+        if (freed)
+            return;
+        freed = true;
+        compiledQuery.release();
     }
 
     public int getnHits() {
@@ -246,4 +270,11 @@ public class SubstructureMatcher {
         return queryMol;
     }
 
+    /**
+     * @return the query pattern fingerprint
+     */
+    public BitSet getQueryFingerprint() {
+        return queryFingerprint;
+    }
+
 }
@@ -0,0 +1,283 @@
+package com.cairn.common;
+
+import org.RDKit.ROMol;
+import org.RDKit.SubstructMatchParameters;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * A bounded LRU cache of compiled substructure queries, so that repeated
+ * searches with the same query do not parse and fingerprint it again.
+ * <p>
+ * Compiled queries are reference counted. The cache holds one reference and
+ * each matcher using the query holds another, so the native query objects are
+ * only deleted once the query has been evicted and all matchers using it have
+ * been freed.
+ *
+ * @author Gareth Jones
+ */
+public class SubstructureQueryCache {
+    private static final Logger logger = Logger.getLogger(SubstructureQueryCache.class);
+
+    private static volatile boolean useSubstructureQueryCache = false;
+    private static volatile int cacheSize = 1000;
+    private static volatile SubstructureQueryCache substructureQueryCache;
+
+    private final int maxEntries;
+    private final LinkedHashMap<Key, CompiledQuery> queries = new LinkedHashMap<>(16, 0.75f, true);
+    private int nHits, nMisses, nEvictions;
+
+    /**
+     * The key for a compiled query
+     */
+    private static final class Key {
+        private final SubstructureMatcher.SubSearchQueryType queryType;
+        private final String queryString;
+        private final boolean useChirality;
+        private final boolean recursionPossible;
+        private final boolean queryQueryMatches;
+        private final int fingerprintSize;
+
+        private Key(SubstructureMatcher.SubSearchQueryType queryType, String queryString,
+                    boolean useChirality, boolean recursionPossible, boolean queryQueryMatches,
+                    int fingerprintSize) {
+            this.queryType = queryType;
+            this.queryString = queryString;
+            this.useChirality = useChirality;
+            this.recursionPossible = recursionPossible;
+            this.queryQueryMatches = queryQueryMatches;
+            this.fingerprintSize = fingerprintSize;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            var key = (Key) o;
+            return queryType == key.queryType && useChirality == key.useChirality
+                    && recursionPossible == key.recursionPossible
+                    && queryQueryMatches == key.queryQueryMatches
+                    && fingerprintSize == key.fingerprintSize && queryString.equals(key.queryString);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(queryType, queryString, useChirality, recursionPossible,
+                    queryQueryMatches, fingerprintSize);
+        }
+    }
+
+    /**
+     * A parsed and fingerprinted query
+     */
+    static final class CompiledQuery {
+        final ROMol queryMol;
+        final BitSet queryFingerprint;
+        final int[] queryOnBits;
+        final SubstructMatchParameters matchParameters;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private CompiledQuery(ROMol queryMol, BitSet queryFingerprint,
+                              SubstructMatchParameters matchParameters, int fingerprintSize) {
+            this.queryMol = queryMol;
+            this.queryFingerprint = queryFingerprint;
+            this.queryOnBits = IntStream.range(0, fingerprintSize).filter(queryFingerprint::get)
+                    .toArray();
+            this.matchParameters = matchParameters;
+        }
+
+        /**
+         * Creates the query objects from MDL or smarts pattern. The caller
+         * holds the only reference to the new query.
+         *
+         * @param queryType
+         * @param queryString
+         * @param useChirality
+         * @param recursionPossible
+         * @param queryQueryMatches
+         * @param fingerprintSize
+         * @return
+         */
+        static CompiledQuery compile(SubstructureMatcher.SubSearchQueryType queryType,
+                                     String queryString, boolean useChirality,
+                                     boolean recursionPossible, boolean queryQueryMatches,
+                                     int fingerprintSize) {
+            if (StringUtils.isEmpty(queryString))
+                throw new IllegalArgumentException(
+                        "No query specified");
+
+            Optional<ROMol> queryMolOpt;
+            switch (queryType) {
+                case MDL:
+                    queryString = queryString.replace('|', '\n');
+                    queryMolOpt = RDKitOps.sdfToMol(queryString);
+                    break;
+                case SMARTS:
+                    queryMolOpt = RDKitOps.smartsToMol(queryString);
+                    break;
+                default:
+                    throw new IllegalArgumentException();
+            }
+
+            if (queryMolOpt.isEmpty())
+                throw new IllegalArgumentException("Unable to parse query " + queryString);
+
+            var queryMol = queryMolOpt.get();
+            logger.debug(RDKitOps.molInfo(queryMol));
+
+            var matchParameters = new SubstructMatchParameters();
+            matchParameters.setRecursionPossible(recursionPossible);
+            matchParameters.setUseQueryQueryMatches(queryQueryMatches);
+            matchParameters.setUseChirality(useChirality);
+
+            var fingerprint = RDKitOps.patternFingerPrintMol(queryMol, fingerprintSize);
+            var queryFingerprint = RDKitOps.explictBitVectToBitSet(fingerprint);
+            fingerprint.delete();
+            return new CompiledQuery(queryMol, queryFingerprint, matchParameters, fingerprintSize);
+        }
+
+        /**
+         * Adds a reference to the query
+         *
+         * @return false if the query has already been released
+         */
+        boolean acquire() {
+            while (true) {
+                var count = references.get();
+                if (count == 0)
+                    return false;
+                if (references.compareAndSet(count, count + 1))
+                    return true;
+            }
+        }
+
+        /**
+         * Removes a reference to the query, deleting the native objects when
+         * no references remain.
+         */
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                queryMol.delete();
+                matchParameters.delete();
+            }
+        }
+    }
+
+    /**
+     * Use getInstance for the shared cache.
+     *
+     * @param maxEntries
+     */
+    SubstructureQueryCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Gets the singleton cache object
+     *
+     * @return
+     */
+    public static SubstructureQueryCache getInstance() {
+        if (substructureQueryCache == null) {
+            synchronized (SubstructureQueryCache.class) {
+                if (substructureQueryCache == null)
+                    substructureQueryCache = new SubstructureQueryCache(cacheSize);
+            }
+        }
+        return substructureQueryCache;
+    }
+
+    /**
+     * Gets a compiled query from the cache, compiling and adding it if it is
+     * not present. The caller holds a reference to the query and should
+     * release it when done.
+     *
+     * @param queryType
+     * @param queryString
+     * @param useChirality
+     * @param recursionPossible
+     * @param queryQueryMatches
+     * @param fingerprintSize
+     * @return
+     */
+    CompiledQuery acquire(SubstructureMatcher.SubSearchQueryType queryType, String queryString,
+                          boolean useChirality, boolean recursionPossible,
+                          boolean queryQueryMatches, int fingerprintSize) {
+        var key = new Key(queryType, queryString, useChirality, recursionPossible,
+                queryQueryMatches, fingerprintSize);
+        synchronized (this) {
+            // queries in the map always hold the cache reference
+            var query = queries.get(key);
+            if (query != null && query.acquire()) {
+                nHits++;
+                return query;
+            }
+            nMisses++;
+        }
+
+        // compile outside the lock, so other queries are not blocked
+        var compiled = CompiledQuery.compile(queryType, queryString, useChirality,
+                recursionPossible, queryQueryMatches, fingerprintSize);
+        synchronized (this) {
+            var query = queries.get(key);
+            if (query != null && query.acquire()) {
+                // another thread compiled the same query
+                compiled.release();
+                return query;
+            }
+            queries.put(key, compiled);
+            compiled.acquire();
+            Iterator<Map.Entry<Key, CompiledQuery>> iter = queries.entrySet().iterator();
+            while (queries.size() > maxEntries && iter.hasNext()) {
+                var evicted = iter.next().getValue();
+                iter.remove();
+                evicted.release();
+                nEvictions++;
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * Logs cache statistics
+     */
+    public synchronized void info() {
+        logger.debug("Substructure query cache: entries " + queries.size() + " hits " + nHits
+                + " misses " + nMisses + " evictions " + nEvictions);
+    }
+
+    /**
+     * @return the useSubstructureQueryCache
+     */
+    public static boolean isUseSubstructureQueryCache() {
+        return useSubstructureQueryCache;
+    }
+
+    /**
+     * @param useSubstructureQueryCache the useSubstructureQueryCache to set
+     */
+    public static void setUseSubstructureQueryCache(boolean useSubstructureQueryCache) {
+        SubstructureQueryCache.useSubstructureQueryCache = useSubstructureQueryCache;
+    }
+
+    /**
+     * Sets the maximum number of cached queries. This should be called before
+     * the cache is first used.
+     *
+     * @param cacheSize
+     */
+    public static void setCacheSize(int cacheSize) {
+        SubstructureQueryCache.cacheSize = Math.max(1, cacheSize);
+    }
+}
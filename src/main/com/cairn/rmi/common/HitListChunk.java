@@ -22,6 +22,8 @@ public class HitListChunk implements Serializable {
 	private final String[] hitlist;
 	// optional scores
 	private final double[] scores;
+	// optional query indices, for searches with many queries
+	private final int[] queryIndices;
 	// job number
 	private final int jobNo;
 	// pass any errors to consumer
@@ -29,11 +31,17 @@ public class HitListChunk implements Serializable {
 
 	public HitListChunk(int jobNo, boolean finished, String[] hitlist,
 			double[] scores) {
+		this(jobNo, finished, hitlist, scores, null);
+	}
+
+	public HitListChunk(int jobNo, boolean finished, String[] hitlist,
+			double[] scores, int[] queryIndices) {
 		super();
 		this.jobNo = jobNo;
 		this.finished = finished;
 		this.hitlist = hitlist;
 		this.scores = scores;
+		this.queryIndices = queryIndices;
 	}
 
 	/**
@@ -57,6 +65,14 @@ public class HitListChunk implements Serializable {
 		return scores;
 	}
 
+	/**
+	 * @return the index of the query matched by each hit, or null if the
+	 *         search has a single query
+	 */
+	public int[] getQueryIndices() {
+		return queryIndices;
+	}
+
 	/**
 	 * @return the chunkSize
 	 */
@@ -0,0 +1,113 @@
+package com.cairn.rmi.index;
+
+import com.cairn.common.RDKitOps;
+import org.apache.commons.lang3.time.StopWatch;
+import org.apache.log4j.Logger;
+
+import java.util.function.IntPredicate;
+
+/**
+ * An inverted index of pattern fingerprint bits: for each fingerprint bit a
+ * compressed bitmap of the rows that have that bit set.
+ * <p>
+ * Substructure screening candidates are the intersection of the bitmaps for
+ * the bits set in the query fingerprint, so rows that fail the screen are
+ * never read.
+ * <p>
+ * The index is built from the first rows of a fingerprint store and is then
+ * read only. Rows deleted from the store after the build are still returned
+ * as candidates, so callers must check the row. Rows added after the build
+ * are not covered and must be screened separately.
+ *
+ * @author Gareth Jones
+ */
+class BitPostingIndex {
+    private static final Logger logger = Logger.getLogger(BitPostingIndex.class);
+
+    private final FingerprintStore store;
+    private final int size;
+    private final RowBitmap[] postings;
+
+    private BitPostingIndex(FingerprintStore store, int size, RowBitmap[] postings) {
+        this.store = store;
+        this.size = size;
+        this.postings = postings;
+    }
+
+    /**
+     * Builds the inverted index for the rows currently in a store
+     *
+     * @param store
+     * @return
+     */
+    static BitPostingIndex build(FingerprintStore store) {
+        var stopWatch = new StopWatch();
+        stopWatch.start();
+
+        var size = store.size();
+        var postings = new RowBitmap[RDKitOps.PATTERN_FP_SIZE];
+        for (var bit = 0; bit < postings.length; bit++)
+            postings[bit] = new RowBitmap();
+        var words = new long[FingerprintStore.FINGERPRINT_WORDS];
+        for (var ordinal = 0; ordinal < size; ordinal++) {
+            if (store.isDeleted(ordinal))
+                continue;
+            store.fingerprintWords(ordinal, words);
+            for (var w = 0; w < words.length; w++) {
+                var word = words[w];
+                while (word != 0L) {
+                    var bit = (w << 6) | Long.numberOfTrailingZeros(word);
+                    postings[bit].add(ordinal);
+                    word &= word - 1;
+                }
+            }
+        }
+
+        var sizeInBytes = 0L;
+        for (var posting : postings) {
+            posting.trim();
+            sizeInBytes += posting.sizeInBytes();
+        }
+        stopWatch.stop();
+        logger.info("Built bit posting index for " + size + " rows in " + stopWatch.getTime() / 1000.0
+                + " seconds, size " + sizeInBytes / (1024 * 1024) + " MB");
+        return new BitPostingIndex(store, size, postings);
+    }
+
+    /**
+     * @return the store the index was built from
+     */
+    FingerprintStore getStore() {
+        return store;
+    }
+
+    /**
+     * @return the number of store ordinals covered by the index
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param bit
+     * @return the number of indexed rows with a fingerprint bit set.
+     */
+    int bitCount(int bit) {
+        return postings[bit].getCardinality();
+    }
+
+    /**
+     * Visits the indexed rows that have all the query bits set, until the
+     * visitor returns true.
+     *
+     * @param queryOnBits set bits in the query fingerprint. Must not be empty.
+     * @param visitor
+     * @return true if the visitor stopped
+     */
+    boolean visitCandidates(int[] queryOnBits, IntPredicate visitor) {
+        var bitmaps = new RowBitmap[queryOnBits.length];
+        for (var i = 0; i < queryOnBits.length; i++)
+            bitmaps[i] = postings[queryOnBits[i]];
+        return RowBitmap.visitIntersection(bitmaps, visitor);
+    }
+}
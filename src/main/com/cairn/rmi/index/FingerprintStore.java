@@ -0,0 +1,1107 @@
+package com.cairn.rmi.index;
+
+import com.cairn.common.FingerprintedSmiles;
+import com.cairn.common.MorganFingerprint;
+import com.cairn.common.RDKitOps;
+import com.google.common.hash.Hashing;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+import java.util.function.IntPredicate;
+import java.util.stream.Collectors;
+
+/**
+ * Columnar storage of the pattern fingerprints, canonical smiles and rowids in
+ * a table index.
+ * <p>
+ * Each row is identified by an integer ordinal. The 2048 bit pattern
+ * fingerprint for a row is held as a block of 32 words in a single contiguous
+ * long array, with the fingerprint bit count in a parallel array. Morgan
+ * fingerprints are held as sorted key and count ranges in pooled int arrays,
+ * one pool per fingerprint type. Rowids are
+ * packed into a single byte array and a small open addressing hash table maps
+ * rowids to ordinals. A second hash table maps a 64 bit hash of the canonical
+ * smiles to ordinals for exact match searching. Optionally a binary RDKit
+ * molecule pickle is packed in the same way as the rowids, so substructure
+ * searches can rebuild target molecules without parsing smiles.
+ * <p>
+ * Rows are only ever appended. Removing (or replacing) a row marks the old
+ * ordinal as deleted by setting its bit count to -1, so that ordinals seen by
+ * a running search never change.
+ * <p>
+ * A store may be layered over a read only {@link MappedIndexFile}. The rows in
+ * the file take the first ordinals and are deleted using a tombstone bitmap,
+ * rows added since the file was written are held in the heap arrays. The heap
+ * rows and tombstones form a delta over the file, which is folded into a new
+ * file by compaction.
+ * <p>
+ * Thread safe: mutators are synchronized. Readers scan ordinals up to the
+ * volatile size, which is only increased once a row is fully written.
+ *
+ * @author Gareth Jones
+ */
+class FingerprintStore implements Serializable {
+    private static final long serialVersionUID = 1000L;
+    private static final Logger logger = Logger.getLogger(FingerprintStore.class);
+
+    // number of 64 bit words in a pattern fingerprint
+    static final int FINGERPRINT_WORDS = RDKitOps.PATTERN_FP_SIZE / Long.SIZE;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // number of rows (including deleted rows) visible to readers
+    private transient volatile int size;
+    // number of deleted heap and file rows
+    private transient int nHeapDeleted;
+    private transient int nBaseDeleted;
+
+    // rows saved in a memory mapped index file
+    private transient MappedIndexFile base;
+    private transient int baseSize;
+    private transient long[] baseDeleted;
+
+    // heap columns, indexed by ordinal - baseSize
+
+    private transient long[] fingerprints;
+    private transient short[] popcounts;
+    private transient String[] smiles;
+    // Morgan fingerprints: for each type, keys and counts for a row are at
+    // extendedOffsets[type][row] until extendedOffsets[type][row+1]
+    private transient int nExtendedTypes;
+    private transient int[][] extendedKeys;
+    private transient int[][] extendedCounts;
+    private transient int[][] extendedOffsets;
+    // rowid bytes for ordinal i are at rowIdOffsets[i] until rowIdOffsets[i+1]
+    private transient byte[] rowIdData;
+    private transient int[] rowIdOffsets;
+    // molecule pickle bytes for ordinal i are at pickleOffsets[i] until
+    // pickleOffsets[i+1]. Rows without a pickle have an empty range
+    private transient byte[] pickleData;
+    private transient int[] pickleOffsets;
+    private transient int nHeapPickles;
+    // open addressing hash of rowid to ordinal+1. Zero is an empty slot
+    private transient int[] rowIdTable;
+    // 64 bit smiles hash for each row and an open addressing multimap of
+    // smiles hash to ordinal+1
+    private transient long[] smilesHashes;
+    private transient int[] smilesTable;
+    // number of live rows with each fingerprint bit set, starting from the
+    // counts saved in the index file and kept up to date as rows change
+    private transient int[] bitCounts;
+
+    FingerprintStore() {
+        allocate(INITIAL_CAPACITY, INITIAL_CAPACITY * 18);
+    }
+
+    /**
+     * Creates a store whose initial rows are held in an index file.
+     *
+     * @param base
+     */
+    FingerprintStore(MappedIndexFile base) {
+        this();
+        this.base = base;
+        baseSize = base.size();
+        baseDeleted = new long[(baseSize + Long.SIZE - 1) / Long.SIZE];
+        size = baseSize;
+        bitCounts = base.bitCounts();
+    }
+
+    /**
+     * Creates a read only snapshot of a store. Heap rows are append only, so
+     * the snapshot shares the heap columns with the store and only copies the
+     * deletion state. The rowid and smiles tables are not copied, so rows in
+     * a snapshot cannot be looked up by rowid or smiles.
+     *
+     * @param store
+     */
+    private FingerprintStore(FingerprintStore store) {
+        size = store.size;
+        nHeapDeleted = store.nHeapDeleted;
+        nBaseDeleted = store.nBaseDeleted;
+        base = store.base;
+        baseSize = store.baseSize;
+        baseDeleted = store.baseDeleted == null ? null : store.baseDeleted.clone();
+        fingerprints = store.fingerprints;
+        popcounts = store.popcounts.clone();
+        smiles = store.smiles.clone();
+        nExtendedTypes = store.nExtendedTypes;
+        extendedKeys = store.extendedKeys.clone();
+        extendedCounts = store.extendedCounts.clone();
+        extendedOffsets = store.extendedOffsets.clone();
+        rowIdData = store.rowIdData;
+        rowIdOffsets = store.rowIdOffsets;
+        pickleData = store.pickleData;
+        pickleOffsets = store.pickleOffsets;
+        nHeapPickles = store.nHeapPickles;
+        bitCounts = store.bitCounts.clone();
+    }
+
+    /**
+     * @return a read only snapshot of the store, which may be written to an
+     * index file while rows continue to be added to and removed from the store.
+     */
+    synchronized FingerprintStore snapshot() {
+        return new FingerprintStore(this);
+    }
+
+    /**
+     * Memory maps a saved index file.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    static FingerprintStore open(File file) throws IOException {
+        return new FingerprintStore(MappedIndexFile.open(file));
+    }
+
+    private void allocate(int capacity, int rowIdCapacity) {
+        fingerprints = new long[capacity * FINGERPRINT_WORDS];
+        popcounts = new short[capacity];
+        smiles = new String[capacity];
+        nExtendedTypes = 0;
+        extendedKeys = new int[0][];
+        extendedCounts = new int[0][];
+        extendedOffsets = new int[0][];
+        rowIdData = new byte[rowIdCapacity];
+        rowIdOffsets = new int[capacity + 1];
+        pickleData = new byte[0];
+        pickleOffsets = new int[capacity + 1];
+        nHeapPickles = 0;
+        rowIdTable = new int[tableSize(capacity)];
+        smilesHashes = new long[capacity];
+        smilesTable = new int[tableSize(capacity)];
+        size = 0;
+        nHeapDeleted = 0;
+        nBaseDeleted = 0;
+        base = null;
+        baseSize = 0;
+        baseDeleted = null;
+        bitCounts = new int[RDKitOps.PATTERN_FP_SIZE];
+    }
+
+    /**
+     * Converts an index lookup, as saved by older versions of the cartridge,
+     * to a fingerprint store.
+     *
+     * @param lookup
+     * @return
+     */
+    static FingerprintStore fromLookup(Map<RowKey, FingerprintedSmiles> lookup) {
+        var store = new FingerprintStore();
+        lookup.forEach((rowKey, value) -> store.add(rowKey.getRowId(), value.getSmiles(),
+                value.getFingerprint(), value.getDeMorganFingerprints()));
+        logger.info("Converted lookup of size " + lookup.size() + " to fingerprint store");
+        return store;
+    }
+
+    /**
+     * Converts a fingerprint to an array of words suitable for matching against
+     * store rows.
+     *
+     * @param fingerprint
+     * @return
+     */
+    static long[] toWords(BitSet fingerprint) {
+        var words = fingerprint.toLongArray();
+        if (words.length > FINGERPRINT_WORDS)
+            throw new IllegalArgumentException("Fingerprint has more than "
+                    + RDKitOps.PATTERN_FP_SIZE + " bits");
+        return Arrays.copyOf(words, FINGERPRINT_WORDS);
+    }
+
+    /**
+     * @param words
+     * @return the indices of the non-zero words in a fingerprint.
+     */
+    static int[] nonZeroWords(long[] words) {
+        var nonZero = new int[words.length];
+        var n = 0;
+        for (var w = 0; w < words.length; w++) {
+            if (words[w] != 0L)
+                nonZero[n++] = w;
+        }
+        return Arrays.copyOf(nonZero, n);
+    }
+
+    /**
+     * The Swamidass-Baldi bound: a target with b bits can only have a
+     * Tanimoto similarity of at least t to a query with a bits if
+     * ta &lt;= b &lt;= a/t.
+     *
+     * @param nQueryBits
+     * @param minSimilarity
+     * @return the smallest target bit count that can reach the similarity
+     */
+    static int minTanimotoBits(int nQueryBits, double minSimilarity) {
+        // allow for rounding in the similarity calculation
+        return Math.max(0, (int) Math.ceil(nQueryBits * minSimilarity - 1e-9));
+    }
+
+    /**
+     * @param nQueryBits
+     * @param minSimilarity
+     * @return the largest target bit count that can reach the similarity
+     * @see #minTanimotoBits(int, double)
+     */
+    static int maxTanimotoBits(int nQueryBits, double minSimilarity) {
+        if (minSimilarity <= 0.0)
+            return RDKitOps.PATTERN_FP_SIZE;
+        return (int) Math.min(RDKitOps.PATTERN_FP_SIZE,
+                Math.floor(nQueryBits / minSimilarity + 1e-9));
+    }
+
+    /**
+     * Finds the ordinal ranges that may hold rows with a bit count in a range.
+     * The first range covers the base rows, which is restricted to the
+     * feasible popcount buckets when the base is sorted. The second range
+     * covers all heap rows, whose popcounts must still be checked.
+     *
+     * @param minBits
+     * @param maxBits
+     * @return start and end of the base range followed by start and end of
+     * the heap range
+     */
+    int[] popcountRanges(int minBits, int maxBits) {
+        var end = size;
+        var start = 0;
+        var baseEnd = baseSize;
+        if (base != null && base.isSorted()) {
+            start = base.bucketStart(minBits);
+            baseEnd = base.bucketStart(maxBits + 1);
+        }
+        return new int[]{start, baseEnd, baseSize, end};
+    }
+
+    /**
+     * Visits the rows whose bit count may lie in a range, until the visitor
+     * returns true. Rows held in a sorted index file are visited by popcount
+     * bucket so rows outside the range are never touched. For rows on the
+     * heap only the bit count column is read to skip rows. The visitor must
+     * still check the bit count as deleted rows (with a count of -1) may be
+     * visited.
+     *
+     * @param minBits
+     * @param maxBits
+     * @param visitor
+     * @return true if the visitor stopped the scan
+     */
+    boolean visitPopcountRange(int minBits, int maxBits, IntPredicate visitor) {
+        var ranges = popcountRanges(minBits, maxBits);
+        for (var ordinal = ranges[0]; ordinal < ranges[1]; ordinal++) {
+            if (visitor.test(ordinal))
+                return true;
+        }
+        var heapPopcounts = popcounts;
+        for (var ordinal = ranges[2]; ordinal < ranges[3]; ordinal++) {
+            var popcount = heapPopcounts[ordinal - baseSize];
+            if (popcount < minBits || popcount > maxBits)
+                continue;
+            if (visitor.test(ordinal))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param nQueryBits
+     * @param nTargetBits
+     * @return the largest Tanimoto similarity possible between fingerprints
+     * with these bit counts.
+     */
+    static double maxTanimoto(int nQueryBits, int nTargetBits) {
+        var max = Math.max(nQueryBits, nTargetBits);
+        if (max == 0)
+            return 1.0;
+        return (double) Math.min(nQueryBits, nTargetBits) / (double) max;
+    }
+
+    /**
+     * Visits rows in decreasing order of the largest Tanimoto similarity they
+     * may have with the query, skipping rows that cannot reach the current
+     * minimum similarity, until the visitor returns true. The minimum may be
+     * raised by the visitor as the scan proceeds.
+     * <p>
+     * Rows in a sorted index file are visited bucket by bucket, so the scan
+     * finishes as soon as the best remaining bucket cannot reach the minimum.
+     * Other rows are visited in ordinal order once the buckets are done. The
+     * visitor must still check for deleted rows.
+     *
+     * @param nQueryBits
+     * @param minSimilarity
+     * @param visitor
+     * @return true if the visitor stopped the scan
+     */
+    boolean visitByTanimotoBound(int nQueryBits, DoubleSupplier minSimilarity, IntPredicate visitor) {
+        var end = size;
+        var unsortedStart = 0;
+        if (base != null && base.isSorted()) {
+            unsortedStart = baseSize;
+            // walk outward from the query bit count, taking the bucket with
+            // the larger bound from either side
+            var below = Math.min(nQueryBits, RDKitOps.PATTERN_FP_SIZE);
+            var above = below + 1;
+            while (below >= 0 || above <= RDKitOps.PATTERN_FP_SIZE) {
+                var belowBound = below >= 0 ? maxTanimoto(nQueryBits, below) : -1.0;
+                var aboveBound = above <= RDKitOps.PATTERN_FP_SIZE
+                        ? maxTanimoto(nQueryBits, above) : -1.0;
+                int nBits;
+                if (belowBound >= aboveBound) {
+                    if (belowBound < minSimilarity.getAsDouble())
+                        break;
+                    nBits = below--;
+                } else {
+                    if (aboveBound < minSimilarity.getAsDouble())
+                        break;
+                    nBits = above++;
+                }
+                var bucketEnd = base.bucketStart(nBits + 1);
+                for (var ordinal = base.bucketStart(nBits); ordinal < bucketEnd; ordinal++) {
+                    if (visitor.test(ordinal))
+                        return true;
+                }
+            }
+        }
+        for (var ordinal = unsortedStart; ordinal < end; ordinal++) {
+            var popcount = popcount(ordinal);
+            if (popcount < 0 || maxTanimoto(nQueryBits, popcount) < minSimilarity.getAsDouble())
+                continue;
+            if (visitor.test(ordinal))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds a row to the store. If the rowid is already present the existing
+     * row is removed.
+     *
+     * @param rowId
+     * @param rowSmiles
+     * @param fingerprint
+     * @param deMorganFingerprints
+     * @return the ordinal of the new row
+     */
+    synchronized int add(byte[] rowId, String rowSmiles, BitSet fingerprint,
+                         List<MorganFingerprint> deMorganFingerprints) {
+        return add(rowId, rowSmiles, fingerprint, deMorganFingerprints, null);
+    }
+
+    /**
+     * Adds a row to the store. If the rowid is already present the existing
+     * row is removed.
+     *
+     * @param rowId
+     * @param rowSmiles
+     * @param fingerprint
+     * @param deMorganFingerprints
+     * @param pickle               binary molecule pickle, or null
+     * @return the ordinal of the new row
+     */
+    synchronized int add(byte[] rowId, String rowSmiles, BitSet fingerprint,
+                         List<MorganFingerprint> deMorganFingerprints, byte[] pickle) {
+        remove(rowId);
+
+        var row = size - baseSize;
+        ensureCapacity(row + 1, rowIdOffsets[row] + rowId.length);
+        var pickleLength = pickle == null ? 0 : pickle.length;
+        if (pickleOffsets[row] + pickleLength > pickleData.length)
+            pickleData = Arrays.copyOf(pickleData,
+                    Math.max(pickleOffsets[row] + pickleLength, pickleData.length * 2));
+
+        var words = toWords(fingerprint);
+        System.arraycopy(words, 0, fingerprints, row * FINGERPRINT_WORDS, FINGERPRINT_WORDS);
+        popcounts[row] = (short) fingerprint.cardinality();
+        smiles[row] = rowSmiles;
+        countBits(words, 0, 1);
+        addExtendedFingerprints(row, deMorganFingerprints);
+        System.arraycopy(rowId, 0, rowIdData, rowIdOffsets[row], rowId.length);
+        rowIdOffsets[row + 1] = rowIdOffsets[row] + rowId.length;
+        if (pickleLength > 0) {
+            System.arraycopy(pickle, 0, pickleData, pickleOffsets[row], pickleLength);
+            nHeapPickles++;
+        }
+        pickleOffsets[row + 1] = pickleOffsets[row] + pickleLength;
+        insertRow(row);
+        smilesHashes[row] = smilesHash(rowSmiles);
+        insertSmilesRow(row);
+
+        // publish the row
+        size = baseSize + row + 1;
+        return baseSize + row;
+    }
+
+    /**
+     * Removes a row from the store.
+     *
+     * @param rowId
+     * @return false if the rowid is not present
+     */
+    synchronized boolean remove(byte[] rowId) {
+        var slot = findSlot(rowId);
+        if (rowIdTable[slot] != 0) {
+            var row = rowIdTable[slot] - 1;
+            countBits(fingerprints, row * FINGERPRINT_WORDS, -1);
+            deleteSmilesRow(row);
+            popcounts[row] = -1;
+            smiles[row] = null;
+            nHeapDeleted++;
+            deleteSlot(slot);
+            return true;
+        }
+        if (base != null) {
+            var ordinal = base.ordinalOf(rowId);
+            if (ordinal >= 0 && !isBaseDeleted(ordinal)) {
+                var words = new long[FINGERPRINT_WORDS];
+                base.fingerprintWords(ordinal, words);
+                countBits(words, 0, -1);
+                baseDeleted[ordinal >>> 6] |= 1L << ordinal;
+                nBaseDeleted++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isBaseDeleted(int ordinal) {
+        return (baseDeleted[ordinal >>> 6] & (1L << ordinal)) != 0;
+    }
+
+    /**
+     * Updates the bit occupancy counts for a row fingerprint
+     *
+     * @param words
+     * @param offset position of the row fingerprint in the words
+     * @param delta  1 for an added row, -1 for a removed row
+     */
+    private void countBits(long[] words, int offset, int delta) {
+        for (var w = 0; w < FINGERPRINT_WORDS; w++) {
+            var word = words[offset + w];
+            while (word != 0L) {
+                bitCounts[(w << 6) | Long.numberOfTrailingZeros(word)] += delta;
+                word &= word - 1;
+            }
+        }
+    }
+
+    /**
+     * @return the number of live rows with each pattern fingerprint bit set.
+     */
+    synchronized int[] bitCounts() {
+        return bitCounts.clone();
+    }
+
+    /**
+     * Orders the non-zero words of a query for substructure screening, so that
+     * the words that the fewest rows contain are tested first and most rows
+     * that fail the screen are rejected on the first word. The chance of a row
+     * containing a word is estimated from the bit occupancy counts, assuming
+     * bits are independent.
+     *
+     * @param query query fingerprint words
+     * @return the indices of the non-zero words in the query, rarest first
+     */
+    synchronized int[] screenOrder(long[] query) {
+        var queryWords = nonZeroWords(query);
+        var nRows = (double) Math.max(1, count());
+        var frequencies = new double[FINGERPRINT_WORDS];
+        for (var w : queryWords) {
+            var frequency = 1.0;
+            var word = query[w];
+            while (word != 0L) {
+                frequency *= bitCounts[(w << 6) | Long.numberOfTrailingZeros(word)] / nRows;
+                word &= word - 1;
+            }
+            frequencies[w] = frequency;
+        }
+        return Arrays.stream(queryWords).boxed()
+                .sorted(Comparator.comparingDouble((Integer w) -> frequencies[w])
+                        .thenComparingInt(w -> w))
+                .mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * @return the number of ordinals in the store, including deleted rows.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of rows in the index file underlying the store,
+     * including deleted rows.
+     */
+    int baseSize() {
+        return baseSize;
+    }
+
+    /**
+     * @return the number of heap rows, including deleted rows, and deleted
+     * index file rows.
+     */
+    synchronized int deltaSize() {
+        return size - baseSize + nBaseDeleted;
+    }
+
+    /**
+     * @return the number of rows in the store
+     */
+    synchronized int count() {
+        return size - nHeapDeleted - nBaseDeleted;
+    }
+
+    boolean isEmpty() {
+        return count() == 0;
+    }
+
+    /**
+     * @param ordinal
+     * @return the fingerprint bit count for a row, or -1 if the row is deleted.
+     */
+    int popcount(int ordinal) {
+        if (ordinal < baseSize)
+            return isBaseDeleted(ordinal) ? -1 : base.popcount(ordinal);
+        return popcounts[ordinal - baseSize];
+    }
+
+    /**
+     * @param ordinal
+     * @return true if the row has been removed from the store.
+     */
+    boolean isDeleted(int ordinal) {
+        return popcount(ordinal) < 0;
+    }
+
+    /**
+     * @param ordinal
+     * @param query   query fingerprint words
+     * @return the number of bits in common between a row and the query
+     */
+    int commonBits(int ordinal, long[] query) {
+        if (ordinal < baseSize)
+            return base.commonBits(ordinal, query);
+        var fps = fingerprints;
+        var start = (ordinal - baseSize) * FINGERPRINT_WORDS;
+        var nCommon = 0;
+        for (var w = 0; w < FINGERPRINT_WORDS; w++) {
+            nCommon += Long.bitCount(fps[start + w] & query[w]);
+        }
+        return nCommon;
+    }
+
+    /**
+     * @param ordinal
+     * @param query      query fingerprint words
+     * @param queryWords the indices of the non-zero words in the query
+     * @return true if all the query bits are set in the row fingerprint
+     */
+    boolean containsAll(int ordinal, long[] query, int[] queryWords) {
+        if (ordinal < baseSize)
+            return base.containsAll(ordinal, query, queryWords);
+        var fps = fingerprints;
+        var start = (ordinal - baseSize) * FINGERPRINT_WORDS;
+        for (var w : queryWords) {
+            var q = query[w];
+            if ((fps[start + w] & q) != q)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param ordinal
+     * @return the pattern fingerprint for a row
+     */
+    BitSet fingerprint(int ordinal) {
+        var words = new long[FINGERPRINT_WORDS];
+        fingerprintWords(ordinal, words);
+        return BitSet.valueOf(words);
+    }
+
+    /**
+     * Copies the pattern fingerprint words for a row
+     *
+     * @param ordinal
+     * @param words
+     */
+    void fingerprintWords(int ordinal, long[] words) {
+        fingerprintWords(ordinal, words, 0);
+    }
+
+    /**
+     * Copies the fingerprint words for a row into part of an array
+     *
+     * @param ordinal
+     * @param words
+     * @param offset position in the array of the first word
+     */
+    void fingerprintWords(int ordinal, long[] words, int offset) {
+        if (ordinal < baseSize) {
+            base.fingerprintWords(ordinal, words, offset);
+            return;
+        }
+        System.arraycopy(fingerprints, (ordinal - baseSize) * FINGERPRINT_WORDS, words, offset,
+                FINGERPRINT_WORDS);
+    }
+
+    /**
+     * @param ordinal
+     * @return the canonical smiles for a row, or null if the row is deleted.
+     */
+    String smiles(int ordinal) {
+        if (ordinal < baseSize)
+            return isBaseDeleted(ordinal) ? null : base.smiles(ordinal);
+        return smiles[ordinal - baseSize];
+    }
+
+    private void addExtendedFingerprints(int row, List<MorganFingerprint> deMorganFingerprints) {
+        if (deMorganFingerprints != null && deMorganFingerprints.size() > nExtendedTypes) {
+            var nTypes = deMorganFingerprints.size();
+            extendedKeys = Arrays.copyOf(extendedKeys, nTypes);
+            extendedCounts = Arrays.copyOf(extendedCounts, nTypes);
+            extendedOffsets = Arrays.copyOf(extendedOffsets, nTypes);
+            for (var type = nExtendedTypes; type < nTypes; type++) {
+                extendedKeys[type] = new int[1024];
+                extendedCounts[type] = new int[1024];
+                // earlier rows have no fingerprints of this type
+                extendedOffsets[type] = new int[popcounts.length + 1];
+            }
+            nExtendedTypes = nTypes;
+        }
+        for (var type = 0; type < nExtendedTypes; type++) {
+            var offsets = extendedOffsets[type];
+            var start = offsets[row];
+            var fp = deMorganFingerprints == null || type >= deMorganFingerprints.size() ? null
+                    : deMorganFingerprints.get(type);
+            var n = fp == null ? 0 : fp.size();
+            if (start + n > extendedKeys[type].length) {
+                var capacity = Math.max(start + n, extendedKeys[type].length * 2);
+                extendedKeys[type] = Arrays.copyOf(extendedKeys[type], capacity);
+                extendedCounts[type] = Arrays.copyOf(extendedCounts[type], capacity);
+            }
+            if (n > 0) {
+                System.arraycopy(fp.getKeys(), 0, extendedKeys[type], start, n);
+                System.arraycopy(fp.getCounts(), 0, extendedCounts[type], start, n);
+            }
+            offsets[row + 1] = start + n;
+        }
+    }
+
+    /**
+     * @return the number of Morgan fingerprint types held for each row
+     */
+    int nExtendedTypes() {
+        return base == null ? nExtendedTypes : Math.max(nExtendedTypes, base.nExtendedTypes());
+    }
+
+    /**
+     * @param ordinal
+     * @param type    index of the fingerprint type
+     * @return the Morgan fingerprint for a row, or null if the row is deleted
+     * or has no fingerprint of this type.
+     */
+    MorganFingerprint extendedFingerprint(int ordinal, int type) {
+        if (ordinal < baseSize)
+            return isBaseDeleted(ordinal) ? null : base.extendedFingerprint(ordinal, type);
+        var row = ordinal - baseSize;
+        if (type >= nExtendedTypes || popcounts[row] < 0)
+            return null;
+        var start = extendedOffsets[type][row];
+        var end = extendedOffsets[type][row + 1];
+        if (start == end)
+            return null;
+        return new MorganFingerprint(Arrays.copyOfRange(extendedKeys[type], start, end),
+                Arrays.copyOfRange(extendedCounts[type], start, end));
+    }
+
+    /**
+     * Compares a query Morgan fingerprint with a row, without allocation.
+     *
+     * @param ordinal
+     * @param type        index of the fingerprint type
+     * @param queryKeys
+     * @param queryCounts
+     * @return the packed common and total counts (see
+     * {@link MorganFingerprint#andSumAndTotal(int[], int[], int[], int[], int, int)}),
+     * or -1 if the row is deleted or has no fingerprint of this type.
+     */
+    long extendedAndSumAndTotal(int ordinal, int type, int[] queryKeys, int[] queryCounts) {
+        if (ordinal < baseSize) {
+            if (isBaseDeleted(ordinal))
+                return -1L;
+            return base.extendedAndSumAndTotal(ordinal, type, queryKeys, queryCounts);
+        }
+        var row = ordinal - baseSize;
+        if (type >= nExtendedTypes || popcounts[row] < 0)
+            return -1L;
+        var offsets = extendedOffsets[type];
+        var start = offsets[row];
+        var end = offsets[row + 1];
+        if (start == end)
+            return -1L;
+        return MorganFingerprint.andSumAndTotal(queryKeys, queryCounts, extendedKeys[type],
+                extendedCounts[type], start, end);
+    }
+
+    /**
+     * @param ordinal
+     * @return the rowid bytes for a row
+     */
+    byte[] rowId(int ordinal) {
+        if (ordinal < baseSize)
+            return base.rowId(ordinal);
+        var row = ordinal - baseSize;
+        var offsets = rowIdOffsets;
+        return Arrays.copyOfRange(rowIdData, offsets[row], offsets[row + 1]);
+    }
+
+    /**
+     * @param ordinal
+     * @return the binary molecule pickle for a row, or null if the row has no
+     * pickle.
+     */
+    byte[] pickle(int ordinal) {
+        if (ordinal < baseSize)
+            return base.pickle(ordinal);
+        var row = ordinal - baseSize;
+        var offsets = pickleOffsets;
+        var start = offsets[row];
+        var end = offsets[row + 1];
+        return start == end ? null : Arrays.copyOfRange(pickleData, start, end);
+    }
+
+    /**
+     * @return true if any row in the store has a molecule pickle
+     */
+    synchronized boolean hasPickles() {
+        return nHeapPickles > 0 || (base != null && base.hasPickles());
+    }
+
+    /**
+     * @param rowId
+     * @return the ordinal for a rowid, or -1 if the row is not present.
+     */
+    synchronized int ordinalOf(byte[] rowId) {
+        var row = rowIdTable[findSlot(rowId)] - 1;
+        if (row >= 0)
+            return baseSize + row;
+        if (base != null) {
+            var ordinal = base.ordinalOf(rowId);
+            if (ordinal >= 0 && !isBaseDeleted(ordinal))
+                return ordinal;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the ordinals for a batch of rowids, taking the store lock once.
+     *
+     * @param rowIds
+     * @param n        number of rowids in the batch
+     * @param ordinals the ordinal for each rowid, or -1 if the row is not
+     *                 present.
+     */
+    synchronized void ordinalsOf(byte[][] rowIds, int n, int[] ordinals) {
+        for (var i = 0; i < n; i++)
+            ordinals[i] = ordinalOf(rowIds[i]);
+    }
+
+    /**
+     * Applies the changes made to a store since a snapshot of it was written
+     * to this store's index file. Rows in the snapshot that have since been
+     * removed are removed and rows added since the snapshot are copied.
+     *
+     * @param snapshot
+     * @param current  the store the snapshot was taken from, which must not
+     *                 be modified during the call
+     */
+    synchronized void catchUp(FingerprintStore snapshot, FingerprintStore current) {
+        var snapshotSize = snapshot.size;
+        var end = current.size;
+        for (var ordinal = 0; ordinal < snapshotSize; ordinal++) {
+            if (current.isDeleted(ordinal) && !snapshot.isDeleted(ordinal))
+                remove(current.rowId(ordinal));
+        }
+        for (var ordinal = snapshotSize; ordinal < end; ordinal++) {
+            if (current.isDeleted(ordinal))
+                continue;
+            add(current.rowId(ordinal), current.smiles(ordinal), current.fingerprint(ordinal),
+                    current.extendedFingerprints(ordinal), current.pickle(ordinal));
+        }
+    }
+
+    /**
+     * @return the index file underlying this store, if any
+     */
+    MappedIndexFile getBase() {
+        return base;
+    }
+
+    /**
+     * @param ordinal
+     * @return the fingerprinted smiles for a row, or null if the row is
+     * deleted.
+     */
+    FingerprintedSmiles rowValue(int ordinal) {
+        var rowSmiles = smiles(ordinal);
+        if (rowSmiles == null)
+            return null;
+        return new FingerprintedSmiles(rowSmiles, fingerprint(ordinal), extendedFingerprints(ordinal));
+    }
+
+    /**
+     * @param ordinal
+     * @return all the Morgan fingerprints for a row, or null if there are
+     * none
+     */
+    List<MorganFingerprint> extendedFingerprints(int ordinal) {
+        var nTypes = nExtendedTypes();
+        if (nTypes == 0)
+            return null;
+        var fingerprints = new ArrayList<MorganFingerprint>(nTypes);
+        for (var type = 0; type < nTypes; type++)
+            fingerprints.add(extendedFingerprint(ordinal, type));
+        return fingerprints;
+    }
+
+    private void ensureCapacity(int nRows, int nRowIdBytes) {
+        var nHeapRows = size - baseSize - nHeapDeleted;
+        if (nRows > popcounts.length) {
+            var capacity = Math.max(nRows, popcounts.length * 2);
+            fingerprints = Arrays.copyOf(fingerprints, capacity * FINGERPRINT_WORDS);
+            popcounts = Arrays.copyOf(popcounts, capacity);
+            smiles = Arrays.copyOf(smiles, capacity);
+            for (var type = 0; type < nExtendedTypes; type++)
+                extendedOffsets[type] = Arrays.copyOf(extendedOffsets[type], capacity + 1);
+            rowIdOffsets = Arrays.copyOf(rowIdOffsets, capacity + 1);
+            pickleOffsets = Arrays.copyOf(pickleOffsets, capacity + 1);
+            smilesHashes = Arrays.copyOf(smilesHashes, capacity);
+        }
+        if (nRowIdBytes > rowIdData.length) {
+            rowIdData = Arrays.copyOf(rowIdData, Math.max(nRowIdBytes, rowIdData.length * 2));
+        }
+        if ((nHeapRows + 1) * 2 > rowIdTable.length) {
+            rehash(tableSize(popcounts.length));
+        }
+    }
+
+    static int tableSize(int capacity) {
+        var tableSize = 16;
+        while (tableSize < capacity * 2)
+            tableSize <<= 1;
+        return tableSize;
+    }
+
+    /**
+     * Rowid hash, shared with the table saved in index files.
+     *
+     * @param data
+     * @param start
+     * @param end
+     * @return
+     */
+    static int hashRowId(byte[] data, int start, int end) {
+        var hash = 1;
+        for (var i = start; i < end; i++)
+            hash = 31 * hash + data[i];
+        // spread the bits as the table size is a power of two
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+        return hash;
+    }
+
+    private int hashRow(int row) {
+        return hashRowId(rowIdData, rowIdOffsets[row], rowIdOffsets[row + 1]) & (rowIdTable.length - 1);
+    }
+
+    private boolean rowIdEquals(int row, byte[] rowId) {
+        var start = rowIdOffsets[row];
+        var end = rowIdOffsets[row + 1];
+        return Arrays.equals(rowIdData, start, end, rowId, 0, rowId.length);
+    }
+
+    /**
+     * Linear probe for a rowid.
+     *
+     * @param rowId
+     * @return the slot containing the rowid or the empty slot where it should
+     * be inserted.
+     */
+    private int findSlot(byte[] rowId) {
+        var mask = rowIdTable.length - 1;
+        var slot = hashRowId(rowId, 0, rowId.length) & mask;
+        while (rowIdTable[slot] != 0) {
+            if (rowIdEquals(rowIdTable[slot] - 1, rowId))
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void insertRow(int row) {
+        var mask = rowIdTable.length - 1;
+        var slot = hashRow(row);
+        while (rowIdTable[slot] != 0)
+            slot = (slot + 1) & mask;
+        rowIdTable[slot] = row + 1;
+    }
+
+    /**
+     * Removes a slot from the linear probing table, shifting back any entries
+     * that would otherwise become unreachable.
+     *
+     * @param slot
+     */
+    private void deleteSlot(int slot) {
+        var mask = rowIdTable.length - 1;
+        var hole = slot;
+        var next = (hole + 1) & mask;
+        while (rowIdTable[next] != 0) {
+            var home = hashRow(rowIdTable[next] - 1);
+            // move the entry if its home slot is not cyclically in (hole, next]
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                rowIdTable[hole] = rowIdTable[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        rowIdTable[hole] = 0;
+    }
+
+    private void rehash(int tableSize) {
+        rowIdTable = new int[tableSize];
+        smilesTable = new int[tableSize];
+        for (var row = 0; row < size - baseSize; row++) {
+            if (popcounts[row] >= 0) {
+                insertRow(row);
+                insertSmilesRow(row);
+            }
+        }
+    }
+
+    /**
+     * 64 bit canonical smiles hash, shared with the table saved in index
+     * files.
+     *
+     * @param smiles
+     * @return
+     */
+    static long smilesHash(String smiles) {
+        return Hashing.farmHashFingerprint64().hashString(smiles, StandardCharsets.UTF_8).asLong();
+    }
+
+    private void insertSmilesRow(int row) {
+        var mask = smilesTable.length - 1;
+        var slot = (int) smilesHashes[row] & mask;
+        while (smilesTable[slot] != 0)
+            slot = (slot + 1) & mask;
+        smilesTable[slot] = row + 1;
+    }
+
+    private void deleteSmilesRow(int row) {
+        var mask = smilesTable.length - 1;
+        var slot = (int) smilesHashes[row] & mask;
+        while (smilesTable[slot] != row + 1) {
+            assert smilesTable[slot] != 0;
+            slot = (slot + 1) & mask;
+        }
+        var hole = slot;
+        var next = (hole + 1) & mask;
+        while (smilesTable[next] != 0) {
+            var home = (int) smilesHashes[smilesTable[next] - 1] & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                smilesTable[hole] = smilesTable[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        smilesTable[hole] = 0;
+    }
+
+    /**
+     * Finds the rows with a given canonical smiles.
+     *
+     * @param querySmiles
+     * @return the matching ordinals
+     */
+    synchronized int[] findSmiles(String querySmiles) {
+        var hash = smilesHash(querySmiles);
+        var ordinals = new ArrayList<Integer>();
+        if (base != null) {
+            for (var ordinal : base.findSmiles(hash, querySmiles)) {
+                if (!isBaseDeleted(ordinal))
+                    ordinals.add(ordinal);
+            }
+        }
+        var mask = smilesTable.length - 1;
+        var slot = (int) hash & mask;
+        while (smilesTable[slot] != 0) {
+            var row = smilesTable[slot] - 1;
+            if (smilesHashes[row] == hash && querySmiles.equals(smiles[row]))
+                ordinals.add(baseSize + row);
+            slot = (slot + 1) & mask;
+        }
+        return ordinals.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Serializes the live rows only. Extended fingerprints are converted to
+     * maps as the RDKit vectors are not serializable. Molecule pickles are not
+     * serialized, they are only saved in index files.
+     *
+     * @param out
+     * @throws IOException
+     */
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(count());
+        for (var ordinal = 0; ordinal < size; ordinal++) {
+            if (isDeleted(ordinal))
+                continue;
+            out.writeObject(rowId(ordinal));
+            out.writeObject(smiles(ordinal));
+            out.writeObject(fingerprint(ordinal));
+            var extended = extendedFingerprints(ordinal);
+            List<Map<Long, Integer>> serializedMorganFingerprints = null;
+            if (extended != null) {
+                serializedMorganFingerprints = extended.stream()
+                        .map(fp -> fp == null ? new HashMap<Long, Integer>() : fp.toMap())
+                        .collect(Collectors.toList());
+            }
+            out.writeObject(serializedMorganFingerprints);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        var nRows = in.readInt();
+        allocate(Math.max(nRows, INITIAL_CAPACITY), Math.max(nRows, INITIAL_CAPACITY) * 18);
+        for (var i = 0; i < nRows; i++) {
+            var rowId = (byte[]) in.readObject();
+            var rowSmiles = (String) in.readObject();
+            var fingerprint = (BitSet) in.readObject();
+            var serializedMorganFingerprints = (List<Map<Long, Integer>>) in.readObject();
+            List<MorganFingerprint> deMorganFingerprints = null;
+            if (serializedMorganFingerprints != null) {
+                deMorganFingerprints = serializedMorganFingerprints.stream()
+                        .map(MorganFingerprint::fromMap).collect(Collectors.toList());
+            }
+            add(rowId, rowSmiles, fingerprint, deMorganFingerprints);
+        }
+    }
+}
@@ -2,16 +2,33 @@ package com.cairn.rmi.index;
 
 import com.cairn.common.SqlUtil;
 import com.cairn.rmi.TaskException;
+import com.cairn.rmi.server.BatchThreadFactory;
 import com.cairn.rmi.server.TaskUtil;
 import oracle.jdbc.internal.OracleResultSet;
 import oracle.sql.ROWID;
 import org.apache.log4j.Logger;
 
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
  * Base class for building indexes on smiles columns
  * <p>
+ * Changes to the indexed table are recorded in a change log table. By default
+ * each search applies any new change log entries before it runs. If the
+ * change log ingester is in use a background task applies new entries to
+ * each loaded index periodically instead, and searches use the index as last
+ * published. With read your writes set, a search waits for an ingestion pass
+ * that started after the search, so that it sees any change committed before
+ * it started. Concurrent searches share the same pass.
+ * <p>
  * Thread safe
  *
  * @author gjones
@@ -29,6 +46,41 @@ public abstract class IndexBase {
     // This is the last changed row we processed.
     private volatile int currentRowChangeId;
 
+    // background change log ingestion
+    private static volatile boolean useChangeLogIngester = false;
+    private static volatile long ingestIntervalMilliseconds = 1000;
+    private static volatile boolean readYourWrites = false;
+    // minimum time a search waits for the ingester before applying the
+    // change log itself
+    private static final long MIN_INGEST_WAIT_MILLISECONDS = 10000;
+    private static volatile ScheduledExecutorService ingestExecutor;
+    private volatile ScheduledFuture<?> ingestFuture;
+    // ingestion requests from searches and the latest request that an
+    // ingestion pass has satisfied
+    private final AtomicLong ingestRequests = new AtomicLong();
+    private final Object ingestMonitor = new Object();
+    private long ingestedRequest = 0;
+
+    // number of change log rows fetched at once and applied as a batch
+    private static final int LOG_BATCH_SIZE = 4096;
+
+    /**
+     * An entry from the change log table
+     */
+    static final class RowChange {
+        final int rowChangeId;
+        final RowKey rowKey;
+        final Object newValue;
+        final Object oldValue;
+
+        private RowChange(int rowChangeId, RowKey rowKey, Object newValue, Object oldValue) {
+            this.rowChangeId = rowChangeId;
+            this.rowKey = rowKey;
+            this.newValue = newValue;
+            this.oldValue = oldValue;
+        }
+    }
+
     public  enum IndexColumnType {
         SMILES, SDF, BINARY
     }
@@ -157,6 +209,14 @@ public abstract class IndexBase {
      */
     protected abstract void saveIndex();
 
+    /**
+     * Persists the changes applied from the log table, before the log table
+     * entries are deleted. By default the whole index is saved.
+     */
+    protected void persistChanges() {
+        saveIndex();
+    }
+
     /**
      * Completely removes the index from persistent storage.
      */
@@ -178,15 +238,148 @@ public abstract class IndexBase {
     public abstract void loadIndexOrBuild() throws TaskException;
 
     /**
-     * Updates the index with new entries in the log table.
+     * Brings the index up to date before a search. Applies new entries in the
+     * log table, unless the change log ingester is running for this index. In
+     * that case the search uses the index as last published, or waits for the
+     * ingester if read your writes is set.
      *
-     * @return
-     * @throws Exception
+     * @return number of entries applied by this call
+     * @throws TaskException
      */
     int processLogTable() throws TaskException {
+        if (ingestFuture == null)
+            return processLogTable(false);
+        if (readYourWrites)
+            awaitIngestion();
+        return 0;
+    }
+
+    /**
+     * Waits for an ingestion pass that starts after this call. If the
+     * ingester does not complete a pass in time, or is stopped, applies the
+     * log table directly.
+     *
+     * @throws TaskException
+     */
+    private void awaitIngestion() throws TaskException {
+        long request = ingestRequests.incrementAndGet();
+        getIngestExecutor().execute(() -> ingest(request));
+        long wait = Math.max(MIN_INGEST_WAIT_MILLISECONDS, 10 * ingestIntervalMilliseconds);
+        long deadline = System.currentTimeMillis() + wait;
+        synchronized (ingestMonitor) {
+            while (ingestedRequest < request && ingestFuture != null) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    break;
+                try {
+                    ingestMonitor.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (ingestedRequest >= request)
+                return;
+        }
+        logger.warn("Change log ingester for " + fullSchemaName()
+                + " is not keeping up: applying change log directly");
+        processLogTable(false);
+    }
+
+    /**
+     * Applies new entries in the log table to the index now.
+     *
+     * @return number of entries processed
+     * @throws TaskException
+     */
+    int applyLogTable() throws TaskException {
         return processLogTable(false);
     }
 
+    /**
+     * Starts background ingestion of the change log for this index, if the
+     * ingester is in use.
+     */
+    void startChangeLogIngester() {
+        if (!useChangeLogIngester || logTable == null)
+            return;
+        synchronized (ingestMonitor) {
+            if (ingestFuture != null)
+                return;
+            logger.info("Starting change log ingester for " + fullSchemaName());
+            ingestFuture = getIngestExecutor().scheduleWithFixedDelay(this::ingest,
+                    ingestIntervalMilliseconds, ingestIntervalMilliseconds,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops background ingestion of the change log for this index, for
+     * example when the index is dropped or unloaded.
+     */
+    public void stopChangeLogIngester() {
+        synchronized (ingestMonitor) {
+            if (ingestFuture == null)
+                return;
+            logger.info("Stopping change log ingester for " + fullSchemaName());
+            ingestFuture.cancel(false);
+            ingestFuture = null;
+            // searches waiting on the ingester will apply the log themselves
+            ingestMonitor.notifyAll();
+        }
+    }
+
+    private static ScheduledExecutorService getIngestExecutor() {
+        if (ingestExecutor == null) {
+            synchronized (IndexBase.class) {
+                if (ingestExecutor == null) {
+                    ingestExecutor = Executors.newScheduledThreadPool(2,
+                            new BatchThreadFactory("changeLogIngesterThread"));
+                    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                        if (!ingestExecutor.isTerminated())
+                            ingestExecutor.shutdownNow();
+                    }));
+                }
+            }
+        }
+        return ingestExecutor;
+    }
+
+    /**
+     * A scheduled ingestion pass
+     */
+    private void ingest() {
+        ingest(0);
+    }
+
+    /**
+     * An ingestion pass. Applies any new log table entries and publishes the
+     * latest request satisfied.
+     *
+     * @param required the request that the pass is for. The pass is skipped
+     *                 if an earlier pass has satisfied it.
+     */
+    private void ingest(long required) {
+        // any request made before this point is satisfied by this pass
+        long request = ingestRequests.get();
+        synchronized (ingestMonitor) {
+            if (required > 0 && required <= ingestedRequest)
+                return;
+        }
+        try {
+            processLogTable(false);
+        } catch (Throwable e) {
+            // don't cancel the scheduled ingestion
+            logger.error("Exception ingesting change log for " + fullSchemaName(), e);
+            return;
+        }
+        synchronized (ingestMonitor) {
+            if (request > ingestedRequest)
+                ingestedRequest = request;
+            ingestMonitor.notifyAll();
+        }
+    }
+
     /**
      * Applies any new entries in the log table then saves the index and empties
      * the log table.
@@ -214,6 +407,33 @@ public abstract class IndexBase {
      * @throws SQLException
      */
     private synchronized int processLogTable(boolean commit) throws TaskException {
+        if (commit)
+            logger.debug("Commiting log table for " + fullSchemaName());
+        int no = readLogTable(currentRowChangeId, commit, changes -> {
+            applyRowChanges(changes);
+            currentRowChangeId = changes.get(changes.size() - 1).rowChangeId;
+        });
+
+        if (commit) {
+            commitRowChanges();
+        }
+
+        return no;
+    }
+
+    /**
+     * Reads the entries in the log table after a row change id, in row change
+     * id order, and passes them in batches to a consumer. Does not change the
+     * index.
+     *
+     * @param afterRowChangeId
+     * @param forUpdate        lock the log table entries
+     * @param batchConsumer
+     * @return number of entries read
+     * @throws TaskException
+     */
+    int readLogTable(int afterRowChangeId, boolean forUpdate,
+                     Consumer<List<RowChange>> batchConsumer) throws TaskException {
         if (logTable == null) {
             identifyLogTable();
             if (logTable == null)
@@ -224,40 +444,44 @@ public abstract class IndexBase {
         String query = "select ROW_CHANGE_ID, ROW_CHANGED, NEW_VALUE, OLD_VALUE from "
                 + logTable + " where row_change_id > :1 order by row_change_id";
 
-        if (commit) {
+        if (forUpdate) {
             query += " for update";
-            logger.debug("Commiting log table for " + fullSchemaName());
         }
 
         try (var connection = getConnection();
              var preparedStatement = SqlUtil.getOracleConnection(connection)
                      .prepareStatement(query)) {
 
-            preparedStatement.setInt(1, currentRowChangeId);
+            preparedStatement.setInt(1, afterRowChangeId);
+            preparedStatement.setFetchSize(LOG_BATCH_SIZE);
             preparedStatement.execute();
             OracleResultSet resultSet = (OracleResultSet) preparedStatement
                     .getResultSet();
-            int rowChangeId = 0;
-
-            while (resultSet.next()) {
-                no++;
-                rowChangeId = resultSet.getInt(1);
-                logger.debug("Processing row change id " + rowChangeId);
-                ROWID rowId = resultSet.getROWID(2);
-                Object newValue = retrieveRowValueFromDatabase(3, resultSet);
-                Object oldValue = retrieveRowValueFromDatabase(4, resultSet);
-                RowKey key = new RowKey(rowId);
-                if (newValue == null) {
-                    logger.debug("Removing row " + rowId.stringValue());
-                    removeRowChangeEntry(rowChangeId, key, oldValue);
-                } else {
-                    logger.debug("Adding/replacing row " + rowId.stringValue() + " : "
-                            + newValue);
-                    addRowChangeEntry(rowChangeId, key, newValue, oldValue);
+            List<RowChange> changes = new ArrayList<>(LOG_BATCH_SIZE);
+
+            while (true) {
+                var more = resultSet.next();
+                if (more) {
+                    int rowChangeId = resultSet.getInt(1);
+                    ROWID rowId = resultSet.getROWID(2);
+                    Object newValue = retrieveRowValueFromDatabase(3, resultSet);
+                    Object oldValue = retrieveRowValueFromDatabase(4, resultSet);
+                    changes.add(new RowChange(rowChangeId, new RowKey(rowId), newValue, oldValue));
+                    if (changes.size() < LOG_BATCH_SIZE)
+                        continue;
+                }
+                if (!changes.isEmpty()) {
+                    batchConsumer.accept(changes);
+                    no += changes.size();
+                    changes = new ArrayList<>(LOG_BATCH_SIZE);
+                    if (more)
+                        logger.info("Applied " + no + " entries from log table for "
+                                + fullSchemaName());
                 }
+                if (!more)
+                    break;
             }
             if (no > 0) {
-                currentRowChangeId = rowChangeId;
                 logger.info("Got " + no + " new entries from log table for "
                         + fullSchemaName());
             }
@@ -271,16 +495,12 @@ public abstract class IndexBase {
             throw new RuntimeException(message);
         }
 
-        if (commit) {
-            commitRowChanges();
-        }
-
         return no;
     }
 
     /**
      * Commits the result of updating the change log table. Empties the change
-     * log table and saves the index to Oracle.
+     * log table and persists the changes to the index.
      *
      * @throws TaskException
      */
@@ -291,8 +511,8 @@ public abstract class IndexBase {
              var updateStatement = connection.prepareStatement(update)) {
             updateStatement.setInt(1, currentRowChangeId);
             updateStatement.execute();
-            logger.debug("Saving to Oracle");
-            saveIndex();
+            logger.debug("Persisting index changes");
+            persistChanges();
             connection.commit();
         } catch (SQLException e) {
             String message = "SQLException processing log table";
@@ -342,6 +562,25 @@ public abstract class IndexBase {
         return null;
     }
 
+    /**
+     * Applies a batch of change log entries to the index, in row change id
+     * order. Override this to prepare the entries in parallel.
+     *
+     * @param changes
+     */
+    void applyRowChanges(List<RowChange> changes) {
+        for (var change : changes) {
+            if (change.newValue == null) {
+                logger.debug("Removing row " + change.rowKey);
+                removeRowChangeEntry(change.rowChangeId, change.rowKey, change.oldValue);
+            } else {
+                logger.debug("Adding/replacing row " + change.rowKey + " : " + change.newValue);
+                addRowChangeEntry(change.rowChangeId, change.rowKey, change.newValue,
+                        change.oldValue);
+            }
+        }
+    }
+
     /**
      * Adds a entry from the change log into the current index. If oldSmiles is
      * not null this is really and update.
@@ -372,9 +611,65 @@ public abstract class IndexBase {
     }
 
     /**
+     * Sets the index as loaded. Starts the change log ingester once the index
+     * is loaded, if it is in use.
+     *
      * @param indexLoaded the indexLoaded to set
      */
     void setIndexLoaded(boolean indexLoaded) {
         this.indexLoaded = indexLoaded;
+        if (indexLoaded)
+            startChangeLogIngester();
+    }
+
+    /**
+     * @return the last change log entry applied to the index
+     */
+    int getCurrentRowChangeId() {
+        return currentRowChangeId;
+    }
+
+    /**
+     * @param currentRowChangeId the last change log entry applied to the
+     *                           index. Only set while holding the index lock.
+     */
+    void setCurrentRowChangeId(int currentRowChangeId) {
+        this.currentRowChangeId = currentRowChangeId;
+    }
+
+    /**
+     * @return the useChangeLogIngester
+     */
+    public static boolean isUseChangeLogIngester() {
+        return useChangeLogIngester;
+    }
+
+    /**
+     * @param useChangeLogIngester the useChangeLogIngester to set
+     */
+    public static void setUseChangeLogIngester(boolean useChangeLogIngester) {
+        IndexBase.useChangeLogIngester = useChangeLogIngester;
+    }
+
+    /**
+     * @param ingestIntervalMilliseconds time between ingestion passes
+     */
+    public static void setIngestIntervalMilliseconds(long ingestIntervalMilliseconds) {
+        IndexBase.ingestIntervalMilliseconds = Math.max(1, ingestIntervalMilliseconds);
+    }
+
+    /**
+     * @return the readYourWrites
+     */
+    public static boolean isReadYourWrites() {
+        return readYourWrites;
+    }
+
+    /**
+     * @param readYourWrites set to make searches wait for the ingester to
+     *                       apply changes committed before the search
+     */
+    public static void setReadYourWrites(boolean readYourWrites) {
+        IndexBase.readYourWrites = readYourWrites;
     }
 }
@@ -1,5 +1,6 @@
 package com.cairn.rmi.index;
 
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Level;
@@ -8,10 +9,16 @@ import org.apache.log4j.Logger;
 /**
  * A thread pool to distribute index building.
  * 
+ * The pool is also used to prepare the entries for large batches of change
+ * log rows in parallel. The prepared entries are then added to the index, in
+ * order, by the thread processing the change log.
+ * 
  * @author gjones
  * 
  */
 public class IndexBuildPool extends TaskPool {
+	private static final int MAX_BATCH_SIZE = 4096;
+
 	private static volatile int nThreads = 1;
 	private static volatile boolean useIndexBuildPool = false;
 
@@ -19,7 +26,7 @@ public class IndexBuildPool extends TaskPool {
 	private static final Logger logger = Logger.getLogger(IndexBuildPool.class);
 
 	private IndexBuildPool() {
-		super("indexBuildPool", nThreads);
+		super("indexBuildPool", nThreads, MAX_BATCH_SIZE);
 	}
 
 	private static class IndexBuildItem extends QueueItem {
@@ -48,12 +55,26 @@ public class IndexBuildPool extends TaskPool {
 
 	}
 
+	private static class PrepareItem extends QueueItem {
+		final int position;
+		final IndexBase.RowChange change;
+
+		PrepareItem(int jobNo, int position, IndexBase.RowChange change) {
+			super(jobNo);
+			this.position = position;
+			this.change = change;
+		}
+	}
+
 	private static class IndexBuildTaskJobInfo extends TaskJobInfo {
 		private final TableIndex tableIndex;
+		// the store that the index is being built into
+		private final FingerprintStore store;
 
-		IndexBuildTaskJobInfo(int jobNo, TableIndex tableIndex) {
+		IndexBuildTaskJobInfo(int jobNo, TableIndex tableIndex, FingerprintStore store) {
 			super(jobNo);
 			this.tableIndex = tableIndex;
+			this.store = store;
 		}
 
 		/**
@@ -65,6 +86,15 @@ public class IndexBuildPool extends TaskPool {
 
 	}
 
+	private static class PrepareTaskJobInfo extends IndexBuildTaskJobInfo {
+		private final TableIndex.PreparedEntry[] entries;
+
+		PrepareTaskJobInfo(int jobNo, TableIndex tableIndex, TableIndex.PreparedEntry[] entries) {
+			super(jobNo, tableIndex, null);
+			this.entries = entries;
+		}
+	}
+
 	private static volatile IndexBuildPool indexBuildPool = null;
 
 	public static synchronized IndexBuildPool getInstance() {
@@ -78,11 +108,21 @@ public class IndexBuildPool extends TaskPool {
 	@Override
 	public void processItem(TaskJobInfo taskJobInfo, QueueItem item) {
 
+		if (item instanceof PrepareItem) {
+			// prepare an entry from a change log row
+			PrepareTaskJobInfo prepareInfo = (PrepareTaskJobInfo) taskJobInfo;
+			PrepareItem prepareItem = (PrepareItem) item;
+			IndexBase.RowChange change = prepareItem.change;
+			prepareInfo.entries[prepareItem.position] = prepareInfo.getTableIndex()
+					.prepareEntry(change.rowKey, change.newValue);
+			return;
+		}
+
 		// add an entry to the index.
 		IndexBuildTaskJobInfo buildInfo = (IndexBuildTaskJobInfo) taskJobInfo;
 		IndexBuildItem buildItem = (IndexBuildItem) item;
 
-		buildInfo.getTableIndex().createEntry(buildItem.getRowKey(),
+		buildInfo.getTableIndex().createEntry(buildInfo.store, buildItem.getRowKey(),
 				buildItem.getRowValue());
 
 		int nAdded = buildInfo.getnItemsFinished();
@@ -107,15 +147,39 @@ public class IndexBuildPool extends TaskPool {
 	 * Set up building an index
 	 * 
 	 * @param tableIndex
+	 * @param store
+	 *            the new store that rows are added to
 	 * @return the job no
 	 */
-	public int startJob(TableIndex tableIndex) {
+	public int startJob(TableIndex tableIndex, FingerprintStore store) {
 		int jobNo = jobNoCounter.incrementAndGet();
-		IndexBuildTaskJobInfo buildInfo = new IndexBuildTaskJobInfo(jobNo, tableIndex);
+		IndexBuildTaskJobInfo buildInfo = new IndexBuildTaskJobInfo(jobNo, tableIndex, store);
 		startJob(buildInfo);
 		return jobNo;
 	}
 
+	/**
+	 * Prepares the entries for a batch of change log rows in parallel. Blocks
+	 * until all the entries are prepared.
+	 * 
+	 * @param tableIndex
+	 * @param changes
+	 * @param entries
+	 *            set to the prepared entry for each change that adds a row,
+	 *            or null if the row cannot be parsed
+	 */
+	void prepareEntries(TableIndex tableIndex, List<IndexBase.RowChange> changes,
+			TableIndex.PreparedEntry[] entries) {
+		int jobNo = jobNoCounter.incrementAndGet();
+		startJob(new PrepareTaskJobInfo(jobNo, tableIndex, entries));
+		for (int i = 0; i < changes.size(); i++) {
+			IndexBase.RowChange change = changes.get(i);
+			if (change.newValue != null)
+				submitItem(new PrepareItem(jobNo, i, change));
+		}
+		super.finishJob(jobNo);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
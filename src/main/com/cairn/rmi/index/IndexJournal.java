@@ -0,0 +1,349 @@
+package com.cairn.rmi.index;
+
+import com.cairn.common.MorganFingerprint;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append only journal of the row changes applied to a table index since
+ * its index file was written, so that committing changes does not rewrite the
+ * index file.
+ * <p>
+ * The journal starts with a header containing a magic number, format version
+ * and the file id from the header of the index file it applies to, so a
+ * journal is never replayed over a different index file. Each record is an
+ * int payload length, the CRC32 of the payload and the payload: an operation
+ * byte and the rowid, followed for added rows by the canonical smiles, pattern
+ * fingerprint words, Morgan fingerprints and molecule pickle. A torn record
+ * at the end of the journal, left by a crash during an append, is discarded
+ * on replay.
+ * <p>
+ * Not thread safe: the table index serializes access.
+ *
+ * @author Gareth Jones
+ */
+class IndexJournal {
+    private static final Logger logger = Logger.getLogger(IndexJournal.class);
+
+    // "RDKJ"
+    private static final int MAGIC = 0x52444b4a;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+
+    private final File file;
+    private final FileChannel channel;
+    private DataOutputStream out;
+    private long size;
+
+    private IndexJournal(File file, FileChannel channel) throws IOException {
+        this.file = file;
+        this.channel = channel;
+        this.size = channel.size();
+    }
+
+    /**
+     * Opens a journal for replay and appending.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    static IndexJournal open(File file) throws IOException {
+        var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        return new IndexJournal(file, channel);
+    }
+
+    /**
+     * @param journalFile
+     * @param indexFile
+     * @return true if the journal was written for the index file
+     */
+    static boolean matches(File journalFile, File indexFile) {
+        var fileId = MappedIndexFile.readFileId(indexFile);
+        if (fileId == 0L)
+            return false;
+        try (var in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(FileChannel.open(journalFile.toPath(),
+                        StandardOpenOption.READ))))) {
+            return in.readInt() == MAGIC && in.readInt() == VERSION
+                    && in.readLong() == fileId;
+        } catch (IOException e) {
+            logger.warn("Unable to read journal header " + journalFile, e);
+            return false;
+        }
+    }
+
+    /**
+     * Writes a new journal for an index file, containing the rows added to
+     * and removed from a store layered over the index file.
+     *
+     * @param file
+     * @param indexFile
+     * @param store     the store, or null for an empty journal
+     * @throws IOException if the index file has no file id
+     */
+    static void write(File file, File indexFile, FingerprintStore store) throws IOException {
+        var fileId = MappedIndexFile.readFileId(indexFile);
+        if (fileId == 0L)
+            throw new IOException("Index file " + indexFile + " has no file id for a journal");
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fileId);
+            if (store != null) {
+                var baseSize = store.baseSize();
+                var size = store.size();
+                for (var ordinal = 0; ordinal < baseSize; ordinal++) {
+                    if (store.isDeleted(ordinal))
+                        writeRecord(out, removeRecord(store.rowId(ordinal)));
+                }
+                for (var ordinal = baseSize; ordinal < size; ordinal++) {
+                    if (store.isDeleted(ordinal))
+                        continue;
+                    writeRecord(out, addRecord(store.rowId(ordinal), store.smiles(ordinal),
+                            store.fingerprint(ordinal), store.extendedFingerprints(ordinal),
+                            store.pickle(ordinal)));
+                }
+            }
+            out.flush();
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Applies the records in the journal to a store, in order. Any torn
+     * record at the end is removed and further records are appended after
+     * the last complete record.
+     *
+     * @param store
+     * @return the number of records applied
+     * @throws IOException
+     */
+    int replay(FingerprintStore store) throws IOException {
+        channel.position(HEADER_SIZE);
+        var in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        long position = HEADER_SIZE;
+        var nRecords = 0;
+        var crc = new CRC32();
+        while (true) {
+            byte[] payload;
+            try {
+                var length = in.readInt();
+                var checksum = in.readInt();
+                if (length <= 0 || position + 8 + length > size)
+                    break;
+                payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum)
+                    break;
+            } catch (EOFException e) {
+                break;
+            }
+            applyRecord(store, payload);
+            position += 8 + payload.length;
+            nRecords++;
+        }
+        if (position < size) {
+            logger.warn("Discarding " + (size - position) + " bytes of incomplete records from "
+                    + file);
+            channel.truncate(position);
+            size = position;
+        }
+        logger.info("Replayed " + nRecords + " records from journal " + file);
+        return nRecords;
+    }
+
+    private DataOutputStream output() throws IOException {
+        if (out == null) {
+            channel.position(size);
+            out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        }
+        return out;
+    }
+
+    /**
+     * Appends an added row.
+     *
+     * @param rowId
+     * @param smiles
+     * @param fingerprint
+     * @param deMorganFingerprints
+     * @param pickle               binary molecule pickle, or null
+     * @throws IOException
+     */
+    void appendAdd(byte[] rowId, String smiles, BitSet fingerprint,
+                   List<MorganFingerprint> deMorganFingerprints, byte[] pickle) throws IOException {
+        size += writeRecord(output(), addRecord(rowId, smiles, fingerprint, deMorganFingerprints,
+                pickle));
+    }
+
+    /**
+     * Appends a removed row.
+     *
+     * @param rowId
+     * @throws IOException
+     */
+    void appendRemove(byte[] rowId) throws IOException {
+        size += writeRecord(output(), removeRecord(rowId));
+    }
+
+    /**
+     * Forces the appended records to disk.
+     *
+     * @throws IOException
+     */
+    void sync() throws IOException {
+        if (out != null)
+            out.flush();
+        channel.force(false);
+    }
+
+    /**
+     * @return the length of the journal in bytes
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Writes any appended records and closes the journal.
+     */
+    void close() {
+        try {
+            if (out != null)
+                out.flush();
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("IOException closing journal " + file, e);
+        }
+    }
+
+    private static int writeRecord(DataOutputStream out, byte[] payload) throws IOException {
+        var crc = new CRC32();
+        crc.update(payload);
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+        return 8 + payload.length;
+    }
+
+    private static byte[] removeRecord(byte[] rowId) throws IOException {
+        var bytes = new ByteArrayOutputStream(rowId.length + 8);
+        var record = new DataOutputStream(bytes);
+        record.writeByte(REMOVE);
+        writeBytes(record, rowId);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] addRecord(byte[] rowId, String smiles, BitSet fingerprint,
+                                    List<MorganFingerprint> deMorganFingerprints, byte[] pickle)
+            throws IOException {
+        var bytes = new ByteArrayOutputStream(512);
+        var record = new DataOutputStream(bytes);
+        record.writeByte(ADD);
+        writeBytes(record, rowId);
+        writeBytes(record, smiles.getBytes(StandardCharsets.UTF_8));
+        for (var word : FingerprintStore.toWords(fingerprint))
+            record.writeLong(word);
+        if (deMorganFingerprints == null) {
+            record.writeInt(-1);
+        } else {
+            record.writeInt(deMorganFingerprints.size());
+            for (var fp : deMorganFingerprints) {
+                if (fp == null) {
+                    record.writeInt(-1);
+                    continue;
+                }
+                var n = fp.size();
+                record.writeInt(n);
+                var keys = fp.getKeys();
+                var counts = fp.getCounts();
+                for (var i = 0; i < n; i++)
+                    record.writeInt(keys[i]);
+                for (var i = 0; i < n; i++)
+                    record.writeInt(counts[i]);
+            }
+        }
+        writeBytes(record, pickle);
+        return bytes.toByteArray();
+    }
+
+    private static void applyRecord(FingerprintStore store, byte[] payload) throws IOException {
+        var record = new DataInputStream(new ByteArrayInputStream(payload));
+        var op = record.readByte();
+        var rowId = readBytes(record);
+        if (op == REMOVE) {
+            store.remove(rowId);
+            return;
+        }
+        if (op != ADD)
+            throw new IOException("Unknown journal operation " + op);
+        var smiles = new String(readBytes(record), StandardCharsets.UTF_8);
+        var words = new long[FingerprintStore.FINGERPRINT_WORDS];
+        for (var w = 0; w < words.length; w++)
+            words[w] = record.readLong();
+        var nTypes = record.readInt();
+        List<MorganFingerprint> deMorganFingerprints = null;
+        if (nTypes >= 0) {
+            deMorganFingerprints = new ArrayList<>(nTypes);
+            for (var type = 0; type < nTypes; type++) {
+                var n = record.readInt();
+                if (n < 0) {
+                    deMorganFingerprints.add(null);
+                    continue;
+                }
+                var keys = new int[n];
+                var counts = new int[n];
+                for (var i = 0; i < n; i++)
+                    keys[i] = record.readInt();
+                for (var i = 0; i < n; i++)
+                    counts[i] = record.readInt();
+                deMorganFingerprints.add(new MorganFingerprint(keys, counts));
+            }
+        }
+        var pickle = readBytes(record);
+        store.add(rowId, smiles, BitSet.valueOf(words), deMorganFingerprints, pickle);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        var length = in.readInt();
+        if (length < 0)
+            return null;
+        var bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
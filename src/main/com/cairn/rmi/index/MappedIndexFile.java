@@ -0,0 +1,867 @@
+package com.cairn.rmi.index;
+
+import com.cairn.common.MorganFingerprint;
+import com.cairn.common.RDKitOps;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+/**
+ * A read only table index held in a memory mapped file.
+ * <p>
+ * The file has a fixed little endian layout: a header containing a magic
+ * number, format version, row count and the offset and length of each
+ * section, followed by the sections themselves. From version 5 the header
+ * ends with a random file id, which ties a journal to the file that it
+ * applies to. Each section is a packed
+ * primitive array:
+ * <ul>
+ * <li>FINGERPRINTS: 32 longs per row for the 2048 bit pattern fingerprint</li>
+ * <li>POPCOUNTS: one short per row</li>
+ * <li>ROWID_OFFSETS and ROWID_DATA: int offsets into packed rowid bytes</li>
+ * <li>SMILES_OFFSETS and SMILES_DATA: long offsets into packed UTF-8
+ * smiles</li>
+ * <li>ROWID_TABLE: open addressing hash of rowid to ordinal+1</li>
+ * <li>EXTENDED_OFFSETS, EXTENDED_KEYS and EXTENDED_COUNTS: the sparse Morgan
+ * fingerprints as offsets into key and count int arrays, one set of
+ * offsets per fingerprint type</li>
+ * <li>POPCOUNT_BUCKETS: from version 2 rows are sorted by fingerprint bit
+ * count and this section holds the first ordinal for each bit count</li>
+ * <li>SMILES_HASH_KEYS and SMILES_HASH_ORDINALS: from version 3 an open
+ * addressing multimap of 64 bit canonical smiles hash to ordinal+1, for exact
+ * match searching</li>
+ * <li>PICKLES: from version 4 the binary RDKit molecule pickles, as long
+ * offsets for each row followed by the packed pickle bytes. The section is
+ * empty if the index does not store pickles</li>
+ * <li>BIT_COUNTS: from version 6 the number of rows with each pattern
+ * fingerprint bit set, for ordering substructure screens. The header grew to
+ * 512 bytes to hold this section</li>
+ * </ul>
+ * Sections are mapped in chunks of at most 1GB so that very large indexes
+ * can be opened. Nothing is copied onto the Java heap when the file is
+ * opened.
+ *
+ * @author Gareth Jones
+ */
+class MappedIndexFile {
+    private static final Logger logger = Logger.getLogger(MappedIndexFile.class);
+
+    // "RDKI"
+    private static final int MAGIC = 0x52444b49;
+    static final int VERSION = 6;
+    private static final int HEADER_SIZE = 512;
+    // header size for files before version 6
+    private static final int OLD_HEADER_SIZE = 256;
+    private static final int CHUNK_SHIFT = 30;
+    private static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+    private static final int FINGERPRINT_BYTES = FingerprintStore.FINGERPRINT_WORDS * Long.BYTES;
+
+    private enum Section {
+        FINGERPRINTS, POPCOUNTS, ROWID_OFFSETS, ROWID_DATA, SMILES_OFFSETS, SMILES_DATA, ROWID_TABLE,
+        EXTENDED_OFFSETS, EXTENDED_KEYS, EXTENDED_COUNTS, POPCOUNT_BUCKETS, SMILES_HASH_KEYS,
+        SMILES_HASH_ORDINALS, PICKLES, BIT_COUNTS;
+
+        // sections present in each file version
+        private static int nSections(int version) {
+            switch (version) {
+                case 1:
+                    return POPCOUNT_BUCKETS.ordinal();
+                case 2:
+                    return SMILES_HASH_KEYS.ordinal();
+                case 3:
+                    return PICKLES.ordinal();
+                case 4:
+                case 5:
+                    return BIT_COUNTS.ordinal();
+                default:
+                    return values().length;
+            }
+        }
+    }
+
+    // number of popcount buckets
+    private static final int N_BUCKETS = RDKitOps.PATTERN_FP_SIZE + 1;
+
+    private final File file;
+    // zero for files before version 5
+    private final long fileId;
+    private final int nRows;
+    private final int nExtendedTypes;
+    private final int rowIdTableSize;
+    private final MappedSection fingerprints;
+    private final MappedSection popcounts;
+    private final MappedSection rowIdOffsets;
+    private final MappedSection rowIdData;
+    private final MappedSection smilesOffsets;
+    private final MappedSection smilesData;
+    private final MappedSection rowIdTable;
+    private final MappedSection extendedOffsets;
+    private final MappedSection extendedKeys;
+    private final MappedSection extendedCounts;
+    // first ordinal for each bit count, with an end marker. Null for version
+    // 1 files which are not sorted.
+    private final int[] bucketStarts;
+    // null for files before version 3
+    private final MappedSection smilesHashKeys;
+    private final MappedSection smilesHashOrdinals;
+    private final int smilesTableSize;
+    // null if the file has no molecule pickles
+    private final MappedSection pickles;
+    private final long pickleDataStart;
+    // rows with each fingerprint bit set. Null for files before version 6
+    private final int[] bitCounts;
+
+    /**
+     * A section of the file mapped in chunks. All reads are absolute and
+     * positions are byte offsets from the start of the section. Chunk
+     * boundaries are multiples of the chunk size, so no primitive or
+     * fingerprint straddles a chunk.
+     */
+    private static class MappedSection {
+        private final ByteBuffer[] chunks;
+
+        private MappedSection(FileChannel channel, long offset, long length) throws IOException {
+            var nChunks = (int) ((length + CHUNK_SIZE - 1) >>> CHUNK_SHIFT);
+            chunks = new ByteBuffer[nChunks];
+            for (var i = 0; i < nChunks; i++) {
+                var start = ((long) i) << CHUNK_SHIFT;
+                var size = Math.min(CHUNK_SIZE, length - start);
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start, size)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+
+        private ByteBuffer chunk(long position) {
+            return chunks[(int) (position >>> CHUNK_SHIFT)];
+        }
+
+        private static int offset(long position) {
+            return (int) (position & (CHUNK_SIZE - 1));
+        }
+
+        long getLong(long position) {
+            return chunk(position).getLong(offset(position));
+        }
+
+        int getInt(long position) {
+            return chunk(position).getInt(offset(position));
+        }
+
+        short getShort(long position) {
+            return chunk(position).getShort(offset(position));
+        }
+
+        byte get(long position) {
+            return chunk(position).get(offset(position));
+        }
+
+        void get(long position, byte[] dst) {
+            if (dst.length == 0)
+                return;
+            var offset = offset(position);
+            if (offset + dst.length <= CHUNK_SIZE) {
+                chunk(position).duplicate().position(offset).get(dst);
+                return;
+            }
+            // byte arrays may straddle chunks
+            for (var i = 0; i < dst.length; i++)
+                dst[i] = get(position + i);
+        }
+    }
+
+    private MappedIndexFile(File file, FileChannel channel) throws IOException {
+        this.file = file;
+        var header = readHeader(channel);
+        if (header == null)
+            throw new IOException("Index file " + file + " is truncated");
+        if (header.getInt() != MAGIC)
+            throw new IOException("File " + file + " is not a mapped index file");
+        var version = header.getInt();
+        if (version < 1 || version > VERSION)
+            throw new IOException("Index file " + file + " has unsupported version " + version);
+        if (header.limit() < headerSize(version))
+            throw new IOException("Index file " + file + " is truncated");
+        nRows = header.getInt();
+        var fingerprintWords = header.getInt();
+        if (fingerprintWords != FingerprintStore.FINGERPRINT_WORDS)
+            throw new IOException("Index file " + file + " has fingerprints of " + fingerprintWords
+                    + " words");
+        nExtendedTypes = header.getInt();
+        rowIdTableSize = header.getInt();
+
+        var fileSize = channel.size();
+        var sections = new MappedSection[Section.values().length];
+        var lengths = new long[Section.values().length];
+        for (var section : Arrays.copyOf(Section.values(), Section.nSections(version))) {
+            var offset = header.getLong();
+            var length = header.getLong();
+            lengths[section.ordinal()] = length;
+            if (offset + length > fileSize)
+                throw new IOException("Index file " + file + " is truncated in section " + section);
+            sections[section.ordinal()] = new MappedSection(channel, offset, length);
+        }
+        fileId = version >= 5 ? header.getLong() : 0L;
+        fingerprints = sections[Section.FINGERPRINTS.ordinal()];
+        popcounts = sections[Section.POPCOUNTS.ordinal()];
+        rowIdOffsets = sections[Section.ROWID_OFFSETS.ordinal()];
+        rowIdData = sections[Section.ROWID_DATA.ordinal()];
+        smilesOffsets = sections[Section.SMILES_OFFSETS.ordinal()];
+        smilesData = sections[Section.SMILES_DATA.ordinal()];
+        rowIdTable = sections[Section.ROWID_TABLE.ordinal()];
+        extendedOffsets = sections[Section.EXTENDED_OFFSETS.ordinal()];
+        extendedKeys = sections[Section.EXTENDED_KEYS.ordinal()];
+        extendedCounts = sections[Section.EXTENDED_COUNTS.ordinal()];
+
+        smilesHashKeys = sections[Section.SMILES_HASH_KEYS.ordinal()];
+        smilesHashOrdinals = sections[Section.SMILES_HASH_ORDINALS.ordinal()];
+        smilesTableSize = (int) (lengths[Section.SMILES_HASH_KEYS.ordinal()] / Long.BYTES);
+        pickles = lengths[Section.PICKLES.ordinal()] > 0 ? sections[Section.PICKLES.ordinal()] : null;
+        pickleDataStart = ((long) nRows + 1) * Long.BYTES;
+
+        // the bucket table is small, so copy it to the heap
+        var buckets = sections[Section.POPCOUNT_BUCKETS.ordinal()];
+        if (buckets != null) {
+            bucketStarts = new int[N_BUCKETS + 1];
+            for (var i = 0; i <= N_BUCKETS; i++)
+                bucketStarts[i] = buckets.getInt(((long) i) * Integer.BYTES);
+        } else {
+            logger.warn("Index file " + file + " is not sorted by bit count");
+            bucketStarts = null;
+        }
+
+        var counts = sections[Section.BIT_COUNTS.ordinal()];
+        if (counts != null) {
+            bitCounts = new int[RDKitOps.PATTERN_FP_SIZE];
+            for (var bit = 0; bit < bitCounts.length; bit++)
+                bitCounts[bit] = counts.getInt(((long) bit) * Integer.BYTES);
+        } else {
+            bitCounts = null;
+        }
+    }
+
+    private static int headerSize(int version) {
+        return version < 6 ? OLD_HEADER_SIZE : HEADER_SIZE;
+    }
+
+    /**
+     * Reads the file header, which is shorter in files before version 6.
+     *
+     * @param channel
+     * @return the header, or null if the file is too short to have one
+     * @throws IOException
+     */
+    private static ByteBuffer readHeader(FileChannel channel) throws IOException {
+        var length = (int) Math.min(HEADER_SIZE, channel.size());
+        if (length < OLD_HEADER_SIZE)
+            return null;
+        var header = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0)
+                return null;
+        }
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Memory maps an index file.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    static MappedIndexFile open(File file) throws IOException {
+        // the mappings remain valid once the channel is closed
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            var indexFile = new MappedIndexFile(file, channel);
+            logger.info("Mapped index file " + file + " containing " + indexFile.nRows + " rows");
+            return indexFile;
+        }
+    }
+
+    /**
+     * @param file
+     * @return true if the file starts with the mapped index magic number.
+     * Older indexes were saved using Java serialization.
+     */
+    static boolean isMappedIndexFile(File file) {
+        try (var in = new RandomAccessFile(file, "r")) {
+            if (in.length() < OLD_HEADER_SIZE)
+                return false;
+            return Integer.reverseBytes(in.readInt()) == MAGIC;
+        } catch (IOException e) {
+            logger.warn("Unable to read index file " + file, e);
+            return false;
+        }
+    }
+
+    /**
+     * Reads the file id from the header of an index file.
+     *
+     * @param file
+     * @return the file id, or zero if the file is not a mapped index file or
+     * is from before version 5.
+     */
+    static long readFileId(File file) {
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            var header = readHeader(channel);
+            if (header == null || header.getInt() != MAGIC)
+                return 0L;
+            var version = header.getInt();
+            if (version < 5 || version > VERSION || header.limit() < headerSize(version))
+                return 0L;
+            // the file id follows the magic number, version, four ints and
+            // the section offsets and lengths
+            return header.getLong(6 * Integer.BYTES + Section.nSections(version) * 2 * Long.BYTES);
+        } catch (IOException e) {
+            logger.warn("Unable to read index file " + file, e);
+            return 0L;
+        }
+    }
+
+    /**
+     * Writes the live rows in a fingerprint store to an index file. The caller
+     * should prevent modification of the store while it is written.
+     *
+     * @param file
+     * @param store
+     * @throws IOException
+     */
+    static void write(File file, FingerprintStore store) throws IOException {
+        var size = store.size();
+        var live = new int[store.count()];
+        var nRows = 0;
+        var nExtendedTypes = store.nExtendedTypes();
+        for (var ordinal = 0; ordinal < size; ordinal++) {
+            if (store.isDeleted(ordinal))
+                continue;
+            live[nRows++] = ordinal;
+        }
+        assert nRows == live.length;
+
+        // counting sort of rows by bit count
+        var bucketStarts = new int[N_BUCKETS + 1];
+        for (var ordinal : live)
+            bucketStarts[store.popcount(ordinal) + 1]++;
+        for (var i = 1; i <= N_BUCKETS; i++)
+            bucketStarts[i] += bucketStarts[i - 1];
+        var positions = Arrays.copyOf(bucketStarts, N_BUCKETS);
+        var sorted = new int[nRows];
+        for (var ordinal : live)
+            sorted[positions[store.popcount(ordinal)]++] = ordinal;
+        live = sorted;
+
+        var offsets = new long[Section.values().length];
+        var lengths = new long[Section.values().length];
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            var out = new SectionWriter(channel);
+            out.skip(HEADER_SIZE);
+
+            out.startSection(Section.FINGERPRINTS, offsets);
+            var words = new long[FingerprintStore.FINGERPRINT_WORDS];
+            var bitCounts = new int[RDKitOps.PATTERN_FP_SIZE];
+            for (var ordinal : live) {
+                store.fingerprintWords(ordinal, words);
+                for (var w = 0; w < words.length; w++) {
+                    var word = words[w];
+                    out.putLong(word);
+                    while (word != 0L) {
+                        bitCounts[(w << 6) | Long.numberOfTrailingZeros(word)]++;
+                        word &= word - 1;
+                    }
+                }
+            }
+            out.endSection(Section.FINGERPRINTS, offsets, lengths);
+
+            out.startSection(Section.POPCOUNTS, offsets);
+            for (var ordinal : live)
+                out.putShort((short) store.popcount(ordinal));
+            out.endSection(Section.POPCOUNTS, offsets, lengths);
+
+            var rowIds = new byte[nRows][];
+            for (var i = 0; i < nRows; i++)
+                rowIds[i] = store.rowId(live[i]);
+            out.startSection(Section.ROWID_OFFSETS, offsets);
+            var rowIdOffset = 0;
+            out.putInt(rowIdOffset);
+            for (var rowId : rowIds) {
+                rowIdOffset += rowId.length;
+                out.putInt(rowIdOffset);
+            }
+            out.endSection(Section.ROWID_OFFSETS, offsets, lengths);
+
+            out.startSection(Section.ROWID_DATA, offsets);
+            for (var rowId : rowIds)
+                out.put(rowId);
+            out.endSection(Section.ROWID_DATA, offsets, lengths);
+
+            out.startSection(Section.SMILES_OFFSETS, offsets);
+            var smilesOffset = 0L;
+            out.putLong(smilesOffset);
+            for (var ordinal : live) {
+                smilesOffset += store.smiles(ordinal).getBytes(StandardCharsets.UTF_8).length;
+                out.putLong(smilesOffset);
+            }
+            out.endSection(Section.SMILES_OFFSETS, offsets, lengths);
+
+            out.startSection(Section.SMILES_DATA, offsets);
+            for (var ordinal : live)
+                out.put(store.smiles(ordinal).getBytes(StandardCharsets.UTF_8));
+            out.endSection(Section.SMILES_DATA, offsets, lengths);
+
+            var table = new int[FingerprintStore.tableSize(nRows)];
+            var mask = table.length - 1;
+            for (var i = 0; i < nRows; i++) {
+                var rowId = rowIds[i];
+                var slot = FingerprintStore.hashRowId(rowId, 0, rowId.length) & mask;
+                while (table[slot] != 0)
+                    slot = (slot + 1) & mask;
+                table[slot] = i + 1;
+            }
+            out.startSection(Section.ROWID_TABLE, offsets);
+            for (var entry : table)
+                out.putInt(entry);
+            out.endSection(Section.ROWID_TABLE, offsets, lengths);
+
+            // Morgan fingerprints are stored as sorted key and count arrays
+            var fingerprintOffsets = new long[nExtendedTypes][nRows + 1];
+            out.startSection(Section.EXTENDED_KEYS, offsets);
+            var nEntries = 0L;
+            for (var type = 0; type < nExtendedTypes; type++) {
+                for (var i = 0; i < nRows; i++) {
+                    fingerprintOffsets[type][i] = nEntries;
+                    var fp = store.extendedFingerprint(live[i], type);
+                    if (fp == null)
+                        continue;
+                    for (var key : fp.getKeys())
+                        out.putInt(key);
+                    nEntries += fp.size();
+                }
+                fingerprintOffsets[type][nRows] = nEntries;
+            }
+            out.endSection(Section.EXTENDED_KEYS, offsets, lengths);
+
+            out.startSection(Section.EXTENDED_COUNTS, offsets);
+            for (var type = 0; type < nExtendedTypes; type++) {
+                for (var i = 0; i < nRows; i++) {
+                    var fp = store.extendedFingerprint(live[i], type);
+                    if (fp == null)
+                        continue;
+                    for (var count : fp.getCounts())
+                        out.putInt(count);
+                }
+            }
+            out.endSection(Section.EXTENDED_COUNTS, offsets, lengths);
+
+            out.startSection(Section.EXTENDED_OFFSETS, offsets);
+            for (var typeOffsets : fingerprintOffsets)
+                for (var offset : typeOffsets)
+                    out.putLong(offset);
+            out.endSection(Section.EXTENDED_OFFSETS, offsets, lengths);
+
+            out.startSection(Section.POPCOUNT_BUCKETS, offsets);
+            for (var start : bucketStarts)
+                out.putInt(start);
+            out.endSection(Section.POPCOUNT_BUCKETS, offsets, lengths);
+
+            // exact match multimap of smiles hash to ordinal
+            var smilesKeys = new long[table.length];
+            var smilesOrdinals = new int[table.length];
+            for (var i = 0; i < nRows; i++) {
+                var hash = FingerprintStore.smilesHash(store.smiles(live[i]));
+                var slot = (int) hash & mask;
+                while (smilesOrdinals[slot] != 0)
+                    slot = (slot + 1) & mask;
+                smilesKeys[slot] = hash;
+                smilesOrdinals[slot] = i + 1;
+            }
+            out.startSection(Section.SMILES_HASH_KEYS, offsets);
+            for (var key : smilesKeys)
+                out.putLong(key);
+            out.endSection(Section.SMILES_HASH_KEYS, offsets, lengths);
+            out.startSection(Section.SMILES_HASH_ORDINALS, offsets);
+            for (var entry : smilesOrdinals)
+                out.putInt(entry);
+            out.endSection(Section.SMILES_HASH_ORDINALS, offsets, lengths);
+
+            out.startSection(Section.PICKLES, offsets);
+            if (store.hasPickles()) {
+                var pickleOffset = 0L;
+                out.putLong(pickleOffset);
+                for (var ordinal : live) {
+                    var pickle = store.pickle(ordinal);
+                    pickleOffset += pickle == null ? 0 : pickle.length;
+                    out.putLong(pickleOffset);
+                }
+                for (var ordinal : live) {
+                    var pickle = store.pickle(ordinal);
+                    if (pickle != null)
+                        out.put(pickle);
+                }
+            }
+            out.endSection(Section.PICKLES, offsets, lengths);
+
+            out.startSection(Section.BIT_COUNTS, offsets);
+            for (var count : bitCounts)
+                out.putInt(count);
+            out.endSection(Section.BIT_COUNTS, offsets, lengths);
+            out.flush();
+
+            var header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(nRows)
+                    .putInt(FingerprintStore.FINGERPRINT_WORDS).putInt(nExtendedTypes).putInt(table.length);
+            for (var section : Section.values())
+                header.putLong(offsets[section.ordinal()]).putLong(lengths[section.ordinal()]);
+            header.putLong(newFileId());
+            header.rewind();
+            var position = 0L;
+            while (header.hasRemaining())
+                position += channel.write(header, position);
+            channel.force(true);
+        }
+        logger.info("Wrote " + nRows + " rows to index file " + file);
+    }
+
+    private static long newFileId() {
+        var uuid = UUID.randomUUID();
+        var fileId = uuid.getMostSignificantBits() ^ uuid.getLeastSignificantBits();
+        // zero marks a file without an id
+        return fileId == 0L ? 1L : fileId;
+    }
+
+    /**
+     * Buffered sequential writer for the file sections.
+     */
+    private static class SectionWriter {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        private long position;
+
+        private SectionWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        private void ensure(int nBytes) throws IOException {
+            if (buffer.remaining() < nBytes)
+                flush();
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer, position - buffer.remaining());
+            buffer.clear();
+        }
+
+        void skip(int nBytes) throws IOException {
+            for (var i = 0; i < nBytes; i++)
+                put((byte) 0);
+        }
+
+        void startSection(Section section, long[] offsets) throws IOException {
+            // align sections so that no primitive straddles a mapped chunk
+            while (position % Long.BYTES != 0)
+                put((byte) 0);
+            offsets[section.ordinal()] = position;
+        }
+
+        void endSection(Section section, long[] offsets, long[] lengths) {
+            lengths[section.ordinal()] = position - offsets[section.ordinal()];
+        }
+
+        void putLong(long value) throws IOException {
+            ensure(Long.BYTES);
+            buffer.putLong(value);
+            position += Long.BYTES;
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(Integer.BYTES);
+            buffer.putInt(value);
+            position += Integer.BYTES;
+        }
+
+        void putShort(short value) throws IOException {
+            ensure(Short.BYTES);
+            buffer.putShort(value);
+            position += Short.BYTES;
+        }
+
+        void put(byte value) throws IOException {
+            ensure(1);
+            buffer.put(value);
+            position++;
+        }
+
+        void put(byte[] values) throws IOException {
+            for (var value : values)
+                put(value);
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the random id written in the file header, or zero for files
+     * before version 5
+     */
+    long getFileId() {
+        return fileId;
+    }
+
+    int size() {
+        return nRows;
+    }
+
+    /**
+     * Counts the rows with each pattern fingerprint bit set. The counts are
+     * stored in files from version 6, older files are scanned.
+     *
+     * @return a new array of counts
+     */
+    int[] bitCounts() {
+        if (bitCounts != null)
+            return bitCounts.clone();
+        logger.info("Counting fingerprint bits in index file " + file);
+        var counts = new int[RDKitOps.PATTERN_FP_SIZE];
+        var words = new long[FingerprintStore.FINGERPRINT_WORDS];
+        for (var ordinal = 0; ordinal < nRows; ordinal++) {
+            fingerprintWords(ordinal, words);
+            for (var w = 0; w < words.length; w++) {
+                var word = words[w];
+                while (word != 0L) {
+                    counts[(w << 6) | Long.numberOfTrailingZeros(word)]++;
+                    word &= word - 1;
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * @param nBits
+     * @return the first ordinal in the file with at least this many bits set.
+     */
+    int bucketStart(int nBits) {
+        if (bucketStarts == null)
+            return nBits <= 0 ? 0 : nRows;
+        if (nBits <= 0)
+            return 0;
+        return nBits > N_BUCKETS ? nRows : bucketStarts[nBits];
+    }
+
+    /**
+     * @return true if the rows in the file are sorted by bit count
+     */
+    boolean isSorted() {
+        return bucketStarts != null;
+    }
+
+    int popcount(int ordinal) {
+        return popcounts.getShort(((long) ordinal) * Short.BYTES);
+    }
+
+    int commonBits(int ordinal, long[] query) {
+        var start = ((long) ordinal) * FINGERPRINT_BYTES;
+        var nCommon = 0;
+        for (var w = 0; w < FingerprintStore.FINGERPRINT_WORDS; w++) {
+            nCommon += Long.bitCount(fingerprints.getLong(start + w * Long.BYTES) & query[w]);
+        }
+        return nCommon;
+    }
+
+    boolean containsAll(int ordinal, long[] query, int[] queryWords) {
+        var start = ((long) ordinal) * FINGERPRINT_BYTES;
+        for (var w : queryWords) {
+            var q = query[w];
+            if ((fingerprints.getLong(start + w * Long.BYTES) & q) != q)
+                return false;
+        }
+        return true;
+    }
+
+    void fingerprintWords(int ordinal, long[] words) {
+        fingerprintWords(ordinal, words, 0);
+    }
+
+    void fingerprintWords(int ordinal, long[] words, int offset) {
+        var start = ((long) ordinal) * FINGERPRINT_BYTES;
+        for (var w = 0; w < FingerprintStore.FINGERPRINT_WORDS; w++)
+            words[offset + w] = fingerprints.getLong(start + w * Long.BYTES);
+    }
+
+    BitSet fingerprint(int ordinal) {
+        var words = new long[FingerprintStore.FINGERPRINT_WORDS];
+        fingerprintWords(ordinal, words);
+        return BitSet.valueOf(words);
+    }
+
+    byte[] rowId(int ordinal) {
+        var start = rowIdOffsets.getInt(((long) ordinal) * Integer.BYTES);
+        var end = rowIdOffsets.getInt(((long) ordinal + 1) * Integer.BYTES);
+        var rowId = new byte[end - start];
+        rowIdData.get(start, rowId);
+        return rowId;
+    }
+
+    String smiles(int ordinal) {
+        var start = smilesOffsets.getLong(((long) ordinal) * Long.BYTES);
+        var end = smilesOffsets.getLong(((long) ordinal + 1) * Long.BYTES);
+        var bytes = new byte[(int) (end - start)];
+        smilesData.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    int nExtendedTypes() {
+        return nExtendedTypes;
+    }
+
+    boolean hasPickles() {
+        return pickles != null;
+    }
+
+    /**
+     * @param ordinal
+     * @return the binary molecule pickle for a row, or null if the row has no
+     * pickle.
+     */
+    byte[] pickle(int ordinal) {
+        if (pickles == null)
+            return null;
+        var start = pickles.getLong(((long) ordinal) * Long.BYTES);
+        var end = pickles.getLong(((long) ordinal + 1) * Long.BYTES);
+        if (start == end)
+            return null;
+        var pickle = new byte[(int) (end - start)];
+        pickles.get(pickleDataStart + start, pickle);
+        return pickle;
+    }
+
+    /**
+     * @param ordinal
+     * @param type
+     * @return the Morgan fingerprint for a row, or null if the row has none of
+     * this type.
+     */
+    MorganFingerprint extendedFingerprint(int ordinal, int type) {
+        if (type >= nExtendedTypes)
+            return null;
+        var offsetIndex = ((long) type) * (nRows + 1) + ordinal;
+        var start = extendedOffsets.getLong(offsetIndex * Long.BYTES);
+        var end = extendedOffsets.getLong((offsetIndex + 1) * Long.BYTES);
+        if (start == end)
+            return null;
+        var n = (int) (end - start);
+        var keys = new int[n];
+        var counts = new int[n];
+        for (var e = 0; e < n; e++) {
+            keys[e] = extendedKeys.getInt((start + e) * Integer.BYTES);
+            counts[e] = extendedCounts.getInt((start + e) * Integer.BYTES);
+        }
+        return new MorganFingerprint(keys, counts);
+    }
+
+    /**
+     * Merges a query Morgan fingerprint with a row in the mapped key and count
+     * sections.
+     *
+     * @param ordinal
+     * @param type
+     * @param queryKeys
+     * @param queryCounts
+     * @return the packed common and total counts, or -1 if the row has no
+     * fingerprint of this type.
+     * @see MorganFingerprint#andSumAndTotal(int[], int[], int[], int[], int, int)
+     */
+    long extendedAndSumAndTotal(int ordinal, int type, int[] queryKeys, int[] queryCounts) {
+        if (type >= nExtendedTypes)
+            return -1L;
+        var offsetIndex = ((long) type) * (nRows + 1) + ordinal;
+        var start = extendedOffsets.getLong(offsetIndex * Long.BYTES);
+        var end = extendedOffsets.getLong((offsetIndex + 1) * Long.BYTES);
+        if (start == end)
+            return -1L;
+        var i = 0;
+        var j = start;
+        var andSum = 0L;
+        var total = 0L;
+        var nQuery = queryKeys.length;
+        while (i < nQuery && j < end) {
+            var key = extendedKeys.getInt(j * Integer.BYTES);
+            var cmp = Integer.compareUnsigned(queryKeys[i], key);
+            if (cmp < 0) {
+                i++;
+            } else if (cmp > 0) {
+                total += Math.abs(extendedCounts.getInt(j * Integer.BYTES));
+                j++;
+            } else {
+                var targetCount = Math.abs(extendedCounts.getInt(j * Integer.BYTES));
+                andSum += Math.min(Math.abs(queryCounts[i]), targetCount);
+                total += targetCount;
+                i++;
+                j++;
+            }
+        }
+        for (; j < end; j++)
+            total += Math.abs(extendedCounts.getInt(j * Integer.BYTES));
+        return MorganFingerprint.andSumAndTotal(andSum, total);
+    }
+
+    /**
+     * Finds rows by canonical smiles. Files written before the smiles hash
+     * table was added are scanned.
+     *
+     * @param hash        smiles hash
+     * @param querySmiles
+     * @return the ordinals of rows in the file with the smiles
+     */
+    int[] findSmiles(long hash, String querySmiles) {
+        if (smilesHashKeys == null) {
+            return IntStream.range(0, nRows).filter(o -> querySmiles.equals(smiles(o))).toArray();
+        }
+        var ordinals = IntStream.builder();
+        var mask = smilesTableSize - 1;
+        var slot = (int) hash & mask;
+        while (true) {
+            var entry = smilesHashOrdinals.getInt(((long) slot) * Integer.BYTES);
+            if (entry == 0)
+                break;
+            if (smilesHashKeys.getLong(((long) slot) * Long.BYTES) == hash
+                    && querySmiles.equals(smiles(entry - 1)))
+                ordinals.add(entry - 1);
+            slot = (slot + 1) & mask;
+        }
+        return ordinals.build().toArray();
+    }
+
+    /**
+     * @param rowId
+     * @return the ordinal of a rowid in the file or -1 if it is not present.
+     */
+    int ordinalOf(byte[] rowId) {
+        var mask = rowIdTableSize - 1;
+        var slot = FingerprintStore.hashRowId(rowId, 0, rowId.length) & mask;
+        while (true) {
+            var entry = rowIdTable.getInt(((long) slot) * Integer.BYTES);
+            if (entry == 0)
+                return -1;
+            if (Arrays.equals(rowId(entry - 1), rowId))
+                return entry - 1;
+            slot = (slot + 1) & mask;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.cairn.rmi.index;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * A compressed bitmap of row ordinals in the style of Roaring bitmaps.
+ * <p>
+ * Ordinals are split into blocks of 65536 by their high 16 bits. Each block
+ * present in the bitmap has a container holding the low 16 bits: a sorted
+ * array when the block is sparse or a 1024 word bitmap when it holds more
+ * than 4096 rows.
+ * <p>
+ * Bitmaps are built by adding ordinals in increasing order and are then
+ * read only, so they may be shared between searching threads.
+ *
+ * @author Gareth Jones
+ */
+class RowBitmap {
+    private static final int MAX_ARRAY_SIZE = 4096;
+    private static final int BITMAP_WORDS = 1024;
+
+    private int nContainers;
+    private char[] keys = new char[4];
+    private int[] cardinalities = new int[4];
+    // for each container one of these is set
+    private char[][] arrays = new char[4][];
+    private long[][] bitmaps = new long[4][];
+    private int cardinality;
+
+    /**
+     * Adds an ordinal, which must be larger than any already in the bitmap.
+     *
+     * @param ordinal
+     */
+    void add(int ordinal) {
+        var key = (char) (ordinal >>> 16);
+        var low = (char) ordinal;
+        if (nContainers == 0 || keys[nContainers - 1] != key) {
+            if (nContainers == keys.length) {
+                var capacity = nContainers * 2;
+                keys = Arrays.copyOf(keys, capacity);
+                cardinalities = Arrays.copyOf(cardinalities, capacity);
+                arrays = Arrays.copyOf(arrays, capacity);
+                bitmaps = Arrays.copyOf(bitmaps, capacity);
+            }
+            keys[nContainers] = key;
+            arrays[nContainers] = new char[16];
+            nContainers++;
+        }
+        var c = nContainers - 1;
+        var n = cardinalities[c];
+        if (arrays[c] != null) {
+            if (n == MAX_ARRAY_SIZE) {
+                // convert to a bitmap container
+                var words = new long[BITMAP_WORDS];
+                for (var i = 0; i < n; i++) {
+                    var v = arrays[c][i];
+                    words[v >>> 6] |= 1L << v;
+                }
+                bitmaps[c] = words;
+                arrays[c] = null;
+            } else {
+                if (n == arrays[c].length)
+                    arrays[c] = Arrays.copyOf(arrays[c], Math.min(n * 2, MAX_ARRAY_SIZE));
+                arrays[c][n] = low;
+            }
+        }
+        if (bitmaps[c] != null)
+            bitmaps[c][low >>> 6] |= 1L << low;
+        cardinalities[c] = n + 1;
+        cardinality++;
+    }
+
+    /**
+     * Releases any spare capacity once the bitmap is complete.
+     */
+    void trim() {
+        keys = Arrays.copyOf(keys, nContainers);
+        cardinalities = Arrays.copyOf(cardinalities, nContainers);
+        arrays = Arrays.copyOf(arrays, nContainers);
+        bitmaps = Arrays.copyOf(bitmaps, nContainers);
+        for (var c = 0; c < nContainers; c++) {
+            if (arrays[c] != null)
+                arrays[c] = Arrays.copyOf(arrays[c], cardinalities[c]);
+        }
+    }
+
+    int getCardinality() {
+        return cardinality;
+    }
+
+    /**
+     * @return approximate size of the bitmap in bytes
+     */
+    long sizeInBytes() {
+        var size = (long) nContainers * 8;
+        for (var c = 0; c < nContainers; c++)
+            size += arrays[c] != null ? arrays[c].length * 2L : BITMAP_WORDS * 8L;
+        return size;
+    }
+
+    private int findContainer(char key) {
+        return Arrays.binarySearch(keys, 0, nContainers, key);
+    }
+
+    private boolean containerContains(int c, char low) {
+        if (arrays[c] != null)
+            return Arrays.binarySearch(arrays[c], 0, cardinalities[c], low) >= 0;
+        return (bitmaps[c][low >>> 6] & (1L << low)) != 0;
+    }
+
+    /**
+     * Visits the ordinals present in all the bitmaps, until the visitor
+     * returns true. The bitmaps are intersected starting with the rarest, so
+     * each block is abandoned as soon as it is empty.
+     *
+     * @param bitmaps
+     * @param visitor
+     * @return true if the visitor stopped
+     */
+    static boolean visitIntersection(RowBitmap[] bitmaps, IntPredicate visitor) {
+        if (bitmaps.length == 0)
+            throw new IllegalArgumentException("No bitmaps to intersect");
+        var sorted = bitmaps.clone();
+        Arrays.sort(sorted, (a, b) -> Integer.compare(a.cardinality, b.cardinality));
+        var rarest = sorted[0];
+        var others = new int[sorted.length - 1];
+        var candidates = new int[MAX_ARRAY_SIZE];
+        var words = new long[BITMAP_WORDS];
+
+        for (var c = 0; c < rarest.nContainers; c++) {
+            var key = rarest.keys[c];
+            var high = ((int) key) << 16;
+            // locate this block in the other bitmaps
+            var present = true;
+            for (var i = 1; i < sorted.length && present; i++) {
+                others[i - 1] = sorted[i].findContainer(key);
+                present = others[i - 1] >= 0;
+            }
+            if (!present)
+                continue;
+
+            if (rarest.arrays[c] != null) {
+                // sparse block: filter the candidates by membership
+                var n = rarest.cardinalities[c];
+                for (var j = 0; j < n; j++)
+                    candidates[j] = rarest.arrays[c][j];
+                for (var i = 1; i < sorted.length && n > 0; i++) {
+                    var other = sorted[i];
+                    var oc = others[i - 1];
+                    var m = 0;
+                    for (var j = 0; j < n; j++) {
+                        if (other.containerContains(oc, (char) candidates[j]))
+                            candidates[m++] = candidates[j];
+                    }
+                    n = m;
+                }
+                for (var j = 0; j < n; j++) {
+                    if (visitor.test(high | candidates[j]))
+                        return true;
+                }
+            } else {
+                // dense block: and the words together
+                System.arraycopy(rarest.bitmaps[c], 0, words, 0, BITMAP_WORDS);
+                var empty = false;
+                for (var i = 1; i < sorted.length && !empty; i++) {
+                    var other = sorted[i];
+                    var oc = others[i - 1];
+                    var nonZero = 0L;
+                    if (other.bitmaps[oc] != null) {
+                        var otherWords = other.bitmaps[oc];
+                        for (var w = 0; w < BITMAP_WORDS; w++) {
+                            words[w] &= otherWords[w];
+                            nonZero |= words[w];
+                        }
+                    } else {
+                        var array = other.arrays[oc];
+                        var n = other.cardinalities[oc];
+                        // keep only the bits that are also in the array
+                        var pos = 0;
+                        for (var w = 0; w < BITMAP_WORDS; w++) {
+                            var mask = 0L;
+                            while (pos < n && (array[pos] >>> 6) == w) {
+                                mask |= 1L << array[pos];
+                                pos++;
+                            }
+                            words[w] &= mask;
+                            nonZero |= words[w];
+                        }
+                    }
+                    empty = nonZero == 0L;
+                }
+                if (empty)
+                    continue;
+                for (var w = 0; w < BITMAP_WORDS; w++) {
+                    var word = words[w];
+                    while (word != 0L) {
+                        var bit = Long.numberOfTrailingZeros(word);
+                        if (visitor.test(high | (w << 6) | bit))
+                            return true;
+                        word &= word - 1;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+}
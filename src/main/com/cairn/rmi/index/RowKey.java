@@ -23,7 +23,7 @@ public class RowKey implements Serializable {
 	 * 
 	 * @param rowId
 	 */
-    private RowKey(byte[] rowId) {
+    public RowKey(byte[] rowId) {
 		this.rowId = rowId;
 	}
 
@@ -0,0 +1,235 @@
+package com.cairn.rmi.index;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.log4j.Logger;
+
+import com.cairn.rmi.server.TaskJobResults;
+
+/**
+ * A bounded cache of table index search results.
+ * <p>
+ * Results are keyed by the index, the search operation and its parameters
+ * and the change version of the index, which is bumped whenever the index is
+ * modified, so a cached result is never returned for an index that has
+ * changed. Entries are weighted by their approximate size in memory and the
+ * least recently used entries are evicted once the cache is full.
+ *
+ * @author Gareth Jones
+ */
+public class SearchResultCache {
+    private static final Logger logger = Logger.getLogger(SearchResultCache.class);
+
+    // approximate memory overheads in bytes
+    private static final int HIT_OVERHEAD = 48;
+    private static final int ENTRY_OVERHEAD = 256;
+    // no single result may use more than this fraction of the cache
+    private static final int MAX_ENTRY_FRACTION = 8;
+
+    private static volatile boolean useSearchResultCache = false;
+    private static volatile long maxBytes = 64L * 1024L * 1024L;
+    private static volatile SearchResultCache searchResultCache;
+
+    private final long capacity;
+    private final LinkedHashMap<Key, Results> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+    private long nHits, nMisses, nPuts, nEvictions;
+
+    /**
+     * The key for a search result
+     */
+    static final class Key {
+        private final String indexName;
+        private final String operation;
+        private final String query;
+        private final double cutoff;
+        private final int maxHits;
+        private final long version;
+
+        /**
+         * @param indexName
+         * @param operation search operation, including any parameters not
+         *                  otherwise in the key
+         * @param query     normalized query
+         * @param cutoff
+         * @param maxHits
+         * @param version   index change version
+         */
+        Key(String indexName, String operation, String query, double cutoff, int maxHits,
+            long version) {
+            this.indexName = indexName;
+            this.operation = operation;
+            this.query = query;
+            this.cutoff = cutoff;
+            this.maxHits = maxHits;
+            this.version = version;
+        }
+
+        long getVersion() {
+            return version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            var key = (Key) o;
+            return Double.compare(key.cutoff, cutoff) == 0 && maxHits == key.maxHits
+                    && version == key.version && indexName.equals(key.indexName)
+                    && operation.equals(key.operation) && query.equals(key.query);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(indexName, operation, query, cutoff, maxHits, version);
+        }
+
+        @Override
+        public String toString() {
+            return indexName + " " + operation + " " + query + " cutoff " + cutoff + " maxHits "
+                    + maxHits + " version " + version;
+        }
+    }
+
+    /**
+     * A cached search result
+     */
+    private static final class Results {
+        private final byte[][] hits;
+        private final double[] scores;
+        private final long weight;
+
+        private Results(byte[][] hits, double[] scores, long weight) {
+            this.hits = hits;
+            this.scores = scores;
+            this.weight = weight;
+        }
+    }
+
+    private SearchResultCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Gets the singleton cache object
+     *
+     * @return
+     */
+    static SearchResultCache getInstance() {
+        if (searchResultCache == null) {
+            synchronized (SearchResultCache.class) {
+                if (searchResultCache == null)
+                    searchResultCache = new SearchResultCache(maxBytes);
+            }
+        }
+        return searchResultCache;
+    }
+
+    /**
+     * @return the largest number of hits that may be cached for a search
+     */
+    int maxResultHits() {
+        return (int) Math.min(Integer.MAX_VALUE, capacity / MAX_ENTRY_FRACTION / HIT_OVERHEAD);
+    }
+
+    /**
+     * Posts a cached result to the job results. The job results are not
+     * finished.
+     *
+     * @param key
+     * @param taskJobResults
+     * @return false if there is no cached result for the key
+     */
+    boolean addHits(Key key, TaskJobResults taskJobResults) {
+        Results results;
+        synchronized (this) {
+            results = entries.get(key);
+            if (results == null) {
+                nMisses++;
+                return false;
+            }
+            nHits++;
+        }
+        for (var i = 0; i < results.hits.length; i++)
+            taskJobResults.addHit(results.hits[i], results.scores == null ? null : results.scores[i]);
+        logger.debug("Returned " + results.hits.length + " cached hits for " + key);
+        return true;
+    }
+
+    /**
+     * Caches the hits recorded by a finished search.
+     *
+     * @param key
+     * @param taskJobResults
+     */
+    void put(Key key, TaskJobResults taskJobResults) {
+        List<byte[]> recordedHits = taskJobResults.getRecordedHits();
+        List<Double> recordedScores = taskJobResults.getRecordedScores();
+        if (recordedHits == null)
+            return;
+
+        var nResultHits = recordedHits.size();
+        var hits = recordedHits.toArray(new byte[nResultHits][]);
+        double[] scores = null;
+        if (taskJobResults.isHasScores())
+            scores = recordedScores.stream().mapToDouble(d -> d).toArray();
+        long resultWeight = ENTRY_OVERHEAD;
+        for (var hit : hits)
+            resultWeight += HIT_OVERHEAD + hit.length;
+        if (resultWeight > capacity / MAX_ENTRY_FRACTION)
+            return;
+
+        synchronized (this) {
+            var previous = entries.put(key, new Results(hits, scores, resultWeight));
+            if (previous != null)
+                weight -= previous.weight;
+            weight += resultWeight;
+            nPuts++;
+            Iterator<Map.Entry<Key, Results>> iter = entries.entrySet().iterator();
+            while (weight > capacity && iter.hasNext()) {
+                weight -= iter.next().getValue().weight;
+                iter.remove();
+                nEvictions++;
+            }
+        }
+    }
+
+    /**
+     * Logs cache statistics
+     */
+    synchronized void info() {
+        logger.debug("Search result cache: entries " + entries.size() + " size " + weight / 1024
+                + " KB of " + capacity / 1024 + " KB, hits " + nHits + " misses " + nMisses + " puts "
+                + nPuts + " evictions " + nEvictions);
+    }
+
+    /**
+     * @return the useSearchResultCache
+     */
+    public static boolean isUseSearchResultCache() {
+        return useSearchResultCache;
+    }
+
+    /**
+     * @param useSearchResultCache the useSearchResultCache to set
+     */
+    public static void setUseSearchResultCache(boolean useSearchResultCache) {
+        SearchResultCache.useSearchResultCache = useSearchResultCache;
+    }
+
+    /**
+     * Sets the cache size. This should be called before the cache is first
+     * used.
+     *
+     * @param sizeMb the cache size in MB
+     */
+    public static void setCacheSizeMb(int sizeMb) {
+        SearchResultCache.maxBytes = ((long) sizeMb) * 1024L * 1024L;
+    }
+}
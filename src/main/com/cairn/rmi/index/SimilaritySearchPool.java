@@ -0,0 +1,348 @@
+package com.cairn.rmi.index;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.cairn.rmi.server.TaskJobResults;
+
+/**
+ * Uses a fork join pool to split a similarity search scan over the available
+ * cores.
+ * <p>
+ * The ordinals to be scanned are divided into ranges. Each range is scored by
+ * a pool thread into its own hit buffer, so few locks are taken in the scan.
+ * The buffer is added to the job results each time the hit count and
+ * cancellation are checked, so that hits reach the client as the range is
+ * scored. The pool is shared between all currently running similarity
+ * searches.
+ *
+ * @author gjones
+ */
+public class SimilaritySearchPool {
+    private static final Logger logger = Logger.getLogger(SimilaritySearchPool.class);
+
+    // smallest number of rows scored by a single pool task
+    private static final int MIN_RANGE_SIZE = 4096;
+    // ranges per thread, so that threads that finish early can steal work
+    private static final int RANGES_PER_THREAD = 8;
+    // number of rows scored between checks on the hit count and cancellation
+    private static final int CHECK_INTERVAL = 256;
+
+    private static volatile int nThreads = Runtime.getRuntime().availableProcessors();
+    private static volatile boolean useSimilaritySearchPool = false;
+
+    private static volatile ForkJoinPool pool;
+
+    /**
+     * Scores a row against the query.
+     */
+    @FunctionalInterface
+    interface RowScorer {
+        /**
+         * @param ordinal
+         * @return the similarity of the row to the query, or a negative value
+         * if the row is deleted or cannot be a hit.
+         */
+        double score(int ordinal);
+    }
+
+    /**
+     * Search state shared between the pool tasks
+     */
+    private static class SearchInfo {
+        private final FingerprintStore store;
+        private final RowScorer scorer;
+        private final double cutoff;
+        private final int maxHits;
+        private final TaskJobResults taskJobResults;
+        private final AtomicInteger nHits = new AtomicInteger();
+        private final AtomicInteger count = new AtomicInteger();
+
+        private SearchInfo(FingerprintStore store, RowScorer scorer, double cutoff, int maxHits,
+                           TaskJobResults taskJobResults) {
+            this.store = store;
+            this.scorer = scorer;
+            this.cutoff = cutoff;
+            this.maxHits = maxHits;
+            this.taskJobResults = taskJobResults;
+        }
+
+        private boolean maxHitsObtained() {
+            if (maxHits <= 0)
+                return false;
+            return nHits.get() >= maxHits;
+        }
+
+        /**
+         * @return true if the maximum number of hits has been obtained or the
+         * job has been cancelled
+         */
+        private boolean isStopped() {
+            return maxHitsObtained() || taskJobResults.isStopped();
+        }
+    }
+
+    /**
+     * Scores a list of ordinal ranges, splitting the list until a single range
+     * remains.
+     */
+    private static class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final SearchInfo info;
+        private final int[] ranges;
+        private final int lo;
+        private final int hi;
+
+        private RangeTask(SearchInfo info, int[] ranges, int lo, int hi) {
+            this.info = info;
+            this.ranges = ranges;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > 1) {
+                var mid = (lo + hi) >>> 1;
+                invokeAll(new RangeTask(info, ranges, lo, mid), new RangeTask(info, ranges, mid, hi));
+                return;
+            }
+            scoreOrdinals(info, null, ranges[2 * lo], ranges[2 * lo + 1]);
+        }
+    }
+
+    /**
+     * A search of ordinals that are supplied in batches, for example from a
+     * SQL filter. Each batch is scored in the pool while the caller fetches
+     * the next.
+     */
+    static class OrdinalSearch {
+        // batches that may be waiting or running before the caller blocks
+        private static final int MAX_PENDING_BATCHES_PER_THREAD = 2;
+
+        private final SearchInfo info;
+        private final ArrayDeque<ForkJoinTask<?>> pending = new ArrayDeque<>();
+
+        private OrdinalSearch(SearchInfo info) {
+            this.info = info;
+        }
+
+        /**
+         * Submits a batch of ordinals to the pool. Blocks while too many
+         * batches are outstanding.
+         *
+         * @param ordinals the batch, which must not be changed by the caller
+         *                 afterwards.
+         * @param n        number of ordinals in the batch
+         * @return false if the maximum number of hits has been obtained or the
+         * job has been cancelled
+         */
+        boolean submit(int[] ordinals, int n) {
+            while (pending.size() >= MAX_PENDING_BATCHES_PER_THREAD * nThreads)
+                pending.poll().join();
+            if (info.isStopped())
+                return false;
+            pending.add(getPool().submit(() -> scoreOrdinals(info, ordinals, 0, n)));
+            return true;
+        }
+
+        /**
+         * Waits for all batches to be scored. The results are not finished.
+         *
+         * @return the number of hits, and the number of rows scored.
+         */
+        int[] finish() {
+            while (!pending.isEmpty())
+                pending.poll().join();
+            return new int[]{info.nHits.get(), info.count.get()};
+        }
+    }
+
+    private SimilaritySearchPool() {
+    }
+
+    private static ForkJoinPool getPool() {
+        if (!useSimilaritySearchPool)
+            throw new IllegalStateException("Similarity search pool is not enabled!");
+        if (pool == null) {
+            synchronized (SimilaritySearchPool.class) {
+                if (pool == null) {
+                    logger.info("Creating similarity search pool with " + nThreads + " threads");
+                    pool = new ForkJoinPool(nThreads);
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * @param nRows number of rows to be scanned
+     * @return true if the scan should be performed in the pool
+     */
+    static boolean usePool(int nRows) {
+        return useSimilaritySearchPool && nThreads > 1 && nRows >= 2 * MIN_RANGE_SIZE;
+    }
+
+    /**
+     * @return true if searches of ordinals supplied in batches should be
+     * performed in the pool
+     */
+    static boolean useOrdinalSearch() {
+        return useSimilaritySearchPool && nThreads > 1;
+    }
+
+    /**
+     * Scans ordinal ranges in parallel. Rows that score at least the cutoff are
+     * added to the job results, up to the maximum number of hits. The results
+     * are not finished.
+     *
+     * @param store
+     * @param intervals      start and end pairs of the ordinals to scan
+     * @param scorer
+     * @param cutoff
+     * @param maxHits        maximum number of hits, or zero for no limit
+     * @param taskJobResults
+     * @return the number of hits, and the number of rows scored.
+     */
+    static int[] search(FingerprintStore store, int[] intervals, RowScorer scorer, double cutoff,
+                        int maxHits, TaskJobResults taskJobResults) {
+        var total = 0;
+        for (var i = 0; i < intervals.length; i += 2)
+            total += Math.max(0, intervals[i + 1] - intervals[i]);
+        var rangeSize = Math.max(MIN_RANGE_SIZE, total / (nThreads * RANGES_PER_THREAD) + 1);
+        var ranges = splitRanges(intervals, rangeSize);
+
+        var info = new SearchInfo(store, scorer, cutoff, maxHits, taskJobResults);
+        if (ranges.length > 0)
+            getPool().invoke(new RangeTask(info, ranges, 0, ranges.length / 2));
+        return new int[]{info.nHits.get(), info.count.get()};
+    }
+
+    /**
+     * Starts a search of ordinals supplied in batches.
+     *
+     * @param store
+     * @param scorer
+     * @param cutoff
+     * @param maxHits        maximum number of hits, or zero for no limit
+     * @param taskJobResults
+     * @return
+     */
+    static OrdinalSearch startOrdinalSearch(FingerprintStore store, RowScorer scorer, double cutoff,
+                                            int maxHits, TaskJobResults taskJobResults) {
+        return new OrdinalSearch(new SearchInfo(store, scorer, cutoff, maxHits, taskJobResults));
+    }
+
+    private static int[] splitRanges(int[] intervals, int rangeSize) {
+        List<int[]> ranges = new ArrayList<>();
+        for (var i = 0; i < intervals.length; i += 2) {
+            for (var start = intervals[i]; start < intervals[i + 1]; start += rangeSize)
+                ranges.add(new int[]{start, Math.min(intervals[i + 1], start + rangeSize)});
+        }
+        return ranges.stream().flatMapToInt(Arrays::stream).toArray();
+    }
+
+    /**
+     * Scores a range of ordinals into a local hit buffer. The hits in the
+     * buffer are added to the job results every CHECK_INTERVAL rows.
+     *
+     * @param info
+     * @param ordinals if set the range is of positions in this array, otherwise
+     *                 the range is of ordinals
+     * @param start
+     * @param end
+     */
+    private static void scoreOrdinals(SearchInfo info, int[] ordinals, int start, int end) {
+        if (info.isStopped())
+            return;
+        var hitOrdinals = new int[CHECK_INTERVAL];
+        var hitScores = new double[CHECK_INTERVAL];
+        var nBufferedHits = 0;
+        var nRangeHits = 0;
+        var position = start;
+        for (; position < end; position++) {
+            if ((position - start) % CHECK_INTERVAL == 0) {
+                if (nBufferedHits > 0) {
+                    addHits(info, hitOrdinals, hitScores, nBufferedHits);
+                    nBufferedHits = 0;
+                }
+                if (info.isStopped())
+                    break;
+            }
+            var ordinal = ordinals == null ? position : ordinals[position];
+            var score = info.scorer.score(ordinal);
+            if (score >= info.cutoff) {
+                hitOrdinals[nBufferedHits] = ordinal;
+                hitScores[nBufferedHits] = score;
+                nBufferedHits++;
+                nRangeHits++;
+            }
+        }
+        info.count.addAndGet(position - start);
+        if (nBufferedHits > 0)
+            addHits(info, hitOrdinals, hitScores, nBufferedHits);
+        logger.trace("Scored ordinals " + start + " to " + end + " got " + nRangeHits + " hits");
+    }
+
+    /**
+     * Adds buffered hits to the job results.
+     *
+     * @param info
+     * @param hitOrdinals
+     * @param hitScores
+     * @param nHits
+     */
+    private static void addHits(SearchInfo info, int[] hitOrdinals, double[] hitScores, int nHits) {
+        // hits are counted under the search lock so maxHits is never exceeded.
+        // The results monitor is not held, as adding a hit may block on a full
+        // job queue.
+        var taskJobResults = info.taskJobResults;
+        synchronized (info) {
+            for (var i = 0; i < nHits; i++) {
+                if (info.maxHitsObtained())
+                    break;
+                taskJobResults.addHit(info.store.rowId(hitOrdinals[i]), hitScores[i]);
+                info.nHits.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return the nThreads
+     */
+    public static int getnThreads() {
+        return nThreads;
+    }
+
+    /**
+     * @return the useSimilaritySearchPool
+     */
+    public static boolean isUseSimilaritySearchPool() {
+        return useSimilaritySearchPool;
+    }
+
+    /**
+     * @param nThreads the nThreads to set. Values less than one use all
+     *                 available processors.
+     */
+    public static void setnThreads(int nThreads) {
+        SimilaritySearchPool.nThreads = nThreads < 1 ? Runtime.getRuntime().availableProcessors()
+                : nThreads;
+    }
+
+    /**
+     * @param useSimilaritySearchPool the useSimilaritySearchPool to set
+     */
+    public static void setUseSimilaritySearchPool(boolean useSimilaritySearchPool) {
+        SimilaritySearchPool.useSimilaritySearchPool = useSimilaritySearchPool;
+    }
+}
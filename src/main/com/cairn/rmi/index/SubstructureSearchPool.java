@@ -1,11 +1,17 @@
 package com.cairn.rmi.index;
 
 import java.util.BitSet;
+import java.util.Optional;
+import java.util.function.IntPredicate;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import org.RDKit.ExplicitBitVect;
+import org.RDKit.GenericRDKitException;
+import org.RDKit.ROMol;
 import org.apache.log4j.Logger;
 
+import com.cairn.common.RDKitOps;
 import com.cairn.common.SubstructureMatcher;
 import com.cairn.rmi.server.TaskJobResults;
 
@@ -21,6 +27,9 @@ import com.cairn.rmi.server.TaskJobResults;
 public class SubstructureSearchPool extends TaskPool {
 	private static final Logger logger = Logger.getLogger(SubstructureSearchPool.class);
 
+	// atom by atom matches are slow, so use small batches to spread a search
+	private static final int MAX_BATCH_SIZE = 256;
+
 	private static volatile int nThreads = 1;
 	private static volatile boolean useSubstructureSearchPool = false;
 
@@ -32,13 +41,57 @@ public class SubstructureSearchPool extends TaskPool {
 		final RowKey rowKey;
 		final boolean trusted;
 		final BitSet targetFingerprint;
+		final byte[] pickle;
 
-		private SubSearchQueueItem(int jobNo, RowKey rowKey, String target, boolean trusted, BitSet targetFingerprint) {
+		private SubSearchQueueItem(int jobNo, RowKey rowKey, String target, boolean trusted,
+				BitSet targetFingerprint, byte[] pickle) {
 			super(jobNo);
 			this.rowKey = rowKey;
 			this.target = target;
 			this.trusted = trusted;
 			this.targetFingerprint = targetFingerprint;
+			this.pickle = pickle;
+		}
+	}
+
+	/**
+	 * Data structure to store a block of index rows to screen and match
+	 */
+	private static class OrdinalSubSearchQueueItem extends QueueItem {
+		final FingerprintStore store;
+		final int[] ordinals;
+		final int start;
+		final int end;
+		final IntPredicate screen;
+
+		private OrdinalSubSearchQueueItem(int jobNo, FingerprintStore store, int[] ordinals,
+				int start, int end, IntPredicate screen) {
+			super(jobNo);
+			this.store = store;
+			this.ordinals = ordinals;
+			this.start = start;
+			this.end = end;
+			this.screen = screen;
+		}
+	}
+
+	/**
+	 * Data structure to store requests from searches with many queries
+	 */
+	private static class BatchSubSearchQueueItem extends QueueItem {
+		final String target;
+		final RowKey rowKey;
+		final byte[] pickle;
+		// queries whose screens the target passed
+		final int[] queries;
+
+		private BatchSubSearchQueueItem(int jobNo, RowKey rowKey, String target, byte[] pickle,
+				int[] queries) {
+			super(jobNo);
+			this.rowKey = rowKey;
+			this.target = target;
+			this.pickle = pickle;
+			this.queries = queries;
 		}
 	}
 
@@ -65,10 +118,51 @@ public class SubstructureSearchPool extends TaskPool {
 			return nHits.get() >= maxHits;
 		}
 
+		@Override
+		protected boolean isCancelled() {
+			return taskJobResults.isStopped();
+		}
+
+	}
+
+	/**
+	 * A class to store information about each search with many queries
+	 */
+	private static class BatchSubSearchTaskJobInfo extends TaskJobInfo {
+		private final TaskJobResults taskJobResults;
+		private final SubstructureMatcher[] matchers;
+		private final int maxHits;
+		private final AtomicIntegerArray nHits;
+		private int nQueriesSearching;
+
+		private BatchSubSearchTaskJobInfo(TaskJobResults taskJobResults,
+				SubstructureMatcher[] matchers, int maxHits) {
+			super(taskJobResults.getJobNo());
+			this.taskJobResults = taskJobResults;
+			this.matchers = matchers;
+			this.maxHits = maxHits;
+			nHits = new AtomicIntegerArray(matchers.length);
+			for (SubstructureMatcher matcher : matchers) {
+				if (matcher != null)
+					nQueriesSearching++;
+			}
+		}
+
+		private boolean maxHitsObtained(int query) {
+			if (maxHits <= 0)
+				return false;
+			return nHits.get(query) >= maxHits;
+		}
+
+		@Override
+		protected boolean isCancelled() {
+			return taskJobResults.isStopped();
+		}
+
 	}
 
 	private SubstructureSearchPool() {
-		super("subSearchThreadPool", nThreads);
+		super("subSearchThreadPool", nThreads, MAX_BATCH_SIZE);
 		if (nThreads == 1)
 			throw new IllegalStateException(
 					"Pointless creation of substructure search thread pool with only one thread");
@@ -107,6 +201,58 @@ public class SubstructureSearchPool extends TaskPool {
 		super.startJob(taskJobInfo);
 	}
 
+	/**
+	 * Register a new search with many queries. The results must have query
+	 * indices.
+	 * 
+	 * @param taskJobResults
+	 * @param matchers
+	 *            a matcher for each query, or null for queries that are not
+	 *            searched
+	 * @param maxHits
+	 *            maximum number of hits for each query
+	 */
+	public void startBatchSearch(TaskJobResults taskJobResults,
+			SubstructureMatcher[] matchers, int maxHits) {
+		BatchSubSearchTaskJobInfo taskJobInfo = new BatchSubSearchTaskJobInfo(
+				taskJobResults, matchers, maxHits);
+		super.startJob(taskJobInfo);
+	}
+
+	/**
+	 * Adds a request to match a target against a number of queries of a
+	 * search started with startBatchSearch.
+	 * 
+	 * @param jobNo
+	 * @param rowKey
+	 * @param target
+	 * @param pickle
+	 *            molecule pickle, or null to parse the target smiles
+	 * @param queries
+	 *            the queries to match
+	 * @return false if the maximum number of hits has been obtained for all
+	 *         queries.
+	 */
+	public boolean submitBatchMolSearch(int jobNo, RowKey rowKey, String target, byte[] pickle,
+			int[] queries) {
+		BatchSubSearchQueueItem item = new BatchSubSearchQueueItem(jobNo, rowKey, target,
+				pickle, queries);
+		logger.trace("Submitting batch substructure search for job " + jobNo
+				+ " on target " + target);
+		return super.submitItem(item);
+	}
+
+	/**
+	 * @param jobNo
+	 * @param query
+	 * @return the number of hits found so far for a query of a search started
+	 *         with startBatchSearch
+	 */
+	public int getQueryHits(int jobNo, int query) {
+		BatchSubSearchTaskJobInfo taskJobInfo = (BatchSubSearchTaskJobInfo) getTaskJobInfo(jobNo);
+		return taskJobInfo.nHits.get(query);
+	}
+
 	/**
 	 * Adds a search request to the queue
 	 * 
@@ -116,12 +262,61 @@ public class SubstructureSearchPool extends TaskPool {
 	 * @return false if the maximum number of hits has been obtained.
 	 */
 	public boolean submitMolSearch(int jobNo, RowKey rowKey, String target, boolean trusted, BitSet targetFingerprint) {
-		SubSearchQueueItem item = new SubSearchQueueItem(jobNo, rowKey, target, trusted, targetFingerprint);
+		SubSearchQueueItem item = new SubSearchQueueItem(jobNo, rowKey, target, trusted,
+				targetFingerprint, null);
 		logger.trace("Submitting substructure search for job " + jobNo
 				+ " on target " + target);
 		return super.submitItem(item);
 	}
 
+	/**
+	 * Adds a search request to the queue for a trusted target that may have
+	 * a binary molecule pickle.
+	 * 
+	 * @param jobNo
+	 * @param rowKey
+	 * @param target
+	 * @param pickle
+	 *            molecule pickle, or null to parse the target smiles
+	 * @return false if the maximum number of hits has been obtained.
+	 */
+	public boolean submitMolSearch(int jobNo, RowKey rowKey, String target, byte[] pickle) {
+		if (pickle == null)
+			return submitMolSearch(jobNo, rowKey, target, true, null);
+		SubSearchQueueItem item = new SubSearchQueueItem(jobNo, rowKey, target, true, null,
+				pickle);
+		logger.trace("Submitting substructure search for job " + jobNo
+				+ " on pickled target " + target);
+		return super.submitItem(item);
+	}
+
+	/**
+	 * Adds a block of index rows, for example from a SQL filter, to the
+	 * queue. The rows are screened and matched by a pool thread, so the
+	 * caller may fetch the next rows while the block is searched.
+	 * 
+	 * @param jobNo
+	 * @param store
+	 * @param ordinals
+	 *            store ordinals of the rows. The array must not be changed
+	 *            until the search is finished.
+	 * @param start
+	 *            index of the first row in the block
+	 * @param end
+	 *            index after the last row in the block
+	 * @param screen
+	 *            fingerprint screen, true if a row may match
+	 * @return false if the maximum number of hits has been obtained.
+	 */
+	public boolean submitOrdinalSearch(int jobNo, FingerprintStore store, int[] ordinals,
+			int start, int end, IntPredicate screen) {
+		OrdinalSubSearchQueueItem item = new OrdinalSubSearchQueueItem(jobNo, store,
+				ordinals, start, end, screen);
+		logger.trace("Submitting substructure search for job " + jobNo + " on "
+				+ (end - start) + " rows");
+		return super.submitItem(item);
+	}
+
 	/**
 	 * Indicates that all requests for a given job have been submitted.
 	 * 
@@ -141,6 +336,73 @@ public class SubstructureSearchPool extends TaskPool {
 		return nHits;
 	}
 
+	/**
+	 * Parses a target once and matches it against a number of queries.
+	 * 
+	 * @param matchers
+	 * @param queries
+	 *            indices of the queries to match
+	 * @param nQueries
+	 *            number of queries to match
+	 * @param target
+	 *            trusted smiles
+	 * @param pickle
+	 *            molecule pickle, or null to parse the target smiles
+	 * @param matched
+	 *            filled with the indices of the queries that match
+	 * @return the number of queries that match, or -1 if the target could not
+	 *         be parsed
+	 */
+	static int matchQueries(SubstructureMatcher[] matchers, int[] queries, int nQueries,
+			String target, byte[] pickle, int[] matched) {
+		Optional<ROMol> molOpt = pickle != null ? Optional.of(RDKitOps.molFromPickle(pickle))
+				: RDKitOps.smilesToMol(target, true);
+		if (molOpt.isEmpty())
+			return -1;
+		ROMol mol = molOpt.get();
+		int nMatched = 0;
+		try {
+			for (int i = 0; i < nQueries; i++) {
+				int q = queries[i];
+				boolean match;
+				try {
+					match = matchers[q].matchStructure(mol, null);
+				} catch (GenericRDKitException e) {
+					// some queries fail on molecules from trusted smiles,
+					// the matcher will retry on a sanitized molecule
+					match = matchers[q].matchStructure(target, false, null);
+				}
+				if (match)
+					matched[nMatched++] = q;
+			}
+		} finally {
+			mol.delete();
+		}
+		return nMatched;
+	}
+
+	/**
+	 * Indicates that all requests for a search started with startBatchSearch
+	 * have been submitted.
+	 * 
+	 * Blocks until all searches are completed.
+	 * 
+	 * @param jobNo
+	 * @return number of hits for the job
+	 */
+	public int finishBatchSearch(int jobNo) {
+		// make sure to get the job info before calling super.finishJob()
+		BatchSubSearchTaskJobInfo taskJobInfo = (BatchSubSearchTaskJobInfo) getTaskJobInfo(jobNo);
+		// now wait for all searches to finish.
+		super.finishJob(jobNo);
+		// all searches finished - clean up
+		int nHits = 0;
+		for (int q = 0; q < taskJobInfo.nHits.length(); q++)
+			nHits += taskJobInfo.nHits.get(q);
+		taskJobInfo.taskJobResults.finish();
+		return nHits;
+	}
+
 	/*
 	 * Takes an item off the search queue and matches it against the job query.
 	 * 
@@ -152,6 +414,16 @@ public class SubstructureSearchPool extends TaskPool {
 	 */
 	@Override
 	public void processItem(TaskJobInfo jobInfo, QueueItem queueItem) {
+		if (queueItem instanceof BatchSubSearchQueueItem) {
+			processBatchItem((BatchSubSearchTaskJobInfo) jobInfo,
+					(BatchSubSearchQueueItem) queueItem);
+			return;
+		}
+		if (queueItem instanceof OrdinalSubSearchQueueItem) {
+			processOrdinalItem((SubSearchTaskJobInfo) jobInfo,
+					(OrdinalSubSearchQueueItem) queueItem);
+			return;
+		}
 
 		SubSearchQueueItem item = (SubSearchQueueItem) queueItem;
 		int jobNo = item.getJobNo();
@@ -161,25 +433,93 @@ public class SubstructureSearchPool extends TaskPool {
 
 		// use cache if available
 		String target = item.target;
-		boolean match = matcher.matchStructure(target, item.trusted, item.targetFingerprint);
+		boolean match = item.pickle != null ? matcher.matchPickle(item.pickle, target)
+				: matcher.matchStructure(target, item.trusted, item.targetFingerprint);
 
 		if (match) {
 			logger.debug("For job no " + jobNo + " target " + target
 					+ " is a hit");
+			addHit(taskJobInfo, item.rowKey.getRowId());
+		}
 
-			synchronized (taskJobInfo.getLock()) {
+		logger.trace("Finished matching job no " + jobNo + " target " + target);
+	}
+
+	/**
+	 * Adds a hit to the job results
+	 * 
+	 * @param taskJobInfo
+	 * @param rowId
+	 */
+	private void addHit(SubSearchTaskJobInfo taskJobInfo, byte[] rowId) {
+		synchronized (taskJobInfo.getLock()) {
+			// add the hit if we haven't obtained maximum number of hits
+			if (!taskJobInfo.maxHitsObtained()) {
+				taskJobInfo.taskJobResults.addHit(rowId, null);
+				taskJobInfo.nHits.incrementAndGet();
+			} else {
+				// max hits obtained, request stop
+				taskJobInfo.setStopSubmission();
+			}
+		}
+	}
+
+	/**
+	 * Screens and matches a block of index rows against the job query.
+	 * 
+	 * @param taskJobInfo
+	 * @param item
+	 */
+	private void processOrdinalItem(SubSearchTaskJobInfo taskJobInfo,
+			OrdinalSubSearchQueueItem item) {
+		SubstructureMatcher matcher = taskJobInfo.matcher;
+		FingerprintStore store = item.store;
+		for (int i = item.start; i < item.end; i++) {
+			if (taskJobInfo.maxHitsObtained()) {
+				taskJobInfo.setStopSubmission();
+				return;
+			}
+			int ordinal = item.ordinals[i];
+			if (!item.screen.test(ordinal))
+				continue;
+			String target = store.smiles(ordinal);
+			if (target == null)
+				continue;
+			byte[] pickle = store.pickle(ordinal);
+			boolean match = pickle != null ? matcher.matchPickle(pickle, target)
+					: matcher.matchStructure(target, true, null);
+			if (match)
+				addHit(taskJobInfo, store.rowId(ordinal));
+		}
+	}
+
+	/**
+	 * Matches a target against the queries of a search with many queries.
+	 * 
+	 * @param taskJobInfo
+	 * @param item
+	 */
+	private void processBatchItem(BatchSubSearchTaskJobInfo taskJobInfo,
+			BatchSubSearchQueueItem item) {
+		int[] matched = new int[item.queries.length];
+		int nMatched = matchQueries(taskJobInfo.matchers, item.queries, item.queries.length,
+				item.target, item.pickle, matched);
+		if (nMatched <= 0)
+			return;
+
+		synchronized (taskJobInfo.getLock()) {
+			for (int i = 0; i < nMatched; i++) {
+				int q = matched[i];
 				// add the hit if we haven't obtained maximum number of hits
-				if (!taskJobInfo.maxHitsObtained()) {
-					taskJobInfo.taskJobResults.addHit(item.rowKey.getRowId(),null);
-					taskJobInfo.nHits.incrementAndGet();
-				} else {
-					// max hits obtained, request stop
+				if (taskJobInfo.maxHitsObtained(q))
+					continue;
+				taskJobInfo.taskJobResults.addHit(q, item.rowKey.getRowId(), null);
+				taskJobInfo.nHits.incrementAndGet(q);
+				if (taskJobInfo.maxHitsObtained(q) && --taskJobInfo.nQueriesSearching == 0)
+					// max hits obtained for all queries, request stop
 					taskJobInfo.setStopSubmission();
-				}
 			}
 		}
-
-		logger.trace("Finished matching job no " + jobNo + " target " + target);
 	}
 
 	/**
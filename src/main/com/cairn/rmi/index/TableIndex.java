@@ -2,6 +2,7 @@ package com.cairn.rmi.index;
 
 import com.cairn.common.*;
 import com.cairn.rmi.TaskException;
+import com.cairn.rmi.server.BatchThreadFactory;
 import com.cairn.rmi.server.DatabaseObject;
 import com.cairn.rmi.server.Util;
 import com.cairn.rmi.server.TaskJobResults;
@@ -14,21 +15,27 @@ import oracle.sql.ROWID;
 import org.RDKit.ExplicitBitVect;
 import org.RDKit.RDKFuncs;
 import org.RDKit.ROMol;
-import org.RDKit.SparseIntVectu32;
-import org.apache.commons.collections.MapUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.StopWatch;
 import org.apache.log4j.Logger;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -43,19 +50,74 @@ public class TableIndex extends IndexBase {
     private static final boolean LOCAL_INDEX = true;
     // the filename used to store the local index
     private static final String INDEX_FILE = "table_index.bin";
+    // the filename a compacted index is written to before it replaces the
+    // local index
+    private static final String COMPACT_FILE = INDEX_FILE + ".compact";
+    // the journal of changes applied since the local index was written, and
+    // the filename a new journal is written to before it replaces the journal
+    private static final String JOURNAL_FILE = "table_index.journal";
+    private static final String PENDING_JOURNAL_FILE = JOURNAL_FILE + ".tmp";
+
+    // set to fold the changes to an index into a new index file in the
+    // background, once the changes pass a threshold
+    private static volatile boolean useCompactor = false;
+    private static volatile int compactionMinRows = 100000;
+    private static volatile double compactionDeltaFraction = 0.1;
+    private static volatile ExecutorService compactorExecutor;
+
+    // set to persist committed changes by appending to a journal, rather than
+    // rewriting the local index
+    private static volatile boolean useJournal = false;
+    private static volatile long journalCheckpointBytes = 256L * 1024L * 1024L;
 
     private static final Logger logger = Logger.getLogger(TableIndex.class);
-    // Stores binary fingerprint and smiles by ROWID
-    private volatile Map<RowKey, FingerprintedSmiles> lookup;
+    // Stores binary fingerprint and smiles by ordinal
+    private volatile FingerprintStore store;
+    // held while the index is rebuilt, so that only one rebuild runs and the
+    // change log is not committed or the index truncated during the rebuild
+    private final Object buildLock = new Object();
+    // set while a compaction is queued or running
+    private final AtomicBoolean compacting = new AtomicBoolean(false);
+    // journal of the changes applied since the local index was written, or
+    // null if changes are not being journaled. Guarded by the index lock
+    private IndexJournal journal;
 
     // index info for local cache
     private static class TableIndexInfo implements Serializable {
         private static final long serialVersionUID = 1000L;
         private final List<RDKitOps.ExtendedFingerPrintType> fingerPrintTypes = new ArrayList<>();
         private volatile String cacheName;
+        // screen substructure searches using an inverted index of fingerprint
+        // bits
+        private volatile boolean useBitPostings;
+        // store a binary molecule pickle for each row, so substructure
+        // searches do not parse smiles
+        private volatile boolean usePickles;
     }
 
     private volatile TableIndexInfo indexInfo = new TableIndexInfo();
+    // source of index change versions, unique over all indexes
+    private static final AtomicLong changeVersions = new AtomicLong();
+    // changed whenever the index is modified, for the search result cache
+    private volatile long changeVersion = changeVersions.incrementAndGet();
+    // number of rowids fetched and resolved at once from a SQL filter
+    private static final int SQL_FILTER_BATCH_SIZE = 4096;
+    // number of SQL filter rows in each substructure search pool item
+    private static final int SUBSTRUCTURE_BLOCK_SIZE = 32;
+    // number of rows scored against all queries at once in a batch similarity search
+    private static final int BATCH_SIMILARITY_BLOCK_SIZE = 256;
+    // smallest batch of change log rows prepared in the index build pool
+    private static final int MIN_PARALLEL_ROW_CHANGES = 256;
+    // number of rows searched between checks for job cancellation
+    private static final int STOP_CHECK_INTERVAL = 1024;
+    // number of rows submitted to the substructure search pool by a batch
+    // search between checks for queries that have reached their maximum hits
+    private static final int HIT_CHECK_INTERVAL = 64;
+    // rebuild the bit posting index once this many rows have been added since
+    // it was built
+    private static final int MAX_UNINDEXED_POSTINGS_ROWS = 100000;
+    private volatile BitPostingIndex bitPostingIndex;
+    private final Object bitPostingLock = new Object();
 
     /**
      * @param ownerName
@@ -67,20 +129,34 @@ public class TableIndex extends IndexBase {
         identifyLogTable();
     }
 
-    /*
-     * (non-Javadoc)
+    /**
+     * Builds the index into a new store, while searches continue to use the
+     * current store. Change log entries are then replayed into the new store,
+     * and the new store is published, under the index lock, once the
+     * remaining entries have been applied. The old store is freed once the
+     * searches using it finish.
      *
      * @see com.cairn.rmi.index.IndexBase#buildIndex()
      */
     @Override
-    public synchronized void buildIndex() throws TaskException {
+    public void buildIndex() throws TaskException {
+        synchronized (buildLock) {
+            rebuildIndex();
+        }
+    }
+
+    private void rebuildIndex() throws TaskException {
         boolean useIndexBuildPool = IndexBuildPool.isUseIndexBuildPool();
+        var newStore = new FingerprintStore();
+        // the log table entries up to here will be replaced by the table
+        // contents
+        int rowChangeId = getCurrentRowChangeId();
 
         IndexBuildPool indexBuildPool = null;
         int jobNo = 0;
         if (useIndexBuildPool) {
             indexBuildPool = IndexBuildPool.getInstance();
-            jobNo = indexBuildPool.startJob(this);
+            jobNo = indexBuildPool.startJob(this, newStore);
         }
 
         logger.info("Building index for " + fullSchemaName());
@@ -96,7 +172,6 @@ public class TableIndex extends IndexBase {
 
             StopWatch stopWatch = new StopWatch();
             stopWatch.start();
-            lookup = new ConcurrentHashMap<>();
 
             int count = 0;
 
@@ -112,7 +187,7 @@ public class TableIndex extends IndexBase {
                     indexBuildPool.submitRow(jobNo, rowId, rowValue);
                     count++;
                 } else {
-                    boolean added = createEntry(rowId, rowValue);
+                    boolean added = createEntry(newStore, rowId, rowValue);
 
                     if (added)
                         count++;
@@ -129,14 +204,62 @@ public class TableIndex extends IndexBase {
             stopWatch.stop();
             logger.info("Took " + stopWatch.getTime() / 1000.0
                     + " seconds to build index");
-            processLogTable();
-            saveIndex();
-            setIndexLoaded(true);
         } catch (SQLException e) {
             String message = "SQL error building index";
             logger.error(message, e);
             throw new RuntimeException(message);
         }
+
+        // replay the changes made during the build without blocking searches
+        // or the change log ingester
+        rowChangeId = replayLogTable(newStore, rowChangeId);
+
+        synchronized (this) {
+            // catch up with any changes made during the replay and publish
+            rowChangeId = replayLogTable(newStore, rowChangeId);
+            // the journal applies to the old index file until the new store
+            // is saved
+            closeJournal();
+            store = newStore;
+            bitPostingIndex = null;
+            setCurrentRowChangeId(Math.max(rowChangeId, getCurrentRowChangeId()));
+            bumpChangeVersion();
+            saveIndex();
+            setIndexLoaded(true);
+        }
+        logger.info("Published rebuilt index for " + fullSchemaName());
+    }
+
+    /**
+     * Applies the change log entries after a row change id to a store that
+     * has not been published.
+     *
+     * @param target
+     * @param afterRowChangeId
+     * @return the last row change id applied
+     * @throws TaskException
+     */
+    private int replayLogTable(FingerprintStore target, int afterRowChangeId)
+            throws TaskException {
+        var lastRowChangeId = new int[]{afterRowChangeId};
+        readLogTable(afterRowChangeId, false, changes -> {
+            applyRowChanges(target, changes);
+            lastRowChangeId[0] = changes.get(changes.size() - 1).rowChangeId;
+        });
+        return lastRowChangeId[0];
+    }
+
+    /**
+     * Commits the change log. Waits for any rebuild to finish, so that log
+     * entries are not removed before they are replayed into the new store.
+     *
+     * @see com.cairn.rmi.index.IndexBase#commit()
+     */
+    @Override
+    public void commit() throws TaskException {
+        synchronized (buildLock) {
+            super.commit();
+        }
     }
 
 
@@ -160,6 +283,136 @@ public class TableIndex extends IndexBase {
         stopWatch.start();
 
         processLogTable();
+        if (cutoff > 1.0 || cutoff < 0.0)
+            throw new IllegalArgumentException("Invalid similarity cutoff" + cutoff);
+
+        var store = this.store;
+        var scorer = extendedSimilarityScorer(store, fingerprintType, searchMethod, smiles, alpha, beta);
+        if (scorer == null)
+            return;
+        var key = resultCacheKey(extendedOperation("extended_similarity", fingerprintType,
+                searchMethod, alpha, beta), () -> RDKitOps.canonicalize(smiles).orElse(smiles), cutoff,
+                maxHits);
+        if (addCachedResults(key, jobNo, true))
+            return;
+        var nHits = 0;
+        TaskJobResults taskJobResults = new TaskJobResults(jobNo, true);
+        recordResults(key, taskJobResults);
+
+        var size = store.size();
+        if (SimilaritySearchPool.usePool(size)) {
+            nHits = SimilaritySearchPool.search(store, new int[]{0, size}, scorer, cutoff, maxHits,
+                    taskJobResults)[0];
+        } else {
+            for (var ordinal = 0; ordinal < size; ordinal++) {
+                if (ordinal % STOP_CHECK_INTERVAL == 0 && taskJobResults.isStopped())
+                    break;
+                var similarity = scorer.score(ordinal);
+                if (similarity >= cutoff) {
+                    var rowId = store.rowId(ordinal);
+                    taskJobResults.addHit(rowId, similarity);
+                    nHits++;
+                    if (maxHits > 0 && nHits >= maxHits)
+                        break;
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Got hit against index " + nHits + " similarity "
+                                + similarity + " row " + (new String(rowId)) + " smiles "
+                                + store.smiles(ordinal));
+                    }
+                }
+            }
+        }
+
+        taskJobResults.finish();
+        cacheResults(key, taskJobResults);
+        stopWatch.stop();
+        logger.info("Searched fingerprint database " + stopWatch.getTime() / 1000.0
+                + " seconds, got " + nHits + " hits");
+    }
+
+    /**
+     * @return the operation name for the search result cache, including the
+     * extended similarity parameters
+     */
+    private static String extendedOperation(String operation, String fingerprintType,
+                                            String searchMethod, Double alpha, Double beta) {
+        return operation + " " + fingerprintType.toUpperCase() + " " + searchMethod.toUpperCase()
+                + " " + alpha + " " + beta;
+    }
+
+
+    /**
+     * Finds the most similar rows to a query using de Morgan fingerprints. Adds
+     * the hits to a batch queue, best first.
+     *
+     * @param jobNo
+     * @param fingerprintType
+     * @param searchMethod
+     * @param smiles
+     * @param topK          number of hits to return
+     * @param minSimilarity hits must have at least this similarity
+     * @param alpha
+     * @param beta
+     * @throws TaskException
+     */
+    public void extendedSimilarityTopKSearch(int jobNo, String fingerprintType, String searchMethod,
+                                             String smiles, int topK, double minSimilarity, Double alpha,
+                                             Double beta) throws TaskException {
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.start();
+
+        processLogTable();
+        if (topK <= 0)
+            throw new TaskException("Top K similarity search: K must be positive");
+
+        var store = this.store;
+        var scorer = extendedSimilarityScorer(store, fingerprintType, searchMethod, smiles, alpha, beta);
+        if (scorer == null) {
+            new TaskJobResults(jobNo, true).finish();
+            return;
+        }
+        var key = resultCacheKey(extendedOperation("similarity_topk", fingerprintType, searchMethod,
+                alpha, beta), () -> RDKitOps.canonicalize(smiles).orElse(smiles), minSimilarity, topK);
+        if (addCachedResults(key, jobNo, true))
+            return;
+        TaskJobResults taskJobResults = new TaskJobResults(jobNo, true);
+        recordResults(key, taskJobResults);
+
+        var hits = new TopKHits(topK, minSimilarity);
+        var size = store.size();
+        for (var ordinal = 0; ordinal < size; ordinal++) {
+            if (ordinal % STOP_CHECK_INTERVAL == 0 && taskJobResults.isStopped())
+                break;
+            hits.offer(ordinal, scorer.score(ordinal));
+        }
+        var nHits = hits.size();
+        hits.addHits(store, taskJobResults);
+
+        taskJobResults.finish();
+        cacheResults(key, taskJobResults);
+        stopWatch.stop();
+        logger.info("Top " + topK + " search of fingerprint database " + stopWatch.getTime() / 1000.0
+                + " seconds, got " + nHits + " hits");
+    }
+
+    /**
+     * Creates a scorer for similarity of rows to a query using de Morgan
+     * fingerprints.
+     *
+     * @param store
+     * @param fingerprintType
+     * @param searchMethod
+     * @param smiles
+     * @param alpha
+     * @param beta
+     * @return the scorer, or null if the query smiles is not valid
+     * @throws TaskException
+     */
+    private SimilaritySearchPool.RowScorer extendedSimilarityScorer(FingerprintStore store,
+                                                                    String fingerprintType,
+                                                                    String searchMethod, String smiles,
+                                                                    Double alpha, Double beta)
+            throws TaskException {
         if (indexInfo.fingerPrintTypes.isEmpty())
             throw new TaskException("No extended fingerprints present in index!");
 
@@ -171,66 +424,41 @@ public class TableIndex extends IndexBase {
             throw new TaskException("Fingerprint type " + fpType + " is not present in index");
         var fpIndex = indexOpt.getAsInt();
 
-        if (cutoff > 1.0 || cutoff < 0.0)
-            throw new IllegalArgumentException("Invalid similarity cutoff" + cutoff);
+        MorganFingerprint.SimilarityMethod method;
+        try {
+            method = MorganFingerprint.SimilarityMethod.fromString(searchMethod);
+        } catch (IllegalArgumentException e) {
+            throw new TaskException("Unknown similarity search method " + searchMethod);
+        }
+        if (method == MorganFingerprint.SimilarityMethod.TVERSKY && (alpha == null || beta == null))
+            throw new TaskException("Tversky similarity: alpha and beta not set");
+        var alphaValue = alpha == null ? 0.0 : alpha;
+        var betaValue = beta == null ? 0.0 : beta;
 
         var queryOpt = RDKitOps.smilesToMol(smiles);
         if (queryOpt.isEmpty()) {
             logger.warn("query smiles " + smiles + " is not valid");
-            return;
+            return null;
         }
         var query = queryOpt.get();
 
-        var queryFingerprint = fpType.createFingerprint(query);
-        var nHits = 0;
-        TaskJobResults taskJobResults = new TaskJobResults(jobNo, true);
-
-        for (var entry : lookup.entrySet()) {
-            var rowKey = entry.getKey();
-            var rowValue = entry.getValue();
-
-            var fp = rowValue.getDeMorganFingerprints().get(fpIndex);
-            if (fp == null)
-                continue;
-
-            double similarity;
-            switch (searchMethod.toLowerCase()) {
-                case "tanimoto":
-                    similarity = RDKFuncs.TanimotoSimilaritySIVu32(queryFingerprint, fp);
-                    break;
-                case "dice":
-                    similarity = RDKFuncs.DiceSimilarity(queryFingerprint, fp);
-                    break;
-                case "tversky":
-                    if (alpha == null || beta == null)
-                        throw new TaskException("Tversky similarity: alpha and beta not set");
-                    similarity = RDKFuncs.TverskySimilarity(queryFingerprint, fp, alpha, beta);
-                    break;
-                default:
-                    throw new TaskException("Unknown similarity search method " + searchMethod);
-            }
-
-            if (similarity >= cutoff) {
-                taskJobResults.addHit(rowKey.getRowId(), similarity);
-                nHits++;
-                if (maxHits > 0 && nHits >= maxHits)
-                    break;
-                if (logger.isDebugEnabled()) {
-                    logger.debug("Got hit against index " + nHits + " similarity "
-                            + similarity + " row " + (new String(rowKey.getRowId())) + " smiles "
-                            + rowValue.getSmiles());
-                }
-            }
-        }
-
-        taskJobResults.finish();
-        queryFingerprint.delete();
-        stopWatch.stop();
-        logger.info("Searched fingerprint database " + stopWatch.getTime() / 1000.0
-                + " seconds, got " + nHits + " hits");
+        var nativeQueryFingerprint = fpType.createFingerprint(query);
+        var queryFingerprint = MorganFingerprint.fromSparseIntVect(nativeQueryFingerprint);
+        nativeQueryFingerprint.delete();
+        query.delete();
+        var queryKeys = queryFingerprint.getKeys();
+        var queryCounts = queryFingerprint.getCounts();
+        var querySum = (double) queryFingerprint.totalCount();
+
+        return ordinal -> {
+            var andSumAndTotal = store.extendedAndSumAndTotal(ordinal, fpIndex, queryKeys, queryCounts);
+            if (andSumAndTotal < 0)
+                return -1.0;
+            return method.similarity(querySum, MorganFingerprint.total(andSumAndTotal),
+                    MorganFingerprint.andSum(andSumAndTotal), alphaValue, betaValue);
+        };
     }
 
-
     /**
      * Converts index creation parameter string into fingerprint types. This
      * should only be called just before the build method.
@@ -253,47 +481,140 @@ public class TableIndex extends IndexBase {
 
 
     /**
-     * Adds a row value and rowId to the in-memory index.
+     * Sets other index creation options from the parameter string. Currently
+     * postings=y, which enables the inverted index of fingerprint bits for
+     * substructure screening, and pickles=y, which stores a binary molecule
+     * pickle for each row so that substructure searches do not parse target
+     * smiles. This should only be called just before the build method.
+     *
+     * @param params
+     */
+    public void createIndexOptions(String params) {
+        if (StringUtils.isBlank(params))
+            return;
+        indexInfo.useBitPostings = Arrays.stream(params.split("\\s+"))
+                .anyMatch(s -> s.equalsIgnoreCase("POSTINGS=Y"));
+        logger.info("Bit posting index for " + fullSchemaName() + " " + indexInfo.useBitPostings);
+        indexInfo.usePickles = Arrays.stream(params.split("\\s+"))
+                .anyMatch(s -> s.equalsIgnoreCase("PICKLES=Y"));
+        logger.info("Molecule pickles for " + fullSchemaName() + " " + indexInfo.usePickles);
+    }
+
+    /**
+     * Returns the inverted bit index for the current store, building it if it
+     * is missing, built from a previous store or too many rows have been
+     * added since it was built.
+     *
+     * @param store
+     * @return
+     */
+    private BitPostingIndex getBitPostingIndex(FingerprintStore store) {
+        var postingIndex = bitPostingIndex;
+        if (postingIndex != null && postingIndex.getStore() == store
+                && store.size() - postingIndex.size() <= MAX_UNINDEXED_POSTINGS_ROWS)
+            return postingIndex;
+        synchronized (bitPostingLock) {
+            postingIndex = bitPostingIndex;
+            if (postingIndex == null || postingIndex.getStore() != store
+                    || store.size() - postingIndex.size() > MAX_UNINDEXED_POSTINGS_ROWS) {
+                logger.info("Building bit posting index for " + fullSchemaName());
+                postingIndex = BitPostingIndex.build(store);
+                bitPostingIndex = postingIndex;
+            }
+            return postingIndex;
+        }
+    }
+
+    /**
+     * The fingerprints and canonical smiles for a row, prepared for adding to
+     * the store.
+     */
+    static final class PreparedEntry {
+        private final String smiles;
+        private final BitSet fingerprint;
+        private final List<MorganFingerprint> deMorganFingerprints;
+        private final byte[] pickle;
+
+        private PreparedEntry(String smiles, BitSet fingerprint,
+                              List<MorganFingerprint> deMorganFingerprints, byte[] pickle) {
+            this.smiles = smiles;
+            this.fingerprint = fingerprint;
+            this.deMorganFingerprints = deMorganFingerprints;
+            this.pickle = pickle;
+        }
+    }
+
+    /**
+     * Adds a row value and rowId to a store.
      *
+     * @param target
      * @param rowId
      * @param rowValue
      * @return
      */
-    boolean createEntry(RowKey rowId, Object rowValue) {
+    boolean createEntry(FingerprintStore target, RowKey rowId, Object rowValue) {
+        var entry = prepareEntry(rowId, rowValue);
+        if (entry == null)
+            return false;
+        addEntry(target, rowId, entry);
+        return true;
+    }
+
+    /**
+     * Adds a prepared entry to a store, replacing any existing row.
+     *
+     * @param target
+     * @param rowId
+     * @param entry
+     */
+    private void addEntry(FingerprintStore target, RowKey rowId, PreparedEntry entry) {
+        target.add(rowId.getRowId(), entry.smiles, entry.fingerprint, entry.deMorganFingerprints,
+                entry.pickle);
+    }
+
+    /**
+     * Parses a row value and creates its fingerprints, without changing the
+     * index, so that rows may be prepared in parallel.
+     *
+     * @param rowId
+     * @param rowValue
+     * @return the entry, or null if the value is empty or cannot be parsed
+     */
+    PreparedEntry prepareEntry(RowKey rowId, Object rowValue) {
 
         boolean traceEnabled = logger.isTraceEnabled();
         if (traceEnabled) {
-            logger.trace("createEntry: About to create index entry for rowId " + rowId
+            logger.trace("prepareEntry: About to create index entry for rowId " + rowId
                     + " rowValue " + rowValue);
         }
 
-        boolean rtn = false;
+        PreparedEntry rtn = null;
         if (rowValue == null)
-            return false;
+            return null;
         switch (indexColumnType) {
             case SMILES:
                 String smiles = (String) rowValue;
                 if (StringUtils.isNotEmpty(smiles)) {
-                    rtn = createEntryFromSmiles(rowId, smiles);
+                    rtn = prepareEntryFromSmiles(rowId, smiles);
                 }
                 break;
             case SDF:
                 String sdf = (String) rowValue;
                 if (StringUtils.isNotEmpty(sdf)) {
-                    rtn = createEntryFromSdf(rowId, sdf);
+                    rtn = prepareEntryFromSdf(rowId, sdf);
                 }
                 break;
             case BINARY:
                 byte[] molData = (byte[]) rowValue;
                 var molContainer = (ROMolContainer) Util.byteArrayToObject(molData);
-                rtn = createEntryFromMol(rowId, molContainer.getMol());
+                rtn = prepareEntryFromMol(rowId, molContainer.getMol());
                 break;
             default:
                 throw new IllegalArgumentException("Unknown index type " + indexColumnType);
         }
 
         if (traceEnabled) {
-            logger.trace("createEntry: returning " + rtn + " for rowId " + rowId
+            logger.trace("prepareEntry: returning " + (rtn != null) + " for rowId " + rowId
                     + " rowValue " + rowValue);
         }
         return rtn;
@@ -306,22 +627,28 @@ public class TableIndex extends IndexBase {
      * @see com.cairn.rmi.index.IndexBase#truncate()
      */
     @Override
-    public synchronized void truncate() throws TaskException {
-        logger.info("Truncating index for " + fullSchemaName());
-        lookup = new ConcurrentHashMap<>();
-        setIndexLoaded(true);
-        saveIndex();
+    public void truncate() throws TaskException {
+        synchronized (buildLock) {
+            synchronized (this) {
+                logger.info("Truncating index for " + fullSchemaName());
+                closeJournal();
+                store = new FingerprintStore();
+                bitPostingIndex = null;
+                bumpChangeVersion();
+                setIndexLoaded(true);
+                saveIndex();
+            }
+        }
     }
 
     /**
-     * Adds fingerprint and canonicalized smiles to the index for a smiles
-     * entry.
+     * Creates fingerprint and canonicalized smiles for a smiles entry.
      *
      * @param rowId
      * @param smiles smiles prior to canonicalization.
-     * @return false if we can't parse the smiles.
+     * @return null if we can't parse the smiles.
      */
-    private boolean createEntryFromSmiles(RowKey rowId, String smiles) {
+    private PreparedEntry prepareEntryFromSmiles(RowKey rowId, String smiles) {
         if (smiles.contains(">>"))
             logger.debug("Converting reaction smiles to mixture");
         smiles = smiles.replace(">>", ".");
@@ -329,65 +656,67 @@ public class TableIndex extends IndexBase {
         if (molOpt.isEmpty()) {
             logger.warn(fullSchemaName() + " : " + rowId.toString() + " bad smiles : "
                     + smiles);
-            return false;
+            return null;
         }
         var mol = molOpt.get();
         // canonicalize smiles, if required
         var cansmi = RDKitOps.canonicalize(mol);
 
-        boolean ok = createEntryCommon(cansmi, rowId, mol);
-        if (!ok) {
+        var entry = prepareEntryCommon(cansmi, mol);
+        if (entry == null) {
             logger.warn(fullSchemaName() + " : " + rowId.toString()
                     + " failed to fingerprint : " + smiles + "[canonicalized to "
                     + cansmi + "]");
         }
 
         mol.delete();
-        return ok;
+        return entry;
     }
 
     /**
-     * Creates a fingerprint for a smiles and adds it to the lookup
+     * Creates the fingerprints for a molecule
      *
      * @param smi
-     * @param rowId
      * @param mol
      * @return
      */
-    private boolean createEntryCommon(String smi, RowKey rowId, ROMol mol) {
+    private PreparedEntry prepareEntryCommon(String smi, ROMol mol) {
 
         var patternFp = RDKitOps.patternFingerPrintMol(mol);
         if (patternFp == null) {
-            return false;
+            return null;
         }
-        List<SparseIntVectu32> deMorganFingerprints = null;
+        List<MorganFingerprint> deMorganFingerprints = null;
         if (!indexInfo.fingerPrintTypes.isEmpty()) {
+            // copy the fingerprints to Java arrays and free the native vectors
             deMorganFingerprints = indexInfo.fingerPrintTypes.stream()
-                    .map(t -> t.createFingerprint(mol))
+                    .map(t -> {
+                        var fp = t.createFingerprint(mol);
+                        var morganFingerprint = MorganFingerprint.fromSparseIntVect(fp);
+                        fp.delete();
+                        return morganFingerprint;
+                    })
                     .collect(Collectors.toList());
         }
 
-        // add to hash
         var fingerprint = RDKitOps.explictBitVectToBitSet(patternFp);
-        var value = new FingerprintedSmiles(smi, fingerprint, deMorganFingerprints);
-        lookup.put(rowId, value);
-
-        return true;
+        var pickle = indexInfo.usePickles ? RDKitOps.molToPickle(mol) : null;
+        return new PreparedEntry(smi, fingerprint, deMorganFingerprints, pickle);
     }
 
     /**
-     * Adds fingerprint and smiles to the index for a sdf entry.
+     * Creates fingerprint and smiles for a sdf entry.
      *
      * @param rowId
      * @param sdf
      * @return
      */
-    private boolean createEntryFromSdf(RowKey rowId, String sdf) {
+    private PreparedEntry prepareEntryFromSdf(RowKey rowId, String sdf) {
         var molOpt = RDKitOps.sdfToMol(sdf);
         if (molOpt.isEmpty()) {
             logger.warn(fullSchemaName() + " : " + rowId.toString() + " bad sdf entry : "
                     + sdf);
-            return false;
+            return null;
         }
         var mol = molOpt.get();
         String smiles = RDKitOps.canonicalize(mol);
@@ -395,36 +724,35 @@ public class TableIndex extends IndexBase {
         if (StringUtils.isEmpty(smiles)) {
             logger.warn(fullSchemaName() + " : " + rowId.toString() + " bad sdf entry : "
                     + sdf);
-            return false;
+            return null;
         }
 
-        boolean ok = createEntryCommon(smiles, rowId, mol);
-        if (!ok) {
+        var entry = prepareEntryCommon(smiles, mol);
+        if (entry == null) {
             logger.warn(fullSchemaName() + " : " + rowId.toString()
                     + " failed to fingerprint sdf entry: " + sdf + "[canonicalized to "
                     + smiles + "]");
         }
 
-        return ok;
+        return entry;
     }
 
     /**
-     * Adds fingerprint and canonicalized smiles to the index for an molecule
-     * entry.
+     * Creates fingerprint and canonicalized smiles for an molecule entry.
      *
      * @param rowId
      * @param mol
      * @return
      */
-    private boolean createEntryFromMol(RowKey rowId, ROMol mol) {
+    private PreparedEntry prepareEntryFromMol(RowKey rowId, ROMol mol) {
         var cansmi = RDKitOps.canonicalize(mol);
-        boolean ok = createEntryCommon(cansmi, rowId, mol);
-        if (!ok) {
+        var entry = prepareEntryCommon(cansmi, mol);
+        if (entry == null) {
             logger.warn(fullSchemaName() + " : " + rowId.toString()
                     + " failed to fingerprint molecule entry: " + "[canonicalized to "
                     + cansmi + "]");
         }
-        return ok;
+        return entry;
     }
 
     /**
@@ -472,7 +800,7 @@ public class TableIndex extends IndexBase {
 
             DatabaseObject databaseObject = new DatabaseObject(connection,
                     fullSchemaName() + "_fingerprintLookup");
-            databaseObject.setValue(lookup);
+            databaseObject.setValue(store);
             databaseObject.save();
             logger.info("Saved lookup for " + fullSchemaName() + " to Oracle");
             connection.commit();
@@ -500,6 +828,124 @@ public class TableIndex extends IndexBase {
             return Optional.empty();
     }
 
+    /**
+     * @param store
+     * @return true if the changes held in the store delta have passed the
+     * compaction threshold
+     */
+    private static boolean needsCompaction(FingerprintStore store) {
+        var deltaSize = store.deltaSize();
+        return deltaSize >= compactionMinRows
+                && deltaSize >= compactionDeltaFraction * store.baseSize();
+    }
+
+    /**
+     * Queues a compaction of the index, if the compactor is in use and the
+     * index changes have passed the threshold.
+     */
+    private void scheduleCompaction() {
+        if (!useCompactor || !needsCompaction(store))
+            return;
+        scheduleCompaction(false);
+    }
+
+    /**
+     * Queues a compaction of the index, unless one is already queued or
+     * running.
+     *
+     * @param checkpoint if set the index is compacted whatever the size of
+     *                   the changes, so that the journal is folded into a new
+     *                   index file
+     */
+    private void scheduleCompaction(boolean checkpoint) {
+        if (indexInfo.cacheName == null)
+            return;
+        if (!compacting.compareAndSet(false, true))
+            return;
+        getCompactorExecutor().execute(() -> {
+            try {
+                compactIndex(checkpoint);
+            } catch (RuntimeException e) {
+                logger.error("Runtime exception compacting index for " + fullSchemaName(), e);
+            } finally {
+                compacting.set(false);
+            }
+        });
+    }
+
+    private static ExecutorService getCompactorExecutor() {
+        if (compactorExecutor == null) {
+            synchronized (TableIndex.class) {
+                if (compactorExecutor == null) {
+                    compactorExecutor = Executors.newSingleThreadExecutor(
+                            new BatchThreadFactory("indexCompactorThread"));
+                    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                        if (!compactorExecutor.isTerminated())
+                            compactorExecutor.shutdownNow();
+                    }));
+                }
+            }
+        }
+        return compactorExecutor;
+    }
+
+    /**
+     * Folds the heap rows and tombstones of the store into a new local index
+     * file. A snapshot of the store is written without holding the index
+     * lock, so searches and change log processing continue. The changes made
+     * since the snapshot are then applied to the compacted store, which
+     * replaces the current store under the index lock. The journal is
+     * replaced by one holding only those changes.
+     *
+     * @param checkpoint if set compact whatever the size of the changes
+     */
+    private void compactIndex(boolean checkpoint) {
+        FingerprintStore current;
+        FingerprintStore snapshot;
+        synchronized (this) {
+            current = store;
+            if (current == null || getCacheDir().isEmpty()
+                    || (!checkpoint && !needsCompaction(current)))
+                return;
+            snapshot = current.snapshot();
+        }
+
+        var cacheDir = getCacheDir().get();
+        var indexFile = new File(cacheDir, INDEX_FILE);
+        var compactFile = new File(cacheDir, COMPACT_FILE);
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.start();
+        logger.info("Compacting index for " + fullSchemaName() + " with " + snapshot.deltaSize()
+                + " changes over " + snapshot.baseSize() + " rows");
+
+        try {
+            MappedIndexFile.write(compactFile, snapshot);
+            synchronized (this) {
+                if (store != current) {
+                    // rebuilt, truncated or saved while the snapshot was written
+                    logger.info("Index changed during compaction, discarding compacted index");
+                    Files.deleteIfExists(compactFile.toPath());
+                    return;
+                }
+                var compacted = FingerprintStore.open(compactFile);
+                synchronized (current) {
+                    compacted.catchUp(snapshot, current);
+                }
+                replaceIndexFile(cacheDir, compactFile, indexFile, compacted);
+                store = compacted;
+                // the bit posting index refers to the old ordinals
+                bitPostingIndex = null;
+            }
+        } catch (IOException e) {
+            String message = "IOException compacting index to " + indexFile;
+            logger.error(message, e);
+            throw new RuntimeException(message);
+        }
+        stopWatch.stop();
+        logger.info("Took " + stopWatch.getTime() / 1000.0 + " seconds to compact index for "
+                + fullSchemaName());
+    }
+
     /**
      * Save the lookup locally, with only index information in Oracle.
      */
@@ -518,15 +964,27 @@ public class TableIndex extends IndexBase {
         }
 
         File cacheDir = getCacheDir().get();
-        // remove index file
         File indexFile = new File(cacheDir, INDEX_FILE);
-        if (indexFile.exists()) {
-            if (!indexFile.delete())
-                logger.warn("failed to delete existing index file");
-        }
+        File tmpFile = new File(cacheDir, INDEX_FILE + ".tmp");
 
-        // save existing index file
-        CommonUtils.objectToFile(indexFile, lookup);
+        // Write the new index file alongside the existing one, then rename it.
+        // Searches still running against the old file keep their mapping.
+        try {
+            var currentStore = store;
+            synchronized (currentStore) {
+                MappedIndexFile.write(tmpFile, currentStore);
+                replaceIndexFile(cacheDir, tmpFile, indexFile, null);
+                // switch to the mapped index so that rows are no longer held
+                // on the heap
+                store = FingerprintStore.open(indexFile);
+                // the bit posting index refers to the old ordinals
+                bitPostingIndex = null;
+            }
+        } catch (IOException e) {
+            String message = "IOException saving index to " + indexFile;
+            logger.error(message, e);
+            throw new RuntimeException(message);
+        }
         logger.info("Saved lookup to local file " + indexFile);
 
         // save index info
@@ -557,6 +1015,7 @@ public class TableIndex extends IndexBase {
         // won't know the cache directory.
         if (indexInfo == null)
             loadLocalCache();
+        closeJournal();
         getCacheDir().ifPresentOrElse(cacheDir -> {
             // remove cache directory
             if (!FileUtils.deleteQuietly(cacheDir)) {
@@ -597,15 +1056,42 @@ public class TableIndex extends IndexBase {
 
         File cacheDir = getCacheDir().get();
         File indexFile = new File(cacheDir, INDEX_FILE);
-        @SuppressWarnings("unchecked")
-        Map<RowKey, FingerprintedSmiles> localLookup = (Map<RowKey, FingerprintedSmiles>) CommonUtils
-                .fileToObject(indexFile);
-        lookup = localLookup;
+        if (MappedIndexFile.isMappedIndexFile(indexFile)) {
+            try {
+                store = FingerprintStore.open(indexFile);
+                openJournal(cacheDir, indexFile);
+            } catch (IOException e) {
+                String message = "IOException mapping index file " + indexFile;
+                logger.error(message, e);
+                throw new RuntimeException(message);
+            }
+        } else {
+            // index saved using Java serialization
+            store = toFingerprintStore(CommonUtils.fileToObject(indexFile));
+        }
+        bumpChangeVersion();
 
         logger.info("Loaded lookup from index file " + indexFile);
         return true;
     }
 
+    /**
+     * Converts a stored index object to a fingerprint store. Indexes saved by
+     * older versions of the cartridge contain a map of rowid to fingerprinted
+     * smiles.
+     *
+     * @param storedIndex
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private FingerprintStore toFingerprintStore(Object storedIndex) {
+        if (storedIndex instanceof Map) {
+            logger.info("Converting saved lookup for " + fullSchemaName() + " to fingerprint store");
+            return FingerprintStore.fromLookup((Map<RowKey, FingerprintedSmiles>) storedIndex);
+        }
+        return (FingerprintStore) storedIndex;
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -651,9 +1137,9 @@ public class TableIndex extends IndexBase {
         // If present retrieves the index from Oracle, otherwise builds and
         // saves.
         loadIndex();
-        if (MapUtils.isEmpty(lookup)) {
+        if (store == null || store.isEmpty()) {
             buildIndex();
-            processLogTable();
+            applyLogTable();
             saveIndex();
         }
     }
@@ -684,11 +1170,11 @@ public class TableIndex extends IndexBase {
         }
 
         setIndexLoaded(true);
-        processLogTable();
+        applyLogTable();
 
         stopWatch.stop();
         logger.info("Took " + stopWatch.getTime() / 1000.0
-                + " seconds to retrieve lookup of size " + lookup.size());
+                + " seconds to retrieve lookup of size " + store.count());
         // Util.printMemoryUsage(logger);
 
     }
@@ -706,20 +1192,20 @@ public class TableIndex extends IndexBase {
 
             DatabaseObject databaseObject = new DatabaseObject(connection,
                     fullSchemaName() + "_fingerprintLookup");
-            @SuppressWarnings("unchecked")
-            Map<RowKey, FingerprintedSmiles> lookup = (Map<RowKey, FingerprintedSmiles>) databaseObject
-                    .getValue();
+            Object storedIndex = databaseObject.getValue();
             logger.info("Retrieved fingerprint lookup for " + fullSchemaName()
                     + " from Oracle");
             connection.commit();
 
-            if (lookup == null) {
+            if (storedIndex == null) {
                 logger.warn("lookup is empty");
                 return;
             }
 
-            logger.debug("Retrieved lookup contains " + lookup.size() + " entries");
-            this.lookup = lookup;
+            FingerprintStore store = toFingerprintStore(storedIndex);
+            logger.debug("Retrieved lookup contains " + store.count() + " entries");
+            this.store = store;
+            bumpChangeVersion();
 
         } catch (SQLException e) {
             String message = "SQL error loading index";
@@ -753,13 +1239,15 @@ public class TableIndex extends IndexBase {
 
             if (resultSet.next()) {
                 String smiles = resultSet.getString(1);
-                String oldSmiles = lookup.get(rowKey).getSmiles();
+                String oldSmiles = store.smiles(store.ordinalOf(rowKey.getRowId()));
                 logger.debug("smiles is " + smiles + " old smiles is " + oldSmiles
                         + " cmp " + smiles.equals(oldSmiles));
-                lookup.remove(rowKey);
-                createEntryFromSmiles(new RowKey(rowId), smiles);
+                store.remove(rowKey.getRowId());
+                var entry = prepareEntryFromSmiles(new RowKey(rowId), smiles);
+                if (entry != null)
+                    addEntry(store, new RowKey(rowId), entry);
             } else {
-                lookup.remove(rowKey);
+                store.remove(rowKey.getRowId());
             }
             preparedStatement.close();
         } catch (SQLException e) {
@@ -772,7 +1260,7 @@ public class TableIndex extends IndexBase {
     }
 
     private interface TargetMatcher {
-        boolean matchTarget(RowKey rowKey);
+        boolean matchTarget(FingerprintStore store, int ordinal);
     }
 
     private class SubstructureSearchCommon implements TargetMatcher {
@@ -781,14 +1269,27 @@ public class TableIndex extends IndexBase {
         private final SubstructureMatcher matcher;
         private final int maxHits;
         private final int jobNo;
+        private final long[] queryWords;
+        private final int[] queryNonZeroWords;
+        private final int[] queryOnBits;
+        private final int nQueryBits;
         private int nMatches = 0;
         private int count = 0;
+        private final AtomicInteger nScreenedOut = new AtomicInteger();
 
         private SubstructureSearchCommon(int jobNo, String query, String stringQueryType,
                                          int maxHits) {
             // setup the query
             var queryType = SubstructureMatcher.SubSearchQueryType.fromString(stringQueryType);
             matcher = new SubstructureMatcher(queryType, query);
+            var queryFingerprint = matcher.getQueryFingerprint();
+            queryWords = FingerprintStore.toWords(queryFingerprint);
+            // screen the rarest words in this index first
+            var store = TableIndex.this.store;
+            queryNonZeroWords = store.screenOrder(queryWords);
+            matcher.orderScreenBits(store.bitCounts());
+            nQueryBits = queryFingerprint.cardinality();
+            queryOnBits = queryFingerprint.stream().toArray();
             taskJobResults = new TaskJobResults(jobNo, false);
             substructureSearchPool = SubstructureSearchPool
                     .isUseSubstructureSearchPool() ? SubstructureSearchPool.getInstance()
@@ -799,27 +1300,35 @@ public class TableIndex extends IndexBase {
             this.jobNo = jobNo;
         }
 
-        public boolean matchTarget(RowKey rowKey) {
+        public boolean matchTarget(FingerprintStore store, int ordinal) {
             count++;
             if (count % 100000 == 0)
                 logger.debug("Searched " + count + " compounds");
+            if (count % STOP_CHECK_INTERVAL == 0 && taskJobResults.isStopped()) {
+                logger.info("Substructure search job " + jobNo + " stopped");
+                return true;
+            }
 
-            var rowValue = lookup.get(rowKey);
-            String target = rowValue.getSmiles();
-
-            var targetFingerprint = rowValue.getFingerprint();
-
+            if (!screenTarget(store, ordinal))
+                return false;
+            String target = store.smiles(ordinal);
+            if (target == null)
+                return false;
+            // rebuilding the target from a pickle is faster than parsing smiles
+            var pickle = store.pickle(ordinal);
 
             if (substructureSearchPool != null) {
-                if (!substructureSearchPool.submitMolSearch(jobNo, rowKey, target, true, targetFingerprint)) {
+                var rowKey = new RowKey(store.rowId(ordinal));
+                if (!substructureSearchPool.submitMolSearch(jobNo, rowKey, target, pickle)) {
                     logger.debug("Got maxhits from subsearch pool");
                     return true;
                 }
             } else {
-                boolean match = matcher.matchStructure(target, true, targetFingerprint);
+                boolean match = pickle != null ? matcher.matchPickle(pickle, target)
+                        : matcher.matchStructure(target, true, null);
 
                 if (match) {
-                    taskJobResults.addHit(rowKey.getRowId(), null);
+                    taskJobResults.addHit(store.rowId(ordinal), null);
                     nMatches++;
                     if (maxHits > 0 && nMatches >= maxHits)
                         return true;
@@ -829,9 +1338,54 @@ public class TableIndex extends IndexBase {
             return false;
         }
 
+        /**
+         * Screens a row against the pattern fingerprint in the store- deleted
+         * rows have a negative bit count
+         *
+         * @param store
+         * @param ordinal
+         * @return true if the row may match the query
+         */
+        private boolean screenTarget(FingerprintStore store, int ordinal) {
+            if (store.popcount(ordinal) < nQueryBits
+                    || !store.containsAll(ordinal, queryWords, queryNonZeroWords)) {
+                nScreenedOut.incrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Submits a batch of rows to the substructure search pool in blocks,
+         * so that pool threads screen and match the rows.
+         *
+         * @param store
+         * @param ordinals
+         * @param n        number of rows in the batch
+         * @return true to stop the search
+         */
+        private boolean submitTargets(FingerprintStore store, int[] ordinals, int n) {
+            count += n;
+            if (taskJobResults.isStopped()) {
+                logger.info("Substructure search job " + jobNo + " stopped");
+                return true;
+            }
+            for (var start = 0; start < n; start += SUBSTRUCTURE_BLOCK_SIZE) {
+                var end = Math.min(start + SUBSTRUCTURE_BLOCK_SIZE, n);
+                if (!substructureSearchPool.submitOrdinalSearch(jobNo, store, ordinals, start, end,
+                        ordinal -> screenTarget(store, ordinal))) {
+                    logger.debug("Got maxhits from subsearch pool");
+                    return true;
+                }
+            }
+            return false;
+        }
+
         private int finish() {
             if (MoleculeCache.isUseMoleculeCache())
                 MoleculeCache.getMoleculeCache().info();
+            if (SubstructureQueryCache.isUseSubstructureQueryCache())
+                SubstructureQueryCache.getInstance().info();
             if (substructureSearchPool != null) {
                 nMatches = substructureSearchPool.finishSearch(jobNo);
             } else {
@@ -857,20 +1411,39 @@ public class TableIndex extends IndexBase {
                 + " query length " + query.length());
         logger.debug("Query Type is " + stringQueryType);
 
-        // setup the query
-        var search = new SubstructureSearchCommon(jobNo, query, stringQueryType, maxHits);
         // any new entries
         processLogTable();
+        var key = resultCacheKey("substructure " + stringQueryType, query::trim, 0.0, maxHits);
+        if (addCachedResults(key, jobNo, false))
+            return;
+
+        // setup the query
+        var search = new SubstructureSearchCommon(jobNo, query, stringQueryType, maxHits);
+        recordResults(key, search.taskJobResults);
 
         StopWatch stopWatch = new StopWatch();
         stopWatch.start();
 
-        for (RowKey rowKey : lookup.keySet()) {
-            if (search.matchTarget(rowKey))
-                break;
+        var store = this.store;
+        var size = store.size();
+        if (indexInfo.useBitPostings && search.queryOnBits.length > 0) {
+            // candidates from the inverted index, then any rows added since
+            // the index was built
+            var postingIndex = getBitPostingIndex(store);
+            var stopped = postingIndex.visitCandidates(search.queryOnBits,
+                    ordinal -> search.matchTarget(store, ordinal));
+            for (var ordinal = postingIndex.size(); ordinal < size && !stopped; ordinal++) {
+                stopped = search.matchTarget(store, ordinal);
+            }
+        } else {
+            for (var ordinal = 0; ordinal < size; ordinal++) {
+                if (search.matchTarget(store, ordinal))
+                    break;
+            }
         }
 
         search.finish();
+        cacheResults(key, search.taskJobResults);
 
 
         double timeTaken = stopWatch.getTime() / 1000.0;
@@ -878,13 +1451,56 @@ public class TableIndex extends IndexBase {
 
         var matcher = search.matcher;
         logger.info("Substructure search object: count " + matcher.getnProcessed() + " screenout " + matcher.getScreenOut()
-                + " hits " + matcher.getnHits());
+                + " hits " + matcher.getnHits() + " fingerprint screened " + search.nScreenedOut);
         logger.info("Substructure search of " + search.count + " compounds, got " + search.nMatches + " hits in " + timeTaken
                 + " seconds ");
 
     }
 
+    /**
+     * Receives batches of index ordinals from a SQL filter
+     */
+    private interface OrdinalBatchVisitor {
+        /**
+         * @param ordinals
+         * @param n        number of ordinals in the batch
+         * @return true to stop the search
+         */
+        boolean visit(int[] ordinals, int n);
+    }
+
+    /**
+     * Runs a SQL filter and matches each returned row.
+     *
+     * @param search
+     * @param sqlFilter
+     * @param bindParams
+     * @throws TaskException
+     */
     private void searchSqlFilter(TargetMatcher search, String sqlFilter, String[] bindParams) throws TaskException {
+        var store = this.store;
+        visitSqlFilterOrdinals(store, sqlFilter, bindParams, (ordinals, n) -> {
+            for (var i = 0; i < n; i++) {
+                if (search.matchTarget(store, ordinals[i]))
+                    return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Runs a SQL filter that returns rowids. The rowids are array fetched,
+     * resolved to store ordinals in batches and passed to the visitor. Rows
+     * that are not in the index are skipped.
+     *
+     * @param store
+     * @param sqlFilter
+     * @param bindParams
+     * @param visitor
+     * @throws TaskException
+     */
+    private void visitSqlFilterOrdinals(FingerprintStore store, String sqlFilter, String[] bindParams,
+                                        OrdinalBatchVisitor visitor) throws TaskException {
         try (var connection = getConnection();
              PreparedStatement preparedStatement = SqlUtil.getOracleConnection(connection)
                      .prepareStatement(sqlFilter)) {
@@ -893,20 +1509,36 @@ public class TableIndex extends IndexBase {
                     preparedStatement.setString(i + 1, bindParams[i]);
                 }
             }
+            preparedStatement.setFetchSize(SQL_FILTER_BATCH_SIZE);
 
             preparedStatement.execute();
             OracleResultSet resultSet = (OracleResultSet) preparedStatement
                     .getResultSet();
 
-            while (resultSet.next()) {
-
-                ROWID rowid = resultSet.getROWID(1);
-                RowKey rowKey = new RowKey(rowid);
-                if (search.matchTarget(rowKey)) {
+            var rowIds = new byte[SQL_FILTER_BATCH_SIZE][];
+            var stop = false;
+            var count = 0;
+            while (!stop) {
+                var n = 0;
+                while (n < SQL_FILTER_BATCH_SIZE && resultSet.next())
+                    rowIds[n++] = resultSet.getROWID(1).getBytes();
+                if (n == 0)
                     break;
+                count += n;
+
+                // the visitor may keep the batch, so use a new array each time
+                var ordinals = new int[n];
+                store.ordinalsOf(rowIds, n, ordinals);
+                var nPresent = 0;
+                for (var i = 0; i < n; i++) {
+                    if (ordinals[i] >= 0)
+                        ordinals[nPresent++] = ordinals[i];
+                    else if (logger.isDebugEnabled())
+                        logger.debug("sql filter row " + new String(rowIds[i]) + " is not in the index");
                 }
-
+                stop = visitor.visit(ordinals, nPresent) || n < SQL_FILTER_BATCH_SIZE;
             }
+            logger.debug("sql filter returned " + count + " rows");
 
             resultSet.close();
 
@@ -918,6 +1550,166 @@ public class TableIndex extends IndexBase {
 
     }
 
+    /**
+     * Performs substructure searches for a number of queries, such as a
+     * library of structural alerts, in a single pass of the index. Each row's
+     * fingerprint is screened against all the queries and a row that passes
+     * any screen is parsed once and matched against each query whose screen
+     * passed. Hits are added to the batch queue with the index of the query
+     * that they match.
+     *
+     * @param jobNo
+     * @param queries         smarts or MDL queries
+     * @param stringQueryType
+     * @param maxHits         maximum number of hits for each query
+     * @throws TaskException
+     */
+    public void batchSubstructureSearch(int jobNo, String[] queries, String stringQueryType,
+                                        int maxHits) throws TaskException {
+        logger.info("Doing batch substructure search of " + queries.length + " queries on "
+                + fullSchemaName());
+
+        // any new entries
+        processLogTable();
+        var store = this.store;
+
+        var queryType = SubstructureMatcher.SubSearchQueryType.fromString(stringQueryType);
+        var nQueries = queries.length;
+        var matchers = new SubstructureMatcher[nQueries];
+        var queryWords = new long[nQueries][];
+        var queryNonZeroWords = new int[nQueries][];
+        var queryBits = new int[nQueries];
+        // queries still searching
+        var active = new int[nQueries];
+        var nActive = 0;
+        for (var q = 0; q < nQueries; q++) {
+            try {
+                matchers[q] = new SubstructureMatcher(queryType, queries[q]);
+            } catch (IllegalArgumentException e) {
+                logger.warn("batchSubstructureSearch bad query " + q + ": " + queries[q]);
+                continue;
+            }
+            var queryFingerprint = matchers[q].getQueryFingerprint();
+            queryWords[q] = FingerprintStore.toWords(queryFingerprint);
+            queryNonZeroWords[q] = store.screenOrder(queryWords[q]);
+            queryBits[q] = queryFingerprint.cardinality();
+            active[nActive++] = q;
+        }
+
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.start();
+
+        var taskJobResults = new TaskJobResults(jobNo, false, true);
+        var substructureSearchPool = SubstructureSearchPool.isUseSubstructureSearchPool()
+                ? SubstructureSearchPool.getInstance() : null;
+        if (substructureSearchPool != null)
+            substructureSearchPool.startBatchSearch(taskJobResults, matchers, maxHits);
+        var size = store.size();
+        var words = new long[FingerprintStore.FINGERPRINT_WORDS];
+        var passed = new int[nQueries];
+        var matched = new int[nQueries];
+        var nHits = new int[nQueries];
+        var nParsed = 0;
+        var nTotalHits = 0;
+        try {
+            try {
+                for (var ordinal = 0; ordinal < size && nActive > 0; ordinal++) {
+                    if (ordinal % STOP_CHECK_INTERVAL == 0 && taskJobResults.isStopped())
+                        break;
+                    var popcount = store.popcount(ordinal);
+                    if (popcount < 0)
+                        continue;
+
+                    // screen the row against all the queries
+                    store.fingerprintWords(ordinal, words);
+                    var nPassed = 0;
+                    for (var i = 0; i < nActive; i++) {
+                        var q = active[i];
+                        if (popcount < queryBits[q])
+                            continue;
+                        var screen = true;
+                        for (var w : queryNonZeroWords[q]) {
+                            if ((words[w] & queryWords[q][w]) != queryWords[q][w]) {
+                                screen = false;
+                                break;
+                            }
+                        }
+                        if (screen)
+                            passed[nPassed++] = q;
+                    }
+                    if (nPassed == 0)
+                        continue;
+
+                    var target = store.smiles(ordinal);
+                    if (target == null)
+                        continue;
+                    // rebuilding the target from a pickle is faster than parsing smiles
+                    var pickle = store.pickle(ordinal);
+                    var anyFinished = false;
+                    if (substructureSearchPool != null) {
+                        // match the target on the pool against the queries that passed
+                        var rowKey = new RowKey(store.rowId(ordinal));
+                        if (!substructureSearchPool.submitBatchMolSearch(jobNo, rowKey, target, pickle,
+                                Arrays.copyOf(passed, nPassed))) {
+                            logger.debug("Got maxhits for all queries from subsearch pool");
+                            break;
+                        }
+                        nParsed++;
+                        if (maxHits > 0 && nParsed % HIT_CHECK_INTERVAL == 0) {
+                            for (var i = 0; i < nActive; i++) {
+                                var q = active[i];
+                                nHits[q] = substructureSearchPool.getQueryHits(jobNo, q);
+                                if (nHits[q] >= maxHits)
+                                    anyFinished = true;
+                            }
+                        }
+                    } else {
+                        // parse the target once and match it against the queries that passed
+                        var nMatched = SubstructureSearchPool.matchQueries(matchers, passed, nPassed,
+                                target, pickle, matched);
+                        if (nMatched < 0)
+                            continue;
+                        nParsed++;
+                        var rowId = store.rowId(ordinal);
+                        for (var i = 0; i < nMatched; i++) {
+                            var q = matched[i];
+                            taskJobResults.addHit(q, rowId, null);
+                            nTotalHits++;
+                            nHits[q]++;
+                            if (maxHits > 0 && nHits[q] >= maxHits)
+                                anyFinished = true;
+                        }
+                    }
+
+                    if (anyFinished) {
+                        var nStillActive = 0;
+                        for (var i = 0; i < nActive; i++) {
+                            if (nHits[active[i]] < maxHits)
+                                active[nStillActive++] = active[i];
+                        }
+                        nActive = nStillActive;
+                    }
+                }
+            } finally {
+                if (substructureSearchPool != null)
+                    nTotalHits = substructureSearchPool.finishBatchSearch(jobNo);
+                else
+                    taskJobResults.finish();
+            }
+        } finally {
+            for (var matcher : matchers) {
+                if (matcher != null)
+                    matcher.free();
+            }
+        }
+
+        stopWatch.stop();
+        double timeTaken = stopWatch.getTime() / 1000.0;
+        logger.info("Batch substructure search of " + nQueries + " queries against " + size
+                + " compounds, parsed " + nParsed + " targets, got " + nTotalHits + " hits in "
+                + timeTaken + " seconds");
+    }
+
     /**
      * Perform substructure search on the index, testing only molecules which
      * hit an SQL query.
@@ -944,7 +1736,14 @@ public class TableIndex extends IndexBase {
         StopWatch stopWatch = new StopWatch();
         stopWatch.start();
 
-        searchSqlFilter(search, sqlFilter, bindParams);
+        if (search.substructureSearchPool != null) {
+            // the pool screens and matches each batch while the next is fetched
+            var store = this.store;
+            visitSqlFilterOrdinals(store, sqlFilter, bindParams,
+                    (ordinals, n) -> search.submitTargets(store, ordinals, n));
+        } else {
+            searchSqlFilter(search, sqlFilter, bindParams);
+        }
 
         search.finish();
 
@@ -969,45 +1768,42 @@ public class TableIndex extends IndexBase {
         // any new entries ?
         processLogTable();
 
-        TaskJobResults taskJobResults = new TaskJobResults(jobNo, false);
         // canonicalize smiles
         var cansmiOpt = RDKitOps.canonicalize(smiles);
         if (cansmiOpt.isEmpty()) {
             logger.warn("exactmatchSearch bad smiles : " + smiles);
+            new TaskJobResults(jobNo, false).finish();
             return;
         }
         var cansmi = cansmiOpt.get();
         logger.info("Doing exact search on input " + smiles + " canonicalized to "
                 + cansmi);
 
+        var key = resultCacheKey("exact_match", () -> cansmi, 0.0, maxHits);
+        if (addCachedResults(key, jobNo, false))
+            return;
+        TaskJobResults taskJobResults = new TaskJobResults(jobNo, false);
+        recordResults(key, taskJobResults);
+
         StopWatch stopWatch = new StopWatch();
         stopWatch.start();
-        int count = 0;
         int nHits = 0;
 
-        for (RowKey rowKey : lookup.keySet()) {
-            String targetSmiles = lookup.get(rowKey).getSmiles();
-            count++;
-
-            if (targetSmiles == null)
-                continue;
-            if (cansmi.equals(targetSmiles)) {
-                taskJobResults.addHit(rowKey.getRowId(), null);
-                nHits++;
-                if (maxHits > 0 && nHits >= maxHits)
-                    break;
-            }
-
-            if (count % 100000 == 0)
-                logger.debug("Searched " + count + " compounds");
+        // look up the canonical smiles in the store hash
+        var store = this.store;
+        for (var ordinal : store.findSmiles(cansmi)) {
+            taskJobResults.addHit(store.rowId(ordinal), null);
+            nHits++;
+            if (maxHits > 0 && nHits >= maxHits)
+                break;
         }
 
-        double timeTaken = stopWatch.getTime() / 1000.0;
         stopWatch.stop();
-        logger.info("Exact match search of " + count + " compounds, got " + nHits
-                + " hits in " + timeTaken + " seconds ");
+        logger.info("Exact match search of " + store.count() + " compounds, got " + nHits
+                + " hits in " + stopWatch.getNanoTime() / 1.0e6 + " ms ");
 
         taskJobResults.finish();
+        cacheResults(key, taskJobResults);
     }
 
     /**
@@ -1055,7 +1851,7 @@ public class TableIndex extends IndexBase {
                 ROWID rowid = resultSet.getROWID(1);
                 String id = resultSet.getString(2);
                 logger.debug("Got rowid "+rowid+" id "+id);
-                FingerprintedSmiles fingerprintedSmiles = lookup.get(new RowKey(rowid));
+                FingerprintedSmiles fingerprintedSmiles = getRowValue(rowid);
                 if (fingerprintedSmiles != null) {
                     logger.debug("Fingerprinted smiles is "+fingerprintedSmiles.getSmiles());
                     updateStatement.setString(1, fingerprintedSmiles.getSmiles());
@@ -1094,14 +1890,16 @@ public class TableIndex extends IndexBase {
         private int count;
         private final BitSet queryFingerprint;
         private final double nQueryBits;
-        private final TaskJobResults taskJobResults;
-        private final int[] queryOnBits;
+        private TaskJobResults taskJobResults;
+        private final long[] queryWords;
+        // feasible target bit counts
+        private final int minBits;
+        private final int maxBits;
 
         private SimilaritySearchCommon(int jobNo, String smiles, double minSimilarity,
                                        int maxHits) {
             this.jobNo = jobNo;
             this.minSimilarity = minSimilarity;
-            taskJobResults = new TaskJobResults(jobNo, true);
 
             this.maxHits = maxHits;
             var queryOpt = RDKitOps.smilesToMol(smiles, false);
@@ -1109,8 +1907,9 @@ public class TableIndex extends IndexBase {
             if (queryOpt.isEmpty()) {
                 logger.warn("similaritySearch bad smiles : " + smiles);
                 nQueryBits = 0;
-                queryOnBits = null;
+                queryWords = null;
                 queryFingerprint = null;
+                minBits = maxBits = 0;
                 return;
             }
 
@@ -1118,40 +1917,53 @@ public class TableIndex extends IndexBase {
             if (fingerprint == null) {
                 logger.warn("similaritySearch unable to fingerprint : " + smiles);
                 nQueryBits = 0;
-                queryOnBits = null;
+                queryWords = null;
                 queryFingerprint = null;
+                minBits = maxBits = 0;
                 return;
             }
             queryFingerprint = RDKitOps.explictBitVectToBitSet(fingerprint);
-            queryOnBits = IntStream.range(0, queryFingerprint.size()).filter(queryFingerprint::get).toArray();
-            nQueryBits = (double) queryFingerprint.cardinality();
-            logger.info("Doing similarity search on input " + smiles);
+            queryWords = FingerprintStore.toWords(queryFingerprint);
+            var nBits = queryFingerprint.cardinality();
+            nQueryBits = (double) nBits;
+            minBits = FingerprintStore.minTanimotoBits(nBits, minSimilarity);
+            maxBits = FingerprintStore.maxTanimotoBits(nBits, minSimilarity);
+            logger.info("Doing similarity search on input " + smiles + " target bit count range "
+                    + minBits + " to " + maxBits);
         }
 
-        public boolean matchTarget(RowKey rowKey) {
-            count++;
+        /**
+         * @param store
+         * @param ordinal
+         * @return the Tanimoto similarity of a row to the query, or -1 if the
+         * row is deleted or outside the feasible bit count range.
+         */
+        private double similarity(FingerprintStore store, int ordinal) {
+            // rows outside the bit count range cannot reach the minimum
+            // similarity. Deleted rows have a negative count.
+            var popcount = store.popcount(ordinal);
+            if (popcount < minBits || popcount > maxBits || popcount < 0)
+                return -1.0;
+            var nTargetBits = (double) popcount;
+
+            var nCommon = store.commonBits(ordinal, queryWords);
+            var doubleCommon = (double) nCommon;
+            return doubleCommon / (nTargetBits + nQueryBits - doubleCommon);
+        }
 
-            var targetFingerprint = lookup.get(rowKey).getFingerprint();
-            var nTargetBits = (double) targetFingerprint.cardinality();
+        public boolean matchTarget(FingerprintStore store, int ordinal) {
+            count++;
+            if (count % STOP_CHECK_INTERVAL == 0 && taskJobResults.isStopped())
+                return true;
 
-            double maxSimilarity = nQueryBits > nTargetBits ? ((double) nTargetBits)
-                    / ((double) nQueryBits) : ((double) nQueryBits)
-                    / ((double) nTargetBits);
-            if (maxSimilarity < minSimilarity)
+            var similarity = similarity(store, ordinal);
+            if (similarity < 0)
                 return false;
-
-            var nCommon = 0;
-            for (var on : queryOnBits) {
-                if (targetFingerprint.get(on))
-                    nCommon++;
-            }
-            var doubleCommon = (double) nCommon;
-            var similarity = doubleCommon / (nTargetBits + nQueryBits - doubleCommon);
             nScreenout++;
 
             if (similarity >= minSimilarity) {
                 nHits++;
-                taskJobResults.addHit(rowKey.getRowId(), similarity);
+                taskJobResults.addHit(store.rowId(ordinal), similarity);
                 if (maxHits > 0 && nHits >= maxHits)
                     return true;
             }
@@ -1160,7 +1972,20 @@ public class TableIndex extends IndexBase {
             return false;
         }
 
+        /**
+         * Creates the job results. Call this once the result cache has been
+         * checked, as a cache hit adds its own results.
+         */
+        private void startResults() {
+            taskJobResults = new TaskJobResults(jobNo, true);
+        }
+
+        /**
+         * Finishes the job results, creating them if the search did not start.
+         */
         private void finish() {
+            if (taskJobResults == null)
+                startResults();
             taskJobResults.finish();
         }
     }
@@ -1185,13 +2010,31 @@ public class TableIndex extends IndexBase {
         StopWatch stopWatch = new StopWatch();
         stopWatch.start();
 
-        if (search.queryFingerprint == null)
+        if (search.queryFingerprint == null) {
+            search.finish();
             return;
-        for (RowKey rowKey : lookup.keySet()) {
-            if (search.matchTarget(rowKey))
-                break;
+        }
+        // the pattern fingerprint determines the result
+        var key = resultCacheKey("similarity", search.queryFingerprint::toString, minSimilarity,
+                maxHits);
+        if (addCachedResults(key, jobNo, true))
+            return;
+        search.startResults();
+        recordResults(key, search.taskJobResults);
+        var store = this.store;
+        var ranges = store.popcountRanges(search.minBits, search.maxBits);
+        if (SimilaritySearchPool.usePool(ranges[1] - ranges[0] + ranges[3] - ranges[2])) {
+            var counts = SimilaritySearchPool.search(store, ranges,
+                    ordinal -> search.similarity(store, ordinal), minSimilarity, maxHits,
+                    search.taskJobResults);
+            search.nHits = counts[0];
+            search.count = counts[1];
+        } else {
+            store.visitPopcountRange(search.minBits, search.maxBits,
+                    ordinal -> search.matchTarget(store, ordinal));
         }
         search.finish();
+        cacheResults(key, search.taskJobResults);
 
         stopWatch.stop();
         double timeTaken = stopWatch.getTime() / 1000.0;
@@ -1200,6 +2043,197 @@ public class TableIndex extends IndexBase {
 
     }
 
+    /**
+     * Finds the most similar rows to a query on the index. The hits are added
+     * to the batch queue best first.
+     * <p>
+     * The K-th best score found so far is used to tighten the bit count range
+     * of the rows that can still enter the hits.
+     *
+     * @param jobNo
+     * @param smiles
+     * @param topK          number of hits to return
+     * @param minSimilarity hits must have at least this similarity
+     * @throws TaskException
+     */
+    public void similarityTopKSearch(int jobNo, String smiles, int topK, double minSimilarity)
+            throws TaskException {
+        if (topK <= 0)
+            throw new TaskException("Top K similarity search: K must be positive");
+
+        var search = new SimilaritySearchCommon(jobNo, smiles, minSimilarity, 0);
+        // any new entries
+        processLogTable();
+
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.start();
+
+        if (search.queryFingerprint == null) {
+            search.finish();
+            return;
+        }
+        var key = resultCacheKey("similarity_topk", search.queryFingerprint::toString, minSimilarity,
+                topK);
+        if (addCachedResults(key, jobNo, true))
+            return;
+        search.startResults();
+        recordResults(key, search.taskJobResults);
+        var store = this.store;
+        var hits = new TopKHits(topK, minSimilarity);
+        store.visitByTanimotoBound((int) search.nQueryBits, hits::threshold, ordinal -> {
+            search.count++;
+            if (search.count % STOP_CHECK_INTERVAL == 0 && search.taskJobResults.isStopped())
+                return true;
+            var similarity = search.similarity(store, ordinal);
+            if (similarity >= 0)
+                hits.offer(ordinal, similarity);
+            return false;
+        });
+        search.nHits = hits.size();
+        hits.addHits(store, search.taskJobResults);
+        search.finish();
+        cacheResults(key, search.taskJobResults);
+
+        stopWatch.stop();
+        double timeTaken = stopWatch.getTime() / 1000.0;
+        logger.info("Top " + topK + " similarity search of " + search.count + " compounds, got "
+                + search.nHits + " hits in " + timeTaken + " seconds ");
+    }
+
+    /**
+     * Performs similarity searches for a number of queries in a single pass of
+     * the index. Rows are read in blocks and each block is scored against all
+     * the queries. Hits are added to the batch queue with the index of the
+     * query that they match.
+     *
+     * @param jobNo
+     * @param queries       query smiles
+     * @param minSimilarity
+     * @param maxHits       maximum number of hits for each query
+     * @throws TaskException
+     */
+    public void batchSimilaritySearch(int jobNo, String[] queries, double minSimilarity,
+                                      int maxHits) throws TaskException {
+        // any new entries
+        processLogTable();
+
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.start();
+
+        var nQueries = queries.length;
+        var nWords = FingerprintStore.FINGERPRINT_WORDS;
+        var queryWords = new long[nQueries * nWords];
+        var queryBits = new int[nQueries];
+        var minBits = new int[nQueries];
+        var maxBits = new int[nQueries];
+        var nHits = new int[nQueries];
+        // queries still searching
+        var active = new int[nQueries];
+        var nActive = 0;
+        var allMinBits = Integer.MAX_VALUE;
+        var allMaxBits = -1;
+        for (var q = 0; q < nQueries; q++) {
+            var fingerprint = queryPatternFingerprint(queries[q]);
+            if (fingerprint == null) {
+                logger.warn("batchSimilaritySearch bad query " + q + ": " + queries[q]);
+                continue;
+            }
+            System.arraycopy(FingerprintStore.toWords(fingerprint), 0, queryWords, q * nWords, nWords);
+            queryBits[q] = fingerprint.cardinality();
+            minBits[q] = FingerprintStore.minTanimotoBits(queryBits[q], minSimilarity);
+            maxBits[q] = FingerprintStore.maxTanimotoBits(queryBits[q], minSimilarity);
+            allMinBits = Math.min(allMinBits, minBits[q]);
+            allMaxBits = Math.max(allMaxBits, maxBits[q]);
+            active[nActive++] = q;
+        }
+
+        var taskJobResults = new TaskJobResults(jobNo, true, true);
+        var store = this.store;
+        var blockWords = new long[BATCH_SIMILARITY_BLOCK_SIZE * nWords];
+        var blockPopcounts = new int[BATCH_SIMILARITY_BLOCK_SIZE];
+        var blockOrdinals = new int[BATCH_SIMILARITY_BLOCK_SIZE];
+        var count = 0;
+        var ranges = store.popcountRanges(allMinBits, allMaxBits);
+        var range = 0;
+        var ordinal = ranges[0];
+        while (nActive > 0 && !taskJobResults.isStopped()) {
+            // read the next block of rows in the bit count range
+            var blockSize = 0;
+            while (blockSize < BATCH_SIMILARITY_BLOCK_SIZE && range < ranges.length) {
+                if (ordinal >= ranges[range + 1]) {
+                    range += 2;
+                    if (range < ranges.length)
+                        ordinal = ranges[range];
+                    continue;
+                }
+                var popcount = store.popcount(ordinal);
+                if (popcount >= allMinBits && popcount <= allMaxBits) {
+                    store.fingerprintWords(ordinal, blockWords, blockSize * nWords);
+                    blockPopcounts[blockSize] = popcount;
+                    blockOrdinals[blockSize] = ordinal;
+                    blockSize++;
+                }
+                ordinal++;
+            }
+            if (blockSize == 0)
+                break;
+            count += blockSize;
+
+            // score the block against each query
+            var nStillActive = 0;
+            for (var i = 0; i < nActive; i++) {
+                var q = active[i];
+                var queryStart = q * nWords;
+                var nQueryBits = (double) queryBits[q];
+                for (var b = 0; b < blockSize; b++) {
+                    var nTargetBits = blockPopcounts[b];
+                    if (nTargetBits < minBits[q] || nTargetBits > maxBits[q])
+                        continue;
+                    var nCommon = 0;
+                    var blockStart = b * nWords;
+                    for (var w = 0; w < nWords; w++)
+                        nCommon += Long.bitCount(blockWords[blockStart + w] & queryWords[queryStart + w]);
+                    var doubleCommon = (double) nCommon;
+                    var similarity = doubleCommon / (nTargetBits + nQueryBits - doubleCommon);
+                    if (similarity >= minSimilarity) {
+                        taskJobResults.addHit(q, store.rowId(blockOrdinals[b]), similarity);
+                        nHits[q]++;
+                        if (maxHits > 0 && nHits[q] >= maxHits)
+                            break;
+                    }
+                }
+                if (maxHits <= 0 || nHits[q] < maxHits)
+                    active[nStillActive++] = q;
+            }
+            nActive = nStillActive;
+        }
+        taskJobResults.finish();
+
+        stopWatch.stop();
+        double timeTaken = stopWatch.getTime() / 1000.0;
+        logger.info("Batch similarity search of " + nQueries + " queries against " + count
+                + " compounds, got " + Arrays.stream(nHits).sum() + " hits in " + timeTaken + " seconds ");
+    }
+
+    /**
+     * @param smiles
+     * @return the pattern fingerprint of a query, or null if the query is not
+     * valid
+     */
+    private static BitSet queryPatternFingerprint(String smiles) {
+        var queryOpt = RDKitOps.smilesToMol(smiles, false);
+        if (queryOpt.isEmpty())
+            return null;
+        var query = queryOpt.get();
+        var fingerprint = RDKitOps.patternFingerPrintMol(query);
+        query.delete();
+        if (fingerprint == null)
+            return null;
+        var bitSet = RDKitOps.explictBitVectToBitSet(fingerprint);
+        fingerprint.delete();
+        return bitSet;
+    }
+
     /**
      * @param rowId1
      * @param rowId2
@@ -1216,15 +2250,11 @@ public class TableIndex extends IndexBase {
         var fingerprint1 = fingerprintedSmiles1.getFingerprint();
         var fingerprint2 = fingerprintedSmiles2.getFingerprint();
 
-        var fp1OnBits = IntStream.range(0, fingerprint1.size()).filter(fingerprint1::get).toArray();
         var n1 = (double) fingerprint1.cardinality();
         var n2 = (double) fingerprint2.cardinality();
-        var nCommon = 0;
-        for (var on : fp1OnBits) {
-            if (fingerprint2.get(on))
-                nCommon++;
-        }
-        var doubleCommon = (double) nCommon;
+        var common = (BitSet) fingerprint1.clone();
+        common.and(fingerprint2);
+        var doubleCommon = (double) common.cardinality();
         return doubleCommon / (n1 + n2 - doubleCommon);
     }
 
@@ -1251,6 +2281,32 @@ public class TableIndex extends IndexBase {
         return fingerprintedSmiles.getStringFingerprint();
     }
 
+    /**
+     * Reports the number of rows with each pattern fingerprint bit set, as
+     * used to order substructure screening.
+     *
+     * @return a line for each fingerprint bit, with the bit, the number of
+     * rows with the bit set and the fraction of rows with the bit set,
+     * separated by tabs.
+     */
+    public String bitStatistics() {
+        var store = this.store;
+        var nRows = store.count();
+        var bitCounts = store.bitCounts();
+        var nUnused = 0;
+        var builder = new StringBuilder();
+        for (var bit = 0; bit < bitCounts.length; bit++) {
+            if (bitCounts[bit] == 0)
+                nUnused++;
+            var fraction = nRows == 0 ? 0.0 : ((double) bitCounts[bit]) / nRows;
+            builder.append(bit).append('\t').append(bitCounts[bit]).append('\t')
+                    .append(String.format("%.4f", fraction)).append('\n');
+        }
+        logger.info("Bit statistics for " + fullSchemaName() + ": " + nRows + " rows, "
+                + nUnused + " fingerprint bits never set");
+        return builder.toString();
+    }
+
     /**
      * Performs similarity search on the index
      *
@@ -1273,9 +2329,28 @@ public class TableIndex extends IndexBase {
         StopWatch stopWatch = new StopWatch();
         stopWatch.start();
 
-        if (search.queryFingerprint == null)
+        if (search.queryFingerprint == null) {
+            search.finish();
             return;
-        searchSqlFilter(search, sqlFilter, bindParams);
+        }
+        search.startResults();
+        if (SimilaritySearchPool.useOrdinalSearch()) {
+            // score batches in the pool while the next batch is fetched
+            var store = this.store;
+            var ordinalSearch = SimilaritySearchPool.startOrdinalSearch(store,
+                    ordinal -> search.similarity(store, ordinal), minSimilarity, maxHits,
+                    search.taskJobResults);
+            try {
+                visitSqlFilterOrdinals(store, sqlFilter, bindParams,
+                        (ordinals, n) -> !ordinalSearch.submit(ordinals, n));
+            } finally {
+                var counts = ordinalSearch.finish();
+                search.nHits = counts[0];
+                search.count = counts[1];
+            }
+        } else {
+            searchSqlFilter(search, sqlFilter, bindParams);
+        }
         search.finish();
 
         stopWatch.stop();
@@ -1302,8 +2377,12 @@ public class TableIndex extends IndexBase {
         stopWatch.start();
         logger.debug("Adding structures to cache");
         int nSmiles = 0;
-        for (FingerprintedSmiles fingerprintedSmiles : lookup.values()) {
-            String smiles = fingerprintedSmiles.getSmiles();
+        var store = this.store;
+        var size = store.size();
+        for (var ordinal = 0; ordinal < size; ordinal++) {
+            String smiles = store.smiles(ordinal);
+            if (smiles == null)
+                continue;
             logger.trace("Adding smiles no " + nSmiles + " " + smiles);
 
             moleculeCache.useMolecule((mol) -> {
@@ -1341,7 +2420,8 @@ public class TableIndex extends IndexBase {
     @Override
     protected void addRowChangeEntry(int rowChangeId, RowKey rowid, Object newValue,
                                      Object oldValue) {
-        createEntry(rowid, newValue);
+        createEntry(store, rowid, newValue);
+        bumpChangeVersion();
 
     }
 
@@ -1353,7 +2433,322 @@ public class TableIndex extends IndexBase {
      */
     @Override
     protected void removeRowChangeEntry(int rowChangeId, RowKey rowid, Object oldValue) {
-        lookup.remove(rowid);
+        store.remove(rowid.getRowId());
+        bumpChangeVersion();
+    }
+
+    /**
+     * Applies a batch of change log rows to the published store.
+     *
+     * @param changes
+     */
+    @Override
+    void applyRowChanges(List<RowChange> changes) {
+        var entries = applyRowChanges(store, changes);
+        bumpChangeVersion();
+        journalRowChanges(changes, entries);
+        scheduleCompaction();
+    }
+
+    /**
+     * Prepares the entries for a batch of change log rows, in the index build
+     * pool if it is in use, then applies the changes to a store in row change
+     * id order.
+     *
+     * @param target
+     * @param changes
+     * @return the entry added for each change, or null if the change removed
+     * the row or its value could not be parsed
+     */
+    private PreparedEntry[] applyRowChanges(FingerprintStore target, List<RowChange> changes) {
+        var entries = new PreparedEntry[changes.size()];
+        if (IndexBuildPool.isUseIndexBuildPool() && changes.size() >= MIN_PARALLEL_ROW_CHANGES) {
+            IndexBuildPool.getInstance().prepareEntries(this, changes, entries);
+        } else {
+            for (var i = 0; i < entries.length; i++) {
+                var change = changes.get(i);
+                if (change.newValue != null)
+                    entries[i] = prepareEntry(change.rowKey, change.newValue);
+            }
+        }
+
+        for (var i = 0; i < entries.length; i++) {
+            var change = changes.get(i);
+            if (change.newValue == null)
+                target.remove(change.rowKey.getRowId());
+            else if (entries[i] != null)
+                addEntry(target, change.rowKey, entries[i]);
+        }
+        return entries;
+    }
+
+    /**
+     * Appends a batch of change log rows, applied to the published store, to
+     * the journal. If the journal cannot be written it is closed and the next
+     * commit saves the whole index.
+     *
+     * @param changes
+     * @param entries the entry added for each change
+     */
+    private void journalRowChanges(List<RowChange> changes, PreparedEntry[] entries) {
+        if (journal == null)
+            return;
+        try {
+            for (var i = 0; i < entries.length; i++) {
+                var change = changes.get(i);
+                var entry = entries[i];
+                if (change.newValue == null)
+                    journal.appendRemove(change.rowKey.getRowId());
+                else if (entry != null)
+                    journal.appendAdd(change.rowKey.getRowId(), entry.smiles, entry.fingerprint,
+                            entry.deMorganFingerprints, entry.pickle);
+            }
+        } catch (IOException e) {
+            logger.error("IOException writing journal for " + fullSchemaName(), e);
+            closeJournal();
+        }
+    }
+
+    /**
+     * Persists committed changes by forcing the journal to disk. The whole
+     * index is saved instead if changes are not being journaled or the
+     * journal cannot be written. Once the journal has passed the checkpoint
+     * size, and its records are on disk, the compactor folds the journal into
+     * a new index file in the background.
+     *
+     * @see com.cairn.rmi.index.IndexBase#persistChanges()
+     */
+    @Override
+    protected synchronized void persistChanges() {
+        if (journal != null) {
+            try {
+                journal.sync();
+            } catch (IOException e) {
+                logger.error("IOException syncing journal for " + fullSchemaName(), e);
+                closeJournal();
+            }
+        }
+        if (journal == null) {
+            saveIndex();
+            return;
+        }
+        if (journal.size() >= journalCheckpointBytes && !compacting.get()) {
+            logger.info("Checkpointing journal of " + journal.size() / (1024 * 1024) + " MB for "
+                    + fullSchemaName());
+            scheduleCompaction(true);
+        }
+    }
+
+    /**
+     * Replays any journal for the local index file into the store and opens
+     * the journal for appending, if changes are being journaled.
+     *
+     * @param cacheDir
+     * @param indexFile
+     * @throws IOException
+     */
+    private void openJournal(File cacheDir, File indexFile) throws IOException {
+        var journalFile = new File(cacheDir, JOURNAL_FILE);
+        var pendingFile = new File(cacheDir, PENDING_JOURNAL_FILE);
+        if (MappedIndexFile.readFileId(indexFile) == 0L) {
+            // older index files have no id to tie a journal to. Commits save
+            // the whole index until it is next written.
+            logger.info("Index file " + indexFile + " has no file id, not journaling changes");
+            Files.deleteIfExists(pendingFile.toPath());
+            Files.deleteIfExists(journalFile.toPath());
+            return;
+        }
+        if (pendingFile.exists()) {
+            // the index file was replaced but not the journal
+            if (IndexJournal.matches(pendingFile, indexFile))
+                Files.move(pendingFile.toPath(), journalFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            else
+                Files.delete(pendingFile.toPath());
+        }
+        if (journalFile.exists() && !IndexJournal.matches(journalFile, indexFile)) {
+            logger.warn("Discarding journal " + journalFile + " written for another index file");
+            Files.delete(journalFile.toPath());
+        }
+        if (!journalFile.exists()) {
+            if (useJournal) {
+                IndexJournal.write(journalFile, indexFile, null);
+                journal = IndexJournal.open(journalFile);
+            }
+            return;
+        }
+
+        var indexJournal = IndexJournal.open(journalFile);
+        var nRecords = indexJournal.replay(store);
+        if (useJournal) {
+            journal = indexJournal;
+        } else {
+            indexJournal.close();
+            // fold the journal into the index file, which removes the journal
+            if (nRecords > 0)
+                saveIndex();
+        }
+    }
+
+    /**
+     * Replaces the local index file and the journal, once a new index file
+     * has been written.
+     *
+     * @param cacheDir
+     * @param newIndexFile the new index file
+     * @param indexFile
+     * @param newStore     the store that will be used with the new index
+     *                     file. Its changes over the file are journaled.
+     * @throws IOException
+     */
+    private void replaceIndexFile(File cacheDir, File newIndexFile, File indexFile,
+                                  FingerprintStore newStore) throws IOException {
+        closeJournal();
+        var journalFile = new File(cacheDir, JOURNAL_FILE);
+        var pendingFile = new File(cacheDir, PENDING_JOURNAL_FILE);
+        // write the new journal first, so that there is always a journal that
+        // matches the index file. The journal records the file id from the
+        // index file header, which the rename keeps.
+        if (useJournal)
+            IndexJournal.write(pendingFile, newIndexFile, newStore);
+        Files.move(newIndexFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        if (useJournal) {
+            Files.move(pendingFile.toPath(), journalFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            journal = IndexJournal.open(journalFile);
+        } else {
+            Files.deleteIfExists(journalFile.toPath());
+        }
+    }
+
+    /**
+     * Closes the journal, so that changes are no longer journaled until the
+     * index is next saved. The journal file is kept, as it still applies to
+     * the local index file.
+     */
+    public synchronized void closeJournal() {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    /**
+     * Records that the index has changed, so that cached search results are
+     * no longer used.
+     */
+    private void bumpChangeVersion() {
+        changeVersion = changeVersions.incrementAndGet();
+    }
+
+    /**
+     * Creates a key for the search result cache. This should be called after
+     * the change log has been processed.
+     *
+     * @param operation
+     * @param query     supplies the normalized query
+     * @param cutoff
+     * @param maxHits
+     * @return the key, or null if the cache is not in use
+     */
+    private SearchResultCache.Key resultCacheKey(String operation, Supplier<String> query,
+                                                 double cutoff, int maxHits) {
+        if (!SearchResultCache.isUseSearchResultCache())
+            return null;
+        return new SearchResultCache.Key(fullSchemaName(), operation, query.get(), cutoff, maxHits,
+                changeVersion);
+    }
+
+    /**
+     * Posts any cached results for a search to the batch queue.
+     *
+     * @param key
+     * @param jobNo
+     * @param hasScores
+     * @return true if the results were cached
+     */
+    private boolean addCachedResults(SearchResultCache.Key key, int jobNo, boolean hasScores) {
+        if (key == null)
+            return false;
+        var taskJobResults = new TaskJobResults(jobNo, hasScores);
+        if (!SearchResultCache.getInstance().addHits(key, taskJobResults))
+            return false;
+        taskJobResults.finish();
+        logger.info("Returned cached results for " + key);
+        return true;
+    }
+
+    /**
+     * Starts recording the hits of a search, if it can be cached
+     *
+     * @param key
+     * @param taskJobResults
+     */
+    private void recordResults(SearchResultCache.Key key, TaskJobResults taskJobResults) {
+        if (key != null)
+            taskJobResults.recordHits(SearchResultCache.getInstance().maxResultHits());
+    }
+
+    /**
+     * Caches the recorded hits of a finished search, provided the index has
+     * not changed during the search and the search was not stopped early.
+     *
+     * @param key
+     * @param taskJobResults
+     */
+    private void cacheResults(SearchResultCache.Key key, TaskJobResults taskJobResults) {
+        if (key == null || key.getVersion() != changeVersion || taskJobResults.isStopped())
+            return;
+        var cache = SearchResultCache.getInstance();
+        cache.put(key, taskJobResults);
+        cache.info();
+    }
+
+    /**
+     * @param useJournal the useJournal to set
+     */
+    public static void setUseJournal(boolean useJournal) {
+        TableIndex.useJournal = useJournal;
+    }
+
+    /**
+     * @param journalCheckpointMb the journal size at which a commit has the
+     *                            journal folded into a new index file
+     */
+    public static void setJournalCheckpointMb(int journalCheckpointMb) {
+        TableIndex.journalCheckpointBytes = ((long) journalCheckpointMb) * 1024L * 1024L;
+    }
+
+    /**
+     * @return the useCompactor
+     */
+    public static boolean isUseCompactor() {
+        return useCompactor;
+    }
+
+    /**
+     * @param useCompactor the useCompactor to set
+     */
+    public static void setUseCompactor(boolean useCompactor) {
+        TableIndex.useCompactor = useCompactor;
+    }
+
+    /**
+     * @param compactionMinRows the smallest number of changes that is
+     *                          compacted
+     */
+    public static void setCompactionMinRows(int compactionMinRows) {
+        TableIndex.compactionMinRows = compactionMinRows;
+    }
+
+    /**
+     * @param compactionDeltaFraction the smallest number of changes that is
+     *                                compacted, as a fraction of the rows in
+     *                                the index file
+     */
+    public static void setCompactionDeltaFraction(double compactionDeltaFraction) {
+        TableIndex.compactionDeltaFraction = compactionDeltaFraction;
     }
 
     /**
@@ -1361,7 +2756,10 @@ public class TableIndex extends IndexBase {
      * @return The row value for a given rowid.
      */
     private FingerprintedSmiles getRowValue(ROWID rowid) {
-        RowKey key = new RowKey(rowid);
-        return lookup.get(key);
+        var store = this.store;
+        var ordinal = store.ordinalOf(rowid.getBytes());
+        if (ordinal < 0)
+            return null;
+        return store.rowValue(ordinal);
     }
 }
@@ -1,5 +1,7 @@
 package com.cairn.rmi.index;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
@@ -17,15 +19,32 @@ import com.cairn.rmi.server.BatchThreadFactory;
  * Uses a thread pool for managing jobs that process tasks on a queue. A fixed
  * thread pool is shared between all jobs. Each job submits items to the pool
  * and each thread in the pool waits to process the items.
+ * <p>
+ * Submitted items are gathered into batches for each job and the queue holds
+ * batches, so that the queue lock and the job accounting are paid once per
+ * batch rather than once per item. The first batches of a job are small, so
+ * that jobs with few items are still spread over the pool, and the batch size
+ * doubles up to a maximum as the job proceeds.
+ * <p>
+ * A job stops early if submission is stopped, for example when the maximum
+ * number of hits is obtained, or if the job is cancelled. Pool threads check
+ * for both between items, and finishing a job waits for any batches that are
+ * still being processed, so that job resources may then be freed.
  *
  * @author gjones
  */
 public abstract class TaskPool {
     private static final Logger logger = Logger.getLogger(TaskPool.class);
 
+    // size of the first batch submitted by a job
+    private static final int MIN_BATCH_SIZE = 16;
+    // number of batches that may be queued for each pool thread
+    private static final int QUEUED_BATCHES_PER_THREAD = 4;
+
     // Thread pool for processing items
     private final ExecutorService taskService;
     private final int nThreads;
+    private final int maxBatchSize;
 
     /**
      * Data structure to store individual requests- extend this for your
@@ -48,8 +67,20 @@ public abstract class TaskPool {
 
     }
 
-    // Queue to store pending items
-    private final BlockingQueue<QueueItem> itemQueue = new ArrayBlockingQueue<>(1000);
+    /**
+     * A batch of items from a single job
+     */
+    private static class BatchItem extends QueueItem {
+        private final List<QueueItem> items;
+
+        private BatchItem(int jobNo, List<QueueItem> items) {
+            super(jobNo);
+            this.items = items;
+        }
+    }
+
+    // Queue to store pending batches
+    private final BlockingQueue<BatchItem> itemQueue;
 
     /**
      * A class to store information about each job- extend for your specific
@@ -62,10 +93,21 @@ public abstract class TaskPool {
         // To determine if a job is finished determine that the number of
         // items processed matches the number of items added to the queue.
 
-        // This counts searches submitted by job
-        private final AtomicInteger nItemsSubmitted = new AtomicInteger();
-        // This counts searches finished by job
+        // This counts batches submitted by job
+        private final AtomicInteger nBatchesSubmitted = new AtomicInteger();
+        // This counts batches finished by job
+        private final AtomicInteger nBatchesFinished = new AtomicInteger();
+        // This counts items finished by job
         private final AtomicInteger nItemsFinished = new AtomicInteger();
+        // This counts batches currently being processed by pool threads
+        private final AtomicInteger nBatchesRunning = new AtomicInteger();
+        // notified when the last running batch of a finished job completes
+        private final Object batchesRunningLock = new Object();
+
+        // items waiting to be queued. Only used by the submitting thread.
+        private List<QueueItem> pendingItems;
+        private int batchSize = MIN_BATCH_SIZE;
+        private int nItemsSubmitted;
 
         private final AtomicBoolean stopSubmission = new AtomicBoolean();
         private volatile boolean allItemsSubmitted = false;
@@ -90,6 +132,31 @@ public abstract class TaskPool {
             stopSubmission.set(true);
         }
 
+        /**
+         * Override this to stop the job when it is cancelled.
+         *
+         * @return true if the job has been cancelled
+         */
+        protected boolean isCancelled() {
+            return false;
+        }
+
+        /**
+         * Stops submission if the job has been cancelled
+         *
+         * @return true if submission is stopped
+         */
+        private boolean checkStopped() {
+            if (isStopSubmission())
+                return true;
+            if (isCancelled()) {
+                logger.debug("Job " + jobNo + " cancelled: stopping submission");
+                setStopSubmission();
+                return true;
+            }
+            return false;
+        }
+
         private boolean isFinished() {
             if (isStopSubmission()) {
                 logger.trace("isFinished: stop submission set");
@@ -100,12 +167,12 @@ public abstract class TaskPool {
                 return false;
             }
             if (logger.isTraceEnabled()) {
-                int nSubmitted = nItemsSubmitted.get();
-                int nFinished = nItemsFinished.get();
+                int nSubmitted = nBatchesSubmitted.get();
+                int nFinished = nBatchesFinished.get();
                 logger.trace("isFinished: nSubmitted " + nSubmitted + " nFinished "
                         + nFinished + " returning " + (nFinished == nSubmitted));
             }
-            return nItemsSubmitted.get() == nItemsFinished.get();
+            return nBatchesSubmitted.get() == nBatchesFinished.get();
         }
 
         /**
@@ -115,11 +182,18 @@ public abstract class TaskPool {
             return jobNo;
         }
 
+        /**
+         * @return the number of batches queued
+         */
+        int getnBatchesSubmitted() {
+            return nBatchesSubmitted.get();
+        }
+
         /**
          * @return the nItensSubmitted
          */
         public int getnItemsSubmitted() {
-            return nItemsSubmitted.get();
+            return nItemsSubmitted;
         }
 
         /**
@@ -137,9 +211,16 @@ public abstract class TaskPool {
     // maps job number to task information
     private final ConcurrentHashMap<Integer, TaskJobInfo> currentJobs = new ConcurrentHashMap<>();
 
-    TaskPool(String poolName, int nThreads) {
+    /**
+     * @param poolName
+     * @param nThreads
+     * @param maxBatchSize the largest number of items in a queued batch
+     */
+    TaskPool(String poolName, int nThreads, int maxBatchSize) {
         super();
         this.nThreads = nThreads;
+        this.maxBatchSize = Math.max(maxBatchSize, MIN_BATCH_SIZE);
+        itemQueue = new ArrayBlockingQueue<>(QUEUED_BATCHES_PER_THREAD * Math.max(nThreads, 4));
         if (nThreads == 1)
             throw new IllegalStateException(
                     "Pointless creation of task thread pool with only one thread");
@@ -206,7 +287,8 @@ public abstract class TaskPool {
     }
 
     /**
-     * Adds a search request to the queue
+     * Adds a search request to the job's current batch, queueing the batch
+     * when it is full.
      *
      * @return false if the maximum number of hits has been obtained.
      */
@@ -220,36 +302,59 @@ public abstract class TaskPool {
             rethrowException(taskJobInfo.error);
         }
 
-        // return false if we have a stop submission requested
-        if (taskJobInfo.isStopSubmission())
+        // return false if we have a stop submission requested, or the job is
+        // cancelled
+        if (taskJobInfo.checkStopped())
             return false;
 
-        // queue the target structure
-        taskJobInfo.nItemsSubmitted.incrementAndGet();
+        if (taskJobInfo.pendingItems == null)
+            taskJobInfo.pendingItems = new ArrayList<>(taskJobInfo.batchSize);
+        taskJobInfo.pendingItems.add(item);
+        taskJobInfo.nItemsSubmitted++;
+        if (taskJobInfo.pendingItems.size() >= taskJobInfo.batchSize) {
+            submitBatch(taskJobInfo);
+            taskJobInfo.batchSize = Math.min(taskJobInfo.batchSize * 2, maxBatchSize);
+        }
+
+        return true;
+    }
+
+    /**
+     * Queues the job's current batch
+     *
+     * @param taskJobInfo
+     */
+    private void submitBatch(TaskJobInfo taskJobInfo) {
+        List<QueueItem> items = taskJobInfo.pendingItems;
+        taskJobInfo.pendingItems = null;
+        if (items == null || items.isEmpty())
+            return;
+
+        taskJobInfo.nBatchesSubmitted.incrementAndGet();
         try {
-            itemQueue.put(item);
+            itemQueue.put(new BatchItem(taskJobInfo.getJobNo(), items));
         } catch (InterruptedException e) {
             String message = "Unable to submit item to task: interrupted";
             logger.error(message, e);
             Thread.currentThread().interrupt();
             throw new RuntimeException(message, e);
         }
-
-        return true;
     }
 
     /**
      * Indicates that all requests for a given job have been submitted.
      * <p>
-     * Blocks until all searches are completed.
+     * Blocks until all searches are completed, then throws any exception
+     * from processing the job's items.
      *
      * @param jobNo
-     * @return number of hits for the job
      */
     void finishJob(int jobNo) {
         TaskJobInfo taskJobInfo = currentJobs.get(jobNo);
         if (taskJobInfo.error != null)
             rethrowException(taskJobInfo.error);
+        if (!taskJobInfo.isStopSubmission())
+            submitBatch(taskJobInfo);
         taskJobInfo.allItemsSubmitted = true;
 
         // if there are still running searches wait for them to finish
@@ -268,46 +373,103 @@ public abstract class TaskPool {
             }
         }
 
+        // a stopped job is finished while pool threads may still be part way
+        // through a batch, so wait for them to notice
+        synchronized (taskJobInfo.batchesRunningLock) {
+            while (taskJobInfo.nBatchesRunning.get() > 0) {
+                try {
+                    taskJobInfo.batchesRunningLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    String message = "Interrupted waiting for running batches to finish";
+                    logger.error(message, e);
+                    throw new RuntimeException(message, e);
+                }
+            }
+        }
+
         // the job is finished finished - clean up
         currentJobs.remove(jobNo);
+
+        // throw any error from an item processed while waiting, as the
+        // results of the job are incomplete
+        if (taskJobInfo.error != null)
+            rethrowException(taskJobInfo.error);
     }
 
     /**
-     * Takes an item off the search queue and matches it against the job query.
+     * Takes a batch off the search queue and processes each item in it.
      *
      * @throws InterruptedException
      */
     private void takeItem() throws InterruptedException {
-        QueueItem item = itemQueue.take();
-        int jobNo = item.jobNo;
+        BatchItem batch = itemQueue.take();
+        int jobNo = batch.jobNo;
 
-        TaskJobInfo taskJobInfo = currentJobs.get(item.jobNo);
+        TaskJobInfo taskJobInfo = currentJobs.get(batch.jobNo);
         if (taskJobInfo == null) {
             logger.debug("Stale job " + jobNo + " in queue");
             return;
         }
 
-        if (taskJobInfo.isFinished()) {
-            logger.debug("Job finished");
-            return;
+        // count the batch as running before checking that the job is not
+        // finished, so that finishJob cannot miss it
+        taskJobInfo.nBatchesRunning.incrementAndGet();
+        try {
+            if (taskJobInfo.isFinished()) {
+                logger.debug("Job finished");
+                return;
+            }
+            processBatch(taskJobInfo, batch);
+        } finally {
+            // finishJob only waits once the job is finished, so there is no
+            // need to signal for a job that is still running
+            if (taskJobInfo.nBatchesRunning.decrementAndGet() == 0 && taskJobInfo.isFinished()) {
+                synchronized (taskJobInfo.batchesRunningLock) {
+                    taskJobInfo.batchesRunningLock.notifyAll();
+                }
+            }
         }
+    }
 
-        try {
-            processItem(taskJobInfo, item);
-        } catch (Throwable exception) {
-            String message = "Exception processing item";
-            logger.error(message, exception);
-            taskJobInfo.error = exception;
-            // Propagate most serious errors, but allow item processing to continue with all others.
-            if (exception instanceof Error)
-                throw (Error) exception;
+    /**
+     * Processes each item in a batch.
+     *
+     * @param taskJobInfo
+     * @param batch
+     */
+    private void processBatch(TaskJobInfo taskJobInfo, BatchItem batch) {
+        for (QueueItem item : batch.items) {
+            if (taskJobInfo.checkStopped())
+                break;
+            try {
+                processItem(taskJobInfo, item);
+            } catch (Throwable exception) {
+                String message = "Exception processing item";
+                logger.error(message, exception);
+                taskJobInfo.error = exception;
+                // Propagate most serious errors, but allow item processing to continue with all others.
+                if (exception instanceof Error) {
+                    finishBatch(taskJobInfo);
+                    throw (Error) exception;
+                }
+            }
+            taskJobInfo.nItemsFinished.incrementAndGet();
         }
 
-        taskJobInfo.nItemsFinished.incrementAndGet();
+        finishBatch(taskJobInfo);
+    }
+
+    /**
+     * Records that a batch is complete.
+     *
+     * @param taskJobInfo
+     */
+    private void finishBatch(TaskJobInfo taskJobInfo) {
+        taskJobInfo.nBatchesFinished.incrementAndGet();
         // If the search is finished release semaphore
         if (taskJobInfo.isFinished())
             taskJobInfo.jobInProgress.release();
-
     }
 
     /**
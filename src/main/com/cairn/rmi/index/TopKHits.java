@@ -0,0 +1,114 @@
+package com.cairn.rmi.index;
+
+import com.cairn.rmi.server.TaskJobResults;
+
+/**
+ * Keeps the best K hits of a similarity search in a bounded min-heap, so the
+ * worst of the current hits is always at the root.
+ *
+ * @author Gareth Jones
+ */
+class TopKHits {
+    private final int k;
+    private final double minSimilarity;
+    private final int[] ordinals;
+    private final double[] scores;
+    private int size;
+
+    /**
+     * @param k             number of hits to keep
+     * @param minSimilarity hits must have at least this score
+     */
+    TopKHits(int k, double minSimilarity) {
+        this.k = k;
+        this.minSimilarity = minSimilarity;
+        ordinals = new int[k];
+        scores = new double[k];
+    }
+
+    /**
+     * @return the score a row must exceed to enter the hits: the minimum
+     * similarity until the heap is full, then the K-th best score.
+     */
+    double threshold() {
+        return size < k ? minSimilarity : Math.max(minSimilarity, scores[0]);
+    }
+
+    /**
+     * Adds a row if it is better than the worst current hit.
+     *
+     * @param ordinal
+     * @param score
+     */
+    void offer(int ordinal, double score) {
+        if (!(score >= minSimilarity))
+            return;
+        if (size < k) {
+            var i = size++;
+            // sift up
+            while (i > 0) {
+                var parent = (i - 1) >>> 1;
+                if (!worse(score, ordinal, scores[parent], ordinals[parent]))
+                    break;
+                scores[i] = scores[parent];
+                ordinals[i] = ordinals[parent];
+                i = parent;
+            }
+            scores[i] = score;
+            ordinals[i] = ordinal;
+        } else if (worse(scores[0], ordinals[0], score, ordinal)) {
+            siftDown(0, score, ordinal);
+        }
+    }
+
+    private void siftDown(int i, double score, int ordinal) {
+        while (true) {
+            var child = 2 * i + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size
+                    && worse(scores[child + 1], ordinals[child + 1], scores[child], ordinals[child]))
+                child++;
+            if (!worse(scores[child], ordinals[child], score, ordinal))
+                break;
+            scores[i] = scores[child];
+            ordinals[i] = ordinals[child];
+            i = child;
+        }
+        scores[i] = score;
+        ordinals[i] = ordinal;
+    }
+
+    /**
+     * Ties are broken by ordinal so the result does not depend on scan order.
+     */
+    private static boolean worse(double score1, int ordinal1, double score2, int ordinal2) {
+        if (score1 != score2)
+            return score1 < score2;
+        return ordinal1 > ordinal2;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Empties the heap into the job results, best hit first.
+     *
+     * @param store
+     * @param taskJobResults
+     */
+    void addHits(FingerprintStore store, TaskJobResults taskJobResults) {
+        var n = size;
+        var sortedOrdinals = new int[n];
+        var sortedScores = new double[n];
+        for (var i = n - 1; i >= 0; i--) {
+            sortedOrdinals[i] = ordinals[0];
+            sortedScores[i] = scores[0];
+            size--;
+            siftDown(0, scores[size], ordinals[size]);
+        }
+        for (var i = 0; i < n; i++)
+            taskJobResults.addHit(store.rowId(sortedOrdinals[i]), sortedScores[i]);
+    }
+}
@@ -571,6 +571,24 @@ class Wrappers {
             logger.warn("removeScoresMap: no map for hostname " + rmiHostname);
     }
 
+    /**
+     * Cancels a search that is still running, for example because the cursor
+     * has been closed before all the hits were fetched, and disposes of any
+     * cached similarity scores.
+     *
+     * @param rmiHostname
+     * @param jobId
+     * @throws TaskException
+     */
+    public static void cancelJob(String rmiHostname, int jobId) throws TaskException {
+        logger.info("Submitting com.cairn.rmi.task.CancelJobTask");
+        Boolean cancelled = (Boolean) TaskProxy.submit(rmiHostname,
+                "com.cairn.rmi.task.CancelJobTask", jobId);
+        logger.debug("Cancelled job " + jobId + ": " + cancelled);
+        if (scoresMap.containsKey(rmiHostname))
+            scoresMap.get(rmiHostname).remove(jobId);
+    }
+
     /**
      * Performs a table operation (that does not require parameters) on an index
      * class (e.g. structure index task class).
@@ -2,6 +2,7 @@ package com.cairn.rmi.server;
 
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
@@ -31,6 +32,15 @@ import com.cairn.rmi.common.HitListChunk;
  * the three thread groups ensures that there will never be deadlock yet
  * prevents too many threads being run.
  * <p>
+ * A batch job may be cancelled, for example when the Oracle cursor reading its
+ * results is closed, or may run past the search timeout. Searches poll
+ * isJobStopped and finish early, and results posted for a cancelled job are
+ * discarded.
+ * <p>
+ * If hit flushing is enabled a scheduled executor periodically puts any hits
+ * held by running searches on their queues, so that the first hits reach the
+ * client without waiting for a chunk to fill.
+ * <p>
  * Thread safe.
  *
  * @author gjones
@@ -66,6 +76,18 @@ public final class BatchSystem {
     private static volatile ScheduledExecutorService queueReaper;
     private static final long REAP_TIME_MINUTES = 60;
 
+    // maximum time a batch job may run, zero for no limit
+    private static volatile int searchTimeoutSeconds = 0;
+    // time a search waits to put results on a full queue before checking for
+    // cancellation
+    private static final long PUT_POLL_MILLISECONDS = 1000;
+
+    /**
+     * This executor flushes hits held by running searches
+     */
+    private static volatile ScheduledExecutorService hitFlusher;
+    private static final Set<TaskJobResults> flushResults = ConcurrentHashMap.newKeySet();
+
     private BatchSystem() {
     }
 
@@ -81,6 +103,8 @@ public final class BatchSystem {
             batchJobExecutor.shutdown();
         if (queueReaper != null)
             queueReaper.shutdown();
+        if (hitFlusher != null)
+            hitFlusher.shutdown();
     }
 
     /**
@@ -109,6 +133,8 @@ public final class BatchSystem {
                 if (time > cutoff) {
                     int jobNo = entry.getKey();
                     batchQueues.remove(jobNo);
+                    // release any search blocked on the full queue
+                    entry.getValue().cancelled = true;
                     logger.info("Job queue entry " + jobNo
                             + " cleared after " + REAP_TIME_MINUTES
                             + " minutes");
@@ -118,6 +144,15 @@ public final class BatchSystem {
         };
         queueReaper.scheduleAtFixedRate(command, 0, 10, TimeUnit.MINUTES);
 
+        long flushInterval = TaskJobResults.getFlushIntervalMilliseconds();
+        if (flushInterval > 0) {
+            hitFlusher = Executors.newSingleThreadScheduledExecutor(new BatchThreadFactory(
+                    "hitFlusherThread"));
+            long period = Math.max(1, flushInterval / 2);
+            hitFlusher.scheduleAtFixedRate(BatchSystem::flushHits, period, period,
+                    TimeUnit.MILLISECONDS);
+        }
+
         // create shutdown hooks to make sure that all executors close if the
         // JVM shutdowns.
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -129,6 +164,8 @@ public final class BatchSystem {
                     batchJobExecutor.shutdownNow();
                 if (!queueReaper.isTerminated())
                     queueReaper.shutdownNow();
+                if (hitFlusher != null && !hitFlusher.isTerminated())
+                    hitFlusher.shutdownNow();
         }));
     }
 
@@ -153,16 +190,17 @@ public final class BatchSystem {
      */
     public static HitListChunk takeResults(int jobNo) {
         HitListChunk batch = null;
-        BlockingQueue<HitListChunk> queue = batchQueues.get(jobNo).getQueue();
-        if (queue == null) {
+        JobQueue jobQueue = batchQueues.get(jobNo);
+        if (jobQueue == null) {
             logger.warn("Taking results from missing queue.  Queue has been deleted by reaper?");
             batch = new HitListChunk(jobNo, true, null, null);
             return batch;
         }
         try {
-            batch = queue.take();
+            batch = jobQueue.getQueue().take();
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
+            return new HitListChunk(jobNo, true, null, null);
         }
         if (batch.isFinished())
             batchQueues.remove(jobNo);
@@ -171,24 +209,124 @@ public final class BatchSystem {
 
     /**
      * Adds a set of results onto a queue. Note that there should never be
-     * simultaneous access to the same queue.
+     * simultaneous access to the same queue. Blocks while the queue is full,
+     * unless the job is cancelled, in which case the results are discarded.
      *
      * @param jobNo
      * @param batch
      */
     public static void putResults(int jobNo, HitListChunk batch) {
-        BlockingQueue<HitListChunk> queue = batchQueues.get(jobNo).getQueue();
-        if (queue == null) {
+        JobQueue jobQueue = batchQueues.get(jobNo);
+        if (jobQueue == null) {
             logger.warn("Putting results on missing queue.  Queue has been deleted by reaper?");
             return;
         }
         try {
-            queue.put(batch);
+            while (!jobQueue.isCancelled()) {
+                if (jobQueue.getQueue().offer(batch, PUT_POLL_MILLISECONDS,
+                        TimeUnit.MILLISECONDS))
+                    return;
+            }
+            logger.debug("Discarding results for cancelled job " + jobNo);
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
     }
 
+    /**
+     * Cancels a batch job. The job queue is removed, any results waiting on
+     * it are discarded and the search is stopped the next time it checks
+     * isJobStopped.
+     *
+     * @param jobNo
+     * @return false if there is no queue for the job, because it has finished
+     * or been reaped.
+     */
+    public static boolean cancelJob(int jobNo) {
+        JobQueue jobQueue = batchQueues.remove(jobNo);
+        if (jobQueue == null)
+            return false;
+        jobQueue.cancelled = true;
+        jobQueue.getQueue().clear();
+        logger.info("Cancelled job " + jobNo);
+        return true;
+    }
+
+    /**
+     * Determines if a batch job should stop searching: it has been cancelled,
+     * its queue has been reaped or it has run past the search timeout.
+     *
+     * @param jobNo
+     * @return
+     */
+    public static boolean isJobStopped(int jobNo) {
+        JobQueue jobQueue = batchQueues.get(jobNo);
+        return jobQueue == null || jobQueue.isCancelled() || jobQueue.isTimedOut();
+    }
+
+    /**
+     * @param jobNo
+     * @return true if the job is still queued and has run past the search
+     * timeout.
+     */
+    public static boolean isJobTimedOut(int jobNo) {
+        JobQueue jobQueue = batchQueues.get(jobNo);
+        return jobQueue != null && jobQueue.isTimedOut();
+    }
+
+    /**
+     * @param jobNo
+     * @return true if results can be put on the job queue without blocking
+     */
+    static boolean hasQueueCapacity(int jobNo) {
+        JobQueue jobQueue = batchQueues.get(jobNo);
+        return jobQueue != null && !jobQueue.isCancelled()
+                && jobQueue.getQueue().remainingCapacity() > 0;
+    }
+
+    /**
+     * Registers search results whose hits should be flushed periodically.
+     * They are unregistered once finished.
+     *
+     * @param taskJobResults
+     */
+    static void registerForFlush(TaskJobResults taskJobResults) {
+        flushResults.add(taskJobResults);
+    }
+
+    /**
+     * Flushes any hits that have been held for the flush interval.
+     */
+    private static void flushHits() {
+        try {
+            for (TaskJobResults taskJobResults : flushResults) {
+                // results that are never finished are dropped once their
+                // queue is removed
+                if (!taskJobResults.flushIfDue()
+                        || !batchQueues.containsKey(taskJobResults.getJobNo()))
+                    flushResults.remove(taskJobResults);
+            }
+        } catch (RuntimeException e) {
+            // an exception would cancel the scheduled flushes
+            logger.error("Exception flushing hits", e);
+        }
+    }
+
+    /**
+     * @return the searchTimeoutSeconds
+     */
+    public static int getSearchTimeoutSeconds() {
+        return searchTimeoutSeconds;
+    }
+
+    /**
+     * @param searchTimeoutSeconds the maximum time a batch job may run. Zero
+     *                             or less for no limit.
+     */
+    public static void setSearchTimeoutSeconds(int searchTimeoutSeconds) {
+        BatchSystem.searchTimeoutSeconds = Math.max(0, searchTimeoutSeconds);
+    }
+
     /**
      * @return the taskExecutor
      */
@@ -211,7 +349,8 @@ public final class BatchSystem {
     }
 
     /**
-     * A class to hold the result queue together with date created.
+     * A class to hold the result queue together with date created, deadline
+     * and cancellation flag.
      *
      * @author gjones
      */
@@ -219,6 +358,9 @@ public final class BatchSystem {
         private final BlockingQueue<HitListChunk> queue = new ArrayBlockingQueue<>(
                 200);
         private final long timeCreated = System.currentTimeMillis();
+        private final long deadline = searchTimeoutSeconds > 0
+                ? timeCreated + searchTimeoutSeconds * 1000L : 0L;
+        private volatile boolean cancelled = false;
 
         /**
          * @return the queue
@@ -234,6 +376,20 @@ public final class BatchSystem {
             return timeCreated;
         }
 
+        /**
+         * @return the cancelled
+         */
+        boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * @return true if the job has a deadline and it has passed
+         */
+        boolean isTimedOut() {
+            return deadline > 0 && System.currentTimeMillis() > deadline;
+        }
+
     }
 
 }
@@ -1,12 +1,26 @@
 package com.cairn.rmi.server;
 
+import com.cairn.rmi.TaskException;
 import com.cairn.rmi.common.HitListChunk;
 import org.apache.commons.collections.CollectionUtils;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A class to facilitate putting results in chunks on the job queue.
+ * <p>
+ * Hits are put on the queue once a chunk is full. If hit flushing is enabled
+ * pending hits are also put on the queue once the flush interval has passed
+ * since the last chunk, so a selective search returns its first few hits
+ * without waiting for the scan to finish.
+ * <p>
+ * Chunks are made while holding the monitor but are put on the queue
+ * outside it, as the put blocks while the queue is full. Chunks wait in a
+ * pending list and are put on the queue in order by whichever thread holds
+ * the put lock.
  *
  * @author Gareth Jones
  */
@@ -14,20 +28,68 @@ public class TaskJobResults {
     private final int jobNo;
     private final ArrayList<byte[]> hits = new ArrayList<>();
     private final ArrayList<Double> scoreList = new ArrayList<>();
+    private final ArrayList<Integer> queryIndexList = new ArrayList<>();
     private volatile boolean start = true, finished = false;
     // The first chunk size can be different so as to return initial results to
     // the user as soon as possible.
     private static final int FIRST_CHUNK_SIZE = 100, CHUNK_SIZE = 2000;
+    // maximum time hits are held before being put on the queue, zero to
+    // only put full chunks on the queue
+    private static volatile long flushIntervalMilliseconds = 0;
+    private long lastFlushTime = System.currentTimeMillis();
+    // chunks made but not yet on the queue, guarded by the monitor
+    private final ArrayDeque<HitListChunk> pendingChunks = new ArrayDeque<>();
+    // held while putting pending chunks on the queue, which may block
+    private final ReentrantLock putLock = new ReentrantLock();
     private final boolean hasScores;
+    private final boolean hasQueryIndices;
+    // optional copy of all hits, so that results can be cached
+    private ArrayList<byte[]> recordedHits;
+    private ArrayList<Double> recordedScores;
+    private int maxRecordedHits;
+    // set once the job is cancelled or timed out
+    private volatile boolean stopped = false;
 
     /**
      * @param jobNo
      * @param hasScores
      */
     public TaskJobResults(int jobNo, boolean hasScores) {
+        this(jobNo, hasScores, false);
+    }
+
+    /**
+     * @param jobNo
+     * @param hasScores
+     * @param hasQueryIndices set for searches with many queries, where each hit
+     *                        records the index of the query it matches
+     */
+    public TaskJobResults(int jobNo, boolean hasScores, boolean hasQueryIndices) {
         super();
         this.jobNo = jobNo;
         this.hasScores = hasScores;
+        this.hasQueryIndices = hasQueryIndices;
+        if (flushIntervalMilliseconds > 0)
+            BatchSystem.registerForFlush(this);
+    }
+
+    /**
+     * Posts a hit from a search with many queries
+     *
+     * @param queryIndex
+     * @param hit
+     * @param score
+     */
+    public void addHit(int queryIndex, byte[] hit, Double score) {
+        if (!hasQueryIndices)
+            throw new IllegalStateException("Query index present!");
+        boolean chunkMade;
+        synchronized (this) {
+            queryIndexList.add(queryIndex);
+            chunkMade = postHit(hit, score);
+        }
+        if (chunkMade)
+            putPendingChunks();
     }
 
     /**
@@ -36,10 +98,38 @@ public class TaskJobResults {
      * @param hit
      * @param score
      */
-    public synchronized void addHit(byte[] hit, Double score) {
+    public void addHit(byte[] hit, Double score) {
+        if (hasQueryIndices)
+            throw new IllegalStateException("No query index present!");
+        boolean chunkMade;
+        synchronized (this) {
+            chunkMade = postHit(hit, score);
+        }
+        if (chunkMade)
+            putPendingChunks();
+    }
+
+    /**
+     * Adds a hit to the current chunk. Called holding the monitor.
+     *
+     * @param hit
+     * @param score
+     * @return true if a chunk was made that needs putting on the queue
+     */
+    private boolean postHit(byte[] hit, Double score) {
         if (finished)
             throw new IllegalStateException("The search is finished");
         hits.add(hit);
+        if (recordedHits != null) {
+            if (recordedHits.size() < maxRecordedHits) {
+                recordedHits.add(hit);
+                recordedScores.add(score);
+            } else {
+                // too many hits to keep
+                recordedHits = null;
+                recordedScores = null;
+            }
+        }
 
         if (hasScores && score == null)
             throw new IllegalStateException("No score present!");
@@ -48,30 +138,150 @@ public class TaskJobResults {
         if (hasScores)
             scoreList.add(score);
 
-        // put new chunks on the job queue if necessary
+        // make new chunks for the job queue if necessary
         if (start && hits.size() == FIRST_CHUNK_SIZE) {
-            putJobResultsOnQueue(false);
+            makeChunk(false);
             start = false;
         } else if (hits.size() == CHUNK_SIZE) {
-            putJobResultsOnQueue(false);
+            makeChunk(false);
+        } else if (flushIntervalMilliseconds > 0
+                && System.currentTimeMillis() - lastFlushTime >= flushIntervalMilliseconds) {
+            makeChunk(false);
+            start = false;
+        } else {
+            return false;
         }
+        return true;
+    }
+
+    /**
+     * Keeps a copy of all the hits posted from now on.
+     *
+     * @param maxRecordedHits stop recording if there are more hits than this
+     */
+    public synchronized void recordHits(int maxRecordedHits) {
+        this.maxRecordedHits = maxRecordedHits;
+        recordedHits = new ArrayList<>();
+        recordedScores = new ArrayList<>();
+    }
 
+    /**
+     * @return all the hits posted since recording started, or null if there
+     * were too many.
+     */
+    public synchronized List<byte[]> getRecordedHits() {
+        return recordedHits;
+    }
+
+    /**
+     * @return the scores of the recorded hits, or null if there were too many
+     * hits.
+     */
+    public synchronized List<Double> getRecordedScores() {
+        return recordedScores;
+    }
+
+    /**
+     * Determines if the search should stop because the job has been cancelled
+     * or has run past the search timeout. Searches should poll this
+     * periodically, rather than for every row. Once the results are finished
+     * this reports whether the search was stopped early.
+     *
+     * @return
+     */
+    public boolean isStopped() {
+        if (!stopped && !finished && BatchSystem.isJobStopped(jobNo))
+            stopped = true;
+        return stopped;
+    }
+
+    /**
+     * @return true if the search has scores
+     */
+    public boolean isHasScores() {
+        return hasScores;
+    }
+
+    /**
+     * Puts any pending hits on the queue if the flush interval has passed
+     * since the last chunk. Called periodically by the batch system, so hits
+     * are flushed even if no more are found. Does not block: jobs that are
+     * putting chunks on the queue are skipped, and nothing is flushed if the
+     * job queue is full.
+     *
+     * @return false if the results are finished and need no more flushing
+     */
+    boolean flushIfDue() {
+        // don't wait on a search that is blocked on a full queue
+        if (!putLock.tryLock())
+            return !finished;
+        try {
+            synchronized (this) {
+                if (finished)
+                    return false;
+                if (hits.isEmpty()
+                        || System.currentTimeMillis() - lastFlushTime < flushIntervalMilliseconds)
+                    return true;
+                if (!BatchSystem.hasQueueCapacity(jobNo))
+                    return true;
+                makeChunk(false);
+                start = false;
+            }
+            putChunks();
+        } finally {
+            putLock.unlock();
+        }
+        return true;
     }
 
     /**
      * Finish the search
      */
-    public synchronized void finish() {
-        finished = true;
-        putJobResultsOnQueue(true);
+    public void finish() {
+        synchronized (this) {
+            // the job queue is removed once the consumer takes the last chunk
+            isStopped();
+            finished = true;
+            makeChunk(true);
+        }
+        putPendingChunks();
     }
 
     /**
-     * Create and post a new chunk to the job queue.
+     * Puts the pending chunks on the job queue, in order. Blocks while the
+     * queue is full, without holding the monitor.
+     */
+    private void putPendingChunks() {
+        putLock.lock();
+        try {
+            putChunks();
+        } finally {
+            putLock.unlock();
+        }
+    }
+
+    /**
+     * Puts the pending chunks on the job queue. Called holding the put lock.
+     */
+    private void putChunks() {
+        while (true) {
+            HitListChunk chunk;
+            synchronized (this) {
+                chunk = pendingChunks.poll();
+            }
+            if (chunk == null)
+                return;
+            BatchSystem.putResults(jobNo, chunk);
+        }
+    }
+
+    /**
+     * Create a new chunk from the current hits and add it to the pending
+     * chunks. Called holding the monitor.
      *
      * @param finished
      */
-    private void putJobResultsOnQueue(boolean finished) {
+    private void makeChunk(boolean finished) {
         String[] hitlist = null;
         if (CollectionUtils.isNotEmpty(hits)) {
             hitlist = hits.stream().map(String::new).toArray(String[]::new);
@@ -82,8 +292,35 @@ public class TaskJobResults {
             scores = scoreList.stream().mapToDouble(d -> d).toArray();
             scoreList.clear();
         }
-        HitListChunk chunk = new HitListChunk(jobNo, finished, hitlist, scores);
-        BatchSystem.putResults(jobNo, chunk);
+        int[] queryIndices = null;
+        if (hasQueryIndices && CollectionUtils.isNotEmpty(queryIndexList)) {
+            queryIndices = queryIndexList.stream().mapToInt(i -> i).toArray();
+            queryIndexList.clear();
+        }
+        lastFlushTime = System.currentTimeMillis();
+        HitListChunk chunk = new HitListChunk(jobNo, finished, hitlist, scores, queryIndices);
+        // let the consumer know that the results are incomplete
+        if (finished && BatchSystem.isJobTimedOut(jobNo))
+            chunk.setException(new TaskException("Search job " + jobNo
+                    + " stopped after exceeding the search timeout of "
+                    + BatchSystem.getSearchTimeoutSeconds() + " seconds"));
+        pendingChunks.add(chunk);
+    }
+
+    /**
+     * @return the flushIntervalMilliseconds
+     */
+    public static long getFlushIntervalMilliseconds() {
+        return flushIntervalMilliseconds;
+    }
+
+    /**
+     * @param flushIntervalMilliseconds the maximum time hits are held before
+     *                                  being put on the queue. Zero or less to
+     *                                  only put full chunks on the queue.
+     */
+    public static void setFlushIntervalMilliseconds(long flushIntervalMilliseconds) {
+        TaskJobResults.flushIntervalMilliseconds = Math.max(0, flushIntervalMilliseconds);
     }
 
     /**
@@ -24,11 +24,15 @@ import org.apache.log4j.PropertyConfigurator;
 import com.cairn.rmi.TaskException;
 import com.cairn.rmi.TaskInterface;
 import com.cairn.rmi.TaskManagerInterface;
+import com.cairn.rmi.index.IndexBase;
 import com.cairn.rmi.index.IndexBuildPool;
+import com.cairn.rmi.index.SearchResultCache;
+import com.cairn.rmi.index.SimilaritySearchPool;
 import com.cairn.rmi.index.SubstructureSearchPool;
 import com.cairn.rmi.index.TableIndex;
 import com.cairn.rmi.task.TableIndexTask;
 import com.cairn.common.MoleculeCache;
+import com.cairn.common.SubstructureQueryCache;
 
 /**
  * Implements the task manager interface as an RMI server. See add-stub.sh for
@@ -217,6 +221,12 @@ public class TaskManagerImpl extends UnicastRemoteObject implements TaskManagerI
         }
 
         nThreads = Integer.parseInt(properties.getProperty("task_manager.n_threads"));
+        int searchTimeoutSeconds = Integer.parseInt(properties
+                .getProperty("task_manager.search_timeout_seconds", "0"));
+        BatchSystem.setSearchTimeoutSeconds(searchTimeoutSeconds);
+        long hitFlushMilliseconds = Long.parseLong(properties
+                .getProperty("task_manager.hit_flush_milliseconds", "0"));
+        TaskJobResults.setFlushIntervalMilliseconds(hitFlushMilliseconds);
 
         System.setProperty("java.security.policy", policyFile);
         System.setProperty("java.rmi.server.hostname", rmiHostname);
@@ -231,9 +241,15 @@ public class TaskManagerImpl extends UnicastRemoteObject implements TaskManagerI
         int cacheSize = Integer.parseInt(properties
                 .getProperty("molecule_cache.cache_size"));
 
+        int cacheSizeMb = Integer.parseInt(properties
+                .getProperty("molecule_cache.size_mb", "0"));
+
         MoleculeCache.setUseMoleculeCache(useMoleculeCache);
         // Always create cache, so we can turn it off dynamically, especially for client testing
-        MoleculeCache.createMoleculeCache(cacheSize);
+        if (cacheSizeMb > 0)
+            MoleculeCache.createMoleculeCacheMb(cacheSizeMb);
+        else
+            MoleculeCache.createMoleculeCache(cacheSize);
         if (!setupConnection()) {
             return;
         }
@@ -253,14 +269,79 @@ public class TaskManagerImpl extends UnicastRemoteObject implements TaskManagerI
         IndexBuildPool.setUseIndexBuildPool(useIndexBuildPool);
         IndexBuildPool.setnThreads(indexBuildPoolNThreads);
 
+        boolean useSimilaritySearchPool = Boolean.parseBoolean(properties
+                .getProperty("structure_search.use_similarity_search_thread_pool", "false"));
+        int similaritySearchPoolNThreads = Integer.parseInt(properties
+                .getProperty("similarity_search_thread_pool.n_threads", "0"));
+        SimilaritySearchPool.setUseSimilaritySearchPool(useSimilaritySearchPool);
+        SimilaritySearchPool.setnThreads(similaritySearchPoolNThreads);
+
+        boolean useSearchResultCache = Boolean.parseBoolean(properties
+                .getProperty("structure_search.use_search_result_cache", "false"));
+        int searchResultCacheSize = Integer.parseInt(properties
+                .getProperty("search_result_cache.size_mb", "64"));
+        SearchResultCache.setUseSearchResultCache(useSearchResultCache);
+        SearchResultCache.setCacheSizeMb(searchResultCacheSize);
+
+        boolean useSubstructureQueryCache = Boolean.parseBoolean(properties
+                .getProperty("structure_search.use_substructure_query_cache", "false"));
+        int substructureQueryCacheSize = Integer.parseInt(properties
+                .getProperty("substructure_query_cache.cache_size", "1000"));
+        SubstructureQueryCache.setUseSubstructureQueryCache(useSubstructureQueryCache);
+        SubstructureQueryCache.setCacheSize(substructureQueryCacheSize);
+
+        boolean useChangeLogIngester = Boolean.parseBoolean(properties
+                .getProperty("table_index.use_change_log_ingester", "false"));
+        long ingestIntervalMs = Long.parseLong(properties
+                .getProperty("change_log_ingester.ingest_interval_ms", "1000"));
+        boolean readYourWrites = Boolean.parseBoolean(properties
+                .getProperty("change_log_ingester.read_your_writes", "false"));
+        IndexBase.setUseChangeLogIngester(useChangeLogIngester);
+        IndexBase.setIngestIntervalMilliseconds(ingestIntervalMs);
+        IndexBase.setReadYourWrites(readYourWrites);
+
+        boolean useCompactor = Boolean.parseBoolean(properties
+                .getProperty("table_index.use_compactor", "false"));
+        int compactionMinRows = Integer.parseInt(properties
+                .getProperty("compactor.min_rows", "100000"));
+        double compactionDeltaFraction = Double.parseDouble(properties
+                .getProperty("compactor.delta_fraction", "0.1"));
+        TableIndex.setUseCompactor(useCompactor);
+        TableIndex.setCompactionMinRows(compactionMinRows);
+        TableIndex.setCompactionDeltaFraction(compactionDeltaFraction);
+
+        boolean useJournal = Boolean.parseBoolean(properties
+                .getProperty("table_index.use_journal", "false"));
+        int journalCheckpointMb = Integer.parseInt(properties
+                .getProperty("journal.checkpoint_mb", "256"));
+        TableIndex.setUseJournal(useJournal);
+        TableIndex.setJournalCheckpointMb(journalCheckpointMb);
+
         logger.info("Thread pool size             : " + nThreads);
+        logger.info("Search timeout seconds       : " + searchTimeoutSeconds);
+        logger.info("Hit flush milliseconds       : " + hitFlushMilliseconds);
         logger.info("Use molecule cache           : "
                 + MoleculeCache.isUseMoleculeCache());
         logger.info("Cache Size                   : " + cacheSize);
+        logger.info("Cache Size MB                : " + cacheSizeMb);
         logger.info("Use sub search thread pool   : " + useSubstructureSearchPool);
         logger.info("Sub search thread pool size  : " + substructureSearchPoolNThreads);
         logger.info("Use index build thread pool  : " + useIndexBuildPool);
         logger.info("Index build thread pool size : " + indexBuildPoolNThreads);
+        logger.info("Use sim search thread pool   : " + useSimilaritySearchPool);
+        logger.info("Sim search thread pool size  : " + SimilaritySearchPool.getnThreads());
+        logger.info("Use search result cache      : " + useSearchResultCache);
+        logger.info("Search result cache size MB  : " + searchResultCacheSize);
+        logger.info("Use sub query cache          : " + useSubstructureQueryCache);
+        logger.info("Sub query cache size         : " + substructureQueryCacheSize);
+        logger.info("Use change log ingester      : " + useChangeLogIngester);
+        logger.info("Ingest interval ms           : " + ingestIntervalMs);
+        logger.info("Read your writes             : " + readYourWrites);
+        logger.info("Use compactor                : " + useCompactor);
+        logger.info("Compaction min rows          : " + compactionMinRows);
+        logger.info("Compaction delta fraction    : " + compactionDeltaFraction);
+        logger.info("Use journal                  : " + useJournal);
+        logger.info("Journal checkpoint MB        : " + journalCheckpointMb);
         logger.info("Java policy file             : "
                 + System.getProperty("java.security.policy"));
         logger.info("Java rmi host                : "
@@ -0,0 +1,41 @@
+package com.cairn.rmi.task;
+
+import com.cairn.rmi.server.BatchSystem;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * This task cancels a running batch job, for example when the Oracle cursor
+ * reading its results has been closed. The search stops the next time it
+ * checks for cancellation and any unread results are discarded. Like
+ * HitListChunkTask it does not use the normal task executor, as that may be
+ * filled with running jobs.
+ * 
+ * The task takes a integer job number as its settings object and returns a
+ * Boolean, which is false if the job had already finished.
+ * 
+ * @author Gareth Jones
+ *
+ */
+public class CancelJobTask extends AbstractTask {
+	private static final long serialVersionUID = 1000L;
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.cairn.rmi.task.AbstractTask#getExecutorService()
+	 */
+	@Override
+	protected ExecutorService getExecutorService() {
+		return BatchSystem.getHitListExecutor();
+	}
+
+	@Override
+	public Object submitTask() {
+		int jobNo = (Integer) settings;
+		Boolean cancelled = BatchSystem.cancelJob(jobNo);
+		results = cancelled;
+		return cancelled;
+	}
+
+}
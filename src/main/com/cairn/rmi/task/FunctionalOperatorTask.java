@@ -46,14 +46,18 @@ public class FunctionalOperatorTask extends AbstractTask {
 							+ target + "[ query type : " + queryType + "]");
 
 					var matcher = new SubstructureMatcher(queryType, query);
-					var molOpt = RDKitOps.smilesToMol(target, false);
-					var match = molOpt.map(mol -> {
-						var m = matcher.matchStructure(mol, null);
-						mol.delete();
-						return m;
-					});
-					results = match;
-					return match;
+					try {
+						var molOpt = RDKitOps.smilesToMol(target, false);
+						var match = molOpt.map(mol -> {
+							var m = matcher.matchStructure(mol, null);
+							mol.delete();
+							return m;
+						});
+						results = match;
+						return match;
+					} finally {
+						matcher.free();
+					}
 
 				}
 				case "similarity": {
@@ -97,13 +97,44 @@ import com.cairn.rmi.server.TaskUtil;
  * <p>
  * Returns the tanimoto similarity between two rowIds.
  * <p>
+ * bit_statistics
+ * <p>
+ * Returns the number and fraction of rows with each pattern fingerprint bit
+ * set, one tab separated line per bit. Substructure screening tests the
+ * rarest query bits first.
+ * <p>
  * similarity_sql_filter
  * <p>
  * Like similarity with a pre-search sql filter command.
  * <p>
+ * similarity_topk
+ * <p>
+ * Returns the top_k most similar rows to the query, best first. The optional
+ * min_similarity key sets a floor on the similarity of the hits. If the
+ * fingerprint_type key is set, the search uses that extended fingerprint and
+ * the search_method, arg1 and arg2 keys as for extended_similarity, otherwise
+ * the pattern fingerprint and Tanimoto similarity are used.
+ * <p>
+ * batch_similarity
+ * <p>
+ * Does similarity searches for many queries in a single pass of the index:
+ * requires queries key (containing an array of smiles) and keys for max_hits
+ * (applied to each query) and min_similarity. Results are returned as for
+ * similarity, with an additional array of query indices giving the query that
+ * each hit matches.
+ * <p>
  * substructure_sql_filter
  * <p>
  * Like substructure with a pre-search sql filter command.
+ * <p>
+ * batch_substructure
+ * <p>
+ * Does substructure searches for many queries, such as a library of
+ * structural alerts, in a single pass of the index: requires queries key
+ * (containing an array of smarts or MDL queries), query_type and max_hits
+ * (applied to each query) keys. Returns an array of matching rowids and an
+ * array of query indices giving the query that each hit matches, so a row
+ * appears once for each query it matches.
  *
  * @author Gareth Jones
  * @see TableIndex
@@ -206,6 +237,26 @@ public class TableIndexTask extends AbstractTask {
 
                     break;
                 }
+                case "batch_substructure": {
+
+                    // substructure search for many queries
+                    final TableIndex index = getTableIndex(ownerName, tableName, columnName);
+                    index.loadIndex();
+                    final String[] queries = (String[]) parameters.get("queries");
+                    logger.info("Batch substructure search of " + queries.length + " queries on index "
+                            + infoName);
+                    final String queryType = (String) parameters.get("query_type");
+                    final int maxHits = (Integer) parameters.get("max_hits");
+                    TaskJob taskJob = new TaskJob() {
+                        @Override
+                        public void runSearch() throws TaskException {
+                            index.batchSubstructureSearch(getJobNo(), queries, queryType, maxHits);
+                        }
+                    };
+                    results = taskJob.runJob();
+
+                    break;
+                }
                 case "similarity": {
 
                     // similarity search operation
@@ -248,6 +299,55 @@ public class TableIndexTask extends AbstractTask {
 
                     break;
                 }
+                case "similarity_topk": {
+
+                    // top k similarity search operation
+                    final TableIndex index = getTableIndex(ownerName, tableName, columnName);
+                    index.loadIndex();
+                    logger.info("Top K similarity search on index " + infoName);
+                    final String query = (String) parameters.get("query");
+                    final int topK = (Integer) parameters.get("top_k");
+                    final Double minSimilarityParameter = (Double) parameters.get("min_similarity");
+                    final double minSimilarity = minSimilarityParameter == null ? 0.0 : minSimilarityParameter;
+                    final String fingerprintType = (String) parameters.get("fingerprint_type");
+                    final String searchMethod = (String) parameters.get("search_method");
+                    final Double alpha = (Double) parameters.get("arg1");
+                    final Double beta = (Double) parameters.get("arg2");
+                    TaskJob taskJob = new TaskJob() {
+                        @Override
+                        public void runSearch() throws TaskException {
+                            if (fingerprintType == null)
+                                index.similarityTopKSearch(getJobNo(), query, topK, minSimilarity);
+                            else
+                                index.extendedSimilarityTopKSearch(getJobNo(), fingerprintType,
+                                        searchMethod == null ? "tanimoto" : searchMethod, query, topK,
+                                        minSimilarity, alpha, beta);
+                        }
+                    };
+                    results = taskJob.runJob();
+
+                    break;
+                }
+                case "batch_similarity": {
+
+                    // similarity search for many queries
+                    final TableIndex index = getTableIndex(ownerName, tableName, columnName);
+                    index.loadIndex();
+                    final String[] queries = (String[]) parameters.get("queries");
+                    logger.info("Batch similarity search of " + queries.length + " queries on index "
+                            + infoName);
+                    final int maxHits = (Integer) parameters.get("max_hits");
+                    final double minSimilarity = (Double) parameters.get("min_similarity");
+                    TaskJob taskJob = new TaskJob() {
+                        @Override
+                        public void runSearch() throws TaskException {
+                            index.batchSimilaritySearch(getJobNo(), queries, minSimilarity, maxHits);
+                        }
+                    };
+                    results = taskJob.runJob();
+
+                    break;
+                }
                 case "exact_match": {
 
                     // exact match search operation
@@ -287,6 +387,7 @@ public class TableIndexTask extends AbstractTask {
                     logger.info("Index build or rebuild full on " + infoName);
                     String params = (String) parameters.get("params");
                     index.createFingerprintTypes(params);
+                    index.createIndexOptions(params);
                     index.buildIndex();
                     results = true;
 
@@ -305,6 +406,7 @@ public class TableIndexTask extends AbstractTask {
                         // remove the index from the lookup first in case an
                         // exception is thrown deleting the index
                         indexes.remove(key);
+                        index.stopChangeLogIngester();
                         index.deleteIndex();
                         results = true;
                     }
@@ -327,7 +429,11 @@ public class TableIndexTask extends AbstractTask {
                     logger.info("Removing index from memory for " + infoName);
                     String key = TaskUtil.getIndexKey(ownerName, tableName, columnName);
                     synchronized (getIndexLock(key)) {
-                        indexes.remove(key);
+                        TableIndex index = indexes.remove(key);
+                        if (index != null) {
+                            index.stopChangeLogIngester();
+                            index.closeJournal();
+                        }
                         results = true;
                     }
 
@@ -386,6 +492,15 @@ public class TableIndexTask extends AbstractTask {
 
                     break;
                 }
+                case "bit_statistics": {
+
+                    // fingerprint bit occupancy for diagnostics
+                    TableIndex index = getTableIndex(ownerName, tableName, columnName);
+                    index.loadIndex();
+                    results = index.bitStatistics();
+
+                    break;
+                }
                 case "tanimoto_smilarity": {
 
                     // determine tanimoto similarity between two rows
@@ -0,0 +1,66 @@
+package com.cairn.common;
+
+import com.cairn.rmi.util.LoadSmiles;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.cairn.common.SubstructureMatcher.SubSearchQueryType.SMARTS;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that molecules rebuilt from binary pickles are the same as those
+ * parsed from smiles, and match substructure queries in the same way.
+ *
+ * @author Gareth Jones
+ */
+class TestMolPickles {
+    private static final int N_STRUCTURES = 200;
+    private static List<String> smiles;
+
+    @BeforeAll
+    static void init() {
+        Util.loadRdkit();
+        smiles = new LoadSmiles("/en1000.smi.gz", true).read().subList(0, N_STRUCTURES).stream()
+                .map(LoadSmiles.SmilesAndId::getSmiles).collect(Collectors.toList());
+    }
+
+    @Test
+    void testPickleRoundTrip() {
+        for (var s : smiles) {
+            var mol = RDKitOps.smilesToMol(s).get();
+            var pickle = RDKitOps.molToPickle(mol);
+            var pickledMol = RDKitOps.molFromPickle(pickle);
+            assertEquals(RDKitOps.canonicalize(mol), RDKitOps.canonicalize(pickledMol),
+                    "Pickle error for " + s);
+            var binaryMol = RDKitOps.molFromBinary(RDKitOps.molToBinary(mol));
+            assertEquals(RDKitOps.canonicalize(mol), RDKitOps.canonicalize(binaryMol),
+                    "Binary error for " + s);
+            mol.delete();
+            pickledMol.delete();
+            binaryMol.delete();
+        }
+    }
+
+    @Test
+    void testMatchPickle() {
+        var queries = new String[]{"c1ccccc1", "C(=O)[OH]", "[#7]", "C1CCCCC1", "[Cl,Br,I]"};
+        for (var query : queries) {
+            var matcher = new SubstructureMatcher(SMARTS, query);
+            try {
+                for (var s : smiles) {
+                    var mol = RDKitOps.smilesToMol(s).get();
+                    var cansmi = RDKitOps.canonicalize(mol);
+                    var pickle = RDKitOps.molToPickle(mol);
+                    mol.delete();
+                    assertEquals(matcher.matchStructure(cansmi, true, null),
+                            matcher.matchPickle(pickle, cansmi), "Match error for " + query + " " + s);
+                }
+            } finally {
+                matcher.free();
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.cairn.common;
+
+import com.cairn.rmi.util.LoadSmiles;
+import org.RDKit.ROMol;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that cached molecules are shared, that a molecule evicted from the
+ * cache is not deleted while it is still in use and that a scan of molecules
+ * that are used once does not evict frequently used molecules.
+ *
+ * @author Gareth Jones
+ */
+class TestMoleculeCache {
+    private static List<String> smiles;
+
+    @BeforeAll
+    static void init() {
+        Util.loadRdkit();
+        smiles = new LoadSmiles("/en1000.smi.gz", true).read().stream()
+                .map(LoadSmiles.SmilesAndId::getSmiles).collect(Collectors.toList());
+    }
+
+    @Test
+    void testCacheHit() {
+        MoleculeCache.createMoleculeCache(1000);
+        var cache = MoleculeCache.getMoleculeCache();
+        var first = new AtomicReference<ROMol>();
+        cache.useMolecule(first::set, "c1ccccc1O");
+        var second = new AtomicReference<ROMol>();
+        cache.useMolecule(second::set, "c1ccccc1O");
+        assertSame(first.get(), second.get());
+        assertEquals(7, second.get().getNumAtoms());
+
+        // smiles that cannot be parsed are not passed on
+        cache.useMolecule(mol -> fail("Unexpected molecule"), "c1cccc1X");
+    }
+
+    @Test
+    void testEvictedWhileInUse() {
+        // too small to hold any molecule, so each is evicted as it is added
+        MoleculeCache.createMoleculeCache(1);
+        var cache = MoleculeCache.getMoleculeCache();
+        var used = new AtomicReference<ROMol>();
+        cache.useMolecule(mol -> {
+            used.set(mol);
+            for (var s : smiles.subList(0, 100))
+                cache.useMolecule(other -> assertTrue(other.getNumAtoms() > 0), s);
+            // the evicted molecule is still held by this thread
+            assertEquals(7, mol.getNumAtoms());
+        }, "c1ccccc1O");
+
+        var next = new AtomicReference<ROMol>();
+        cache.useMolecule(next::set, "c1ccccc1O");
+        assertNotSame(used.get(), next.get());
+    }
+
+    @Test
+    void testConcurrentUse() throws InterruptedException {
+        // small enough that molecules are evicted while other threads use them
+        MoleculeCache.createMoleculeCache(50);
+        var cache = MoleculeCache.getMoleculeCache();
+        var expected = new ArrayList<Integer>();
+        for (var s : smiles.subList(0, 200))
+            expected.add(RDKitOps.smilesToMol(s).map(mol -> {
+                var nAtoms = (int) mol.getNumAtoms();
+                mol.delete();
+                return nAtoms;
+            }).orElse(-1));
+
+        var error = new AtomicReference<Throwable>();
+        var threads = new ArrayList<Thread>();
+        for (var t = 0; t < 8; t++) {
+            var offset = t * 17;
+            var thread = new Thread(() -> {
+                try {
+                    for (var i = 0; i < 2000; i++) {
+                        var index = (offset + i * 7) % 200;
+                        cache.useMolecule(mol -> assertEquals((int) expected.get(index),
+                                (int) mol.getNumAtoms()), smiles.get(index));
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (var thread : threads)
+            thread.join();
+        assertNull(error.get());
+    }
+
+    @Test
+    void testScanResistance() {
+        // each stripe holds a few molecules, so the scan fills the stripes
+        var nStripes = 2 * Math.max(16, Runtime.getRuntime().availableProcessors() * 4);
+        MoleculeCache.createMoleculeCache(4 * nStripes);
+        var cache = MoleculeCache.getMoleculeCache();
+        var hot = new AtomicReference<ROMol>();
+        for (var i = 0; i < 5; i++)
+            cache.useMolecule(hot::set, "c1ccccc1O");
+
+        for (var s : smiles)
+            cache.useMolecule(mol -> assertTrue(mol.getNumAtoms() > 0), s);
+
+        // the frequently used molecule is still cached
+        var after = new AtomicReference<ROMol>();
+        cache.useMolecule(after::set, "c1ccccc1O");
+        assertSame(hot.get(), after.get());
+    }
+}
@@ -0,0 +1,105 @@
+package com.cairn.common;
+
+import com.cairn.rmi.util.LoadSmiles;
+import org.RDKit.RDKFuncs;
+import org.RDKit.SparseIntVectu32;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks the Morgan fingerprint similarity kernels against the RDKit
+ * SparseIntVect similarity functions.
+ *
+ * @author Gareth Jones
+ */
+class TestMorganFingerprint {
+    private static final int N_STRUCTURES = 100;
+    private static final List<SparseIntVectu32> rdkitFingerprints = new ArrayList<>();
+    private static final List<MorganFingerprint> fingerprints = new ArrayList<>();
+
+    @BeforeAll
+    static void init() {
+        Util.loadRdkit();
+        var structures = new LoadSmiles("/en1000.smi.gz", true).read();
+        for (var structure : structures.subList(0, N_STRUCTURES)) {
+            var fp = RDKitOps.smilesToMol(structure.getSmiles())
+                    .map(RDKitOps.ExtendedFingerPrintType.ECFP4::createFingerprint).get();
+            rdkitFingerprints.add(fp);
+            fingerprints.add(MorganFingerprint.fromSparseIntVect(fp));
+        }
+    }
+
+    @AfterAll
+    static void finish() {
+        rdkitFingerprints.forEach(SparseIntVectu32::delete);
+    }
+
+    @Test
+    void testRoundTrip() {
+        for (var i = 0; i < N_STRUCTURES; i++) {
+            var fp = fingerprints.get(i);
+            var keys = fp.getKeys();
+            for (var k = 1; k < keys.length; k++)
+                assertTrue(Integer.compareUnsigned(keys[k - 1], keys[k]) < 0);
+            assertEquals(fp.toMap(), MorganFingerprint.fromMap(fp.toMap()).toMap());
+            var copy = fp.toSparseIntVect();
+            assertEquals(1.0, RDKFuncs.TanimotoSimilaritySIVu32(rdkitFingerprints.get(i), copy), 1e-9);
+            copy.delete();
+        }
+    }
+
+    @Test
+    void testTanimoto() {
+        compareSimilarities(MorganFingerprint.SimilarityMethod.TANIMOTO, 0.0, 0.0);
+    }
+
+    @Test
+    void testDice() {
+        compareSimilarities(MorganFingerprint.SimilarityMethod.DICE, 0.0, 0.0);
+    }
+
+    @Test
+    void testTversky() {
+        compareSimilarities(MorganFingerprint.SimilarityMethod.TVERSKY, 0.7, 0.3);
+        compareSimilarities(MorganFingerprint.SimilarityMethod.TVERSKY, 1.0, 1.0);
+    }
+
+    private static void compareSimilarities(MorganFingerprint.SimilarityMethod method, double alpha,
+                                            double beta) {
+        for (var q = 0; q < N_STRUCTURES; q++) {
+            var query = fingerprints.get(q);
+            var queryTotal = query.totalCount();
+            for (var t = 0; t < N_STRUCTURES; t++) {
+                var target = fingerprints.get(t);
+                var andSumAndTotal = MorganFingerprint.andSumAndTotal(query.getKeys(), query.getCounts(),
+                        target.getKeys(), target.getCounts(), 0, target.size());
+                assertEquals(target.totalCount(), MorganFingerprint.total(andSumAndTotal));
+                var similarity = method.similarity(queryTotal, MorganFingerprint.total(andSumAndTotal),
+                        MorganFingerprint.andSum(andSumAndTotal), alpha, beta);
+                var expected = rdkitSimilarity(method, rdkitFingerprints.get(q), rdkitFingerprints.get(t),
+                        alpha, beta);
+                assertEquals(expected, similarity, 1e-9, method + " similarity error for " + q + " and " + t);
+            }
+        }
+    }
+
+    private static double rdkitSimilarity(MorganFingerprint.SimilarityMethod method, SparseIntVectu32 query,
+                                          SparseIntVectu32 target, double alpha, double beta) {
+        switch (method) {
+            case TANIMOTO:
+                return RDKFuncs.TanimotoSimilaritySIVu32(query, target);
+            case DICE:
+                return RDKFuncs.DiceSimilarity(query, target);
+            case TVERSKY:
+                return RDKFuncs.TverskySimilarity(query, target, alpha, beta);
+            default:
+                throw new IllegalArgumentException();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.cairn.common;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import static com.cairn.common.SubstructureMatcher.SubSearchQueryType.SMARTS;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that compiled substructure queries are shared and that they are only
+ * deleted once evicted from the cache and released by every user.
+ *
+ * @author Gareth Jones
+ */
+class TestSubstructureQueryCache {
+    private static final int FP_SIZE = RDKitOps.PATTERN_FP_SIZE;
+
+    @BeforeAll
+    static void init() {
+        Util.loadRdkit();
+    }
+
+    @AfterAll
+    static void finish() {
+        SubstructureQueryCache.setUseSubstructureQueryCache(false);
+    }
+
+    @Test
+    void testCachedQuery() {
+        var cache = new SubstructureQueryCache(10);
+        var query = cache.acquire(SMARTS, "c1ccccc1", true, true, false, FP_SIZE);
+        assertSame(query, cache.acquire(SMARTS, "c1ccccc1", true, true, false, FP_SIZE));
+        // queries with other match parameters are compiled separately
+        var otherQuery = cache.acquire(SMARTS, "c1ccccc1", false, true, false, FP_SIZE);
+        assertNotSame(query, otherQuery);
+        assertNotSame(query, cache.acquire(SMARTS, "c1ccncc1", true, true, false, FP_SIZE));
+        assertEquals(6, query.queryMol.getNumAtoms());
+    }
+
+    @Test
+    void testReferenceCounting() {
+        var cache = new SubstructureQueryCache(1);
+        var query = cache.acquire(SMARTS, "c1ccccc1", true, true, false, FP_SIZE);
+        // evict the query while it is still in use
+        var otherQuery = cache.acquire(SMARTS, "C(=O)O", true, true, false, FP_SIZE);
+        assertEquals(6, query.queryMol.getNumAtoms());
+        assertTrue(query.acquire());
+        query.release();
+        // the last reference deletes the query, which may not then be used
+        query.release();
+        assertFalse(query.acquire());
+        var newQuery = cache.acquire(SMARTS, "c1ccccc1", true, true, false, FP_SIZE);
+        assertNotSame(query, newQuery);
+        assertEquals(6, newQuery.queryMol.getNumAtoms());
+
+        // the evicted query is still held by its user
+        assertEquals(3, otherQuery.queryMol.getNumAtoms());
+        otherQuery.release();
+        assertFalse(otherQuery.acquire());
+        newQuery.release();
+    }
+
+    @Test
+    void testSharedByMatchers() {
+        SubstructureQueryCache.setUseSubstructureQueryCache(true);
+        var matcher = new SubstructureMatcher(SMARTS, "c1ccccc1O");
+        var otherMatcher = new SubstructureMatcher(SMARTS, "c1ccccc1O");
+        assertSame(matcher.getQueryFingerprint(), otherMatcher.getQueryFingerprint());
+        matcher.free();
+        matcher.free();
+        // the cache and the other matcher still hold the query
+        assertTrue(otherMatcher.matchStructure("Oc1ccc(C)cc1", false, null));
+        assertFalse(otherMatcher.matchStructure("C1CCCCC1O", false, null));
+        otherMatcher.free();
+    }
+}
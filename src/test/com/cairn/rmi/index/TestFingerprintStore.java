@@ -0,0 +1,379 @@
+package com.cairn.rmi.index;
+
+import com.cairn.common.MorganFingerprint;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks adding, replacing and removing rows in the columnar fingerprint
+ * store, the popcount bounds used to restrict similarity searches, the
+ * smiles index used for exact match searches, the bit statistics used to
+ * order substructure screens and the snapshots used to compact a store into a
+ * new index file. These do not need RDKit or Oracle.
+ *
+ * @author Gareth Jones
+ */
+class TestFingerprintStore {
+    private static final int N_ROWS = 1000;
+
+    @Test
+    void testAdd() {
+        var store = new FingerprintStore();
+        assertTrue(store.isEmpty());
+        // enough rows to grow the columns and the rowid table
+        for (var i = 0; i < N_ROWS; i++)
+            assertEquals(i, store.add(rowId(i), smiles(i), fingerprint(i), morganFingerprints(i)));
+        assertEquals(N_ROWS, store.size());
+        assertEquals(N_ROWS, store.count());
+        for (var i = 0; i < N_ROWS; i++) {
+            var ordinal = store.ordinalOf(rowId(i));
+            assertEquals(i, ordinal);
+            assertArrayEquals(rowId(i), store.rowId(ordinal));
+            assertEquals(smiles(i), store.smiles(ordinal));
+            assertEquals(fingerprint(i), store.fingerprint(ordinal));
+            assertEquals(fingerprint(i).cardinality(), store.popcount(ordinal));
+            assertFalse(store.isDeleted(ordinal));
+            var morgan = store.extendedFingerprint(ordinal, 0);
+            assertArrayEquals(morganFingerprints(i).get(0).getKeys(), morgan.getKeys());
+            assertArrayEquals(morganFingerprints(i).get(0).getCounts(), morgan.getCounts());
+        }
+        assertEquals(-1, store.ordinalOf(rowId(N_ROWS)));
+    }
+
+    @Test
+    void testRemove() {
+        var store = new FingerprintStore();
+        for (var i = 0; i < N_ROWS; i++)
+            store.add(rowId(i), smiles(i), fingerprint(i), null);
+        for (var i = 0; i < N_ROWS; i += 3)
+            assertTrue(store.remove(rowId(i)));
+        assertFalse(store.remove(rowId(0)));
+        assertFalse(store.remove(rowId(N_ROWS)));
+
+        // ordinals are not reused, removed rows are marked deleted
+        assertEquals(N_ROWS, store.size());
+        assertEquals(N_ROWS - (N_ROWS + 2) / 3, store.count());
+        for (var i = 0; i < N_ROWS; i++) {
+            if (i % 3 == 0) {
+                assertEquals(-1, store.ordinalOf(rowId(i)));
+                assertTrue(store.isDeleted(i));
+                assertTrue(store.popcount(i) < 0);
+                assertNull(store.smiles(i));
+            } else {
+                assertEquals(i, store.ordinalOf(rowId(i)));
+                assertEquals(smiles(i), store.smiles(i));
+            }
+        }
+    }
+
+    @Test
+    void testReplace() {
+        var store = new FingerprintStore();
+        for (var i = 0; i < 10; i++)
+            store.add(rowId(i), smiles(i), fingerprint(i), null);
+        // adding an existing rowid deletes the old row and appends a new one
+        assertEquals(10, store.add(rowId(4), "CCCl", fingerprint(20), null));
+        assertEquals(11, store.size());
+        assertEquals(10, store.count());
+        assertTrue(store.isDeleted(4));
+        assertEquals(10, store.ordinalOf(rowId(4)));
+        assertEquals("CCCl", store.smiles(10));
+        assertEquals(fingerprint(20), store.fingerprint(10));
+
+        // a removed row may be added again
+        store.remove(rowId(4));
+        assertEquals(11, store.add(rowId(4), smiles(4), fingerprint(4), null));
+        assertEquals(11, store.ordinalOf(rowId(4)));
+        assertEquals(10, store.count());
+    }
+
+    @Test
+    void testPickles() {
+        var store = new FingerprintStore();
+        store.add(rowId(0), smiles(0), fingerprint(0), null);
+        assertFalse(store.hasPickles());
+        for (var i = 1; i < N_ROWS; i++)
+            store.add(rowId(i), smiles(i), fingerprint(i), null, i % 4 == 0 ? null : pickle(i));
+        assertTrue(store.hasPickles());
+        for (var i = 0; i < N_ROWS; i++) {
+            if (i % 4 == 0)
+                assertNull(store.pickle(i));
+            else
+                assertArrayEquals(pickle(i), store.pickle(i));
+        }
+        // a replaced row takes the new pickle
+        store.add(rowId(1), smiles(1), fingerprint(1), null, pickle(2));
+        assertArrayEquals(pickle(2), store.pickle(store.ordinalOf(rowId(1))));
+    }
+
+    @Test
+    void testOrdinalsOf() {
+        var store = new FingerprintStore();
+        for (var i = 0; i < N_ROWS; i++)
+            store.add(rowId(i), smiles(i), fingerprint(i), null);
+        store.remove(rowId(7));
+        var rowIds = new byte[][]{rowId(5), rowId(7), rowId(N_ROWS + 1), rowId(999)};
+        var ordinals = new int[rowIds.length];
+        store.ordinalsOf(rowIds, rowIds.length, ordinals);
+        assertArrayEquals(new int[]{5, -1, -1, 999}, ordinals);
+    }
+
+    @Test
+    void testTanimotoBounds() {
+        var cutoffs = new double[]{0.0, 0.3, 0.5, 0.7, 0.85, 0.99, 1.0};
+        for (var nQueryBits = 0; nQueryBits <= 300; nQueryBits++) {
+            for (var cutoff : cutoffs) {
+                var minBits = FingerprintStore.minTanimotoBits(nQueryBits, cutoff);
+                var maxBits = FingerprintStore.maxTanimotoBits(nQueryBits, cutoff);
+                for (var nBits = 0; nBits <= 2048; nBits++) {
+                    var feasible = FingerprintStore.maxTanimoto(nQueryBits, nBits) >= cutoff - 1e-9;
+                    var inRange = nBits >= minBits && nBits <= maxBits;
+                    assertEquals(feasible, inRange, "Bounds error for query bits " + nQueryBits
+                            + " target bits " + nBits + " cutoff " + cutoff);
+                }
+            }
+        }
+    }
+
+    @Test
+    void testVisitPopcountRange() throws IOException {
+        var store = openStore(N_ROWS);
+        // delete some file rows and add some heap rows
+        for (var i = 0; i < N_ROWS; i += 7)
+            store.remove(rowId(i));
+        for (var i = N_ROWS; i < N_ROWS + 100; i++)
+            store.add(rowId(i), smiles(i), fingerprint(i), null);
+
+        var ranges = new int[][]{{0, 2048}, {0, 40}, {100, 200}, {300, 310}, {2000, 2048}};
+        for (var range : ranges) {
+            var minBits = range[0];
+            var maxBits = range[1];
+            var expected = new BitSet();
+            for (var ordinal = 0; ordinal < store.size(); ordinal++) {
+                var popcount = store.popcount(ordinal);
+                if (popcount >= minBits && popcount <= maxBits)
+                    expected.set(ordinal);
+            }
+            var visited = new BitSet();
+            assertFalse(store.visitPopcountRange(minBits, maxBits, ordinal -> {
+                // sorted file rows outside the range are not visited
+                assertTrue(store.isDeleted(ordinal) || (store.popcount(ordinal) >= minBits
+                        && store.popcount(ordinal) <= maxBits));
+                assertFalse(visited.get(ordinal));
+                if (!store.isDeleted(ordinal))
+                    visited.set(ordinal);
+                return false;
+            }));
+            assertEquals(expected, visited, "Range error for " + minBits + " to " + maxBits);
+        }
+
+        // the visitor may stop the scan
+        var nVisited = new int[1];
+        assertTrue(store.visitPopcountRange(0, 2048, ordinal -> ++nVisited[0] == 10));
+        assertEquals(10, nVisited[0]);
+    }
+
+    @Test
+    void testFindSmiles() throws IOException {
+        // rows in both the index file and the heap, some sharing a smiles
+        var store = openStore(N_ROWS);
+        for (var i = 0; i < N_ROWS; i += 5)
+            store.remove(rowId(i));
+        for (var i = N_ROWS; i < N_ROWS + 200; i++)
+            store.add(rowId(i), smiles(i), fingerprint(i), null);
+        for (var i = N_ROWS; i < N_ROWS + 200; i += 4)
+            store.remove(rowId(i));
+        // a replaced row is found by its new smiles only
+        store.add(rowId(1), "CCCl", fingerprint(1), null);
+
+        var expected = new HashMap<String, BitSet>();
+        for (var ordinal = 0; ordinal < store.size(); ordinal++) {
+            if (!store.isDeleted(ordinal))
+                expected.computeIfAbsent(store.smiles(ordinal), s -> new BitSet()).set(ordinal);
+        }
+        assertEquals(38, expected.size());
+        for (Map.Entry<String, BitSet> entry : expected.entrySet()) {
+            var found = new BitSet();
+            Arrays.stream(store.findSmiles(entry.getKey())).forEach(found::set);
+            assertEquals(entry.getValue(), found, "Smiles lookup error for " + entry.getKey());
+        }
+        assertEquals(0, store.findSmiles("CCBr").length);
+
+        // removing every row with a smiles
+        var smiles = smiles(3);
+        for (var ordinal : store.findSmiles(smiles))
+            store.remove(store.rowId(ordinal));
+        assertEquals(0, store.findSmiles(smiles).length);
+    }
+
+    @Test
+    void testScreenOrder() {
+        var store = new FingerprintStore();
+        for (var i = 0; i < 100; i++) {
+            var fingerprint = new BitSet(2048);
+            // bit 0 is common, bit 64 is set in half the rows and bit 128 is rare
+            fingerprint.set(0);
+            if (i % 2 == 0)
+                fingerprint.set(64);
+            if (i == 7)
+                fingerprint.set(128);
+            store.add(rowId(i), smiles(i), fingerprint, null);
+        }
+        var query = new BitSet(2048);
+        query.set(0);
+        query.set(64);
+        query.set(128);
+        // no row has bit 1000, so its word is screened first
+        query.set(1000);
+        var queryWords = FingerprintStore.toWords(query);
+        assertArrayEquals(new int[]{15, 2, 1, 0}, store.screenOrder(queryWords));
+
+        // the order follows the counts as rows are removed
+        for (var i = 0; i < 100; i += 2)
+            store.remove(rowId(i));
+        assertEquals(0, store.bitCounts()[64]);
+        assertArrayEquals(new int[]{1, 15, 2, 0}, store.screenOrder(queryWords));
+
+        query.clear(1000);
+        queryWords = FingerprintStore.toWords(query);
+        var order = store.screenOrder(queryWords);
+        for (var ordinal = 0; ordinal < store.size(); ordinal++)
+            assertFalse(store.containsAll(ordinal, queryWords, order));
+    }
+
+    @Test
+    void testSnapshot() throws IOException {
+        var store = changedStore();
+        var count = store.count();
+        var bitCounts = store.bitCounts().clone();
+        var rowIds = new HashMap<Integer, String>();
+        for (var ordinal = 0; ordinal < store.size(); ordinal++) {
+            if (!store.isDeleted(ordinal))
+                rowIds.put(ordinal, new String(store.rowId(ordinal)));
+        }
+        var snapshot = store.snapshot();
+        assertEquals(N_ROWS + 100, snapshot.size());
+        assertEquals(N_ROWS, snapshot.baseSize());
+        assertEquals(store.deltaSize(), snapshot.deltaSize());
+
+        // later changes to the store are not seen in the snapshot
+        for (var i = 1; i < N_ROWS + 100; i += 7)
+            store.remove(rowId(i));
+        for (var i = N_ROWS + 100; i < N_ROWS + 2000; i++)
+            store.add(rowId(i), smiles(i), fingerprint(i), null);
+        assertEquals(N_ROWS + 100, snapshot.size());
+        assertEquals(count, snapshot.count());
+        assertArrayEquals(bitCounts, snapshot.bitCounts());
+        for (var ordinal = 0; ordinal < snapshot.size(); ordinal++) {
+            var rowId = rowIds.get(ordinal);
+            assertEquals(rowId == null, snapshot.isDeleted(ordinal));
+            if (rowId != null) {
+                var i = Integer.parseInt(rowId.substring(4));
+                assertArrayEquals(rowId(i), snapshot.rowId(ordinal));
+                assertEquals(smiles(i), snapshot.smiles(ordinal));
+                assertEquals(fingerprint(i), snapshot.fingerprint(ordinal));
+            }
+        }
+    }
+
+    @Test
+    void testCatchUp() throws IOException {
+        var store = changedStore();
+        var snapshot = store.snapshot();
+        var file = File.createTempFile("table_index", ".bin");
+        file.deleteOnExit();
+        MappedIndexFile.write(file, snapshot);
+        var compacted = FingerprintStore.open(file);
+        // deleted rows are dropped from the new index file
+        assertEquals(snapshot.count(), compacted.baseSize());
+        assertEquals(0, compacted.deltaSize());
+
+        // changes made while the snapshot was written
+        for (var i = 1; i < N_ROWS + 100; i += 7)
+            store.remove(rowId(i));
+        for (var i = N_ROWS + 100; i < N_ROWS + 200; i++)
+            store.add(rowId(i), smiles(i), fingerprint(i), null);
+        store.add(rowId(2), "CCCl", fingerprint(2), null);
+        compacted.catchUp(snapshot, store);
+
+        assertEquals(store.count(), compacted.count());
+        assertArrayEquals(store.bitCounts(), compacted.bitCounts());
+        for (var i = 0; i < N_ROWS + 200; i++) {
+            var ordinal = store.ordinalOf(rowId(i));
+            var compactedOrdinal = compacted.ordinalOf(rowId(i));
+            assertEquals(ordinal < 0, compactedOrdinal < 0, "Row error for " + i);
+            if (ordinal >= 0) {
+                assertEquals(store.smiles(ordinal), compacted.smiles(compactedOrdinal));
+                assertEquals(store.fingerprint(ordinal), compacted.fingerprint(compactedOrdinal));
+            }
+        }
+        assertEquals(1, compacted.findSmiles("CCCl").length);
+    }
+
+    /**
+     * @return a store over an index file with every fifth row deleted and
+     * 100 rows added to the heap
+     * @throws IOException
+     */
+    private static FingerprintStore changedStore() throws IOException {
+        var store = openStore(N_ROWS);
+        for (var i = N_ROWS; i < N_ROWS + 100; i++)
+            store.add(rowId(i), smiles(i), fingerprint(i), null);
+        for (var i = 0; i < N_ROWS + 100; i += 5)
+            store.remove(rowId(i));
+        return store;
+    }
+
+    /**
+     * Writes rows to an index file and opens a store over it
+     *
+     * @param nRows
+     * @return
+     * @throws IOException
+     */
+    static FingerprintStore openStore(int nRows) throws IOException {
+        var store = new FingerprintStore();
+        for (var i = 0; i < nRows; i++)
+            store.add(rowId(i), smiles(i), fingerprint(i), null);
+        var file = File.createTempFile("table_index", ".bin");
+        file.deleteOnExit();
+        MappedIndexFile.write(file, store);
+        return FingerprintStore.open(file);
+    }
+
+    static byte[] rowId(int i) {
+        return ("AAAR" + i).getBytes();
+    }
+
+    static String smiles(int i) {
+        return "C".repeat(i % 37 + 1) + "O";
+    }
+
+    static BitSet fingerprint(int i) {
+        var fingerprint = new BitSet(2048);
+        for (var bit = i % 11; bit < 2048; bit += 3 + i % 61)
+            fingerprint.set(bit);
+        return fingerprint;
+    }
+
+    private static byte[] pickle(int i) {
+        var pickle = new byte[i % 13 + 1];
+        Arrays.fill(pickle, (byte) i);
+        return pickle;
+    }
+
+    private static List<MorganFingerprint> morganFingerprints(int i) {
+        var keys = new int[]{i, i + 1000, i + 2000};
+        var counts = new int[]{1, i % 5 + 1, 2};
+        return Arrays.asList(new MorganFingerprint(keys, counts));
+    }
+}
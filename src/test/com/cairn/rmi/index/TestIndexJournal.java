@@ -0,0 +1,183 @@
+package com.cairn.rmi.index;
+
+import com.cairn.common.MorganFingerprint;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the table index journal. These do not need RDKit or Oracle.
+ *
+ * @author Gareth Jones
+ */
+class TestIndexJournal {
+    private File dir;
+    private File indexFile;
+    private File journalFile;
+
+    @BeforeEach
+    void init() throws IOException {
+        dir = Files.createTempDirectory("journal").toFile();
+        indexFile = new File(dir, "table_index.bin");
+        journalFile = new File(dir, "table_index.journal");
+        var store = new FingerprintStore();
+        for (var i = 0; i < 100; i++)
+            store.add(rowId(i), "C" + i, fingerprint(i), null, null);
+        MappedIndexFile.write(indexFile, store);
+    }
+
+    @AfterEach
+    void cleanUp() {
+        for (var file : dir.listFiles())
+            file.delete();
+        dir.delete();
+    }
+
+    @Test
+    void testReplay() throws IOException {
+        IndexJournal.write(journalFile, indexFile, null);
+        assertTrue(IndexJournal.matches(journalFile, indexFile));
+        var journal = IndexJournal.open(journalFile);
+        assertEquals(0, journal.replay(FingerprintStore.open(indexFile)));
+        var morgan = List.of(new MorganFingerprint(new int[]{3, 17, 40}, new int[]{1, 2, 1}));
+        var pickle = new byte[]{1, 2, 3, 4};
+        journal.appendRemove(rowId(5));
+        journal.appendAdd(rowId(200), "CCO", fingerprint(200), morgan, pickle);
+        journal.appendAdd(rowId(7), "CCN", fingerprint(300), null, null);
+        journal.sync();
+        journal.close();
+
+        var store = FingerprintStore.open(indexFile);
+        journal = IndexJournal.open(journalFile);
+        assertEquals(3, journal.replay(store));
+        journal.close();
+        checkReplayedStore(store);
+        var added = store.ordinalOf(rowId(200));
+        assertArrayEquals(pickle, store.pickle(added));
+        var extended = store.extendedFingerprint(added, 0);
+        assertArrayEquals(new int[]{3, 17, 40}, extended.getKeys());
+        assertArrayEquals(new int[]{1, 2, 1}, extended.getCounts());
+    }
+
+    @Test
+    void testTruncatedRecord() throws IOException {
+        IndexJournal.write(journalFile, indexFile, null);
+        var journal = IndexJournal.open(journalFile);
+        journal.appendRemove(rowId(5));
+        journal.appendAdd(rowId(200), "CCO", fingerprint(200), null, null);
+        journal.appendAdd(rowId(7), "CCN", fingerprint(300), null, null);
+        journal.sync();
+        var completeSize = journal.size();
+        journal.appendAdd(rowId(400), "CCCC", fingerprint(400), null, null);
+        journal.sync();
+        journal.close();
+
+        // tear the last record
+        try (var file = new RandomAccessFile(journalFile, "rw")) {
+            file.setLength(file.length() - 5);
+        }
+        var store = FingerprintStore.open(indexFile);
+        journal = IndexJournal.open(journalFile);
+        assertEquals(3, journal.replay(store));
+        // the torn record is removed and appends follow the last complete record
+        assertEquals(completeSize, journal.size());
+        assertEquals(completeSize, journalFile.length());
+        journal.appendRemove(rowId(8));
+        journal.close();
+        checkReplayedStore(store);
+
+        store = FingerprintStore.open(indexFile);
+        journal = IndexJournal.open(journalFile);
+        assertEquals(4, journal.replay(store));
+        journal.close();
+        assertTrue(store.ordinalOf(rowId(8)) < 0);
+        assertTrue(store.ordinalOf(rowId(400)) < 0);
+    }
+
+    @Test
+    void testCorruptRecord() throws IOException {
+        IndexJournal.write(journalFile, indexFile, null);
+        var journal = IndexJournal.open(journalFile);
+        journal.appendRemove(rowId(5));
+        var firstSize = journal.size();
+        journal.appendRemove(rowId(6));
+        journal.close();
+
+        // change a byte in the last record's payload
+        try (var file = new RandomAccessFile(journalFile, "rw")) {
+            file.seek(file.length() - 1);
+            var value = file.read();
+            file.seek(file.length() - 1);
+            file.write(value ^ 0xff);
+        }
+        var store = FingerprintStore.open(indexFile);
+        journal = IndexJournal.open(journalFile);
+        assertEquals(1, journal.replay(store));
+        journal.close();
+        assertEquals(firstSize, journalFile.length());
+        assertTrue(store.ordinalOf(rowId(5)) < 0);
+        assertTrue(store.ordinalOf(rowId(6)) >= 0);
+    }
+
+    @Test
+    void testWriteStoreChanges() throws IOException {
+        var store = FingerprintStore.open(indexFile);
+        store.remove(rowId(5));
+        store.add(rowId(200), "CCO", fingerprint(200), null, null);
+        store.add(rowId(7), "CCN", fingerprint(300), null, null);
+        IndexJournal.write(journalFile, indexFile, store);
+
+        var replayed = FingerprintStore.open(indexFile);
+        var journal = IndexJournal.open(journalFile);
+        journal.replay(replayed);
+        journal.close();
+        checkReplayedStore(replayed);
+    }
+
+    @Test
+    void testMatchesIndexFile() throws IOException {
+        IndexJournal.write(journalFile, indexFile, null);
+        assertTrue(IndexJournal.matches(journalFile, indexFile));
+
+        // an index file with the same contents has a different id
+        var otherFile = new File(dir, "other.bin");
+        MappedIndexFile.write(otherFile, FingerprintStore.open(indexFile));
+        assertEquals(indexFile.length(), otherFile.length());
+        assertFalse(IndexJournal.matches(journalFile, otherFile));
+        assertThrows(IOException.class, () -> IndexJournal.write(journalFile,
+                new File(dir, "missing.bin"), null));
+    }
+
+    private static void checkReplayedStore(FingerprintStore store) {
+        assertEquals(100, store.count());
+        assertTrue(store.ordinalOf(rowId(5)) < 0);
+        var added = store.ordinalOf(rowId(200));
+        assertEquals("CCO", store.smiles(added));
+        assertEquals(fingerprint(200), store.fingerprint(added));
+        // a row added over an existing row replaces it
+        var replaced = store.ordinalOf(rowId(7));
+        assertEquals("CCN", store.smiles(replaced));
+        assertEquals(fingerprint(300), store.fingerprint(replaced));
+        assertEquals("C8", store.smiles(store.ordinalOf(rowId(8))));
+    }
+
+    private static byte[] rowId(int i) {
+        return ("AAAR" + i).getBytes();
+    }
+
+    private static BitSet fingerprint(int i) {
+        var fingerprint = new BitSet(2048);
+        for (var bit = i % 7; bit < 2048; bit += 13 + i % 5)
+            fingerprint.set(bit);
+        return fingerprint;
+    }
+}
@@ -0,0 +1,229 @@
+package com.cairn.rmi.index;
+
+import com.cairn.common.MorganFingerprint;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Writes a fingerprint store to a memory mapped index file and checks that
+ * the file reads back the same rows. These do not need RDKit or Oracle.
+ *
+ * @author Gareth Jones
+ */
+class TestMappedIndexFile {
+    private static final int N_ROWS = 500;
+
+    private File dir;
+    private File indexFile;
+    private FingerprintStore store;
+
+    @BeforeEach
+    void init() throws IOException {
+        dir = Files.createTempDirectory("index").toFile();
+        indexFile = new File(dir, "table_index.bin");
+        store = new FingerprintStore();
+        for (var i = 0; i < N_ROWS; i++)
+            store.add(rowId(i), smiles(i), fingerprint(i), morganFingerprints(i), pickle(i));
+        // deleted rows are not written
+        for (var i = 0; i < N_ROWS; i += 10)
+            store.remove(rowId(i));
+    }
+
+    @AfterEach
+    void cleanUp() {
+        for (var file : dir.listFiles())
+            file.delete();
+        dir.delete();
+    }
+
+    @Test
+    void testRows() throws IOException {
+        MappedIndexFile.write(indexFile, store);
+        assertTrue(MappedIndexFile.isMappedIndexFile(indexFile));
+        var file = MappedIndexFile.open(indexFile);
+        assertEquals(store.count(), file.size());
+        assertEquals(2, file.nExtendedTypes());
+        assertTrue(file.hasPickles());
+
+        var found = new BitSet(N_ROWS);
+        for (var ordinal = 0; ordinal < file.size(); ordinal++) {
+            var i = rowNumber(file.rowId(ordinal));
+            assertFalse(found.get(i));
+            found.set(i);
+            assertNotEquals(0, i % 10);
+            assertEquals(smiles(i), file.smiles(ordinal));
+            assertEquals(fingerprint(i), file.fingerprint(ordinal));
+            assertEquals(fingerprint(i).cardinality(), file.popcount(ordinal));
+            assertArrayEquals(pickle(i), file.pickle(ordinal));
+            checkMorganFingerprints(i, file.extendedFingerprint(ordinal, 0),
+                    file.extendedFingerprint(ordinal, 1));
+            assertEquals(ordinal, file.ordinalOf(rowId(i)));
+        }
+        assertEquals(store.count(), found.cardinality());
+        assertEquals(-1, file.ordinalOf(rowId(0)));
+        assertEquals(-1, file.ordinalOf(rowId(N_ROWS)));
+    }
+
+    @Test
+    void testPopcountBuckets() throws IOException {
+        MappedIndexFile.write(indexFile, store);
+        var file = MappedIndexFile.open(indexFile);
+        assertTrue(file.isSorted());
+        for (var ordinal = 1; ordinal < file.size(); ordinal++)
+            assertTrue(file.popcount(ordinal - 1) <= file.popcount(ordinal));
+        for (var nBits = 0; nBits <= 2049; nBits++) {
+            var start = file.bucketStart(nBits);
+            assertTrue(start >= 0 && start <= file.size());
+            if (start < file.size())
+                assertTrue(file.popcount(start) >= nBits);
+            if (start > 0)
+                assertTrue(file.popcount(start - 1) < nBits);
+        }
+    }
+
+    @Test
+    void testFindSmiles() throws IOException {
+        MappedIndexFile.write(indexFile, store);
+        var file = MappedIndexFile.open(indexFile);
+        // rows share smiles, so a smiles matches several rows
+        var expected = new HashMap<String, BitSet>();
+        for (var i = 0; i < N_ROWS; i++) {
+            if (i % 10 != 0)
+                expected.computeIfAbsent(smiles(i), s -> new BitSet()).set(i);
+        }
+        for (Map.Entry<String, BitSet> entry : expected.entrySet()) {
+            var smiles = entry.getKey();
+            var ordinals = file.findSmiles(FingerprintStore.smilesHash(smiles), smiles);
+            var rows = new BitSet();
+            Arrays.stream(ordinals).forEach(o -> rows.set(rowNumber(file.rowId(o))));
+            assertEquals(entry.getValue(), rows, "Smiles lookup error for " + smiles);
+        }
+        assertEquals(0, file.findSmiles(FingerprintStore.smilesHash("CCCl"), "CCCl").length);
+    }
+
+    @Test
+    void testReopenStore() throws IOException {
+        MappedIndexFile.write(indexFile, store);
+        var reopened = FingerprintStore.open(indexFile);
+        assertEquals(store.count(), reopened.count());
+        assertEquals(0, reopened.deltaSize());
+
+        // changes over the file are written to a new file with a new id
+        reopened.remove(rowId(1));
+        reopened.add(rowId(N_ROWS), "CCCl", fingerprint(N_ROWS), null, null);
+        var newFile = new File(dir, "table_index.new");
+        MappedIndexFile.write(newFile, reopened);
+        var file = MappedIndexFile.open(newFile);
+        assertEquals(store.count(), file.size());
+        assertEquals(-1, file.ordinalOf(rowId(1)));
+        var ordinal = file.ordinalOf(rowId(N_ROWS));
+        assertEquals("CCCl", file.smiles(ordinal));
+        assertNull(file.pickle(ordinal));
+        assertNull(file.extendedFingerprint(ordinal, 0));
+        assertEquals(smiles(2), file.smiles(file.ordinalOf(rowId(2))));
+
+        var fileId = MappedIndexFile.open(indexFile).getFileId();
+        assertNotEquals(0L, fileId);
+        assertEquals(fileId, MappedIndexFile.readFileId(indexFile));
+        assertNotEquals(fileId, file.getFileId());
+    }
+
+    @Test
+    void testBitCounts() throws IOException {
+        MappedIndexFile.write(indexFile, store);
+        var file = MappedIndexFile.open(indexFile);
+        var expected = new int[2048];
+        for (var i = 0; i < N_ROWS; i++) {
+            if (i % 10 != 0)
+                fingerprint(i).stream().forEach(bit -> expected[bit]++);
+        }
+        assertArrayEquals(expected, file.bitCounts());
+        assertArrayEquals(expected, store.bitCounts());
+
+        // the counts loaded from the file are updated as rows change
+        var reopened = FingerprintStore.open(indexFile);
+        assertArrayEquals(expected, reopened.bitCounts());
+        reopened.remove(rowId(1));
+        fingerprint(1).stream().forEach(bit -> expected[bit]--);
+        reopened.add(rowId(2), "CCCl", fingerprint(N_ROWS), null, null);
+        fingerprint(2).stream().forEach(bit -> expected[bit]--);
+        fingerprint(N_ROWS).stream().forEach(bit -> expected[bit]++);
+        assertArrayEquals(expected, reopened.bitCounts());
+        assertArrayEquals(expected, reopened.snapshot().bitCounts());
+    }
+
+    @Test
+    void testNoPickles() throws IOException {
+        var noPickles = new FingerprintStore();
+        for (var i = 0; i < 20; i++)
+            noPickles.add(rowId(i), smiles(i), fingerprint(i), null, null);
+        MappedIndexFile.write(indexFile, noPickles);
+        var file = MappedIndexFile.open(indexFile);
+        assertFalse(file.hasPickles());
+        assertEquals(0, file.nExtendedTypes());
+        assertNull(file.pickle(0));
+    }
+
+    private static void checkMorganFingerprints(int i, MorganFingerprint fp0, MorganFingerprint fp1) {
+        var expected = morganFingerprints(i);
+        assertArrayEquals(expected.get(0).getKeys(), fp0.getKeys());
+        assertArrayEquals(expected.get(0).getCounts(), fp0.getCounts());
+        if (expected.get(1) == null) {
+            assertNull(fp1);
+        } else {
+            assertArrayEquals(expected.get(1).getKeys(), fp1.getKeys());
+            assertArrayEquals(expected.get(1).getCounts(), fp1.getCounts());
+        }
+    }
+
+    private static byte[] rowId(int i) {
+        return ("AAAR" + i).getBytes();
+    }
+
+    private static int rowNumber(byte[] rowId) {
+        return Integer.parseInt(new String(rowId).substring(4));
+    }
+
+    private static String smiles(int i) {
+        return "C".repeat(i % 37 + 1) + "O";
+    }
+
+    private static BitSet fingerprint(int i) {
+        var fingerprint = new BitSet(2048);
+        for (var bit = i % 11; bit < 2048; bit += 3 + i % 61)
+            fingerprint.set(bit);
+        return fingerprint;
+    }
+
+    private static List<MorganFingerprint> morganFingerprints(int i) {
+        var n = i % 9 + 1;
+        var keys = new int[n];
+        var counts = new int[n];
+        for (var k = 0; k < n; k++) {
+            keys[k] = k * 1000 + i;
+            counts[k] = k % 3 + 1;
+        }
+        var fp = new MorganFingerprint(keys, counts);
+        // some rows have no fingerprint of the second type
+        var fp1 = i % 3 == 0 ? null : new MorganFingerprint(new int[]{i, i + 5000}, new int[]{1, i});
+        return Arrays.asList(fp, fp1);
+    }
+
+    private static byte[] pickle(int i) {
+        var pickle = new byte[i % 13 + 1];
+        Arrays.fill(pickle, (byte) i);
+        return pickle;
+    }
+}
@@ -0,0 +1,156 @@
+package com.cairn.rmi.index;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.function.IntPredicate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks row bitmap intersections against {@link BitSet}, for sparse and
+ * dense containers.
+ *
+ * @author Gareth Jones
+ */
+class TestRowBitmap {
+    private static final int BLOCK_SIZE = 1 << 16;
+
+    @Test
+    void testArrayConversion() {
+        // a block of 4096 rows is held in an array and one more converts it
+        var rows = new BitSet();
+        rows.set(0, 4096 * 2, true);
+        for (var ordinal = 1; ordinal < 4096 * 2; ordinal += 2)
+            rows.clear(ordinal);
+        var bitmap = toBitmap(rows);
+        assertEquals(4096, bitmap.getCardinality());
+        assertEquals(8 + 4096 * 2, bitmap.sizeInBytes());
+        assertEquals(rows, intersect(bitmap));
+
+        rows.set(4096 * 2);
+        bitmap = toBitmap(rows);
+        assertEquals(4097, bitmap.getCardinality());
+        assertEquals(8 + 1024 * 8, bitmap.sizeInBytes());
+        assertEquals(rows, intersect(bitmap));
+    }
+
+    @Test
+    void testSparseSparse() {
+        var random = new Random(1L);
+        var rows1 = randomRows(random, 3, 0.01);
+        var rows2 = randomRows(random, 3, 0.02);
+        checkIntersection(rows1, rows2);
+        checkIntersection(rows1, rows2, randomRows(random, 3, 0.05));
+    }
+
+    @Test
+    void testDenseDense() {
+        var random = new Random(2L);
+        var rows1 = randomRows(random, 3, 0.3);
+        var rows2 = randomRows(random, 3, 0.6);
+        checkIntersection(rows1, rows2);
+        checkIntersection(rows1, rows2, randomRows(random, 3, 0.8));
+    }
+
+    @Test
+    void testSparseDense() {
+        var random = new Random(3L);
+        var sparse = randomRows(random, 3, 0.02);
+        var dense = randomRows(random, 3, 0.5);
+        checkIntersection(sparse, dense);
+        checkIntersection(dense, sparse);
+        checkIntersection(sparse, dense, randomRows(random, 3, 0.3));
+
+        // the rarest bitmap has a dense block where the other bitmap is sparse
+        var rows1 = randomRows(random, 1, 0.2);
+        var rows2 = randomRows(random, 1, 0.05);
+        rows2.or(shift(randomRows(random, 2, 0.5), BLOCK_SIZE));
+        var bitmap1 = toBitmap(rows1);
+        var bitmap2 = toBitmap(rows2);
+        assertTrue(bitmap1.getCardinality() < bitmap2.getCardinality());
+        checkIntersection(rows1, rows2);
+    }
+
+    @Test
+    void testMissingBlocks() {
+        var random = new Random(4L);
+        var rows1 = randomRows(random, 2, 0.1);
+        // only shares the second block
+        var rows2 = shift(randomRows(random, 2, 0.1), BLOCK_SIZE);
+        checkIntersection(rows1, rows2);
+        var rows3 = shift(randomRows(random, 1, 0.5), 3 * BLOCK_SIZE);
+        assertTrue(intersect(toBitmap(rows1), toBitmap(rows3)).isEmpty());
+    }
+
+    @Test
+    void testStopVisit() {
+        var random = new Random(5L);
+        var bitmaps = new RowBitmap[]{toBitmap(randomRows(random, 2, 0.5)),
+                toBitmap(randomRows(random, 2, 0.02))};
+        var expected = intersect(bitmaps);
+        var visited = new ArrayList<Integer>();
+        assertTrue(RowBitmap.visitIntersection(bitmaps, ordinal -> {
+            visited.add(ordinal);
+            return visited.size() == 10;
+        }));
+        assertEquals(10, visited.size());
+        var ordinal = -1;
+        for (var v : visited) {
+            ordinal = expected.nextSetBit(ordinal + 1);
+            assertEquals(ordinal, v.intValue());
+        }
+        assertThrows(IllegalArgumentException.class,
+                () -> RowBitmap.visitIntersection(new RowBitmap[0], o -> false));
+    }
+
+    private static void checkIntersection(BitSet... rows) {
+        var expected = (BitSet) rows[0].clone();
+        var bitmaps = new RowBitmap[rows.length];
+        for (var i = 0; i < rows.length; i++) {
+            expected.and(rows[i]);
+            bitmaps[i] = toBitmap(rows[i]);
+        }
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, intersect(bitmaps));
+    }
+
+    private static BitSet intersect(RowBitmap... bitmaps) {
+        var rows = new BitSet();
+        var last = new int[]{-1};
+        IntPredicate visitor = ordinal -> {
+            // ordinals are visited in increasing order
+            assertTrue(ordinal > last[0]);
+            last[0] = ordinal;
+            rows.set(ordinal);
+            return false;
+        };
+        assertFalse(RowBitmap.visitIntersection(bitmaps, visitor));
+        return rows;
+    }
+
+    private static RowBitmap toBitmap(BitSet rows) {
+        var bitmap = new RowBitmap();
+        rows.stream().forEach(bitmap::add);
+        bitmap.trim();
+        assertEquals(rows.cardinality(), bitmap.getCardinality());
+        return bitmap;
+    }
+
+    private static BitSet randomRows(Random random, int nBlocks, double density) {
+        var rows = new BitSet();
+        for (var ordinal = 0; ordinal < nBlocks * BLOCK_SIZE; ordinal++) {
+            if (random.nextDouble() < density)
+                rows.set(ordinal);
+        }
+        return rows;
+    }
+
+    private static BitSet shift(BitSet rows, int offset) {
+        var shifted = new BitSet();
+        rows.stream().forEach(ordinal -> shifted.set(ordinal + offset));
+        return shifted;
+    }
+}
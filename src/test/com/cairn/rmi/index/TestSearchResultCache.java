@@ -0,0 +1,126 @@
+package com.cairn.rmi.index;
+
+import com.cairn.rmi.server.BatchSystem;
+import com.cairn.rmi.server.TaskJobResults;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that cached search results are returned for the same search of an
+ * unchanged index only. These do not need RDKit or Oracle.
+ *
+ * @author Gareth Jones
+ */
+class TestSearchResultCache {
+
+    @Test
+    void testChangeVersion() {
+        var cache = SearchResultCache.getInstance();
+        var key = new SearchResultCache.Key("TEST.VERSION_INDEX", "similarity", "query", 0.8, 0, 1L);
+        assertFalse(cache.addHits(key, new TaskJobResults(BatchSystem.createBatchQueue(), true)));
+        cache.put(key, searchResults(true, 10));
+
+        // the same search of the same index version
+        var sameKey = new SearchResultCache.Key("TEST.VERSION_INDEX", "similarity", "query", 0.8, 0, 1L);
+        var jobNo = BatchSystem.createBatchQueue();
+        var results = new TaskJobResults(jobNo, true);
+        assertTrue(cache.addHits(sameKey, results));
+        results.finish();
+        var hits = new ArrayList<Double>();
+        assertEquals(expectedHits(10), takeAllHits(jobNo, hits));
+        for (var i = 0; i < 10; i++)
+            assertEquals(i / 10.0, hits.get(i), 1e-9);
+
+        // once the index has changed the result is not used
+        var changedKey = new SearchResultCache.Key("TEST.VERSION_INDEX", "similarity", "query", 0.8, 0,
+                2L);
+        assertFalse(cache.addHits(changedKey, new TaskJobResults(BatchSystem.createBatchQueue(), true)));
+    }
+
+    @Test
+    void testKeyParameters() {
+        var cache = SearchResultCache.getInstance();
+        cache.put(new SearchResultCache.Key("TEST.PARAMS_INDEX", "substructure", "c1ccccc1", 0.0, 0, 1L),
+                searchResults(false, 5));
+        var otherKeys = new SearchResultCache.Key[]{
+                new SearchResultCache.Key("TEST.OTHER_INDEX", "substructure", "c1ccccc1", 0.0, 0, 1L),
+                new SearchResultCache.Key("TEST.PARAMS_INDEX", "exact_match", "c1ccccc1", 0.0, 0, 1L),
+                new SearchResultCache.Key("TEST.PARAMS_INDEX", "substructure", "c1ccncc1", 0.0, 0, 1L),
+                new SearchResultCache.Key("TEST.PARAMS_INDEX", "substructure", "c1ccccc1", 0.5, 0, 1L),
+                new SearchResultCache.Key("TEST.PARAMS_INDEX", "substructure", "c1ccccc1", 0.0, 3, 1L)};
+        for (var key : otherKeys)
+            assertFalse(cache.addHits(key, new TaskJobResults(BatchSystem.createBatchQueue(), false)),
+                    "Cached result returned for " + key);
+
+        var jobNo = BatchSystem.createBatchQueue();
+        var results = new TaskJobResults(jobNo, false);
+        assertTrue(cache.addHits(new SearchResultCache.Key("TEST.PARAMS_INDEX", "substructure",
+                "c1ccccc1", 0.0, 0, 1L), results));
+        results.finish();
+        assertEquals(expectedHits(5), takeAllHits(jobNo, null));
+    }
+
+    @Test
+    void testTooManyHits() {
+        var cache = SearchResultCache.getInstance();
+        var key = new SearchResultCache.Key("TEST.LARGE_INDEX", "substructure", "C", 0.0, 0, 1L);
+        // a search with more hits than may be recorded is not cached
+        cache.put(key, searchResults(false, cache.maxResultHits() + 1));
+        assertFalse(cache.addHits(key, new TaskJobResults(BatchSystem.createBatchQueue(), false)));
+    }
+
+    /**
+     * Records the hits of a finished search
+     *
+     * @param hasScores
+     * @param nHits
+     * @return
+     */
+    private static TaskJobResults searchResults(boolean hasScores, int nHits) {
+        var cache = SearchResultCache.getInstance();
+        var jobNo = BatchSystem.createBatchQueue();
+        var results = new TaskJobResults(jobNo, hasScores);
+        results.recordHits(cache.maxResultHits());
+        var reader = new Thread(() -> takeAllHits(jobNo, null));
+        reader.start();
+        for (var i = 0; i < nHits; i++)
+            results.addHit(("AAAR" + i).getBytes(), hasScores ? i / 10.0 : null);
+        results.finish();
+        return results;
+    }
+
+    private static List<String> expectedHits(int nHits) {
+        var hits = new ArrayList<String>();
+        for (var i = 0; i < nHits; i++)
+            hits.add("AAAR" + i);
+        return hits;
+    }
+
+    /**
+     * Reads all the hits of a job from the batch queue
+     *
+     * @param jobNo
+     * @param scores if set, filled with the hit scores
+     * @return
+     */
+    private static List<String> takeAllHits(int jobNo, List<Double> scores) {
+        var hits = new ArrayList<String>();
+        while (true) {
+            var chunk = BatchSystem.takeResults(jobNo);
+            var hitlist = chunk.getHitlist();
+            if (hitlist != null) {
+                for (var i = 0; i < hitlist.length; i++) {
+                    hits.add(hitlist[i]);
+                    if (scores != null)
+                        scores.add(chunk.getScores()[i]);
+                }
+            }
+            if (chunk.isFinished())
+                return hits;
+        }
+    }
+}
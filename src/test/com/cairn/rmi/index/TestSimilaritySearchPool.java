@@ -0,0 +1,146 @@
+package com.cairn.rmi.index;
+
+import com.cairn.rmi.server.BatchSystem;
+import com.cairn.rmi.server.TaskJobResults;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that similarity scans split over the fork join pool, and searches of
+ * ordinal batches such as those from a SQL filter, find the same hits as a
+ * serial scan and respect the maximum number of hits. These do not need RDKit
+ * or Oracle.
+ *
+ * @author Gareth Jones
+ */
+class TestSimilaritySearchPool {
+    private static final int N_ROWS = 20000;
+    private static FingerprintStore store;
+
+    @BeforeAll
+    static void init() {
+        SimilaritySearchPool.setnThreads(4);
+        SimilaritySearchPool.setUseSimilaritySearchPool(true);
+        store = new FingerprintStore();
+        for (var i = 0; i < N_ROWS; i++)
+            store.add(TestFingerprintStore.rowId(i), TestFingerprintStore.smiles(i),
+                    TestFingerprintStore.fingerprint(i), null);
+        for (var i = 0; i < N_ROWS; i += 9)
+            store.remove(TestFingerprintStore.rowId(i));
+    }
+
+    /**
+     * A score between 0 and 1 that depends on the row
+     *
+     * @param ordinal
+     * @return
+     */
+    private static double score(int ordinal) {
+        if (store.isDeleted(ordinal))
+            return -1.0;
+        return (ordinal % 100) / 100.0;
+    }
+
+    @Test
+    void testSearch() {
+        assertTrue(SimilaritySearchPool.usePool(N_ROWS));
+        var jobNo = BatchSystem.createBatchQueue();
+        var results = new TaskJobResults(jobNo, true);
+        var counts = SimilaritySearchPool.search(store, new int[]{0, N_ROWS / 2, N_ROWS / 2, N_ROWS},
+                TestSimilaritySearchPool::score, 0.75, 0, results);
+        results.finish();
+
+        var expected = new HashMap<String, Double>();
+        for (var ordinal = 0; ordinal < N_ROWS; ordinal++) {
+            if (score(ordinal) >= 0.75)
+                expected.put(new String(store.rowId(ordinal)), score(ordinal));
+        }
+        assertEquals(expected.size(), counts[0]);
+        assertEquals(N_ROWS, counts[1]);
+        assertEquals(expected, takeAllHits(jobNo));
+    }
+
+    @Test
+    void testMaxHits() {
+        var jobNo = BatchSystem.createBatchQueue();
+        var results = new TaskJobResults(jobNo, true);
+        var counts = SimilaritySearchPool.search(store, new int[]{0, N_ROWS},
+                TestSimilaritySearchPool::score, 0.5, 100, results);
+        results.finish();
+        assertEquals(100, counts[0]);
+        var hits = takeAllHits(jobNo);
+        assertEquals(100, hits.size());
+        hits.values().forEach(score -> assertTrue(score >= 0.5));
+    }
+
+    @Test
+    void testOrdinalSearch() {
+        var jobNo = BatchSystem.createBatchQueue();
+        var results = new TaskJobResults(jobNo, true);
+        var search = SimilaritySearchPool.startOrdinalSearch(store,
+                TestSimilaritySearchPool::score, 0.75, 0, results);
+        // batches of odd ordinals, as from a SQL filter
+        var expected = new HashMap<String, Double>();
+        for (var start = 1; start < N_ROWS; start += 2000) {
+            var ordinals = new int[1000];
+            for (var i = 0; i < 1000; i++) {
+                ordinals[i] = start + 2 * i;
+                if (score(ordinals[i]) >= 0.75)
+                    expected.put(new String(store.rowId(ordinals[i])), score(ordinals[i]));
+            }
+            assertTrue(search.submit(ordinals, 1000));
+        }
+        var counts = search.finish();
+        results.finish();
+        assertEquals(expected.size(), counts[0]);
+        assertEquals(N_ROWS / 2, counts[1]);
+        assertEquals(expected, takeAllHits(jobNo));
+    }
+
+    @Test
+    void testOrdinalSearchMaxHits() {
+        var jobNo = BatchSystem.createBatchQueue();
+        var results = new TaskJobResults(jobNo, true);
+        var search = SimilaritySearchPool.startOrdinalSearch(store,
+                TestSimilaritySearchPool::score, 0.0, 50, results);
+        var nBatches = 0;
+        for (var start = 0; start < N_ROWS; start += 100) {
+            var ordinals = new int[100];
+            for (var i = 0; i < 100; i++)
+                ordinals[i] = start + i;
+            if (!search.submit(ordinals, 100))
+                break;
+            nBatches++;
+        }
+        // submission stops once the hits are found
+        assertTrue(nBatches < N_ROWS / 100);
+        assertEquals(50, search.finish()[0]);
+        results.finish();
+        assertEquals(50, takeAllHits(jobNo).size());
+    }
+
+    /**
+     * Reads all the hits of a job from the batch queue
+     *
+     * @param jobNo
+     * @return hit rowids mapped to scores
+     */
+    static Map<String, Double> takeAllHits(int jobNo) {
+        var hits = new HashMap<String, Double>();
+        while (true) {
+            var chunk = BatchSystem.takeResults(jobNo);
+            var hitlist = chunk.getHitlist();
+            if (hitlist != null) {
+                for (var i = 0; i < hitlist.length; i++)
+                    assertNull(hits.put(hitlist[i], chunk.getScores()[i]), "Duplicate hit " + hitlist[i]);
+            }
+            if (chunk.isFinished())
+                return hits;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.cairn.rmi.index;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks job accounting in the task pool. These do not need RDKit or Oracle.
+ *
+ * @author Gareth Jones
+ */
+class TestTaskPool {
+    private static final int MAX_BATCH_SIZE = 256;
+    private static TestPool pool;
+
+    /**
+     * An item with a value to process
+     */
+    private static class TestItem extends TaskPool.QueueItem {
+        private final int value;
+
+        private TestItem(int jobNo, int value) {
+            super(jobNo);
+            this.value = value;
+        }
+    }
+
+    /**
+     * Job information with a processing action
+     */
+    private static class TestJobInfo extends TaskPool.TaskJobInfo {
+        private final ConcurrentHashMap<Integer, Boolean> processed = new ConcurrentHashMap<>();
+        // value of an item that fails
+        private final int failValue;
+        // held by items until released
+        private final CountDownLatch release;
+        // items currently being processed
+        private final AtomicInteger nRunning = new AtomicInteger();
+        // value of an item that stops submission, as when max hits are found
+        private volatile int stopValue = -1;
+        private volatile boolean cancelled;
+
+        private TestJobInfo(int jobNo, int failValue, CountDownLatch release) {
+            super(jobNo);
+            this.failValue = failValue;
+            this.release = release;
+        }
+
+        @Override
+        protected boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private static class TestPool extends TaskPool {
+        private TestPool() {
+            super("testPool", 4, MAX_BATCH_SIZE);
+        }
+
+        @Override
+        protected void processItem(TaskJobInfo taskJobInfo, QueueItem item) {
+            var jobInfo = (TestJobInfo) taskJobInfo;
+            var value = ((TestItem) item).value;
+            jobInfo.nRunning.incrementAndGet();
+            try {
+                if (jobInfo.release != null)
+                    jobInfo.release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                jobInfo.nRunning.decrementAndGet();
+            }
+            if (value == jobInfo.failValue)
+                throw new IllegalStateException("Unable to process item " + value);
+            jobInfo.processed.put(value, true);
+            if (value == jobInfo.stopValue)
+                jobInfo.setStopSubmission();
+        }
+    }
+
+    @BeforeAll
+    static void init() {
+        pool = new TestPool();
+        pool.start();
+    }
+
+    @Test
+    void testAllItemsProcessed() {
+        var jobInfo = new TestJobInfo(1, -1, null);
+        pool.startJob(jobInfo);
+        for (var i = 0; i < 10000; i++)
+            assertTrue(pool.submitItem(new TestItem(1, i)));
+        pool.finishJob(1);
+        assertEquals(10000, jobInfo.processed.size());
+        assertEquals(10000, jobInfo.getnItemsFinished());
+        assertNull(pool.getTaskJobInfo(1));
+    }
+
+    @Test
+    void testErrorWhileFinishing() throws InterruptedException {
+        // the failing item is processed after the last item is submitted
+        var release = new CountDownLatch(1);
+        var jobInfo = new TestJobInfo(2, 99, release);
+        pool.startJob(jobInfo);
+        for (var i = 0; i < 100; i++)
+            assertTrue(pool.submitItem(new TestItem(2, i)));
+        var error = new AtomicReference<Throwable>();
+        var finisher = new Thread(() -> {
+            try {
+                pool.finishJob(2);
+            } catch (Throwable e) {
+                error.set(e);
+            }
+        });
+        finisher.start();
+        // wait until finishJob is waiting for the pool threads
+        while (finisher.getState() != Thread.State.WAITING)
+            Thread.sleep(1);
+        release.countDown();
+        finisher.join(TimeUnit.SECONDS.toMillis(10));
+        assertFalse(finisher.isAlive());
+        assertTrue(error.get() instanceof IllegalStateException, () -> "error " + error.get());
+        assertEquals(99, jobInfo.processed.size());
+        assertNull(pool.getTaskJobInfo(2));
+    }
+
+    @Test
+    void testBatchSizes() {
+        var jobInfo = new TestJobInfo(3, -1, null);
+        pool.startJob(jobInfo);
+        for (var i = 0; i < 10000; i++)
+            assertTrue(pool.submitItem(new TestItem(3, i)));
+        // batches of 16, 32, 64 and 128 items, then 38 of 256
+        assertEquals(4 + 38, jobInfo.getnBatchesSubmitted());
+        pool.finishJob(3);
+        // the remaining 32 items are queued when the job is finished
+        assertEquals(4 + 38 + 1, jobInfo.getnBatchesSubmitted());
+        assertEquals(10000, jobInfo.processed.size());
+    }
+
+    @Test
+    void testStopSubmission() {
+        var jobInfo = new TestJobInfo(4, -1, null);
+        jobInfo.stopValue = 20;
+        pool.startJob(jobInfo);
+        var nSubmitted = 0;
+        while (pool.submitItem(new TestItem(4, nSubmitted)))
+            nSubmitted++;
+        pool.finishJob(4);
+        assertTrue(jobInfo.processed.containsKey(20));
+        assertTrue(jobInfo.processed.size() <= nSubmitted);
+        assertEquals(0, jobInfo.nRunning.get());
+        assertNull(pool.getTaskJobInfo(4));
+    }
+
+    @Test
+    void testCancelWhileRunning() throws InterruptedException {
+        var release = new CountDownLatch(1);
+        var jobInfo = new TestJobInfo(5, -1, release);
+        pool.startJob(jobInfo);
+        for (var i = 0; i < 100; i++)
+            assertTrue(pool.submitItem(new TestItem(5, i)));
+        // the batches of 16 and 32 items are queued and the rest are pending
+        while (jobInfo.nRunning.get() < 2)
+            Thread.sleep(1);
+        jobInfo.cancelled = true;
+        assertFalse(pool.submitItem(new TestItem(5, 100)));
+
+        // a cancelled job is finished, but finishing waits for the items that
+        // pool threads are part way through
+        var finisher = new Thread(() -> pool.finishJob(5));
+        finisher.start();
+        while (finisher.getState() != Thread.State.WAITING && finisher.isAlive())
+            Thread.sleep(1);
+        assertTrue(finisher.isAlive());
+        release.countDown();
+        finisher.join(TimeUnit.SECONDS.toMillis(10));
+        assertFalse(finisher.isAlive());
+        assertEquals(0, jobInfo.nRunning.get());
+        // only the item each thread was processing completes
+        assertEquals(2, jobInfo.processed.size(), () -> "processed " + jobInfo.processed.size());
+        assertNull(pool.getTaskJobInfo(5));
+    }
+}
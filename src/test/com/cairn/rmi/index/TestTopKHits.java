@@ -0,0 +1,157 @@
+package com.cairn.rmi.index;
+
+import com.cairn.rmi.server.BatchSystem;
+import com.cairn.rmi.server.TaskJobResults;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that top K similarity searches keep the best K hits, in score order,
+ * and that tightening the popcount bound as hits are found does not lose any
+ * of them. These do not need RDKit or Oracle.
+ *
+ * @author Gareth Jones
+ */
+class TestTopKHits {
+
+    @Test
+    void testOffer() {
+        var random = new Random(7);
+        var store = new FingerprintStore();
+        var scores = new double[1000];
+        for (var i = 0; i < scores.length; i++) {
+            store.add(TestFingerprintStore.rowId(i), TestFingerprintStore.smiles(i),
+                    TestFingerprintStore.fingerprint(i), null);
+            // coarse scores so that there are ties
+            scores[i] = random.nextInt(100) / 100.0;
+        }
+        var hits = new TopKHits(50, 0.2);
+        for (var i = 0; i < scores.length; i++)
+            hits.offer(i, scores[i]);
+        assertEquals(50, hits.size());
+
+        var expected = bestOrdinals(scores, 50, 0.2);
+        assertEquals(scores[expected.get(49)], hits.threshold());
+        assertEquals(expected, addHits(store, hits));
+    }
+
+    @Test
+    void testThreshold() {
+        var hits = new TopKHits(3, 0.5);
+        // scores below the minimum similarity are never kept
+        hits.offer(0, 0.4);
+        assertEquals(0, hits.size());
+        assertEquals(0.5, hits.threshold());
+        hits.offer(1, 0.9);
+        hits.offer(2, 0.6);
+        assertEquals(0.5, hits.threshold());
+        hits.offer(3, 0.7);
+        assertEquals(0.6, hits.threshold());
+        // the worst hit is replaced by a better one only
+        hits.offer(4, 0.55);
+        assertEquals(0.6, hits.threshold());
+        hits.offer(5, 0.8);
+        assertEquals(0.7, hits.threshold());
+        assertEquals(3, hits.size());
+    }
+
+    @Test
+    void testTopKScan() throws IOException {
+        var store = TestFingerprintStore.openStore(5000);
+        for (var i = 5000; i < 5200; i++)
+            store.add(TestFingerprintStore.rowId(i), TestFingerprintStore.smiles(i),
+                    TestFingerprintStore.fingerprint(i), null);
+        for (var i = 0; i < 5200; i += 13)
+            store.remove(TestFingerprintStore.rowId(i));
+
+        var query = TestFingerprintStore.fingerprint(40);
+        var scores = new double[store.size()];
+        for (var ordinal = 0; ordinal < store.size(); ordinal++)
+            scores[ordinal] = store.isDeleted(ordinal) ? -1.0 : tanimoto(query, store.fingerprint(ordinal));
+
+        var hits = new TopKHits(5, 0.1);
+        var nVisited = new int[1];
+        assertFalse(store.visitByTanimotoBound(query.cardinality(), hits::threshold, ordinal -> {
+            nVisited[0]++;
+            if (!store.isDeleted(ordinal))
+                hits.offer(ordinal, scores[ordinal]);
+            return false;
+        }));
+        // rows with the query fingerprint fill the hits at once, so the bound
+        // rises to 1.0 and much of the index is skipped
+        assertTrue(nVisited[0] < store.size() / 2, () -> "visited " + nVisited[0]);
+        assertEquals(bestOrdinals(scores, 5, 0.1), addHits(store, hits));
+
+        // the bound rises part way through the scan
+        for (var k : new int[]{20, 100, 1000}) {
+            var moreHits = new TopKHits(k, 0.1);
+            store.visitByTanimotoBound(query.cardinality(), moreHits::threshold, ordinal -> {
+                if (!store.isDeleted(ordinal))
+                    moreHits.offer(ordinal, scores[ordinal]);
+                return false;
+            });
+            assertEquals(bestOrdinals(scores, k, 0.1), addHits(store, moreHits), "Hits error for top " + k);
+        }
+    }
+
+    private static double tanimoto(BitSet query, BitSet target) {
+        var common = (BitSet) query.clone();
+        common.and(target);
+        var nCommon = common.cardinality();
+        return (double) nCommon / (query.cardinality() + target.cardinality() - nCommon);
+    }
+
+    /**
+     * @param scores
+     * @param k
+     * @param minSimilarity
+     * @return the ordinals of the best K scores, ties broken by ordinal
+     */
+    private static List<Integer> bestOrdinals(double[] scores, int k, double minSimilarity) {
+        return IntStream.range(0, scores.length).boxed()
+                .filter(ordinal -> scores[ordinal] >= minSimilarity)
+                .sorted(Comparator.comparingDouble((Integer ordinal) -> -scores[ordinal])
+                        .thenComparing(ordinal -> ordinal))
+                .limit(k)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Empties the hits into a job and reads them back
+     *
+     * @param store
+     * @param hits
+     * @return the ordinals of the hits in the order they were returned
+     */
+    private static List<Integer> addHits(FingerprintStore store, TopKHits hits) {
+        var jobNo = BatchSystem.createBatchQueue();
+        var results = new TaskJobResults(jobNo, true);
+        hits.addHits(store, results);
+        results.finish();
+        var ordinals = new ArrayList<Integer>();
+        var lastScore = Double.MAX_VALUE;
+        while (true) {
+            var chunk = BatchSystem.takeResults(jobNo);
+            var hitlist = chunk.getHitlist();
+            if (hitlist != null) {
+                for (var i = 0; i < hitlist.length; i++) {
+                    assertTrue(chunk.getScores()[i] <= lastScore);
+                    lastScore = chunk.getScores()[i];
+                    ordinals.add(store.ordinalOf(hitlist[i].getBytes()));
+                }
+            }
+            if (chunk.isFinished())
+                return ordinals;
+        }
+    }
+}
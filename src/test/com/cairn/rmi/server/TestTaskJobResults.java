@@ -0,0 +1,140 @@
+package com.cairn.rmi.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that search results are put on the job queue in order, that hits
+ * are flushed once the flush interval has passed and that a search blocked on
+ * a full job queue does not hold up hit flushing. These do
+ * not need RDKit or Oracle.
+ *
+ * @author Gareth Jones
+ */
+class TestTaskJobResults {
+    // the job queue holds 200 chunks, the first of 100 hits and then 2000
+    private static final int QUEUE_HITS = 100 + 199 * 2000;
+
+    @AfterEach
+    void cleanUp() {
+        TaskJobResults.setFlushIntervalMilliseconds(0);
+    }
+
+    @Test
+    void testChunkOrder() throws InterruptedException {
+        var jobNo = BatchSystem.createBatchQueue();
+        var results = new TaskJobResults(jobNo, true);
+        var nHits = 10000;
+        var producer = new Thread(() -> {
+            for (var i = 0; i < nHits; i++)
+                results.addHit(String.valueOf(i).getBytes(), (double) i);
+            results.finish();
+        });
+        producer.start();
+        assertEquals(nHits, takeAllHits(jobNo, true));
+        producer.join();
+    }
+
+    @Test
+    void testTimedFlush() throws InterruptedException {
+        TaskJobResults.setFlushIntervalMilliseconds(200);
+        var jobNo = BatchSystem.createBatchQueue();
+        var results = new TaskJobResults(jobNo, false);
+        for (var i = 0; i < 3; i++)
+            results.addHit(String.valueOf(i).getBytes(), null);
+        // too few hits for a chunk and the interval has not passed
+        assertTrue(results.flushIfDue());
+        results.addHit("3".getBytes(), null);
+
+        Thread.sleep(300);
+        assertTrue(results.flushIfDue());
+        var chunk = BatchSystem.takeResults(jobNo);
+        assertArrayEquals(new String[]{"0", "1", "2", "3"}, chunk.getHitlist());
+        assertFalse(chunk.isFinished());
+
+        // a hit found after the interval is put on the queue at once
+        Thread.sleep(300);
+        results.addHit("4".getBytes(), null);
+        chunk = BatchSystem.takeResults(jobNo);
+        assertArrayEquals(new String[]{"4"}, chunk.getHitlist());
+
+        results.finish();
+        assertFalse(results.flushIfDue());
+        assertTrue(BatchSystem.takeResults(jobNo).isFinished());
+    }
+
+    @Test
+    void testFlushWhileQueueFull() throws InterruptedException {
+        TaskJobResults.setFlushIntervalMilliseconds(60000);
+        var jobNo = BatchSystem.createBatchQueue();
+        var results = new TaskJobResults(jobNo, false);
+        var nHits = QUEUE_HITS + 2000 + 10;
+        var error = new AtomicReference<Throwable>();
+        var producer = new Thread(() -> {
+            try {
+                for (var i = 0; i < nHits; i++)
+                    results.addHit(String.valueOf(i).getBytes(), null);
+                results.finish();
+            } catch (Throwable e) {
+                error.set(e);
+            }
+        });
+        producer.start();
+        // wait until the producer is blocked on the full queue
+        while (producer.getState() != Thread.State.TIMED_WAITING && producer.isAlive())
+            Thread.sleep(10);
+        assertTrue(producer.isAlive());
+
+        // neither flushing nor reading the results waits on the blocked search
+        var flusher = new Thread(results::flushIfDue);
+        flusher.start();
+        flusher.join(2000);
+        assertFalse(flusher.isAlive(), "Flushing hits is blocked by a full job queue");
+        assertFalse(results.isStopped());
+
+        assertEquals(nHits, takeAllHits(jobNo, false));
+        producer.join();
+        assertNull(error.get());
+    }
+
+    @Test
+    void testCancelWhileQueueFull() throws InterruptedException {
+        var jobNo = BatchSystem.createBatchQueue();
+        var results = new TaskJobResults(jobNo, false);
+        var producer = new Thread(() -> {
+            for (var i = 0; i < QUEUE_HITS + 2000; i++)
+                results.addHit(String.valueOf(i).getBytes(), null);
+            results.finish();
+        });
+        producer.start();
+        while (producer.getState() != Thread.State.TIMED_WAITING && producer.isAlive())
+            Thread.sleep(10);
+        assertTrue(BatchSystem.cancelJob(jobNo));
+        // the blocked put gives up once the job is cancelled
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertTrue(results.isStopped());
+    }
+
+    private static int takeAllHits(int jobNo, boolean hasScores) {
+        var next = 0;
+        while (true) {
+            var chunk = BatchSystem.takeResults(jobNo);
+            var hitlist = chunk.getHitlist();
+            if (hitlist != null) {
+                for (var i = 0; i < hitlist.length; i++) {
+                    assertEquals(String.valueOf(next), hitlist[i]);
+                    if (hasScores)
+                        assertEquals(next, chunk.getScores()[i], 1e-9);
+                    next++;
+                }
+            }
+            if (chunk.isFinished())
+                return next;
+        }
+    }
+}
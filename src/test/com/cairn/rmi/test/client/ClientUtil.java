@@ -6,6 +6,9 @@ import com.cairn.common.PooledConnections;
 import com.cairn.rmi.server.TaskManagerImpl;
 import com.cairn.rmi.util.LoadSmiles;
 import com.cairn.common.RDKitOps;
+import com.cairn.rmi.TaskException;
+import com.cairn.rmi.client.TaskProxy;
+import com.cairn.rmi.common.HitListChunk;
 import org.RDKit.*;
 
 import java.sql.Connection;
@@ -17,6 +20,7 @@ import java.util.Map;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
@@ -216,6 +220,95 @@ class ClientUtil {
                 .collect(Collectors.toList());
     }
 
+    public static class IndexHit {
+        private final String rowId;
+        private final Double score;
+        private final int queryIndex;
+
+        IndexHit(String rowId, Double score, int queryIndex) {
+            this.rowId = rowId;
+            this.score = score;
+            this.queryIndex = queryIndex;
+        }
+
+        public String getRowId() {
+            return rowId;
+        }
+
+        public Double getScore() {
+            return score;
+        }
+
+        public int getQueryIndex() {
+            return queryIndex;
+        }
+    }
+
+    public static String getRmiHostname() {
+        return TaskManagerImpl.getProperties().getProperty("java.rmi.server.hostname");
+    }
+
+    public static Map<String, Object> tableIndexParameters(String operation, String tableName) {
+        var parameters = new HashMap<String, Object>();
+        parameters.put("operation", operation);
+        parameters.put("owner_name", "CSCHEM1_TEST");
+        parameters.put("table_name", tableName.toUpperCase());
+        parameters.put("column_name", "SMILES");
+        return parameters;
+    }
+
+    public static HitListChunk submitTableIndexTask(Map<String, Object> parameters) {
+        return submitTask("com.cairn.rmi.task.TableIndexTask", parameters);
+    }
+
+    public static HitListChunk retrieveChunk(int jobNo) {
+        return submitTask("com.cairn.rmi.task.HitListChunkTask", jobNo);
+    }
+
+    public static boolean cancelJob(int jobNo) {
+        try {
+            return (Boolean) TaskProxy.submit(getRmiHostname(), "com.cairn.rmi.task.CancelJobTask", jobNo);
+        } catch (TaskException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static HitListChunk submitTask(String className, Object settings) {
+        try {
+            var chunk = (HitListChunk) TaskProxy.submit(getRmiHostname(), className, settings);
+            if (chunk.getException() != null)
+                throw new RuntimeException(chunk.getException());
+            return chunk;
+        } catch (TaskException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Runs a search on a table index through the rmi server and reads all the hits.
+     */
+    public static List<IndexHit> tableIndexSearch(Map<String, Object> parameters) {
+        var hits = new ArrayList<IndexHit>();
+        var chunk = submitTableIndexTask(parameters);
+        while (true) {
+            var rowIds = chunk.getHitlist();
+            if (rowIds != null) {
+                var scores = chunk.getScores();
+                var queryIndices = chunk.getQueryIndices();
+                if (queryIndices != null)
+                    assertEquals(rowIds.length, queryIndices.length);
+                for (var i = 0; i < rowIds.length; i++) {
+                    var score = scores == null ? null : scores[i];
+                    var queryIndex = queryIndices == null ? -1 : queryIndices[i];
+                    hits.add(new IndexHit(rowIds[i], score, queryIndex));
+                }
+            }
+            if (chunk.isFinished())
+                return hits;
+            chunk = retrieveChunk(chunk.getJobNo());
+        }
+    }
+
     public static void cacheOn(Connection connection) {
         var update = "call c$cschem1.chem_structure.enableCache()";
         SqlFetcher.updateCommand(connection, update, null);
@@ -0,0 +1,67 @@
+package com.cairn.rmi.test.client;
+
+
+import com.cairn.rmi.util.LoadSmiles;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static com.cairn.rmi.test.client.ClientUtil.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Checks that a search can be cancelled part way through, as happens when the
+ * Oracle cursor reading the results is closed.
+ *
+ * @author Gareth Jones
+ */
+class TestCancelJob {
+    private static final List<LoadSmiles.SmilesAndId> en1000 = ClientUtil.loadFromSmilesIntoMemory("/en1000.smi.gz");
+
+    @BeforeAll
+    static void init() throws Exception {
+        setup();
+        loadSmilesIntoTable("/en1000.smi.gz", "en1000");
+        createStructureIndex("en1000", "en1000_smiles_index");
+    }
+
+    @AfterAll
+    static void finish() {
+        dropStructureIndex("en1000_smiles_index");
+    }
+
+    @Test
+    void testCancelJob() {
+        // every row is a hit for every query, so the search has far more
+        // hits than fit in the job queue
+        var queries = en1000.stream().limit(200).map(LoadSmiles.SmilesAndId::getSmiles).toArray(String[]::new);
+        var parameters = tableIndexParameters("batch_similarity", "en1000");
+        parameters.put("queries", queries);
+        parameters.put("max_hits", -1);
+        parameters.put("min_similarity", 0.0);
+        var chunk = submitTableIndexTask(parameters);
+        assertFalse(chunk.isFinished());
+        var jobNo = chunk.getJobNo();
+        chunk = retrieveChunk(jobNo);
+        assertFalse(chunk.isFinished());
+
+        assertTrue(cancelJob(jobNo));
+        // the job queue has been removed
+        assertFalse(cancelJob(jobNo));
+        chunk = retrieveChunk(jobNo);
+        assertTrue(chunk.isFinished());
+        assertNull(chunk.getHitlist());
+
+        // the cancelled search has stopped and released its thread
+        var query = en1000.get(0).getSmiles();
+        parameters = tableIndexParameters("similarity", "en1000");
+        parameters.put("query", query);
+        parameters.put("max_hits", -1);
+        parameters.put("min_similarity", 0.0);
+        assertFalse(tableIndexSearch(parameters).isEmpty());
+    }
+
+}
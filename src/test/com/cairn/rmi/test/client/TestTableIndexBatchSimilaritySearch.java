@@ -0,0 +1,103 @@
+package com.cairn.rmi.test.client;
+
+
+import com.cairn.rmi.util.LoadSmiles;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static com.cairn.rmi.test.client.ClientUtil.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Checks that batch similarity searches find the same hits for each query as
+ * single query similarity searches.
+ *
+ * @author Gareth Jones
+ */
+class TestTableIndexBatchSimilaritySearch {
+    private static final List<LoadSmiles.SmilesAndId> en1000 = ClientUtil.loadFromSmilesIntoMemory("/en1000.smi.gz");
+    private static final double minSimilarity = 0.6;
+    private static final String[] queries = en1000.stream().limit(25)
+            .map(LoadSmiles.SmilesAndId::getSmiles).toArray(String[]::new);
+
+    @BeforeAll
+    static void init() throws Exception {
+        setup();
+        loadSmilesIntoTable("/en1000.smi.gz", "en1000");
+        createStructureIndex("en1000", "en1000_smiles_index");
+    }
+
+    @AfterAll
+    static void finish() {
+        dropStructureIndex("en1000_smiles_index");
+    }
+
+    @Test
+    void testBatchSearch() {
+        var batchHits = batchSimilaritySearch(-1);
+        for (var q = 0; q < queries.length; q++) {
+            var queryHits = queryHits(batchHits, q);
+            var singleHits = similaritySearch(queries[q]);
+            assertFalse(singleHits.isEmpty());
+            assertEquals(singleHits.size(), queryHits.size());
+            queryHits.forEach((rowId, score) -> {
+                assertTrue(singleHits.containsKey(rowId));
+                assertEquals(singleHits.get(rowId), score, 1e-6);
+            });
+        }
+    }
+
+    @Test
+    void testBatchSearchMaxHits() {
+        var maxHits = 3;
+        var batchHits = batchSimilaritySearch(maxHits);
+        for (var q = 0; q < queries.length; q++) {
+            var queryHits = queryHits(batchHits, q);
+            var singleHits = similaritySearch(queries[q]);
+            assertEquals(Math.min(maxHits, singleHits.size()), queryHits.size());
+            queryHits.forEach((rowId, score) -> {
+                assertTrue(singleHits.containsKey(rowId));
+                assertEquals(singleHits.get(rowId), score, 1e-6);
+            });
+        }
+    }
+
+    private static List<IndexHit> batchSimilaritySearch(int maxHits) {
+        var parameters = tableIndexParameters("batch_similarity", "en1000");
+        parameters.put("queries", queries);
+        parameters.put("max_hits", maxHits);
+        parameters.put("min_similarity", minSimilarity);
+        var hits = tableIndexSearch(parameters);
+        hits.forEach(hit -> {
+            assertTrue(hit.getQueryIndex() >= 0 && hit.getQueryIndex() < queries.length);
+            assertNotNull(hit.getScore());
+        });
+        return hits;
+    }
+
+    private static Map<String, Double> queryHits(List<IndexHit> batchHits, int queryIndex) {
+        var hits = batchHits.stream()
+                .filter(hit -> hit.getQueryIndex() == queryIndex)
+                .collect(Collectors.toList());
+        var rowIdHits = hits.stream().collect(Collectors.toMap(IndexHit::getRowId, IndexHit::getScore));
+        // each row is a hit for a query once only
+        assertEquals(hits.size(), rowIdHits.size());
+        return rowIdHits;
+    }
+
+    private static Map<String, Double> similaritySearch(String query) {
+        var parameters = tableIndexParameters("similarity", "en1000");
+        parameters.put("query", query);
+        parameters.put("max_hits", -1);
+        parameters.put("min_similarity", minSimilarity);
+        return tableIndexSearch(parameters).stream()
+                .collect(Collectors.toMap(IndexHit::getRowId, IndexHit::getScore));
+    }
+
+}
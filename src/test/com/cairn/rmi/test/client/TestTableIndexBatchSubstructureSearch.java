@@ -0,0 +1,110 @@
+package com.cairn.rmi.test.client;
+
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.cairn.rmi.test.client.ClientUtil.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Checks that batch substructure searches find the same hits for each query as
+ * single query substructure searches.
+ *
+ * @author Gareth Jones
+ */
+class TestTableIndexBatchSubstructureSearch {
+    private static final String badQuery = "C(C";
+    private static String[] queries;
+
+    @BeforeAll
+    static void init() throws Exception {
+        setup();
+        loadSmilesIntoTable("/en1000.smi.gz", "en1000");
+        createStructureIndex("en1000", "en1000_smiles_index");
+        // include a query that cannot be parsed
+        queries = Stream.concat(TestTableIndexSubstructureSearch.queries().limit(20), Stream.of(badQuery))
+                .toArray(String[]::new);
+    }
+
+    @AfterAll
+    static void finish() {
+        dropStructureIndex("en1000_smiles_index");
+    }
+
+    @Test
+    void testBatchSearch() {
+        var batchHits = batchSubstructureSearch(-1);
+        var nHits = 0;
+        for (var q = 0; q < queries.length; q++) {
+            var queryHits = queryHits(batchHits, q);
+            if (queries[q].equals(badQuery)) {
+                assertTrue(queryHits.isEmpty());
+                continue;
+            }
+            var singleHits = substructureSearch(queries[q]);
+            assertEquals(singleHits, queryHits, "Batch substructure search hits error for " + queries[q]);
+            nHits += queryHits.size();
+        }
+        assertEquals(nHits, batchHits.size());
+        assertTrue(nHits > 0);
+    }
+
+    @Test
+    void testBatchSearchMaxHits() {
+        var maxHits = 5;
+        var batchHits = batchSubstructureSearch(maxHits);
+        for (var q = 0; q < queries.length; q++) {
+            var queryHits = queryHits(batchHits, q);
+            if (queries[q].equals(badQuery)) {
+                assertTrue(queryHits.isEmpty());
+                continue;
+            }
+            var singleHits = substructureSearch(queries[q]);
+            assertEquals(Math.min(maxHits, singleHits.size()), queryHits.size());
+            assertTrue(singleHits.containsAll(queryHits));
+        }
+    }
+
+    private static List<IndexHit> batchSubstructureSearch(int maxHits) {
+        var parameters = tableIndexParameters("batch_substructure", "en1000");
+        parameters.put("queries", queries);
+        parameters.put("query_type", "smarts");
+        parameters.put("max_hits", maxHits);
+        var hits = tableIndexSearch(parameters);
+        hits.forEach(hit -> {
+            assertTrue(hit.getQueryIndex() >= 0 && hit.getQueryIndex() < queries.length);
+            assertNull(hit.getScore());
+        });
+        return hits;
+    }
+
+    private static Set<String> queryHits(List<IndexHit> batchHits, int queryIndex) {
+        var hits = batchHits.stream()
+                .filter(hit -> hit.getQueryIndex() == queryIndex)
+                .map(IndexHit::getRowId)
+                .collect(Collectors.toList());
+        var rowIds = Set.copyOf(hits);
+        // each row is a hit for a query once only
+        assertEquals(hits.size(), rowIds.size());
+        return rowIds;
+    }
+
+    private static Set<String> substructureSearch(String query) {
+        var parameters = tableIndexParameters("substructure", "en1000");
+        parameters.put("query", query);
+        parameters.put("query_type", "smarts");
+        parameters.put("max_hits", -1);
+        return tableIndexSearch(parameters).stream()
+                .map(IndexHit::getRowId)
+                .collect(Collectors.toSet());
+    }
+
+}
@@ -0,0 +1,134 @@
+package com.cairn.rmi.test.client;
+
+import com.cairn.common.SqlFetcher;
+import com.cairn.common.SqlUtil;
+import com.cairn.rmi.util.LoadSmiles;
+import org.junit.jupiter.api.*;
+
+import java.sql.Connection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.cairn.rmi.test.client.ClientUtil.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Checks that committed changes to an indexed table reach searches when the
+ * change log is applied in the background by the change log ingester. With
+ * read your writes set a search sees the changes at once, otherwise within a
+ * few ingestion intervals, including bulk changes that are prepared in parallel.
+ *
+ * @author Gareth Jones
+ */
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class TestTableIndexChangeLog {
+
+    private static final String query = "c1ccccc1CC";
+    // longest time for the ingester to apply a change
+    private static final long MAX_WAIT_MILLISECONDS = 10000;
+    private static final int nToDelete = 20;
+    // enough changes for the rows to be prepared in parallel
+    private static final int nBulkChanges = 600;
+
+    private static List<LoadSmiles.SmilesAndId> memHits;
+    private static List<LoadSmiles.SmilesAndId> toDelete;
+    private static final List<LoadSmiles.SmilesAndId> en1000 = ClientUtil.loadFromSmilesIntoMemory("/en1000.smi.gz");
+
+    @BeforeAll
+    static void init() throws Exception {
+        setup();
+        loadSmilesIntoTable("/en1000.smi.gz", "en1000_changes");
+        createStructureIndex("en1000_changes", "en1000_changes_index");
+        memHits = substructureSearchInMemory(query, en1000);
+        toDelete = memHits.stream().limit(nToDelete).collect(Collectors.toList());
+    }
+
+    @AfterAll
+    static void finish() {
+        dropStructureIndex("en1000_changes_index");
+    }
+
+    @Test
+    @Order(1)
+    void testDelete() {
+        executeWithConnection(connection -> {
+            checkHits(connection, memHits);
+            var update = "delete from en1000_changes where id = ?";
+            toDelete.forEach(hit -> SqlFetcher.updateCommand(connection, update, new Object[]{hit.getId()}));
+            SqlUtil.commitConnection(connection);
+            var expected = memHits.stream().filter(h -> !toDelete.contains(h)).collect(Collectors.toList());
+            awaitHits(connection, expected);
+        });
+    }
+
+    @Test
+    @Order(2)
+    void testInsert() {
+        executeWithConnection(connection -> {
+            var update = "insert into en1000_changes(id, smiles) values (?, ?)";
+            toDelete.forEach(hit -> SqlFetcher.updateCommand(connection, update,
+                    new Object[]{hit.getId(), hit.getSmiles()}));
+            SqlUtil.commitConnection(connection);
+            awaitHits(connection, memHits);
+        });
+    }
+
+    @Test
+    @Order(3)
+    void testUncommitted() {
+        executeWithConnection(connection -> {
+            var update = "delete from en1000_changes where id = ?";
+            toDelete.forEach(hit -> SqlFetcher.updateCommand(connection, update, new Object[]{hit.getId()}));
+            SqlUtil.rollbackConnection(connection);
+            // other sessions never see changes that are rolled back
+            executeWithConnection(other -> checkHits(other, memHits));
+        });
+    }
+
+    @Test
+    @Order(4)
+    void testBulkChanges() {
+        var bulk = en1000.stream().limit(nBulkChanges).collect(Collectors.toList());
+        executeWithConnection(connection -> {
+            var delete = "delete from en1000_changes where id = ?";
+            bulk.forEach(row -> SqlFetcher.updateCommand(connection, delete, new Object[]{row.getId()}));
+            SqlUtil.commitConnection(connection);
+            var expected = memHits.stream().filter(h -> !bulk.contains(h)).collect(Collectors.toList());
+            awaitHits(connection, expected);
+
+            var insert = "insert into en1000_changes(id, smiles) values (?, ?)";
+            bulk.forEach(row -> SqlFetcher.updateCommand(connection, insert,
+                    new Object[]{row.getId(), row.getSmiles()}));
+            SqlUtil.commitConnection(connection);
+            awaitHits(connection, memHits);
+        });
+    }
+
+    /**
+     * Waits for searches to return the expected hits
+     *
+     * @param connection
+     * @param expected
+     */
+    static void awaitHits(Connection connection, List<LoadSmiles.SmilesAndId> expected) {
+        var deadline = System.currentTimeMillis() + MAX_WAIT_MILLISECONDS;
+        while (System.currentTimeMillis() < deadline) {
+            var oraHits = substructureSearch(connection, query, "en1000_changes");
+            if (oraHits.size() == expected.size() && oraHits.containsAll(expected))
+                return;
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        checkHits(connection, expected);
+    }
+
+    static void checkHits(Connection connection, List<LoadSmiles.SmilesAndId> expected) {
+        var oraHits = substructureSearch(connection, query, "en1000_changes");
+        assertThat(oraHits, containsInAnyOrder(expected.toArray()));
+    }
+}
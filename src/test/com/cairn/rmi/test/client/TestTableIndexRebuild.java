@@ -0,0 +1,86 @@
+package com.cairn.rmi.test.client;
+
+import com.cairn.common.SqlFetcher;
+import com.cairn.rmi.util.LoadSmiles;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.cairn.rmi.test.client.ClientUtil.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that searches run while an index is rebuilt use the old index until
+ * the new one is swapped in, so that they never see a partial index.
+ *
+ * @author Gareth Jones
+ */
+class TestTableIndexRebuild {
+
+    private static final String query = "c1ccccc1CC";
+    private static final int nRebuilds = 3;
+
+    private static List<LoadSmiles.SmilesAndId> memHits;
+    private static final List<LoadSmiles.SmilesAndId> en1000 = ClientUtil.loadFromSmilesIntoMemory("/en1000.smi.gz");
+
+    @BeforeAll
+    static void init() throws Exception {
+        setup();
+        loadSmilesIntoTable("/en1000.smi.gz", "en1000_rebuild");
+        createStructureIndex("en1000_rebuild", "en1000_rebuild_index");
+        memHits = substructureSearchInMemory(query, en1000);
+    }
+
+    @AfterAll
+    static void finish() {
+        dropStructureIndex("en1000_rebuild_index");
+    }
+
+    @Test
+    void testSearchWhileRebuilding() throws InterruptedException {
+        var rebuilding = new AtomicBoolean(true);
+        var nSearches = new AtomicInteger();
+        var errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        var searcher = new Thread(() -> executeWithConnection(connection -> {
+            try {
+                while (rebuilding.get()) {
+                    var oraHits = substructureSearch(connection, query, "en1000_rebuild");
+                    assertThat(oraHits, containsInAnyOrder(memHits.toArray()));
+                    nSearches.incrementAndGet();
+                }
+            } catch (Throwable e) {
+                errors.add(e);
+            }
+        }));
+        searcher.start();
+
+        try {
+            executeWithConnection(connection -> {
+                for (var i = 0; i < nRebuilds; i++) {
+                    var update = i % 2 == 0 ? "alter index en1000_rebuild_index rebuild"
+                            : "alter index en1000_rebuild_index rebuild parameters('full')";
+                    SqlFetcher.updateCommand(connection, update, null);
+                }
+            });
+        } finally {
+            rebuilding.set(false);
+            searcher.join();
+        }
+
+        if (!errors.isEmpty())
+            throw new AssertionError("Search error during rebuild", errors.get(0));
+        assertTrue(nSearches.get() > 0);
+        executeWithConnection(connection -> {
+            var oraHits = substructureSearch(connection, query, "en1000_rebuild");
+            assertThat(oraHits, containsInAnyOrder(memHits.toArray()));
+        });
+    }
+}
@@ -0,0 +1,111 @@
+package com.cairn.rmi.test.client;
+
+
+import com.cairn.rmi.util.LoadSmiles;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.cairn.rmi.test.client.ClientUtil.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Checks that top K similarity searches return the best K hits of a full
+ * similarity search, best first.
+ *
+ * @author Gareth Jones
+ */
+class TestTableIndexSimilarityTopK {
+    private static final List<LoadSmiles.SmilesAndId> en1000 = ClientUtil.loadFromSmilesIntoMemory("/en1000.smi.gz");
+    private static final double minSimilarity = 0.3;
+    private static final int topK = 10;
+
+    @BeforeAll
+    static void init() throws Exception {
+        setup();
+        loadSmilesIntoTable("/en1000.smi.gz", "en1000");
+        createStructureIndex("en1000", "en1000_smiles_index", "fp=ecfp4");
+    }
+
+    @AfterAll
+    static void finish() {
+        dropStructureIndex("en1000_smiles_index");
+    }
+
+    @ParameterizedTest
+    @MethodSource("queries")
+    void testTopK(String query) {
+        var parameters = tableIndexParameters("similarity_topk", "en1000");
+        parameters.put("query", query);
+        parameters.put("top_k", topK);
+        parameters.put("min_similarity", minSimilarity);
+        var topKHits = tableIndexSearch(parameters);
+
+        parameters = tableIndexParameters("similarity", "en1000");
+        parameters.put("query", query);
+        parameters.put("max_hits", -1);
+        parameters.put("min_similarity", minSimilarity);
+        var allHits = tableIndexSearch(parameters);
+
+        assertFalse(topKHits.isEmpty());
+        compareTopKHits(topKHits, allHits);
+    }
+
+    @ParameterizedTest
+    @MethodSource("queries")
+    void testEcfp4TopK(String query) {
+        var parameters = tableIndexParameters("similarity_topk", "en1000");
+        parameters.put("query", query);
+        parameters.put("top_k", topK);
+        parameters.put("min_similarity", minSimilarity);
+        parameters.put("fingerprint_type", "ECFP4");
+        parameters.put("search_method", "tanimoto");
+        var topKHits = tableIndexSearch(parameters);
+
+        parameters = tableIndexParameters("extended_similarity", "en1000");
+        parameters.put("query", query);
+        parameters.put("max_hits", -1);
+        parameters.put("min_similarity", minSimilarity);
+        parameters.put("fingerprint_type", "ECFP4");
+        parameters.put("search_method", "tanimoto");
+        var allHits = tableIndexSearch(parameters);
+
+        assertFalse(topKHits.isEmpty());
+        compareTopKHits(topKHits, allHits);
+    }
+
+    private static void compareTopKHits(List<IndexHit> topKHits, List<IndexHit> allHits) {
+        // hits are best first
+        for (var i = 1; i < topKHits.size(); i++)
+            assertTrue(topKHits.get(i - 1).getScore() >= topKHits.get(i).getScore());
+
+        // the scores are the best K of the full search, which may have ties
+        var bestScores = allHits.stream()
+                .map(IndexHit::getScore)
+                .sorted(Comparator.reverseOrder())
+                .limit(topK)
+                .collect(Collectors.toList());
+        assertEquals(bestScores.size(), topKHits.size());
+        for (var i = 0; i < bestScores.size(); i++)
+            assertEquals(bestScores.get(i), topKHits.get(i).getScore(), 1e-6);
+
+        var allScores = allHits.stream()
+                .collect(Collectors.toMap(IndexHit::getRowId, IndexHit::getScore));
+        topKHits.forEach(hit -> {
+            assertTrue(allScores.containsKey(hit.getRowId()));
+            assertEquals(allScores.get(hit.getRowId()), hit.getScore(), 1e-6);
+        });
+    }
+
+    private static Stream<String> queries() {
+        return en1000.stream().limit(25).map(LoadSmiles.SmilesAndId::getSmiles);
+    }
+
+}